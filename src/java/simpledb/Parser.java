@@ -5,12 +5,18 @@ import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
 import jline.SimpleCompletor;
 import simpledb.common.Database;
 import simpledb.common.DbException;
+import simpledb.common.Permissions;
 import simpledb.common.Type;
 import simpledb.execution.*;
 import simpledb.optimizer.LogicalPlan;
@@ -19,12 +25,40 @@ import simpledb.storage.IntField;
 import simpledb.storage.StringField;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
+import simpledb.transaction.QueryCancelledException;
 import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 public class Parser {
     static boolean explain = false;
 
+    /** ZQL has no LIMIT clause, so a trailing one is cut off the statement before it is parsed */
+    private static final Pattern LIMIT_CLAUSE = Pattern.compile(
+            "\\s+LIMIT\\s+(\\d+)\\s*(;?)\\s*$", Pattern.CASE_INSENSITIVE);
+
+    /** Row count of the LIMIT clause of the statement being processed, or -1 if it has none */
+    private int limit = -1;
+
+    /**
+     * Remove a trailing LIMIT clause from the text of a statement, and
+     * remember its row count until the statement has been planned.
+     *
+     * @return the statement without its LIMIT clause
+     */
+    String stripLimit(String s) throws simpledb.ParsingException {
+        limit = -1;
+        Matcher m = LIMIT_CLAUSE.matcher(s);
+        if (!m.find())
+            return s;
+        try {
+            limit = Integer.parseInt(m.group(1));
+        } catch (NumberFormatException e) {
+            throw new simpledb.ParsingException("LIMIT " + m.group(1) + " is too large");
+        }
+        return s.substring(0, m.start()) + m.group(2);
+    }
+
     public static Predicate.Op getOp(String s) throws simpledb.ParsingException {
         if (s.equals("="))
             return Predicate.Op.EQUALS;
@@ -187,23 +221,20 @@ public class Parser {
 
         // now look for group by fields
         ZGroupBy gby = q.getGroupBy();
-        String groupByField = null;
+        List<String> groupByFields = new ArrayList<>();
         if (gby != null) {
             @SuppressWarnings("unchecked")
             List<ZExp> gbs = gby.getGroupBy();
-            if (gbs.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "At most one grouping field expression supported.");
-            }
-            if (gbs.size() == 1) {
-                ZExp gbe = gbs.get(0);
+            for (ZExp gbe : gbs) {
                 if (!(gbe instanceof ZConstant)) {
                     throw new simpledb.ParsingException(
                             "Complex grouping expressions (" + gbe
                                     + ") not supported.");
                 }
-                groupByField = ((ZConstant) gbe).getValue();
-                System.out.println("GROUP BY FIELD : " + groupByField);
+                String groupByField = ((ZConstant) gbe).getValue();
+                out.println("GROUP BY FIELD : " + groupByField);
+                groupByFields.add(groupByField);
+                lp.addGroupByField(groupByField);
             }
 
         }
@@ -212,8 +243,7 @@ public class Parser {
         // validity
         @SuppressWarnings("unchecked")
         List<ZSelectItem> selectList = q.getSelect();
-        String aggField = null;
-        String aggFun = null;
+        boolean hasAggregate = false;
 
         for (int i = 0; i < selectList.size(); i++) {
             ZSelectItem si = selectList.get(i);
@@ -223,20 +253,18 @@ public class Parser {
                         "Expressions in SELECT list are not supported.");
             }
             if (si.getAggregate() != null) {
-                if (aggField != null) {
-                    throw new simpledb.ParsingException(
-                            "Aggregates over multiple fields not supported.");
-                }
-                aggField = ((ZConstant) ((ZExpression) si.getExpression())
+                String aggField = ((ZConstant) ((ZExpression) si.getExpression())
                         .getOperand(0)).getValue();
-                aggFun = si.getAggregate();
-                System.out.println("Aggregate field is " + aggField
+                String aggFun = si.getAggregate();
+                out.println("Aggregate field is " + aggField
                         + ", agg fun is : " + aggFun);
                 lp.addProjectField(aggField, aggFun);
+                lp.addAggregate(aggFun, aggField, null);
+                hasAggregate = true;
             } else {
-                if (groupByField != null
-                        && !(groupByField.equals(si.getTable() + "."
-                                + si.getColumn()) || groupByField.equals(si
+                if (!groupByFields.isEmpty()
+                        && !(groupByFields.contains(si.getTable() + "."
+                                + si.getColumn()) || groupByFields.contains(si
                                 .getColumn()))) {
                     throw new simpledb.ParsingException("Non-aggregate field "
                             + si.getColumn()
@@ -246,76 +274,167 @@ public class Parser {
             }
         }
 
-        if (groupByField != null && aggFun == null) {
+        if (!groupByFields.isEmpty() && !hasAggregate) {
             throw new simpledb.ParsingException("GROUP BY without aggregation.");
         }
 
-        if (aggFun != null) {
-            lp.addAggregate(aggFun, aggField, groupByField);
-        }
+        lp.setDistinct(q.isDistinct());
+
         // sort the data
 
         if (q.getOrderBy() != null) {
             @SuppressWarnings("unchecked")
             List<ZOrderBy> obys = q.getOrderBy();
-            if (obys.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "Multi-attribute ORDER BY is not supported.");
-            }
-            ZOrderBy oby = obys.get(0);
-            if (!(oby.getExpression() instanceof ZConstant)) {
-                throw new simpledb.ParsingException(
-                        "Complex ORDER BY's are not supported");
-            }
-            ZConstant f = (ZConstant) oby.getExpression();
+            for (ZOrderBy oby : obys) {
+                if (!(oby.getExpression() instanceof ZConstant)) {
+                    throw new simpledb.ParsingException(
+                            "Complex ORDER BY's are not supported");
+                }
+                ZConstant f = (ZConstant) oby.getExpression();
 
-            lp.addOrderBy(f.getValue(), oby.getAscOrder());
+                lp.addOrderBy(f.getValue(), oby.getAscOrder());
+            }
 
         }
         return lp;
     }
 
-    private Transaction curtrans = null;
+    /** Where the results and messages of statements are printed */
+    private PrintStream out = System.out;
+
+    public PrintStream getOutput() {
+        return out;
+    }
+
+    /**
+     * Print the results and messages of the statements processed from now
+     * on to the given stream rather than to standard output.
+     */
+    public void setOutput(PrintStream out) {
+        this.out = out;
+    }
+
+    private volatile Transaction curtrans = null;
     private boolean inUserTrans = false;
+    /** True while an insert, delete or query statement is running */
+    private volatile boolean running = false;
+
+    /** Milliseconds a statement may run for before it is cancelled, or 0 for no limit */
+    private volatile long statementTimeout = 0;
+
+    public long getStatementTimeout() {
+        return statementTimeout;
+    }
+
+    /**
+     * Set the number of milliseconds each statement from now on may run for
+     * before it is cancelled; 0 lets statements run as long as they need.
+     */
+    public void setStatementTimeout(long millis) {
+        if (millis < 0)
+            throw new IllegalArgumentException("timeout must not be negative");
+        statementTimeout = millis;
+    }
+
+    /**
+     * Cancel the statement being processed, from another thread. The
+     * statement stops at the next tuple or page it reads, and its transaction
+     * is aborted, releasing its locks.
+     *
+     * @return false if no statement was running
+     */
+    public boolean cancel() {
+        Transaction t = curtrans;
+        if (t == null || !running)
+            return false;
+        t.getId().cancel();
+        return true;
+    }
 
     public Query handleQueryStatement(ZQuery s, TransactionId tId)
-            throws IOException,
+            throws IOException, TransactionAbortedException,
             simpledb.ParsingException, Zql.ParseException {
         Query query = new Query(tId);
 
         LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        if (limit >= 0)
+            lp.addLimit(limit);
+        query.setLogicalPlan(lp);
+
+        // a transaction that has written may see its own changes, so it
+        // neither uses nor fills the result cache
+        ResultCache cache = Database.getResultCache();
+        String key = Database.getBufferPool().holdsWriteLock(tId) ? null : lp.normalizedKey();
+        if (key != null && cache.contains(key) && lockTables(tId, lp)) {
+            // with the locks a scan would take held, no writer can commit
+            // to the tables before the transaction ends
+            OpIterator cached = cache.lookup(key);
+            if (cached != null) {
+                out.println("The query result is cached.");
+                if (explain) {
+                    out.println("The query plan it was computed with is:");
+                    printPlan(lp, lp.physicalPlan(tId, TableStats.getStatsMap(), true));
+                }
+                query.setPhysicalPlan(cached);
+                return query;
+            }
+        }
+        Map<Integer, Long> versions = key == null ? null
+                : ResultCache.versionsOf(lp.getTableAliasToIdMapping().values());
+
         OpIterator physicalPlan = lp.physicalPlan(tId,
                 TableStats.getStatsMap(), explain);
         query.setPhysicalPlan(physicalPlan);
-        query.setLogicalPlan(lp);
 
         if (physicalPlan != null) {
-            Class<?> c;
-            try {
-                c = Class.forName("simpledb.optimizer.OperatorCardinality");
-
-                Class<?> p = Operator.class;
-                Class<?> h = Map.class;
-
-                java.lang.reflect.Method m = c.getMethod(
-                        "updateOperatorCardinality", p, h, h);
-
-                System.out.println("The query plan is:");
-                m.invoke(null, physicalPlan,
-                        lp.getTableAliasToIdMapping(), TableStats.getStatsMap());
-                c = Class.forName("simpledb.optimizer.QueryPlanVisualizer");
-                m = c.getMethod(
-                        "printQueryPlanTree", OpIterator.class, System.out.getClass());
-                m.invoke(c.newInstance(), physicalPlan,System.out);
-            } catch (ClassNotFoundException | SecurityException ignored) {
-            } catch (NoSuchMethodException | InstantiationException | InvocationTargetException | IllegalAccessException | IllegalArgumentException e) {
-                e.printStackTrace();
-            }
+            out.println("The query plan is:");
+            printPlan(lp, physicalPlan);
+            if (key != null)
+                query.setPhysicalPlan(cache.record(key, versions, physicalPlan));
         }
 
         return query;
     }
 
+    /**
+     * Take shared locks on every page of the tables of a query, as scans of
+     * them would.
+     *
+     * @return false if a table's pages can not be locked without reading
+     *         them, so the query must be run to take its locks
+     */
+    private static boolean lockTables(TransactionId tId, LogicalPlan lp)
+            throws TransactionAbortedException {
+        for (int tableId : lp.getTableAliasToIdMapping().values()) {
+            if (!Database.getBufferPool().lockTable(tId, tableId, Permissions.READ_ONLY))
+                return false;
+        }
+        return true;
+    }
+
+    private void printPlan(LogicalPlan lp, OpIterator physicalPlan) {
+        Class<?> c;
+        try {
+            c = Class.forName("simpledb.optimizer.OperatorCardinality");
+
+            Class<?> p = Operator.class;
+            Class<?> h = Map.class;
+
+            java.lang.reflect.Method m = c.getMethod(
+                    "updateOperatorCardinality", p, h, h);
+
+            m.invoke(null, physicalPlan,
+                    lp.getTableAliasToIdMapping(), TableStats.getStatsMap());
+            c = Class.forName("simpledb.optimizer.QueryPlanVisualizer");
+            m = c.getMethod(
+                    "printQueryPlanTree", OpIterator.class, PrintStream.class);
+            m.invoke(c.newInstance(), physicalPlan, out);
+        } catch (ClassNotFoundException | SecurityException ignored) {
+        } catch (NoSuchMethodException | InstantiationException | InvocationTargetException | IllegalAccessException | IllegalArgumentException e) {
+            e.printStackTrace();
+        }
+    }
+
     public Query handleInsertStatement(ZInsert s, TransactionId tId)
             throws DbException, IOException,
             simpledb.ParsingException, Zql.ParseException {
@@ -383,6 +502,8 @@ public class Parser {
         } else {
             ZQuery zq = s.getQuery();
             LogicalPlan lp = parseQueryLogicalPlan(tId, zq);
+            if (limit >= 0)
+                lp.addLimit(limit);
             newTups = lp.physicalPlan(tId, TableStats.getStatsMap(), explain);
         }
         Query insertQ = new Query(tId);
@@ -404,6 +525,8 @@ public class Parser {
             throw new simpledb.ParsingException("Unknown table : "
                     + s.getTable());
         }
+        if (limit >= 0)
+            throw new simpledb.ParsingException("LIMIT is not supported in DELETE statements");
         String name = s.getTable();
         Query sdbq = new Query(tid);
 
@@ -432,20 +555,20 @@ public class Parser {
                     throw new ParsingException(
                             "No transaction is currently running");
                 curtrans.commit();
+                out.println("Transaction " + curtrans.getId().getId()
+                        + " committed.");
                 curtrans = null;
                 inUserTrans = false;
-                System.out.println("Transaction " + curtrans.getId().getId()
-                        + " committed.");
                 break;
             case "ROLLBACK":
                 if (curtrans == null)
                     throw new ParsingException(
                             "No transaction is currently running");
                 curtrans.abort();
+                out.println("Transaction " + curtrans.getId().getId()
+                        + " aborted.");
                 curtrans = null;
                 inUserTrans = false;
-                System.out.println("Transaction " + curtrans.getId().getId()
-                        + " aborted.");
 
                 break;
             case "SET TRANSACTION":
@@ -455,7 +578,7 @@ public class Parser {
                 curtrans = new Transaction();
                 curtrans.start();
                 inUserTrans = true;
-                System.out.println("Started a new transaction tid = "
+                out.println("Started a new transaction tid = "
                         + curtrans.getId().getId());
                 break;
             default:
@@ -465,16 +588,22 @@ public class Parser {
 
     public LogicalPlan generateLogicalPlan(TransactionId tid, String s)
             throws simpledb.ParsingException, IOException {
+        s = stripLimit(s);
         ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
         ZqlParser p = new ZqlParser(bis);
         try {
             ZStatement stmt = p.readStatement();
             if (stmt instanceof ZQuery) {
-                return parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                LogicalPlan lp = parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                if (limit >= 0)
+                    lp.addLimit(limit);
+                return lp;
             }
         } catch (Zql.ParseException e) {
             throw new simpledb.ParsingException(
                     "Invalid SQL expression: \n \t " + e);
+        } finally {
+            limit = -1;
         }
 
         throw new simpledb.ParsingException(
@@ -495,7 +624,14 @@ public class Parser {
 
     public void processNextStatement(InputStream is) {
         try {
-            ZqlParser p = new ZqlParser(is);
+            ByteArrayOutputStream text = new ByteArrayOutputStream();
+            byte[] chunk = new byte[4096];
+            int n;
+            while ((n = is.read(chunk)) != -1)
+                text.write(chunk, 0, n);
+            String statement = stripLimit(text.toString("UTF-8"));
+            ZqlParser p = new ZqlParser(new ByteArrayInputStream(
+                    statement.getBytes(StandardCharsets.UTF_8)));
             ZStatement s = p.readStatement();
 
             Query query = null;
@@ -505,9 +641,12 @@ public class Parser {
                 if (!this.inUserTrans) {
                     curtrans = new Transaction();
                     curtrans.start();
-                    System.out.println("Started a new transaction tid = "
+                    out.println("Started a new transaction tid = "
                             + curtrans.getId().getId());
                 }
+                curtrans.getId().resetCancellation();
+                curtrans.getId().cancelAfter(statementTimeout);
+                running = true;
                 try {
                     if (s instanceof ZInsert)
                         query = handleInsertStatement((ZInsert) s,
@@ -519,29 +658,34 @@ public class Parser {
                         query = handleQueryStatement((ZQuery) s,
                                 curtrans.getId());
                     else {
-                        System.out
+                        out
                                 .println("Can't parse "
                                         + s
                                         + "\n -- parser only handles SQL transactions, insert, delete, and select statements");
                     }
                     if (query != null)
-                        query.execute();
+                        query.execute(out);
 
                     if (!inUserTrans && curtrans != null) {
                         curtrans.commit();
-                        System.out.println("Transaction "
+                        out.println("Transaction "
                                 + curtrans.getId().getId() + " committed.");
                     }
                 } catch (Throwable a) {
                     // Whenever error happens, abort the current transaction
                     if (curtrans != null) {
                         curtrans.abort();
-                        System.out.println("Transaction "
+                        out.println("Transaction "
                                 + curtrans.getId().getId()
-                                + " aborted because of unhandled error");
+                                + (a instanceof QueryCancelledException
+                                        ? " aborted: " + a.getMessage()
+                                        : " aborted because of unhandled error"));
                     }
                     this.inUserTrans = false;
 
+                    if (a instanceof QueryCancelledException)
+                        return;
+
                     if (a instanceof simpledb.ParsingException
                             || a instanceof Zql.ParseException)
                         throw new ParsingException((Exception) a);
@@ -549,6 +693,7 @@ public class Parser {
                         throw (Zql.TokenMgrError) a;
                     throw new DbException(a.getMessage());
                 } finally {
+                    running = false;
                     if (!inUserTrans)
                         curtrans = null;
                 }
@@ -557,21 +702,24 @@ public class Parser {
         } catch (IOException | DbException e) {
             e.printStackTrace();
         } catch (simpledb.ParsingException e) {
-            System.out
+            out
                     .println("Invalid SQL expression: \n \t" + e.getMessage());
         } catch (ParseException | TokenMgrError e) {
-            System.out.println("Invalid SQL expression: \n \t " + e);
+            out.println("Invalid SQL expression: \n \t " + e);
+        } finally {
+            limit = -1;
         }
     }
 
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "order by", "limit", "cancel",
+            "timeout" };
 
     public static void main(String[] argv) throws IOException {
 
-        if (argv.length < 1 || argv.length > 4) {
+        if (argv.length < 1 || argv.length > 6) {
             System.out.println("Invalid number of arguments.\n" + usage);
             System.exit(0);
         }
@@ -581,11 +729,15 @@ public class Parser {
         p.start(argv);
     }
 
-    static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
+    static final String usage = "Usage: parser catalogFile [-explain] [-timeout seconds] [-f queryFile]";
     static final int SLEEP_TIME = 1000;
 
+    /** Console command setting the statement timeout, in seconds */
+    static final Pattern TIMEOUT_COMMAND = Pattern.compile(
+            "timeout\\s+(\\d+)\\s*;", Pattern.CASE_INSENSITIVE);
+
     protected void shutdown() {
-        System.out.println("Bye");
+        out.println("Bye");
     }
 
     protected boolean interactive = true;
@@ -601,18 +753,21 @@ public class Parser {
             for (int i = 1; i < argv.length; i++) {
                 if (argv[i].equals("-explain")) {
                     explain = true;
-                    System.out.println("Explain mode enabled.");
+                    out.println("Explain mode enabled.");
                 } else if (argv[i].equals("-f")) {
                     interactive = false;
                     if (i++ == argv.length) {
-                        System.out.println("Expected file name after -f\n"
+                        out.println("Expected file name after -f\n"
                                 + usage);
                         System.exit(0);
                     }
                     queryFile = argv[i];
 
+                } else if (argv[i].equals("-timeout") && i + 1 < argv.length) {
+                    setStatementTimeout(Long.parseLong(argv[++i]) * 1000);
+                    out.println("Statements time out after " + argv[i] + " seconds.");
                 } else {
-                    System.out.println("Unknown argument " + argv[i] + "\n "
+                    out.println("Unknown argument " + argv[i] + "\n "
                             + usage);
                 }
             }
@@ -630,13 +785,13 @@ public class Parser {
                 long startTime = System.currentTimeMillis();
                 processNextStatement(new FileInputStream(queryFile));
                 long time = System.currentTimeMillis() - startTime;
-                System.out.printf("----------------\n%.2f seconds\n\n",
+                out.printf("----------------\n%.2f seconds\n\n",
                         ((double) time / 1000.0));
-                System.out.println("Press Enter to exit");
+                out.println("Press Enter to exit");
                 System.in.read();
                 this.shutdown();
             } catch (FileNotFoundException e) {
-                System.out.println("Unable to find query file" + queryFile);
+                out.println("Unable to find query file" + queryFile);
                 e.printStackTrace();
             }
         } else { // no query file, run interactive prompt
@@ -648,6 +803,10 @@ public class Parser {
             completor.setStrict(false); // match at any position
             reader.addCompletor(completor);
 
+            // statements run one after another on a thread of their own, so
+            // that the prompt can take a cancel command while one is running
+            ExecutorService runner = Executors.newSingleThreadExecutor();
+
             StringBuilder buffer = new StringBuilder();
             String line;
             boolean quit = false;
@@ -661,20 +820,29 @@ public class Parser {
                     String cmd = buffer.toString().trim();
                     cmd = cmd.substring(0, cmd.length() - 1).trim() + ";";
                     byte[] statementBytes = cmd.getBytes(StandardCharsets.UTF_8);
+                    Matcher timeout = TIMEOUT_COMMAND.matcher(cmd);
                     if (cmd.equalsIgnoreCase("quit;")
                             || cmd.equalsIgnoreCase("exit;")) {
-                        shutdown();
                         quit = true;
                         break;
+                    } else if (cmd.equalsIgnoreCase("cancel;")) {
+                        out.println(cancel() ? "Cancelling the running statement."
+                                : "No statement is running.");
+                    } else if (timeout.matches()) {
+                        setStatementTimeout(Long.parseLong(timeout.group(1)) * 1000);
+                        out.println("Statements time out after "
+                                + timeout.group(1) + " seconds (0 for never).");
+                    } else {
+                        runner.execute(() -> {
+                            long startTime = System.currentTimeMillis();
+                            processNextStatement(new ByteArrayInputStream(
+                                    statementBytes));
+                            long time = System.currentTimeMillis() - startTime;
+                            out.printf("----------------\n%.2f seconds\n\n",
+                                    ((double) time / 1000.0));
+                        });
                     }
 
-                    long startTime = System.currentTimeMillis();
-                    processNextStatement(new ByteArrayInputStream(
-                            statementBytes));
-                    long time = System.currentTimeMillis() - startTime;
-                    System.out.printf("----------------\n%.2f seconds\n\n",
-                            ((double) time / 1000.0));
-
                     // Grab the remainder of the line
                     line = line.substring(split + 1);
                     buffer = new StringBuilder();
@@ -684,6 +852,14 @@ public class Parser {
                     buffer.append("\n");
                 }
             }
+            runner.shutdown();
+            try {
+                runner.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            if (quit)
+                shutdown();
         }
     }
 }
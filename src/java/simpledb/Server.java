@@ -0,0 +1,513 @@
+package simpledb;
+
+import simpledb.common.Database;
+import simpledb.optimizer.TableStats;
+import simpledb.transaction.Transaction;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+
+/**
+ * Server accepts many client sessions at once over TCP connections to the
+ * loopback interface, and runs the statements each sends as the console of
+ * {@link Parser} would.
+ * <p>
+ * Each session has its own Parser, and so its own transactions: statements
+ * outside a transaction commit on their own, and a session that disconnects
+ * in the middle of one has it aborted. A client sends statements ended by
+ * ';' and reads the output of each, which ends with {@link #PROMPT}, as it
+ * would read the console. Besides SQL a session may send the console
+ * commands {@code cancel;}, which stops the statement it is running,
+ * {@code timeout seconds;}, {@code stats;}, which reports the sessions and
+ * statements served so far, and {@code quit;}.
+ * <p>
+ * One thread accepts connections and moves bytes in and out of all of them
+ * without blocking; statements run on a fixed pool of worker threads, one at
+ * a time and in the order sent for each session. A worker writing a large
+ * result waits while more than {@link #MAX_PENDING_OUTPUT} bytes of it have
+ * not been sent, so a slow client holds back only its own statement.
+ */
+public class Server {
+
+    /** Default port the server listens on */
+    public static final int DEFAULT_PORT = 8765;
+
+    /** Default number of threads statements run on */
+    public static final int DEFAULT_THREADS = Math.max(8,
+            2 * Runtime.getRuntime().availableProcessors());
+
+    /** Sent when the server is ready for the next statement of a session */
+    public static final String PROMPT = "SimpleDB> ";
+
+    /** Bytes of output a session may have queued before its statement waits */
+    public static final int MAX_PENDING_OUTPUT = 1 << 20;
+
+    static final String usage = "Usage: server catalogFile [-port port] [-threads threads] [-explain] [-timeout seconds]";
+
+    private final ServerSocketChannel listener;
+    private final Selector selector;
+    private final ExecutorService workers;
+    private final Thread selectorThread;
+    private final Queue<Session> writable = new ConcurrentLinkedQueue<>();
+    private final Set<Session> sessions = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger sessionsOpened = new AtomicInteger();
+    private final AtomicLong statementsRun = new AtomicLong();
+    private volatile long statementTimeout;
+    private volatile boolean running;
+    private long startNanos;
+
+    /**
+     * Bind a server to a port of the loopback interface; it accepts
+     * connections once {@link #start}ed.
+     *
+     * @param port
+     *            the port to listen on, or 0 for any free port
+     * @param threads
+     *            the number of statements that may run at once
+     */
+    public Server(int port, int threads) throws IOException {
+        if (threads <= 0)
+            throw new IllegalArgumentException("threads must be positive");
+        selector = Selector.open();
+        listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        listener.configureBlocking(false);
+        listener.register(selector, SelectionKey.OP_ACCEPT);
+        AtomicInteger workerId = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "server-worker-" + workerId.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        selectorThread = new Thread(this::run, "server-selector");
+    }
+
+    /** @return the port the server listens on */
+    public int getPort() {
+        return listener.socket().getLocalPort();
+    }
+
+    public long getStatementTimeout() {
+        return statementTimeout;
+    }
+
+    /**
+     * Set the number of milliseconds statements of sessions opened from now
+     * on may run before they are cancelled, or 0 for no limit.
+     */
+    public void setStatementTimeout(long millis) {
+        if (millis < 0)
+            throw new IllegalArgumentException("timeout must not be negative");
+        statementTimeout = millis;
+    }
+
+    /** @return the number of sessions connected */
+    public int getSessions() {
+        return sessions.size();
+    }
+
+    /** @return the number of sessions opened since the server started */
+    public int getSessionsOpened() {
+        return sessionsOpened.get();
+    }
+
+    /** @return the number of statements run since the server started */
+    public long getStatementsRun() {
+        return statementsRun.get();
+    }
+
+    /** @return the number of statements run per second since the server started */
+    public double getThroughput() {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        return seconds > 0 ? statementsRun.get() / seconds : 0;
+    }
+
+    /** Start accepting connections */
+    public void start() {
+        startNanos = System.nanoTime();
+        running = true;
+        selectorThread.start();
+    }
+
+    /**
+     * Stop accepting connections, disconnect every session, aborting their
+     * transactions, and wait for the statements running to stop. Sessions
+     * are disconnected by the selector thread before the workers shut down,
+     * so the aborts run.
+     */
+    public void stop() throws InterruptedException {
+        running = false;
+        selector.wakeup();
+        selectorThread.join();
+        workers.shutdown();
+        workers.awaitTermination(30, TimeUnit.SECONDS);
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                selector.select();
+                Session s;
+                while ((s = writable.poll()) != null)
+                    s.wantWrite();
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Session session = (Session) key.attachment();
+                    try {
+                        if (key.isReadable())
+                            session.read();
+                        if (key.isValid() && key.isWritable())
+                            session.write();
+                    } catch (IOException e) {
+                        session.disconnect();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            for (Session s : new ArrayList<>(sessions))
+                s.disconnect();
+            try {
+                listener.close();
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = listener.accept();
+        if (channel == null)
+            return;
+        channel.configureBlocking(false);
+        Session s = new Session(channel, sessionsOpened.incrementAndGet());
+        sessions.add(s);
+        s.send("Connected to SimpleDB, session " + s.id + ".\n" + PROMPT, false);
+    }
+
+    private String stats() {
+        return String.format("%d sessions connected, %d opened, %d statements run, %.1f statements/second\n",
+                getSessions(), getSessionsOpened(), getStatementsRun(), getThroughput());
+    }
+
+    /** A connected client, with its own Parser and so its own transactions */
+    private final class Session {
+        final int id;
+        final SocketChannel channel;
+        final SelectionKey key;
+        final Parser parser = new Parser();
+        final ByteArrayOutputStream statement = new ByteArrayOutputStream();
+        final ByteBuffer in = ByteBuffer.allocate(8192);
+
+        // guarded by this
+        final Queue<Runnable> tasks = new ArrayDeque<>();
+        final Queue<ByteBuffer> out = new ArrayDeque<>();
+        long pending;
+        boolean busy;
+        boolean quitting;
+        boolean closed;
+
+        Session(SocketChannel channel, int id) throws IOException {
+            this.id = id;
+            this.channel = channel;
+            key = channel.register(selector, SelectionKey.OP_READ, this);
+            parser.setStatementTimeout(statementTimeout);
+        }
+
+        /** Split what the client sent into statements; on the selector thread */
+        void read() throws IOException {
+            in.clear();
+            int n = channel.read(in);
+            if (n < 0) {
+                disconnect();
+                return;
+            }
+            in.flip();
+            while (in.hasRemaining()) {
+                byte b = in.get();
+                statement.write(b);
+                if (b == ';') {
+                    String cmd = new String(statement.toByteArray(), StandardCharsets.UTF_8).trim();
+                    statement.reset();
+                    handle(cmd);
+                }
+            }
+        }
+
+        void handle(String cmd) {
+            String lower = cmd.toLowerCase();
+            if (lower.matches("cancel\\s*;")) {
+                // answered at once, ahead of the statement it cancels
+                send((parser.cancel() ? "Cancelling the running statement."
+                        : "No statement is running.") + "\n" + PROMPT, false);
+            } else if (lower.matches("(quit|exit)\\s*;")) {
+                submit(() -> {
+                    send("Bye\n", true);
+                    synchronized (this) {
+                        quitting = true;
+                    }
+                    writable.add(this);
+                    selector.wakeup();
+                });
+            } else {
+                submit(() -> runStatement(cmd));
+            }
+        }
+
+        void runStatement(String cmd) {
+            PrintStream ps;
+            try {
+                ps = new PrintStream(new SessionOutput(), false, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+            long start = System.nanoTime();
+            Matcher timeout = Parser.TIMEOUT_COMMAND.matcher(cmd);
+            if (timeout.matches()) {
+                parser.setStatementTimeout(Long.parseLong(timeout.group(1)) * 1000);
+                ps.println("Statements time out after " + timeout.group(1) + " seconds.");
+            } else if (cmd.toLowerCase().matches("stats\\s*;")) {
+                ps.print(stats());
+            } else {
+                parser.setOutput(ps);
+                try {
+                    parser.processNextStatement(cmd);
+                } finally {
+                    parser.setOutput(System.out);
+                }
+                statementsRun.incrementAndGet();
+            }
+            ps.printf("----------------\n%.2f seconds\n\n", (System.nanoTime() - start) / 1e9);
+            ps.print(PROMPT);
+            ps.flush();
+        }
+
+        /** Run task after the tasks already submitted for this session */
+        void submit(Runnable task) {
+            synchronized (this) {
+                tasks.add(task);
+                if (busy)
+                    return;
+                busy = true;
+            }
+            workers.execute(this::runNext);
+        }
+
+        private void runNext() {
+            Runnable task;
+            synchronized (this) {
+                task = tasks.poll();
+                if (task == null) {
+                    busy = false;
+                    return;
+                }
+            }
+            try {
+                task.run();
+            } catch (Throwable e) {
+                e.printStackTrace();
+            }
+            synchronized (this) {
+                if (tasks.isEmpty()) {
+                    busy = false;
+                    return;
+                }
+            }
+            workers.execute(this::runNext);
+        }
+
+        void send(String s, boolean mayWait) {
+            send(s.getBytes(StandardCharsets.UTF_8), mayWait);
+        }
+
+        /**
+         * Queue bytes to send to the client. A worker may wait for the
+         * client to read what is already queued; the selector thread must
+         * not.
+         */
+        void send(byte[] bytes, boolean mayWait) {
+            synchronized (this) {
+                try {
+                    while (mayWait && pending > MAX_PENDING_OUTPUT && !closed)
+                        wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                if (closed)
+                    return;
+                out.add(ByteBuffer.wrap(bytes));
+                pending += bytes.length;
+            }
+            if (Thread.currentThread() == selectorThread) {
+                wantWrite();
+            } else {
+                writable.add(this);
+                selector.wakeup();
+            }
+        }
+
+        /** On the selector thread */
+        void wantWrite() {
+            if (key.isValid())
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+
+        /** Send what the socket takes of the queued output; on the selector thread */
+        void write() throws IOException {
+            boolean done;
+            synchronized (this) {
+                while (!out.isEmpty()) {
+                    ByteBuffer b = out.peek();
+                    pending -= channel.write(b);
+                    if (b.hasRemaining())
+                        break;
+                    out.poll();
+                }
+                notifyAll();
+                if (!out.isEmpty())
+                    return;
+                key.interestOps(SelectionKey.OP_READ);
+                done = quitting;
+            }
+            if (done)
+                disconnect();
+        }
+
+        /**
+         * Close the connection, cancel the statement running if any, and
+         * abort the transaction left open once it has stopped.
+         */
+        void disconnect() {
+            synchronized (this) {
+                if (closed)
+                    return;
+                closed = true;
+                tasks.clear();
+                out.clear();
+                pending = 0;
+                notifyAll();
+            }
+            sessions.remove(this);
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            parser.cancel();
+            Runnable abort = () -> {
+                Transaction t = parser.getTransaction();
+                if (t == null)
+                    return;
+                try {
+                    t.abort();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            };
+            submit(abort);
+        }
+
+        /** Output of one statement, handed to the selector in chunks */
+        private final class SessionOutput extends OutputStream {
+            private final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+
+            @Override
+            public void write(int b) {
+                buf.write(b);
+                if (buf.size() >= 8192)
+                    flush();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                buf.write(b, off, len);
+                if (buf.size() >= 8192)
+                    flush();
+            }
+
+            @Override
+            public void flush() {
+                if (buf.size() == 0)
+                    return;
+                send(buf.toByteArray(), true);
+                buf.reset();
+            }
+        }
+    }
+
+    public static void main(String[] argv) throws IOException, InterruptedException {
+        if (argv.length < 1 || argv.length > 8) {
+            System.out.println("Invalid number of arguments.\n" + usage);
+            System.exit(0);
+        }
+        Database.getCatalog().loadSchema(argv[0]);
+        TableStats.computeStatistics();
+
+        int port = DEFAULT_PORT;
+        int threads = DEFAULT_THREADS;
+        long timeout = 0;
+        for (int i = 1; i < argv.length; i++) {
+            if (argv[i].equals("-explain")) {
+                Parser.explain = true;
+            } else if (argv[i].equals("-port") && i + 1 < argv.length) {
+                port = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equals("-threads") && i + 1 < argv.length) {
+                threads = Integer.parseInt(argv[++i]);
+            } else if (argv[i].equals("-timeout") && i + 1 < argv.length) {
+                timeout = Long.parseLong(argv[++i]) * 1000;
+            } else {
+                System.out.println("Unknown argument " + argv[i] + "\n " + usage);
+            }
+        }
+
+        Server server = new Server(port, threads);
+        server.setStatementTimeout(timeout);
+        server.start();
+        System.out.println("Listening on " + InetAddress.getLoopbackAddress().getHostAddress()
+                + ":" + server.getPort() + " with " + threads + " threads.");
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.stop();
+                System.out.println(server.stats());
+            } catch (InterruptedException ignored) {
+            }
+        }));
+        server.selectorThread.join();
+    }
+}
@@ -94,6 +94,18 @@ public class SimpleDb {
                     e.printStackTrace();
                 }
 
+                break;
+            case "server":
+                String[] serverargs = new String[args.length - 1];
+                System.arraycopy(args, 1, serverargs, 0, args.length - 1);
+
+                try {
+                    Server.main(serverargs);
+                } catch (IOException | InterruptedException e) {
+                    System.out.println("Error in server.");
+                    e.printStackTrace();
+                }
+
                 break;
             default:
                 System.err.println("Unknown command: " + args[0]);
@@ -1,5 +1,7 @@
 package simpledb.common;
 
+import simpledb.execution.MemoryManager;
+import simpledb.execution.ResultCache;
 import simpledb.storage.BufferPool;
 import simpledb.storage.LogFile;
 
@@ -8,8 +10,8 @@ import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Database is a class that initializes several static variables used by the
- * database system (the catalog, the buffer pool, and the log files, in
- * particular.)
+ * database system (the catalog, the buffer pool, the log files, the
+ * query result cache and the query memory manager, in particular.)
  * <p>
  * Provides a set of methods that can be used to access these variables from
  * anywhere.
@@ -20,6 +22,8 @@ public class Database {
     private static final AtomicReference<Database> _instance = new AtomicReference<>(new Database());
     private final Catalog _catalog;
     private final BufferPool _bufferpool;
+    private final ResultCache _resultcache;
+    private final MemoryManager _memorymanager;
 
     private final static String LOGFILENAME = "log";
     private final LogFile _logfile;
@@ -27,6 +31,8 @@ public class Database {
     private Database() {
         _catalog = new Catalog();
         _bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES);
+        _resultcache = new ResultCache(ResultCache.DEFAULT_CAPACITY);
+        _memorymanager = new MemoryManager(MemoryManager.DEFAULT_CAPACITY);
         LogFile tmp = null;
         try {
             tmp = new LogFile(new File(LOGFILENAME));
@@ -53,6 +59,16 @@ public class Database {
         return _instance.get()._catalog;
     }
 
+    /** Return the query result cache of the static Database instance */
+    public static ResultCache getResultCache() {
+        return _instance.get()._resultcache;
+    }
+
+    /** Return the query memory manager of the static Database instance */
+    public static MemoryManager getMemoryManager() {
+        return _instance.get()._memorymanager;
+    }
+
     /**
      * Method used for testing -- create a new instance of the buffer pool and
      * return it
@@ -67,6 +83,8 @@ public class Database {
             e.printStackTrace();
         }
 //        _instance._bufferpool = new BufferPool(pages);
+        // the new buffer pool starts the table versions over
+        _instance.get()._resultcache.clear();
         return _instance.get()._bufferpool;
     }
 
@@ -3,27 +3,74 @@ package simpledb.execution;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionAbortedException;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinTask;
 
 
 /**
- * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
- * min). Note that we only support aggregates over a single column, grouped by a
- * single column.
+ * The Aggregation operator that computes aggregates (e.g., sum, avg, max,
+ * min). Any number of aggregates, each over one column, can be computed in a
+ * single pass, grouped by any number of columns. Output tuples hold the group
+ * values, in the order the group columns were given, then the aggregates.
+ * <p>
+ * With a parallelism greater than one, and a child that is a heap file scan
+ * under zero or more Filters, the aggregate runs in two phases. The child is
+ * split into copies that share the table's pages between them in morsels,
+ * each copy is aggregated into partial results on its own thread (AVG as
+ * SUM_COUNT), and the partials are then merged by a final aggregator (COUNT
+ * by SUM, AVG by SC_AVG).
+ * <p>
+ * Groups are kept in memory only up to the memory budget. Past that, the
+ * tuples of further groups are partitioned to temp files and aggregated one
+ * partition at a time (see {@link HybridHashAggregation}), so GROUP BY on a
+ * column with many distinct values runs in a fixed footprint. The child is
+ * read a batch at a time and merged into the groups batch by batch.
+ * <p>
+ * If the child is known to return the tuples of each group next to each
+ * other (see {@link #isStreaming}), none of that is needed: the aggregate
+ * reads one group at a time and returns it as soon as the group values
+ * change, holding only the group being read.
  */
-public class Aggregate extends Operator {
+public class Aggregate extends Operator implements MemoryConsumer {
 
     private static final long serialVersionUID = 1L;
 
     private OpIterator child;
-    private int aField;
-    private int gField;
-    private Aggregator.Op aOp;
+    private final int[] aFields;
+    private final int[] gFields;
+    private final Aggregator.Op[] aOps;
     private TupleDesc tupleDesc;
-    private OpIterator it;
+    private final int parallelism;
+    private long memoryBudget;
+    private transient HybridHashAggregation hashAgg;
+    /** Whether this run reads its groups one at a time from ordered input */
+    private transient boolean streaming;
+    /** The first tuple of the next group, when streaming */
+    private transient Tuple nextGroupStart;
+
+    /** Default number of bytes of groups an Aggregate may hold in memory */
+    private static long defaultMemoryBudget = 16L << 20;
+
+    /** @return the memory budget given to Aggregate operators that do not set their own */
+    public static long getDefaultMemoryBudget() {
+        return defaultMemoryBudget;
+    }
+
+    /**
+     * Set the memory budget, in bytes, given to Aggregate operators that do
+     * not set their own.
+     */
+    public static void setDefaultMemoryBudget(long bytes) {
+        if (bytes <= 0)
+            throw new IllegalArgumentException("memory budget must be positive");
+        defaultMemoryBudget = bytes;
+    }
 
     /**
      * Constructor.
@@ -39,31 +86,112 @@ public class Aggregate extends Operator {
      * @param aop    The aggregation operator to use
      */
     public Aggregate(OpIterator child, int afield, int gfield, Aggregator.Op aop) {
+        this(child, afield, gfield, aop, 1);
+    }
+
+    /**
+     * Constructor for an aggregate that may split its input over several
+     * threads.
+     *
+     * @param child       The OpIterator that is feeding us tuples.
+     * @param afield      The column over which we are computing an aggregate.
+     * @param gfield      The column over which we are grouping the result, or -1 if
+     *                    there is no grouping
+     * @param aop         The aggregation operator to use
+     * @param parallelism The number of threads to aggregate with
+     * @throws IllegalArgumentException if parallelism is less than one
+     */
+    public Aggregate(OpIterator child, int afield, int gfield, Aggregator.Op aop, int parallelism) {
+        this(child, afield, gfield, aop, parallelism, defaultMemoryBudget);
+    }
+
+    /**
+     * Constructor for an aggregate that may split its input over several
+     * threads and keeps its groups within a memory budget.
+     *
+     * @param child        The OpIterator that is feeding us tuples.
+     * @param afield       The column over which we are computing an aggregate.
+     * @param gfield       The column over which we are grouping the result, or -1 if
+     *                     there is no grouping
+     * @param aop          The aggregation operator to use
+     * @param parallelism  The number of threads to aggregate with
+     * @param memoryBudget The number of bytes of groups to hold in memory; the
+     *                     input of groups beyond that is spilled to disk
+     * @throws IllegalArgumentException if parallelism or memoryBudget is less than one
+     */
+    public Aggregate(OpIterator child, int afield, int gfield, Aggregator.Op aop, int parallelism,
+                     long memoryBudget) {
+        this(child, new int[]{afield},
+                gfield == Aggregator.NO_GROUPING ? new int[0] : new int[]{gfield},
+                new Aggregator.Op[]{aop}, parallelism, memoryBudget);
+    }
+
+    /**
+     * Constructor for an aggregate that computes several aggregates over
+     * several group columns.
+     *
+     * @param child   The OpIterator that is feeding us tuples.
+     * @param afields The columns over which we are computing aggregates.
+     * @param gfields The columns over which we are grouping the result, or an
+     *                empty array if there is no grouping
+     * @param aops    The aggregation operator to use for each of afields
+     */
+    public Aggregate(OpIterator child, int[] afields, int[] gfields, Aggregator.Op[] aops) {
+        this(child, afields, gfields, aops, 1, defaultMemoryBudget);
+    }
+
+    /**
+     * Constructor for an aggregate that computes several aggregates over
+     * several group columns, may split its input over several threads, and
+     * keeps its groups within a memory budget.
+     *
+     * @param child        The OpIterator that is feeding us tuples.
+     * @param afields      The columns over which we are computing aggregates.
+     * @param gfields      The columns over which we are grouping the result, or an
+     *                     empty array if there is no grouping
+     * @param aops         The aggregation operator to use for each of afields
+     * @param parallelism  The number of threads to aggregate with
+     * @param memoryBudget The number of bytes of groups to hold in memory; the
+     *                     input of groups beyond that is spilled to disk
+     * @throws IllegalArgumentException if there is not one operator per
+     *                                  aggregate column, or parallelism or
+     *                                  memoryBudget is less than one
+     */
+    public Aggregate(OpIterator child, int[] afields, int[] gfields, Aggregator.Op[] aops,
+                     int parallelism, long memoryBudget) {
         // some code goes here
+        if (afields.length == 0 || afields.length != aops.length)
+            throw new IllegalArgumentException("need one operator per aggregate field");
+        if (parallelism < 1)
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        if (memoryBudget <= 0)
+            throw new IllegalArgumentException("memory budget must be positive");
+        this.parallelism = parallelism;
+        this.memoryBudget = memoryBudget;
         this.child = child;
-        aField = afield;
-        gField = gfield;
-        aOp = aop;
-        Type[] types;
-        String[] strings;
-        if (gfield == Aggregator.NO_GROUPING) {
-            types = new Type[]{Type.INT_TYPE};
-            strings = new String[]{"aggregateValue"};
-        } else {
-            types = new Type[]{child.getTupleDesc().getFieldType(gfield), Type.INT_TYPE};
-            strings = new String[]{"groupValue", "aggregateValue"};
-        }
-        tupleDesc = new TupleDesc(types, strings);
+        aFields = afields.clone();
+        gFields = gfields.clone();
+        aOps = aops.clone();
+        tupleDesc = MultiAggregator.outputDesc(child.getTupleDesc(), gFields, aOps);
     }
 
     /**
      * @return If this aggregate is accompanied by a groupby, return the groupby
      * field index in the <b>INPUT</b> tuples. If not, return
-     * {@link Aggregator#NO_GROUPING}
+     * {@link Aggregator#NO_GROUPING}. With several group columns, this is
+     * the first.
      */
     public int groupField() {
         // some code goes here
-        return gField;
+        return gFields.length == 0 ? Aggregator.NO_GROUPING : gFields[0];
+    }
+
+    /**
+     * @return the indexes of the group columns in the <b>INPUT</b> tuples,
+     * empty if there is no grouping
+     */
+    public int[] groupFields() {
+        return gFields.clone();
     }
 
     /**
@@ -73,10 +201,10 @@ public class Aggregate extends Operator {
      */
     public String groupFieldName() {
         // some code goes here
-        if (gField == Aggregator.NO_GROUPING) {
+        if (gFields.length == 0) {
             return null;
         }
-        return child.getTupleDesc().getFieldName(gField);
+        return child.getTupleDesc().getFieldName(gFields[0]);
     }
 
     /**
@@ -84,7 +212,14 @@ public class Aggregate extends Operator {
      */
     public int aggregateField() {
         // some code goes here
-        return aField;
+        return aFields[0];
+    }
+
+    /**
+     * @return the columns of the <b>INPUT</b> tuples each aggregate is over
+     */
+    public int[] aggregateFields() {
+        return aFields.clone();
     }
 
     /**
@@ -93,7 +228,7 @@ public class Aggregate extends Operator {
      */
     public String aggregateFieldName() {
         // some code goes here
-        return child.getTupleDesc().getFieldName(aField);
+        return child.getTupleDesc().getFieldName(aFields[0]);
     }
 
     /**
@@ -101,31 +236,256 @@ public class Aggregate extends Operator {
      */
     public Aggregator.Op aggregateOp() {
         // some code goes here
-        return aOp;
+        return aOps[0];
+    }
+
+    /**
+     * @return the operator of each aggregate
+     */
+    public Aggregator.Op[] aggregateOps() {
+        return aOps.clone();
+    }
+
+    /**
+     * @return the number of threads this aggregate may use
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * @return the number of bytes of groups this aggregate may hold in memory
+     */
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    public void setMemoryBudget(long bytes) {
+        if (bytes <= 0)
+            throw new IllegalArgumentException("memory budget must be positive");
+        memoryBudget = bytes;
+    }
+
+    /**
+     * @return the number of groups this aggregate holds in memory, when it
+     *         is not streaming, before it partitions further groups to disk
+     */
+    public int getMaxGroupsInMemory() {
+        return HybridHashAggregation.maxGroups(child.getTupleDesc(), gFields, memoryBudget);
+    }
+
+    /**
+     * @return true if the child returns the tuples of each group next to
+     * each other, for example because it is sorted or is a B+ tree scan on
+     * the group columns, so that groups are aggregated one at a time as they
+     * stream past
+     */
+    public boolean isStreaming() {
+        return InputOrder.isGroupedOn(child, gFields);
     }
 
     public static String nameOfAggregatorOp(Aggregator.Op aop) {
         return aop.toString();
     }
 
+    /**
+     * @return an aggregator over tuples of inputDesc: a single-column
+     *         aggregator for one aggregate over at most one group column,
+     *         otherwise a {@link MultiAggregator}
+     */
+    private static Aggregator newAggregator(TupleDesc inputDesc, int[] gfields, int[] afields,
+                                            Aggregator.Op[] ops) {
+        if (gfields.length > 1 || afields.length > 1)
+            return new MultiAggregator(inputDesc, gfields, afields, ops);
+        int gfield = gfields.length == 0 ? Aggregator.NO_GROUPING : gfields[0];
+        Type gFieldType = gfields.length == 0 ? null : inputDesc.getFieldType(gfield);
+        if (inputDesc.getFieldType(afields[0]) == Type.INT_TYPE) {
+            return new IntegerAggregator(gfield, gFieldType, afields[0], ops[0]);
+        } else {
+            return new StringAggregator(gfield, gFieldType, afields[0], ops[0]);
+        }
+    }
+
+    /**
+     * @return the operator each worker computes over its part of the input,
+     *         or null if aop cannot be computed in two phases
+     */
+    private static Aggregator.Op partialOp(Aggregator.Op aop) {
+        switch (aop) {
+            case MIN:
+            case MAX:
+            case SUM:
+            case COUNT:
+                return aop;
+            case AVG:
+                return Aggregator.Op.SUM_COUNT;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return the operator that merges the partial results of partialOp(aop)
+     */
+    private static Aggregator.Op mergeOp(Aggregator.Op aop) {
+        switch (aop) {
+            case COUNT:
+                return Aggregator.Op.SUM;
+            case AVG:
+                return Aggregator.Op.SC_AVG;
+            default:
+                return aop;
+        }
+    }
+
     public void open() throws NoSuchElementException, DbException,
             TransactionAbortedException {
         // some code goes here
-        Aggregator aggregator;
-        Type type = gField != Aggregator.NO_GROUPING ? tupleDesc.getFieldType(aField) : Type.INT_TYPE;
-        Type gFieldType = gField != Aggregator.NO_GROUPING ? tupleDesc.getFieldType(gField) : null;
-        if (type == Type.INT_TYPE) {
-            aggregator = new IntegerAggregator(gField, gFieldType, aField, aOp);
-        } else {
-            aggregator = new StringAggregator(gField, gFieldType, aField, aOp);
+        streaming = isStreaming();
+        if (streaming)
+            child.open();
+        else
+            aggregate();
+        super.open();
+    }
+
+    /**
+     * Read the child up to the start of the next group and aggregate the
+     * group read.
+     *
+     * @return the group's result, or null if the child has no more tuples
+     */
+    private Tuple aggregateNextGroup() throws DbException, TransactionAbortedException {
+        if (nextGroupStart == null) {
+            if (!child.hasNext())
+                return null;
+            nextGroupStart = child.next();
         }
-        child.open();
+        Tuple first = nextGroupStart;
+        nextGroupStart = null;
+        Aggregator group = newAggregator(child.getTupleDesc(), gFields, aFields, aOps);
+        group.mergeTupleIntoGroup(first);
         while (child.hasNext()) {
-            aggregator.mergeTupleIntoGroup(child.next());
+            Tuple t = child.next();
+            if (!sameGroup(first, t)) {
+                nextGroupStart = t;
+                break;
+            }
+            group.mergeTupleIntoGroup(t);
+        }
+        OpIterator result = group.iterator();
+        result.open();
+        Tuple t = result.next();
+        result.close();
+        return t;
+    }
+
+    private boolean sameGroup(Tuple t1, Tuple t2) {
+        for (int f : gFields) {
+            if (!t1.getField(f).equals(t2.getField(f)))
+                return false;
+        }
+        return true;
+    }
+
+    /** Run the aggregation over the child, leaving the results in hashAgg */
+    private void aggregate() throws DbException, TransactionAbortedException {
+        Aggregator.Op[] partialOps = new Aggregator.Op[aOps.length];
+        boolean splittable = parallelism > 1 && ScanPartitioner.heapFileOf(child) != null;
+        for (int i = 0; i < aOps.length; i++) {
+            partialOps[i] = partialOp(aOps[i]);
+            splittable &= partialOps[i] != null;
+        }
+        List<OpIterator> parts = splittable ? ScanPartitioner.split(child, parallelism) : null;
+        try {
+            if (parts != null && parts.size() > 1) {
+                aggregateParallel(parts, partialOps);
+            } else {
+                TupleDesc childDesc = child.getTupleDesc();
+                hashAgg = new HybridHashAggregation(childDesc, gFields,
+                        () -> newAggregator(childDesc, gFields, aFields, aOps), memoryBudget);
+                child.open();
+                try {
+                    TupleBatch batch;
+                    while ((batch = child.nextBatch()) != null) {
+                        hashAgg.add(batch);
+                    }
+                } finally {
+                    child.close();
+                }
+            }
+            hashAgg.finish();
+        } catch (DbException | TransactionAbortedException | RuntimeException e) {
+            if (hashAgg != null)
+                hashAgg.close();
+            hashAgg = null;
+            throw e;
+        }
+    }
+
+    /**
+     * Aggregate each part of the input on its own worker, then merge the
+     * partial results. Partial results have the group values first and the
+     * partial aggregates (sum and count for AVG) after them. The workers
+     * share half of the memory budget and the merge gets the other half, and
+     * each spills groups to disk once its share is used up.
+     */
+    private void aggregateParallel(List<OpIterator> parts, Aggregator.Op[] partialOps)
+            throws DbException, TransactionAbortedException {
+        TupleDesc childDesc = child.getTupleDesc();
+        long partBudget = Math.max(1, memoryBudget / 2 / parts.size());
+        List<HybridHashAggregation> partials = new ArrayList<>();
+        List<ForkJoinTask<Void>> tasks = new ArrayList<>();
+        for (OpIterator part : parts) {
+            HybridHashAggregation partial = new HybridHashAggregation(childDesc, gFields,
+                    () -> newAggregator(childDesc, gFields, aFields, partialOps), partBudget);
+            partials.add(partial);
+            tasks.add(Workers.pool.submit(() -> {
+                part.open();
+                try {
+                    TupleBatch batch;
+                    while ((batch = part.nextBatch()) != null)
+                        partial.add(batch);
+                } finally {
+                    part.close();
+                }
+                partial.finish();
+                return null;
+            }));
+        }
+        try {
+            Workers.joinAll(tasks, "parallel aggregate");
+            mergePartials(partials, childDesc, partialOps);
+        } finally {
+            for (HybridHashAggregation partial : partials)
+                partial.close();
+        }
+    }
+
+    private void mergePartials(List<HybridHashAggregation> partials, TupleDesc childDesc,
+            Aggregator.Op[] partialOps) throws DbException, TransactionAbortedException {
+        // in the partials, the groups come first and each aggregate's columns follow
+        TupleDesc partialDesc = MultiAggregator.outputDesc(childDesc, gFields, partialOps);
+        int[] partialGroups = new int[gFields.length];
+        for (int i = 0; i < partialGroups.length; i++)
+            partialGroups[i] = i;
+        int[] partialAggs = new int[aOps.length];
+        Aggregator.Op[] mergeOps = new Aggregator.Op[aOps.length];
+        int column = gFields.length;
+        for (int i = 0; i < aOps.length; i++) {
+            partialAggs[i] = column;
+            mergeOps[i] = mergeOp(aOps[i]);
+            column += partialOps[i] == Aggregator.Op.SUM_COUNT ? 2 : 1;
+        }
+        hashAgg = new HybridHashAggregation(partialDesc, partialGroups,
+                () -> newAggregator(partialDesc, partialGroups, partialAggs, mergeOps),
+                memoryBudget - memoryBudget / 2);
+        for (HybridHashAggregation partial : partials) {
+            Tuple t;
+            while ((t = partial.next()) != null)
+                hashAgg.add(t);
+            partial.close();
         }
-        it = aggregator.iterator();
-        it.open();
-        super.open();
     }
 
     /**
@@ -137,23 +497,31 @@ public class Aggregate extends Operator {
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
-        if (it != null && it.hasNext()) {
-            return it.next();
-        } else
-            return null;
+        if (streaming)
+            return aggregateNextGroup();
+        return hashAgg != null ? hashAgg.next() : null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
-        it.close();
-        it.open();
+        if (streaming) {
+            nextGroupStart = null;
+            child.rewind();
+            return;
+        }
+        // results are streamed out of the spill files, so recompute them
+        if (hashAgg != null)
+            hashAgg.close();
+        hashAgg = null;
+        aggregate();
     }
 
     /**
      * Returns the TupleDesc of this Aggregate. If there is no group by field,
      * this will have one field - the aggregate column. If there is a group by
      * field, the first field will be the group by field, and the second will be
-     * the aggregate value column.
+     * the aggregate value column. With several group or aggregate columns,
+     * the group columns come first, then one column per aggregate.
      * <p>
      * The name of an aggregate column should be informative. For example:
      * "aggName(aop) (child_td.getFieldName(afield))" where aop and afield are
@@ -168,8 +536,13 @@ public class Aggregate extends Operator {
     public void close() {
         // some code goes here
         super.close();
-        it.close();
-        it = null;
+        if (hashAgg != null)
+            hashAgg.close();
+        hashAgg = null;
+        if (streaming)
+            child.close();
+        streaming = false;
+        nextGroupStart = null;
     }
 
     @Override
@@ -1,6 +1,7 @@
 package simpledb.execution;
 
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleIterator;
 
 import java.io.Serializable;
@@ -79,10 +80,32 @@ public interface Aggregator extends Serializable {
      */
     void mergeTupleIntoGroup(Tuple tup);
 
+    /**
+     * Merge every row of a batch into the aggregate, as mergeTupleIntoGroup
+     * would one at a time.
+     *
+     * @param batch the rows to merge
+     */
+    default void mergeBatchIntoGroups(TupleBatch batch) {
+        for (int i = 0; i < batch.size(); i++)
+            mergeTupleIntoGroup(batch.getTuple(i));
+    }
+
     /**
      * Create a OpIterator over group aggregate results.
      * @see TupleIterator for a possible helper
      */
     OpIterator iterator();
+
+    /**
+     * @return the number of groups merged so far; one if there is no grouping
+     */
+    int numGroups();
+
+    /**
+     * @param tup a tuple of the aggregated input
+     * @return true if the group tup belongs to has already been merged into
+     */
+    boolean hasGroupOf(Tuple tup);
     
 }
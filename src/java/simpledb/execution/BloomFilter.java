@@ -0,0 +1,86 @@
+package simpledb.execution;
+
+import simpledb.storage.Field;
+
+import java.io.Serializable;
+
+/**
+ * A Bloom filter over field values. mightContain never returns false for a
+ * value that was added, and returns true for other values with a small
+ * probability (about 1% at the default of ten bits per key).
+ * <p>
+ * HashEquiJoin builds one over the join keys of each build block and hands it
+ * to the probe side scan, so probe tuples that cannot find a match are dropped
+ * before they travel up the plan.
+ */
+public class BloomFilter implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Bits allotted per expected key */
+    public static final int BITS_PER_KEY = 10;
+
+    private final long[] bits;
+    private final int mask;
+    private final int numHashes;
+
+    /**
+     * Create an empty filter sized for the given number of keys.
+     *
+     * @param expectedKeys
+     *            the number of keys that will be added
+     */
+    public BloomFilter(int expectedKeys) {
+        long wanted = Math.max(64L, (long) expectedKeys * BITS_PER_KEY);
+        int numBits = (int) Math.min(1L << 27, Long.highestOneBit(wanted - 1) << 1);
+        this.bits = new long[numBits / 64];
+        this.mask = numBits - 1;
+        // k = ln(2) * bits per key is optimal for the false positive rate
+        this.numHashes = Math.max(1, (int) Math.round(Math.log(2) * BITS_PER_KEY));
+    }
+
+    private static long hash(Field f) {
+        long z = f.hashCode() * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /** Add a value to the filter. */
+    public void add(Field f) {
+        long h = hash(f);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32);
+        for (int i = 0; i < numHashes; i++) {
+            int bit = (h1 + i * h2) & mask;
+            bits[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    /**
+     * @return false if f was definitely never added, true if it may have been
+     */
+    public boolean mightContain(Field f) {
+        long h = hash(f);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32);
+        for (int i = 0; i < numHashes; i++) {
+            int bit = (h1 + i * h2) & mask;
+            if ((bits[bit >>> 6] & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Add every value of another filter of the same size to this one.
+     *
+     * @throws IllegalArgumentException if the filters differ in size
+     */
+    public void merge(BloomFilter other) {
+        if (other.bits.length != bits.length || other.numHashes != numHashes)
+            throw new IllegalArgumentException("cannot merge bloom filters of different sizes");
+        for (int i = 0; i < bits.length; i++)
+            bits[i] |= other.bits[i];
+    }
+}
@@ -0,0 +1,49 @@
+package simpledb.execution;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Broadcast reads its input once and sends all of it to each of several
+ * streams. It pairs a small input with each part of a large one that has
+ * been split some other way, as a join under a {@link Gather} needs when its
+ * predicate is not an equality.
+ */
+public class Broadcast extends Consumer {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int stream;
+    private final int numStreams;
+
+    private Broadcast(OpIterator plan, Producer producer, int stream, int numStreams) {
+        super(plan, producer, stream, true);
+        this.stream = stream;
+        this.numStreams = numStreams;
+    }
+
+    /**
+     * @param plan
+     *            the input to broadcast
+     * @param numStreams
+     *            the number of streams to send it to
+     * @param parallelism
+     *            the most threads to read the input with; more than one
+     *            only helps if plan is a heap file scan pipeline
+     * @return the streams, which must be read concurrently
+     */
+    public static List<Broadcast> streams(OpIterator plan, int numStreams, int parallelism) {
+        if (numStreams < 1)
+            throw new IllegalArgumentException("numStreams must be positive");
+        Producer producer = new Producer(sourcesOf(plan, parallelism), numStreams, -1, true);
+        List<Broadcast> streams = new ArrayList<>(numStreams);
+        for (int i = 0; i < numStreams; i++)
+            streams.add(new Broadcast(plan, producer, i, numStreams));
+        return streams;
+    }
+
+    @Override
+    public String getName() {
+        return "broadcast(" + stream + "/" + numStreams + ")";
+    }
+}
@@ -0,0 +1,375 @@
+package simpledb.execution;
+
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+
+import java.util.List;
+
+/**
+ * A Predicate, or a conjunction of Predicates, specialized once for the
+ * schema it will be applied to. Comparisons of an INT field with an integer
+ * constant get a class per operator that compares primitive ints, so testing
+ * a tuple does no switch on the Op and no call through Field.compare, and
+ * filtering a batch is one tight loop over its int column. Anything else
+ * falls back to Field.compare with the Op fixed in advance.
+ * <p>
+ * Batches are filtered through a selection vector: select() narrows a list
+ * of row indexes, so a conjunction compacts the batch once, after its last
+ * term, instead of once per term.
+ */
+abstract class CompiledPredicate {
+
+    /**
+     * @return true if t satisfies the predicate
+     */
+    abstract boolean test(Tuple t);
+
+    /**
+     * Narrow rows[0, n) to the rows of batch that satisfy the predicate,
+     * keeping their order.
+     *
+     * @return the number of rows left at the front of rows
+     */
+    abstract int select(TupleBatch batch, int[] rows, int n);
+
+    /**
+     * Remove from batch the rows the predicate is false for.
+     */
+    void filter(TupleBatch batch) {
+        int n = batch.size();
+        int[] rows = new int[n];
+        for (int i = 0; i < n; i++)
+            rows[i] = i;
+        batch.retain(rows, select(batch, rows, n));
+    }
+
+    /**
+     * @return p specialized for tuples of schema td
+     */
+    static CompiledPredicate compile(Predicate p, TupleDesc td) {
+        int f = p.getField();
+        Field operand = p.getOperand();
+        if (td.getFieldType(f) != Type.INT_TYPE || !(operand instanceof IntField))
+            return new Generic(f, p.getOp(), operand);
+        int v = ((IntField) operand).getValue();
+        switch (p.getOp()) {
+            case EQUALS:
+            case LIKE:
+                return new IntEquals(f, v);
+            case NOT_EQUALS:
+                return new IntNotEquals(f, v);
+            case GREATER_THAN:
+                return new IntGreaterThan(f, v);
+            case GREATER_THAN_OR_EQ:
+                return new IntGreaterThan(f, v - 1L);
+            case LESS_THAN:
+                return new IntLessThan(f, v);
+            case LESS_THAN_OR_EQ:
+                return new IntLessThan(f, v + 1L);
+            default:
+                return new Generic(f, p.getOp(), operand);
+        }
+    }
+
+    /**
+     * @return the conjunction of ps, specialized for tuples of schema td;
+     *         terms are evaluated in the order given
+     */
+    static CompiledPredicate compile(List<Predicate> ps, TupleDesc td) {
+        if (ps.size() == 1)
+            return compile(ps.get(0), td);
+        CompiledPredicate[] terms = new CompiledPredicate[ps.size()];
+        for (int i = 0; i < terms.length; i++)
+            terms[i] = compile(ps.get(i), td);
+        return new And(terms);
+    }
+
+    /**
+     * @return jp specialized for left tuples of schema td1 and right tuples
+     *         of schema td2
+     */
+    static Pair compile(JoinPredicate jp, TupleDesc td1, TupleDesc td2) {
+        int f1 = jp.getField1(), f2 = jp.getField2();
+        if (td1.getFieldType(f1) != Type.INT_TYPE || td2.getFieldType(f2) != Type.INT_TYPE)
+            return new GenericPair(f1, jp.getOperator(), f2);
+        switch (jp.getOperator()) {
+            case EQUALS:
+            case LIKE:
+                return new IntEqualsPair(f1, f2);
+            case NOT_EQUALS:
+                return new IntNotEqualsPair(f1, f2);
+            case GREATER_THAN:
+                return new IntGreaterThanPair(f1, f2);
+            case GREATER_THAN_OR_EQ:
+                return new IntGreaterThanOrEqPair(f1, f2);
+            case LESS_THAN:
+                return new IntLessThanPair(f1, f2);
+            case LESS_THAN_OR_EQ:
+                return new IntLessThanOrEqPair(f1, f2);
+            default:
+                return new GenericPair(f1, jp.getOperator(), f2);
+        }
+    }
+
+    /**
+     * A JoinPredicate specialized for the schemas of its two inputs.
+     */
+    abstract static class Pair {
+        /**
+         * @return true if t1 and t2 satisfy the join predicate
+         */
+        abstract boolean test(Tuple t1, Tuple t2);
+    }
+
+    private static int intOf(Tuple t, int field) {
+        return ((IntField) t.getField(field)).getValue();
+    }
+
+    private static final class IntEquals extends CompiledPredicate {
+        private final int field, value;
+
+        IntEquals(int field, int value) {
+            this.field = field;
+            this.value = value;
+        }
+
+        boolean test(Tuple t) {
+            return intOf(t, field) == value;
+        }
+
+        int select(TupleBatch batch, int[] rows, int n) {
+            int[] c = batch.intColumn(field);
+            int k = 0;
+            for (int j = 0; j < n; j++) {
+                int r = rows[j];
+                if (c[r] == value)
+                    rows[k++] = r;
+            }
+            return k;
+        }
+    }
+
+    private static final class IntNotEquals extends CompiledPredicate {
+        private final int field, value;
+
+        IntNotEquals(int field, int value) {
+            this.field = field;
+            this.value = value;
+        }
+
+        boolean test(Tuple t) {
+            return intOf(t, field) != value;
+        }
+
+        int select(TupleBatch batch, int[] rows, int n) {
+            int[] c = batch.intColumn(field);
+            int k = 0;
+            for (int j = 0; j < n; j++) {
+                int r = rows[j];
+                if (c[r] != value)
+                    rows[k++] = r;
+            }
+            return k;
+        }
+    }
+
+    /**
+     * field > bound; >= is folded into it by lowering the bound by one, which
+     * is why the bound is a long
+     */
+    private static final class IntGreaterThan extends CompiledPredicate {
+        private final int field;
+        private final long bound;
+
+        IntGreaterThan(int field, long bound) {
+            this.field = field;
+            this.bound = bound;
+        }
+
+        boolean test(Tuple t) {
+            return intOf(t, field) > bound;
+        }
+
+        int select(TupleBatch batch, int[] rows, int n) {
+            int[] c = batch.intColumn(field);
+            int k = 0;
+            for (int j = 0; j < n; j++) {
+                int r = rows[j];
+                if (c[r] > bound)
+                    rows[k++] = r;
+            }
+            return k;
+        }
+    }
+
+    /** field < bound; <= is folded into it as for IntGreaterThan */
+    private static final class IntLessThan extends CompiledPredicate {
+        private final int field;
+        private final long bound;
+
+        IntLessThan(int field, long bound) {
+            this.field = field;
+            this.bound = bound;
+        }
+
+        boolean test(Tuple t) {
+            return intOf(t, field) < bound;
+        }
+
+        int select(TupleBatch batch, int[] rows, int n) {
+            int[] c = batch.intColumn(field);
+            int k = 0;
+            for (int j = 0; j < n; j++) {
+                int r = rows[j];
+                if (c[r] < bound)
+                    rows[k++] = r;
+            }
+            return k;
+        }
+    }
+
+    private static final class Generic extends CompiledPredicate {
+        private final int field;
+        private final Predicate.Op op;
+        private final Field operand;
+
+        Generic(int field, Predicate.Op op, Field operand) {
+            this.field = field;
+            this.op = op;
+            this.operand = operand;
+        }
+
+        boolean test(Tuple t) {
+            return t.getField(field).compare(op, operand);
+        }
+
+        int select(TupleBatch batch, int[] rows, int n) {
+            int k = 0;
+            for (int j = 0; j < n; j++) {
+                int r = rows[j];
+                if (batch.getField(field, r).compare(op, operand))
+                    rows[k++] = r;
+            }
+            return k;
+        }
+    }
+
+    private static final class And extends CompiledPredicate {
+        private final CompiledPredicate[] terms;
+
+        And(CompiledPredicate[] terms) {
+            this.terms = terms;
+        }
+
+        boolean test(Tuple t) {
+            for (CompiledPredicate term : terms) {
+                if (!term.test(t))
+                    return false;
+            }
+            return true;
+        }
+
+        int select(TupleBatch batch, int[] rows, int n) {
+            for (int i = 0; i < terms.length && n > 0; i++)
+                n = terms[i].select(batch, rows, n);
+            return n;
+        }
+    }
+
+    private static final class IntEqualsPair extends Pair {
+        private final int field1, field2;
+
+        IntEqualsPair(int field1, int field2) {
+            this.field1 = field1;
+            this.field2 = field2;
+        }
+
+        boolean test(Tuple t1, Tuple t2) {
+            return intOf(t1, field1) == intOf(t2, field2);
+        }
+    }
+
+    private static final class IntNotEqualsPair extends Pair {
+        private final int field1, field2;
+
+        IntNotEqualsPair(int field1, int field2) {
+            this.field1 = field1;
+            this.field2 = field2;
+        }
+
+        boolean test(Tuple t1, Tuple t2) {
+            return intOf(t1, field1) != intOf(t2, field2);
+        }
+    }
+
+    private static final class IntLessThanPair extends Pair {
+        private final int field1, field2;
+
+        IntLessThanPair(int field1, int field2) {
+            this.field1 = field1;
+            this.field2 = field2;
+        }
+
+        boolean test(Tuple t1, Tuple t2) {
+            return intOf(t1, field1) < intOf(t2, field2);
+        }
+    }
+
+    private static final class IntLessThanOrEqPair extends Pair {
+        private final int field1, field2;
+
+        IntLessThanOrEqPair(int field1, int field2) {
+            this.field1 = field1;
+            this.field2 = field2;
+        }
+
+        boolean test(Tuple t1, Tuple t2) {
+            return intOf(t1, field1) <= intOf(t2, field2);
+        }
+    }
+
+    private static final class IntGreaterThanPair extends Pair {
+        private final int field1, field2;
+
+        IntGreaterThanPair(int field1, int field2) {
+            this.field1 = field1;
+            this.field2 = field2;
+        }
+
+        boolean test(Tuple t1, Tuple t2) {
+            return intOf(t1, field1) > intOf(t2, field2);
+        }
+    }
+
+    private static final class IntGreaterThanOrEqPair extends Pair {
+        private final int field1, field2;
+
+        IntGreaterThanOrEqPair(int field1, int field2) {
+            this.field1 = field1;
+            this.field2 = field2;
+        }
+
+        boolean test(Tuple t1, Tuple t2) {
+            return intOf(t1, field1) >= intOf(t2, field2);
+        }
+    }
+
+    private static final class GenericPair extends Pair {
+        private final int field1, field2;
+        private final Predicate.Op op;
+
+        GenericPair(int field1, Predicate.Op op, int field2) {
+            this.field1 = field1;
+            this.op = op;
+            this.field2 = field2;
+        }
+
+        boolean test(Tuple t1, Tuple t2) {
+            return t1.getField(field1).compare(op, t2.getField(field2));
+        }
+    }
+}
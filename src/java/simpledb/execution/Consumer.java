@@ -0,0 +1,258 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.SpillFile;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * The consuming side of an exchange: an operator that returns the batches
+ * producers have routed to one output queue.
+ * <p>
+ * A consumer that shares its producers with others, as the streams of a
+ * Repartition or Broadcast do, reads its whole stream when it is opened and
+ * spools it, in memory up to {@link Exchange#getSpoolMemoryBudget()} and in a
+ * spill file after that. Streaming instead would let the consumers deadlock:
+ * a hash join over one pair of streams that stops reading its build input
+ * to probe would fill that queue and stall the producer every other join is
+ * waiting on. The spool also lets such a consumer be rewound, which joins do
+ * to their inner input. All consumers of shared producers must be opened
+ * concurrently, for example each under its own thread of a Gather.
+ */
+public abstract class Consumer extends Exchange {
+
+    private static final long serialVersionUID = 1L;
+
+    private final OpIterator child;
+    private final transient Producer producer;
+    private final int output;
+    private final boolean spooled;
+
+    private transient TupleBatch current;
+    private transient int row;
+    private transient boolean exhausted;
+    private transient Spool spool;
+    private transient Spool.Reader replay;
+
+    /**
+     * @param child
+     *            the plan the producers' sources were made from, reported
+     *            as this operator's child
+     * @param producer
+     *            the producers feeding this consumer
+     * @param output
+     *            which of the producers' outputs this consumer reads
+     * @param spooled
+     *            true to read the whole stream into a spool when opened,
+     *            for consumers that share their producers
+     */
+    Consumer(OpIterator child, Producer producer, int output, boolean spooled) {
+        this.child = child;
+        this.producer = producer;
+        this.output = output;
+        this.spooled = spooled;
+    }
+
+    /**
+     * @return the sources producers run for plan: copies of it sharing the
+     *         table's pages if it is a heap file scan pipeline, or else plan
+     *         itself
+     */
+    static List<OpIterator> sourcesOf(OpIterator plan, int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("parallelism must be positive");
+        if (parallelism > 1 && ScanPartitioner.heapFileOf(plan) != null)
+            return ScanPartitioner.split(plan, parallelism);
+        return Collections.singletonList(plan);
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    /**
+     * @return the sub-plans run below this exchange; the child is only the
+     *         first of them when they are copies of it
+     */
+    List<OpIterator> getSources() {
+        return producer.getSources();
+    }
+
+    /** @return the number of producer threads feeding this consumer */
+    public int getParallelism() {
+        return producer.numSources();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        current = null;
+        exhausted = false;
+        producer.open(output);
+        if (spooled) {
+            spool = new Spool(getTupleDesc());
+            try {
+                TupleBatch batch;
+                while ((batch = readProducer()) != null)
+                    spool.add(batch);
+                spool.finish();
+            } catch (DbException | TransactionAbortedException | RuntimeException e) {
+                spool.delete();
+                spool = null;
+                throw e;
+            }
+            // done with the producers; let them stop once the others are
+            producer.close(output);
+            replay = spool.reader();
+        }
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        producer.close(output);
+        current = null;
+        if (replay != null) {
+            replay.close();
+            replay = null;
+        }
+        if (spool != null) {
+            spool.delete();
+            spool = null;
+        }
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        current = null;
+        if (spooled) {
+            replay.close();
+            replay = spool.reader();
+        } else {
+            exhausted = false;
+            producer.restart();
+        }
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        while (current == null || row == current.size()) {
+            current = fetchNextBatch();
+            row = 0;
+            if (current == null)
+                return null;
+        }
+        return current.getTuple(row++);
+    }
+
+    protected TupleBatch fetchNextBatch() throws DbException, TransactionAbortedException {
+        if (current != null && row < current.size()) {
+            // rows left over from the tuple-at-a-time path
+            TupleBatch rest = new TupleBatch(getTupleDesc(), current.size() - row);
+            for (; row < current.size(); row++)
+                rest.add(current.getTuple(row));
+            return rest;
+        }
+        if (spooled)
+            return replay.next();
+        return readProducer();
+    }
+
+    private TupleBatch readProducer() throws DbException, TransactionAbortedException {
+        if (exhausted)
+            return null;
+        TupleBatch batch = producer.take(output);
+        if (batch == null)
+            exhausted = true;
+        return batch;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { child };
+    }
+
+    /**
+     * The producers are built from the child when the exchange is created,
+     * so the child cannot be replaced afterwards.
+     */
+    @Override
+    public void setChildren(OpIterator[] children) {
+        if (children[0] != child)
+            throw new UnsupportedOperationException("the input of an exchange cannot be replaced");
+    }
+
+    /**
+     * Tuples a consumer has returned, kept in memory up to the spool budget
+     * and in a spill file after that.
+     */
+    private static final class Spool {
+        private final TupleDesc td;
+        private final long maxInMemory;
+        private final List<Tuple> inMemory = new ArrayList<>();
+        private SpillFile spilled;
+
+        Spool(TupleDesc td) {
+            this.td = td;
+            this.maxInMemory = Exchange.getSpoolMemoryBudget() / td.getSize();
+        }
+
+        void add(TupleBatch batch) throws DbException {
+            for (int i = 0; i < batch.size(); i++) {
+                Tuple t = batch.getTuple(i);
+                if (inMemory.size() < maxInMemory) {
+                    inMemory.add(t);
+                } else {
+                    if (spilled == null)
+                        spilled = new SpillFile(td);
+                    spilled.append(t);
+                }
+            }
+        }
+
+        void finish() throws DbException {
+            if (spilled != null)
+                spilled.finish();
+        }
+
+        void delete() {
+            if (spilled != null)
+                spilled.delete();
+        }
+
+        Reader reader() throws DbException {
+            return new Reader();
+        }
+
+        /** Returns the spooled tuples in order, a batch at a time */
+        final class Reader {
+            private int next;
+            private DbFileIterator fromDisk;
+
+            TupleBatch next() throws DbException, TransactionAbortedException {
+                TupleBatch batch = new TupleBatch(td);
+                while (!batch.isFull() && next < inMemory.size())
+                    batch.add(inMemory.get(next++));
+                if (spilled != null && !batch.isFull()) {
+                    if (fromDisk == null) {
+                        fromDisk = spilled.iterator();
+                        fromDisk.open();
+                    }
+                    while (!batch.isFull() && fromDisk.hasNext())
+                        batch.add(fromDisk.next());
+                }
+                return batch.size() == 0 ? null : batch;
+            }
+
+            void close() {
+                if (fromDisk != null)
+                    fromDisk.close();
+            }
+        }
+    }
+}
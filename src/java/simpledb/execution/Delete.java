@@ -54,14 +54,18 @@ public class Delete extends Operator {
         // some code goes here
         int deleteNum = 0;
         child.open();
-        while (child.hasNext()) {
-            Tuple tuple = child.next();
+        List<Tuple> tuples = new ArrayList<>(TupleBatch.DEFAULT_CAPACITY);
+        TupleBatch batch;
+        while ((batch = child.nextBatch()) != null) {
+            tuples.clear();
+            for (int i = 0; i < batch.size(); i++)
+                tuples.add(batch.getTuple(i));
             try {
-                Database.getBufferPool().deleteTuple(tid, tuple);
-                deleteNum++;
+                Database.getBufferPool().deleteTuples(tid, tuples);
             } catch (IOException e) {
-                e.printStackTrace();
+                throw new DbException("could not delete tuples: " + e.getMessage());
             }
+            deleteNum += tuples.size();
         }
         affected.get(0).setField(0, new IntField(deleteNum));
         it = affected.iterator();
@@ -80,13 +84,14 @@ public class Delete extends Operator {
     }
 
     /**
-     * Deletes tuples as they are read from the child operator. Deletes are
-     * processed via the buffer pool (which can be accessed via the
-     * Database.getBufferPool() method.
+     * Deletes tuples as they are read from the child operator, a batch at a
+     * time, grouped by the page they are on. Deletes are processed via the
+     * buffer pool (which can be accessed via the Database.getBufferPool()
+     * method.
      * 
      * @return A 1-field tuple containing the number of deleted records.
      * @see Database#getBufferPool
-     * @see BufferPool#deleteTuple
+     * @see BufferPool#deleteTuples
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
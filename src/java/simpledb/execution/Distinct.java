@@ -0,0 +1,221 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Distinct removes duplicate tuples from its child, two tuples being
+ * duplicates when all of their fields are equal. The first copy of each
+ * tuple is returned in input order.
+ * <p>
+ * Distinct streams: the distinct tuples seen so far are kept in a hash set,
+ * and a tuple is returned as soon as it is read if it is not in the set. The
+ * memory budget is split in half between the set and the sort. Once the set
+ * has used its half, tuples that are not in it are no longer returned
+ * straight away but fed to an {@link ExternalSort} (within the other half,
+ * spilling beyond it), and when the child is used up the sorted tuples are
+ * returned with adjacent duplicates dropped. Tuples in the set can still be recognized while the
+ * sort runs, so the only tuples that wait for the sort are those first seen
+ * after the set filled up.
+ */
+public class Distinct extends Operator implements MemoryConsumer {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Rough heap cost of a set entry besides the tuple: hash entry and key */
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private OpIterator child;
+    private long memoryBudget;
+
+    /** Default number of bytes the hash set and the sort may use together */
+    private static long defaultMemoryBudget = 16L << 20;
+
+    private transient Set<Key> seen;
+    private transient long maxSeen;
+    private transient ExternalSort overflow;
+    private transient boolean childDone;
+    private transient Tuple lastSorted;
+
+    public static long getDefaultMemoryBudget() {
+        return defaultMemoryBudget;
+    }
+
+    /**
+     * Set the number of bytes new Distinct operators built without an
+     * explicit budget may use, for their hash set and their sort together
+     */
+    public static void setDefaultMemoryBudget(long bytes) {
+        if (bytes <= 0)
+            throw new IllegalArgumentException("memory budget must be positive");
+        defaultMemoryBudget = bytes;
+    }
+
+    /**
+     * @param child
+     *            the tuples to remove duplicates from
+     */
+    public Distinct(OpIterator child) {
+        this(child, defaultMemoryBudget);
+    }
+
+    /**
+     * @param child
+     *            the tuples to remove duplicates from
+     * @param memoryBudget
+     *            the number of bytes the hash set of distinct tuples and
+     *            the sort of the tuples that do not fit in it may take up,
+     *            half each
+     */
+    public Distinct(OpIterator child, long memoryBudget) {
+        if (memoryBudget <= 0)
+            throw new IllegalArgumentException("memory budget must be positive");
+        this.child = child;
+        this.memoryBudget = memoryBudget;
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    public void setMemoryBudget(long bytes) {
+        if (bytes <= 0)
+            throw new IllegalArgumentException("memory budget must be positive");
+        memoryBudget = bytes;
+    }
+
+    /** @return true if the hash set filled up and tuples were sent to the sort */
+    public boolean overflowed() {
+        return overflow != null;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        TupleDesc td = getTupleDesc();
+        maxSeen = Math.max(1, setBudget() / (ExternalSort.estimateTupleSize(td) + ENTRY_OVERHEAD));
+        reset();
+        child.open();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        reset();
+        seen = null;
+        child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        reset();
+        child.rewind();
+    }
+
+    private void reset() {
+        seen = new HashSet<>();
+        if (overflow != null)
+            overflow.close();
+        overflow = null;
+        childDone = false;
+        lastSorted = null;
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        while (!childDone) {
+            if (!child.hasNext()) {
+                childDone = true;
+                if (overflow != null)
+                    overflow.finish();
+                break;
+            }
+            Tuple t = child.next();
+            Key k = new Key(t);
+            if (seen.contains(k))
+                continue;
+            if (seen.size() < maxSeen) {
+                seen.add(k);
+                return t;
+            }
+            if (overflow == null) {
+                TupleDesc td = getTupleDesc();
+                int[] fields = new int[td.numFields()];
+                boolean[] asc = new boolean[fields.length];
+                for (int i = 0; i < fields.length; i++) {
+                    fields[i] = i;
+                    asc[i] = true;
+                }
+                overflow = new ExternalSort(td, new TupleComparator(td, fields, asc),
+                        Math.max(1, memoryBudget - setBudget()));
+            }
+            overflow.add(t);
+        }
+        if (overflow == null)
+            return null;
+        Tuple t;
+        while ((t = overflow.next()) != null) {
+            if (lastSorted == null || !sameFields(lastSorted, t)) {
+                lastSorted = t;
+                return t;
+            }
+        }
+        return null;
+    }
+
+    /** @return the part of the memory budget the hash set may use */
+    private long setBudget() {
+        return Math.max(1, memoryBudget / 2);
+    }
+
+    private static boolean sameFields(Tuple t1, Tuple t2) {
+        for (int i = 0; i < t1.getTupleDesc().numFields(); i++) {
+            if (!t1.getField(i).equals(t2.getField(i)))
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+
+    /** The fields of a tuple, compared by value */
+    private static final class Key {
+        private final Field[] fields;
+        private final int hash;
+
+        Key(Tuple t) {
+            fields = new Field[t.getTupleDesc().numFields()];
+            for (int i = 0; i < fields.length; i++)
+                fields[i] = t.getField(i);
+            hash = Arrays.hashCode(fields);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && hash == ((Key) o).hash
+                    && Arrays.equals(fields, ((Key) o).fields);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package simpledb.execution;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Exchange is the boundary between the threads that run a query, in the
+ * Volcano sense: below an exchange, sub-plans run on producer threads, and
+ * the batches they produce are handed to the operators above through bounded
+ * queues. Everything else in a plan stays single threaded and knows nothing
+ * about the exchange.
+ * <p>
+ * Concrete exchanges are {@link Consumer}s, which differ in how producers
+ * route their batches: {@link Gather} merges every producer into one stream,
+ * {@link Repartition} splits the input into streams by the hash of a field,
+ * and {@link Broadcast} sends the whole input to every stream.
+ * <p>
+ * Producer threads block on full queues, so they come from a pool of their
+ * own that grows as needed rather than from the fixed-size pool other
+ * parallel operators share; a fixed pool could fill with producers waiting on
+ * consumers that have no thread to run on.
+ */
+public abstract class Exchange extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    /** Threads that run the sub-plans under exchanges */
+    static final ExecutorService threads = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "exchange-" + threadCount.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    });
+
+    /** Batches each queue of an exchange holds before producers block */
+    private static int queueCapacity = 8;
+
+    /** Bytes a Repartition or Broadcast stream keeps in memory for rewinds */
+    private static long spoolMemoryBudget = 4L << 20;
+
+    public static int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /** Set the number of batches each queue of a new exchange holds */
+    public static void setQueueCapacity(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("queue capacity must be positive");
+        queueCapacity = capacity;
+    }
+
+    public static long getSpoolMemoryBudget() {
+        return spoolMemoryBudget;
+    }
+
+    /**
+     * Set the number of bytes of its input a Repartition or Broadcast stream
+     * keeps in memory so that it can be rewound; the rest goes to a spill
+     * file
+     */
+    public static void setSpoolMemoryBudget(long bytes) {
+        if (bytes < 0)
+            throw new IllegalArgumentException("memory budget must not be negative");
+        spoolMemoryBudget = bytes;
+    }
+
+    /**
+     * @return a short description of the exchange, for query plans
+     */
+    public abstract String getName();
+}
@@ -0,0 +1,237 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.SpillFile;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.*;
+
+/**
+ * Sorts a stream of tuples within a memory budget. Tuples are collected until
+ * the budget is used up, then the collected run is sorted and spilled to a
+ * SpillFile. Once the input is finished the runs are merged k ways at a time,
+ * and the last merge pass is streamed out by next() rather than written back
+ * to disk. Input that fits in the budget is sorted in memory and never
+ * touches disk.
+ * <p>
+ * The sort is stable: tuples that compare equal come out in the order they
+ * were added.
+ */
+public class ExternalSort {
+
+    private final TupleDesc td;
+    private final Comparator<Tuple> comparator;
+    private final int runLimit;
+    private final int fanIn;
+
+    private List<Tuple> run = new ArrayList<>();
+    private List<SpillFile> runs = new ArrayList<>();
+    private boolean finished = false;
+
+    private Iterator<Tuple> memoryIt;
+    private Merger merger;
+
+    /**
+     * Rough number of heap bytes a tuple of this schema takes up once it is
+     * read into memory: the fields' on-disk size plus object overhead for the
+     * tuple and each of its fields.
+     */
+    public static long estimateTupleSize(TupleDesc td) {
+        return 32 + td.getSize() + 24L * td.numFields();
+    }
+
+    /**
+     * @param td
+     *            the schema of the tuples to sort
+     * @param comparator
+     *            the sort order
+     * @param memoryBudget
+     *            the number of bytes of tuples to hold in memory at once
+     */
+    public ExternalSort(TupleDesc td, Comparator<Tuple> comparator, long memoryBudget) {
+        this.td = td;
+        this.comparator = comparator;
+        this.runLimit = (int) Math.max(1, Math.min(Integer.MAX_VALUE - 8,
+                memoryBudget / estimateTupleSize(td)));
+        // every run being merged holds one page in memory
+        this.fanIn = (int) Math.max(2, Math.min(1024, memoryBudget / BufferPool.getPageSize()));
+    }
+
+    /** Add a tuple to be sorted. */
+    public void add(Tuple t) throws DbException {
+        if (finished)
+            throw new IllegalStateException("sort input is finished");
+        run.add(t);
+        if (run.size() >= runLimit)
+            spillRun();
+    }
+
+    private void spillRun() throws DbException {
+        run.sort(comparator);
+        SpillFile f = new SpillFile(td);
+        try {
+            for (Tuple t : run)
+                f.append(t);
+            f.finish();
+        } catch (DbException | RuntimeException e) {
+            f.delete();
+            throw e;
+        }
+        runs.add(f);
+        run = new ArrayList<>();
+    }
+
+    /**
+     * Signal the end of the input. Runs are merged until at most one pass
+     * remains, and the output is positioned at the first tuple.
+     */
+    public void finish() throws DbException, TransactionAbortedException {
+        if (finished)
+            return;
+        finished = true;
+        if (runs.isEmpty()) {
+            run.sort(comparator);
+            rewind();
+            return;
+        }
+        if (!run.isEmpty())
+            spillRun();
+        run = null;
+        while (runs.size() > fanIn) {
+            List<SpillFile> merged = new ArrayList<>();
+            for (int i = 0; i < runs.size(); i += fanIn) {
+                List<SpillFile> group = runs.subList(i, Math.min(runs.size(), i + fanIn));
+                if (group.size() == 1) {
+                    merged.add(group.get(0));
+                    continue;
+                }
+                SpillFile out = new SpillFile(td);
+                try {
+                    Merger m = new Merger(group);
+                    try {
+                        Tuple t;
+                        while ((t = m.next()) != null)
+                            out.append(t);
+                    } finally {
+                        m.close();
+                    }
+                    out.finish();
+                } catch (DbException | TransactionAbortedException | RuntimeException e) {
+                    out.delete();
+                    // close() removes runs, so it removes this pass's output too
+                    runs.addAll(merged);
+                    throw e;
+                }
+                for (SpillFile f : group)
+                    f.delete();
+                merged.add(out);
+            }
+            runs = merged;
+        }
+        rewind();
+    }
+
+    /** @return the number of runs that were spilled to disk and remain to be merged */
+    public int numSpilledRuns() {
+        return runs.size();
+    }
+
+    /**
+     * @return the next tuple in sorted order, or null if there are no more
+     */
+    public Tuple next() throws DbException, TransactionAbortedException {
+        if (memoryIt != null)
+            return memoryIt.hasNext() ? memoryIt.next() : null;
+        if (merger != null)
+            return merger.next();
+        return null;
+    }
+
+    /** Start returning tuples from the beginning of the sorted output again. */
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (!finished)
+            throw new IllegalStateException("sort input is not finished");
+        if (run != null) {
+            memoryIt = run.iterator();
+            return;
+        }
+        if (merger != null)
+            merger.close();
+        merger = new Merger(runs);
+    }
+
+    /** Release the sorted tuples and remove any spilled runs from disk. */
+    public void close() {
+        if (merger != null)
+            merger.close();
+        merger = null;
+        memoryIt = null;
+        run = null;
+        for (SpillFile f : runs)
+            f.delete();
+        runs = new ArrayList<>();
+    }
+
+    /**
+     * k-way merge of sorted runs through a heap holding the head of each run.
+     * Ties go to the earlier run, which keeps the sort stable.
+     */
+    private class Merger {
+        private final PriorityQueue<Cursor> heap;
+        private final List<Cursor> cursors = new ArrayList<>();
+
+        Merger(List<SpillFile> files) throws DbException, TransactionAbortedException {
+            heap = new PriorityQueue<>(Math.max(1, files.size()), (a, b) -> {
+                int c = comparator.compare(a.head, b.head);
+                return c != 0 ? c : Integer.compare(a.index, b.index);
+            });
+            for (SpillFile f : files) {
+                Cursor c = new Cursor(f.iterator(), cursors.size());
+                cursors.add(c);
+                if (c.advance())
+                    heap.add(c);
+            }
+        }
+
+        Tuple next() throws DbException, TransactionAbortedException {
+            Cursor c = heap.poll();
+            if (c == null)
+                return null;
+            Tuple t = c.head;
+            if (c.advance())
+                heap.add(c);
+            return t;
+        }
+
+        void close() {
+            for (Cursor c : cursors)
+                c.it.close();
+            heap.clear();
+        }
+    }
+
+    private static class Cursor {
+        final DbFileIterator it;
+        final int index;
+        Tuple head;
+
+        Cursor(DbFileIterator it, int index) throws DbException, TransactionAbortedException {
+            this.it = it;
+            this.index = index;
+            it.open();
+        }
+
+        boolean advance() throws DbException, TransactionAbortedException {
+            if (!it.hasNext()) {
+                head = null;
+                return false;
+            }
+            head = it.next();
+            return true;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.DbFile;
+import simpledb.storage.Field;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Fetch is the second half of late materialization. Below it, scans
+ * narrowed with {@link SeqScan#setOutputFields} return a row id and just the
+ * fields that filters and joins need, so that joins build, probe, spill and
+ * copy narrow rows. For each row that comes through, Fetch reads the tuples
+ * of the narrowed tables again by row id through the buffer pool, and
+ * returns the rows with the fields of those tables that the plan above
+ * uses, in the order an unnarrowed plan would return them. Narrowed tables
+ * whose fields above are all returned by their scans are not read again,
+ * and their row id and fields pass through.
+ * <p>
+ * The pages read again were locked by the scans in the same transaction, so
+ * the tuples on them are the ones the scans saw.
+ */
+public class Fetch extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final TransactionId tid;
+    private OpIterator child;
+    private final TupleDesc td;
+
+    /** The ids of the narrowed tables */
+    private final int[] tableIds;
+    /** The field of the child holding the row id of each narrowed table */
+    private final int[] rowIdFields;
+    /** For each output field, the child field it comes from, or -1 */
+    private final int[] childFields;
+    /** For each output field taken from a fetched tuple, the narrowed table */
+    private final int[] fetchTables;
+    /** For each output field taken from a fetched tuple, its field in that tuple */
+    private final int[] fetchFields;
+
+    private transient HeapFile[] files;
+
+    /**
+     * Fetch all fields of the narrowed tables.
+     *
+     * @param tid
+     *            the transaction the scans below run as a part of
+     * @param child
+     *            the plan over the narrowed scans
+     * @param tables
+     *            the alias and table id of each narrowed scan below
+     * @throws IllegalArgumentException
+     *             if the row id field of a narrowed table is not in the
+     *             child's tuples
+     */
+    public Fetch(TransactionId tid, OpIterator child, Map<String, Integer> tables) {
+        this(tid, child, tables, null);
+    }
+
+    /**
+     * Fetch some fields of the narrowed tables.
+     *
+     * @param tid
+     *            the transaction the scans below run as a part of
+     * @param child
+     *            the plan over the narrowed scans
+     * @param tables
+     *            the alias and table id of each narrowed scan below to read
+     *            again
+     * @param fields
+     *            for each alias in tables, the names of the fields to
+     *            return, without the alias; null to return all fields of
+     *            every table
+     * @throws IllegalArgumentException
+     *             if the row id field of a narrowed table is not in the
+     *             child's tuples
+     */
+    public Fetch(TransactionId tid, OpIterator child, Map<String, Integer> tables,
+            Map<String, ? extends Collection<String>> fields) {
+        this.tid = tid;
+        this.child = child;
+        TupleDesc in = child.getTupleDesc();
+        List<String> aliases = new ArrayList<>(tables.keySet());
+        tableIds = new int[aliases.size()];
+        rowIdFields = new int[aliases.size()];
+        for (int k = 0; k < aliases.size(); k++) {
+            tableIds[k] = tables.get(aliases.get(k));
+            rowIdFields[k] = -1;
+        }
+
+        List<Type> types = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        List<int[]> sources = new ArrayList<>();
+        for (int i = 0; i < in.numFields(); i++) {
+            String name = in.getFieldName(i);
+            int k = name == null ? -1 : aliases.indexOf(rowIdAlias(name));
+            if (k < 0) {
+                types.add(in.getFieldType(i));
+                names.add(name);
+                sources.add(new int[] { i, -1, -1 });
+                continue;
+            }
+            rowIdFields[k] = i;
+            String prefix = aliases.get(k) + ".";
+            TupleDesc tableDesc = Database.getCatalog().getTupleDesc(tableIds[k]);
+            Collection<String> keep = fields == null ? null : fields.get(aliases.get(k));
+            for (int f = 0; f < tableDesc.numFields(); f++) {
+                if (keep != null && !keep.contains(tableDesc.getFieldName(f)))
+                    continue;
+                types.add(tableDesc.getFieldType(f));
+                names.add(prefix + tableDesc.getFieldName(f));
+                sources.add(new int[] { -1, k, f });
+            }
+            // skip the fields the scan returned; they are fetched again
+            while (i + 1 < in.numFields() && in.getFieldName(i + 1) != null
+                    && in.getFieldName(i + 1).startsWith(prefix))
+                i++;
+        }
+        for (int k = 0; k < aliases.size(); k++) {
+            if (rowIdFields[k] < 0)
+                throw new IllegalArgumentException("no row id field for " + aliases.get(k));
+        }
+
+        td = new TupleDesc(types.toArray(new Type[0]), names.toArray(new String[0]));
+        childFields = new int[sources.size()];
+        fetchTables = new int[sources.size()];
+        fetchFields = new int[sources.size()];
+        for (int i = 0; i < sources.size(); i++) {
+            childFields[i] = sources.get(i)[0];
+            fetchTables[i] = sources.get(i)[1];
+            fetchFields[i] = sources.get(i)[2];
+        }
+    }
+
+    /** @return the alias of the table whose row id field is named name, or null */
+    private static String rowIdAlias(String name) {
+        String suffix = "." + SeqScan.ROW_ID;
+        return name.endsWith(suffix) ? name.substring(0, name.length() - suffix.length()) : null;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        files = new HeapFile[tableIds.length];
+        for (int k = 0; k < tableIds.length; k++) {
+            DbFile f = Database.getCatalog().getDatabaseFile(tableIds[k]);
+            if (!(f instanceof HeapFile))
+                throw new DbException("only heap file rows can be fetched");
+            files[k] = (HeapFile) f;
+        }
+        child.open();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        child.close();
+        files = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        if (!child.hasNext())
+            return null;
+        Tuple t = child.next();
+        Tuple[] rows = new Tuple[files.length];
+        for (int k = 0; k < files.length; k++) {
+            int rowId = ((IntField) t.getField(rowIdFields[k])).getValue();
+            rows[k] = files[k].fetchTuple(tid, files[k].recordId(rowId));
+        }
+        Field[] fields = new Field[childFields.length];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = childFields[i] >= 0 ? t.getField(childFields[i])
+                    : rows[fetchTables[i]].getField(fetchFields[i]);
+        }
+        return new Tuple(td, fields);
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+}
@@ -3,12 +3,19 @@ package simpledb.execution;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleDesc;
 
 import java.util.*;
 
 /**
  * Filter is an operator that implements a relational select.
+ * <p>
+ * The predicate is compiled for the child's schema when the filter is
+ * opened. A stack of Filters over a SeqScan, one per conjunct of a WHERE
+ * clause, is evaluated by the topmost one as a single compiled conjunction
+ * read straight from the scan; the Filters below it stay in the plan but are
+ * not opened.
  */
 public class Filter extends Operator {
 
@@ -16,6 +23,11 @@ public class Filter extends Operator {
 
     private Predicate predicate;
     private OpIterator child;
+    private transient BloomFilter runtimeFilter;
+    private transient int runtimeFilterField;
+    /** What open() reads from: the child, or the scan under fused Filters */
+    private transient OpIterator source;
+    private transient CompiledPredicate compiled;
 
     /**
      * Constructor accepts a predicate to apply and a child operator to read
@@ -36,6 +48,21 @@ public class Filter extends Operator {
         return predicate;
     }
 
+    /**
+     * Additionally drop tuples whose value in the given field is not in
+     * filter, ahead of the predicate. Used by a hash join whose probe side
+     * this filter feeds.
+     *
+     * @param field
+     *            the field of the child's tuples to test
+     * @param filter
+     *            the filter to apply, or null to stop filtering
+     */
+    public void setRuntimeFilter(int field, BloomFilter filter) {
+        runtimeFilterField = field;
+        runtimeFilter = filter;
+    }
+
     public TupleDesc getTupleDesc() {
         // some code goes here
         return child.getTupleDesc();
@@ -44,19 +71,48 @@ public class Filter extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         // some code goes here
-        child.open();
+        List<Predicate> terms = new ArrayList<>();
+        terms.add(predicate);
+        source = child;
+        if (fusable()) {
+            while (source instanceof Filter) {
+                Filter below = (Filter) source;
+                terms.add(0, below.predicate);
+                source = below.child;
+            }
+        }
+        compiled = CompiledPredicate.compile(terms, getTupleDesc());
+        source.open();
         super.open();
     }
 
+    /**
+     * @return true if the Filters below this one can be evaluated by it:
+     *         they lead down to a SeqScan and none has a runtime filter. A
+     *         hash join publishes its runtime filter to the scan in that
+     *         case, so none is set on them later either.
+     */
+    private boolean fusable() {
+        OpIterator below = child;
+        while (below instanceof Filter) {
+            if (((Filter) below).runtimeFilter != null)
+                return false;
+            below = ((Filter) below).child;
+        }
+        return below instanceof SeqScan;
+    }
+
     public void close() {
         // some code goes here
         super.close();
-        child.close();
+        (source != null ? source : child).close();
+        source = null;
+        compiled = null;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
-        child.rewind();
+        source.rewind();
     }
 
     /**
@@ -72,16 +128,41 @@ public class Filter extends Operator {
             TransactionAbortedException, DbException {
         // some code goes here
         while (true) {
-            if (!child.hasNext()) {
+            if (!source.hasNext()) {
                 return null;
             }
-            Tuple t = child.next();
-            if (predicate.filter(t)) {
+            Tuple t = source.next();
+            if (runtimeFilter != null && !runtimeFilter.mightContain(t.getField(runtimeFilterField))) {
+                continue;
+            }
+            if (compiled.test(t)) {
                 return t;
             }
         }
     }
 
+    /**
+     * Filters whole batches of the child's tuples in place, returning the
+     * first batch with any tuples left. The runtime filter and the compiled
+     * predicate narrow one selection vector, and the batch is compacted once.
+     */
+    protected TupleBatch fetchNextBatch() throws TransactionAbortedException, DbException {
+        while (true) {
+            TupleBatch batch = source.nextBatch();
+            if (batch == null)
+                return null;
+            int[] kept = new int[batch.size()];
+            int k = 0;
+            for (int i = 0; i < batch.size(); i++) {
+                if (runtimeFilter == null || runtimeFilter.mightContain(batch.getField(runtimeFilterField, i)))
+                    kept[k++] = i;
+            }
+            batch.retain(kept, compiled.select(batch, kept, k));
+            if (batch.size() > 0)
+                return batch;
+        }
+    }
+
     @Override
     public OpIterator[] getChildren() {
         // some code goes here
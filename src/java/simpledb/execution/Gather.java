@@ -0,0 +1,53 @@
+package simpledb.execution;
+
+import java.util.List;
+
+/**
+ * Gather merges the output of several copies of a sub-plan, each run on its
+ * own thread, into one stream. The copies either split a heap file scan
+ * pipeline, claiming morsels of its pages as they go, or are given
+ * explicitly, for example one join per
+ * partition of two {@link Repartition}ed inputs. Tuples arrive in no
+ * particular order.
+ */
+public class Gather extends Consumer {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Run plan on up to parallelism threads, which share its pages between
+     * them if plan is a scan of a heap file with Filters above it, or plan
+     * on one thread otherwise.
+     *
+     * @param plan
+     *            the sub-plan to run
+     * @param parallelism
+     *            the most threads to run it on
+     */
+    public Gather(OpIterator plan, int parallelism) {
+        super(plan, new Producer(sourcesOf(plan, parallelism), 1, -1, false), 0, false);
+    }
+
+    /**
+     * Run each of pipelines on its own thread.
+     *
+     * @param pipelines
+     *            the sub-plans to run; all have the same schema
+     */
+    public Gather(List<OpIterator> pipelines) {
+        super(pipelines.get(0), new Producer(pipelines, 1, -1, false), 0, false);
+    }
+
+    /**
+     * @return true if plan is a heap file scan with Filters above it, which
+     *         Gather(plan, parallelism) splits between threads
+     */
+    public static boolean canSplit(OpIterator plan) {
+        return ScanPartitioner.heapFileOf(plan) != null;
+    }
+
+    @Override
+    public String getName() {
+        return "gather(" + getParallelism() + ")";
+    }
+}
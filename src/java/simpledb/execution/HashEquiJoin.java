@@ -2,27 +2,56 @@ package simpledb.execution;
 
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.Field;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleDesc;
 
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * When constructed with a parallelism greater than one, the build side is
+ * hash partitioned and the partitions are filled concurrently, and batches of
+ * probe tuples are joined by a shared fork-join pool. Joined tuples are handed
+ * back to the calling thread through a bounded queue, so the output order is
+ * not deterministic in that mode. The children themselves are only ever read
+ * by the thread calling {@link #next()}.
+ * <p>
+ * Each build block also produces a {@link BloomFilter} over its join keys,
+ * which is handed to the SeqScan or Filter at the bottom of the probe side so
+ * that probe tuples without a possible match are dropped there.
+ * <p>
+ * Read by batches, a serial join probes a whole batch of the probe side at a
+ * time, looking up INT keys without wrapping them in fields, and writes the
+ * joined rows straight into the output batch.
+ * <p>
+ * The build side is read a block at a time, each block holding as many
+ * tuples as fit in the join's memory budget, and the probe side is read
+ * again for every block, so a build side bigger than the budget makes the
+ * join slower rather than exhausting the heap.
  */
-public class HashEquiJoin extends Operator {
+public class HashEquiJoin extends Operator implements MemoryConsumer {
 
     private static final long serialVersionUID = 1L;
     private final JoinPredicate pred;
     private OpIterator child1, child2;
     private final TupleDesc comboTD;
+    private final int parallelism;
+    private long memoryBudget;
     transient private Tuple t1 = null;
     transient private Tuple t2 = null;
 
     /**
      * Constructor. Accepts to children to join and the predicate to join them
      * on
-     * 
+     *
      * @param p
      *            The predicate to use to join the children
      * @param child1
@@ -31,9 +60,55 @@ public class HashEquiJoin extends Operator {
      *            Iterator for the right(inner) relation to join
      */
     public HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2) {
+        this(p, child1, child2, 1);
+    }
+
+    /**
+     * Constructor for a join that builds and probes on up to parallelism
+     * threads.
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     * @param parallelism
+     *            the number of build partitions and concurrent probe batches;
+     *            1 runs the join entirely on the calling thread
+     */
+    public HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2, int parallelism) {
+        this(p, child1, child2, parallelism, defaultMemoryBudget);
+    }
+
+    /**
+     * Constructor for a join that holds at most memoryBudget bytes of build
+     * side tuples at a time.
+     *
+     * @param p
+     *            The predicate to use to join the children
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     * @param parallelism
+     *            the number of build partitions and concurrent probe batches;
+     *            1 runs the join entirely on the calling thread
+     * @param memoryBudget
+     *            the number of bytes of build side tuples to hash at a time;
+     *            the probe side is read once per block that fits
+     */
+    public HashEquiJoin(JoinPredicate p, OpIterator child1, OpIterator child2, int parallelism,
+            long memoryBudget) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("parallelism must be positive");
+        if (memoryBudget <= 0)
+            throw new IllegalArgumentException("memory budget must be positive");
+        this.memoryBudget = memoryBudget;
         this.pred = p;
         this.child1 = child1;
         this.child2 = child2;
+        this.parallelism = parallelism;
         comboTD = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
     }
 
@@ -44,7 +119,7 @@ public class HashEquiJoin extends Operator {
     public TupleDesc getTupleDesc() {
         return comboTD;
     }
-    
+
     public String getJoinField1Name()
     {
 	return this.child1.getTupleDesc().getFieldName(this.pred.getField1());
@@ -54,48 +129,253 @@ public class HashEquiJoin extends Operator {
     {
 	return this.child2.getTupleDesc().getFieldName(this.pred.getField2());
     }
-    
-    final Map<Object, List<Tuple>> map = new HashMap<>();
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /** Default number of bytes of build side tuples a join may hash at a time */
+    private static long defaultMemoryBudget = 16L << 20;
+
+    /** Bytes a build tuple is taken to need in a hash table beyond the tuple itself */
+    private static final int ENTRY_OVERHEAD = 32;
+
+    /** @return the memory budget given to joins that do not set their own */
+    public static long getDefaultMemoryBudget() {
+        return defaultMemoryBudget;
+    }
+
+    /**
+     * Set the memory budget, in bytes, given to HashEquiJoin operators that
+     * do not set their own.
+     */
+    public static void setDefaultMemoryBudget(long bytes) {
+        if (bytes <= 0)
+            throw new IllegalArgumentException("memory budget must be positive");
+        defaultMemoryBudget = bytes;
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    public void setMemoryBudget(long bytes) {
+        if (bytes <= 0)
+            throw new IllegalArgumentException("memory budget must be positive");
+        memoryBudget = bytes;
+    }
+
+    /** @return the most build side tuples to hash at a time */
+    int blockSize() {
+        long perTuple = ExternalSort.estimateTupleSize(child1.getTupleDesc()) + ENTRY_OVERHEAD;
+        return (int) Math.max(1, Math.min((long) MAP_SIZE * parallelism, memoryBudget / perTuple));
+    }
+
+    /** Build side tuples hashed per partition; a serial join has one. */
+    final List<JoinHashTable> partitions = new ArrayList<>();
     public final static int MAP_SIZE = 20000;
 
+    /** Probe tuples handed to a worker at a time. */
+    public final static int PROBE_BATCH_SIZE = 1024;
+
+    /** Blocks smaller than this are built and probed serially even in parallel mode. */
+    public final static int PARALLEL_THRESHOLD = 4096;
+
+    transient private BlockingQueue<Tuple> results;
+    /** Queued by each probe batch after the tuples it joined */
+    transient private Tuple end;
+    /** Probe batches whose end marker has not been taken yet */
+    transient private int inFlight;
+    transient private AtomicReference<Throwable> failure;
+    transient private volatile boolean cancelled = false;
+    transient private boolean parallelBlock = false;
+
+    private int partitionOf(Field key) {
+        if (partitions.size() == 1)
+            return 0;
+        int h = key.hashCode() * 0x9E3779B9;
+        return (h >>> 16) % partitions.size();
+    }
+
+    private JoinHashTable tableOf(Field key) {
+        return partitions.get(partitionOf(key));
+    }
+
     private boolean loadMap() throws DbException, TransactionAbortedException {
-        int cnt = 0;
-        map.clear();
-        while (child1.hasNext()) {
-            t1 = child1.next();
-            List<Tuple> list = map.computeIfAbsent(t1.getField(pred.getField1()), k -> new ArrayList<>());
-            list.add(t1);
-            if (cnt++ == MAP_SIZE)
-                return true;
+        int blockSize = blockSize();
+        List<Tuple> block = new ArrayList<>();
+        while (block.size() < blockSize && child1.hasNext())
+            block.add(child1.next());
+
+        parallelBlock = parallelism > 1 && block.size() >= PARALLEL_THRESHOLD;
+        partitions.clear();
+        int numPartitions = parallelBlock ? parallelism : 1;
+        Type keyType = child1.getTupleDesc().getFieldType(pred.getField1());
+        if (child2.getTupleDesc().getFieldType(pred.getField2()) != keyType)
+            keyType = null;
+        for (int i = 0; i < numPartitions; i++)
+            partitions.add(JoinHashTable.create(keyType, block.size() / numPartitions));
+
+        if (parallelBlock) {
+            buildParallel(block);
+        } else {
+            JoinHashTable table = partitions.get(0);
+            BloomFilter keys = new BloomFilter(block.size());
+            for (Tuple t : block) {
+                Field key = t.getField(pred.getField1());
+                table.add(t, key);
+                keys.add(key);
+            }
+            publishRuntimeFilter(keys);
+        }
+        return block.size() > 0;
+    }
+
+    /**
+     * Fill the build partitions concurrently: each range of the block is
+     * split by partition first, then every partition's table is built by its
+     * own task from the matching pieces of all ranges.
+     */
+    private void buildParallel(List<Tuple> block) throws DbException, TransactionAbortedException {
+        int numPartitions = partitions.size();
+        int rangeSize = (block.size() + numPartitions - 1) / numPartitions;
+        // pieces.get(range).get(partition)
+        List<List<List<Tuple>>> pieces = new ArrayList<>(numPartitions);
+        for (int r = 0; r < numPartitions; r++) {
+            List<List<Tuple>> range = new ArrayList<>(numPartitions);
+            for (int p = 0; p < numPartitions; p++)
+                range.add(new ArrayList<>());
+            pieces.add(range);
         }
-        return cnt > 0;
 
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (int r = 0; r < numPartitions; r++) {
+            final int range = r;
+            tasks.add(Workers.pool.submit(() -> {
+                List<List<Tuple>> mine = pieces.get(range);
+                int end = Math.min(block.size(), (range + 1) * rangeSize);
+                for (int i = range * rangeSize; i < end; i++) {
+                    Tuple t = block.get(i);
+                    mine.get(partitionOf(t.getField(pred.getField1()))).add(t);
+                }
+            }));
+        }
+        Workers.joinAll(tasks, "parallel hash join build");
+
+        tasks.clear();
+        BloomFilter[] keys = new BloomFilter[numPartitions];
+        for (int p = 0; p < numPartitions; p++) {
+            final int part = p;
+            tasks.add(Workers.pool.submit(() -> {
+                JoinHashTable table = partitions.get(part);
+                keys[part] = new BloomFilter(block.size());
+                for (int r = 0; r < numPartitions; r++) {
+                    for (Tuple t : pieces.get(r).get(part)) {
+                        Field key = t.getField(pred.getField1());
+                        table.add(t, key);
+                        keys[part].add(key);
+                    }
+                }
+            }));
+        }
+        Workers.joinAll(tasks, "parallel hash join build");
+        for (int p = 1; p < numPartitions; p++)
+            keys[0].merge(keys[p]);
+        publishRuntimeFilter(keys[0]);
+    }
+
+    /**
+     * Hand the build keys to the scan or filter the probe side reads from.
+     * Only Filters are looked through, since they keep field positions and
+     * pass each child tuple through unchanged.
+     */
+    private void publishRuntimeFilter(BloomFilter keys) {
+        OpIterator target = child2;
+        while (target instanceof Filter) {
+            OpIterator below = ((Filter) target).getChildren()[0];
+            if (!(below instanceof Filter || below instanceof SeqScan))
+                break;
+            target = below;
+        }
+        if (target instanceof SeqScan)
+            ((SeqScan) target).setRuntimeFilter(pred.getField2(), keys);
+        else if (target instanceof Filter)
+            ((Filter) target).setRuntimeFilter(pred.getField2(), keys);
     }
 
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child1.open();
         child2.open();
+        if (parallelism > 1) {
+            results = new ArrayBlockingQueue<>(PROBE_BATCH_SIZE * parallelism * 2);
+            end = new Tuple(comboTD);
+            inFlight = 0;
+            failure = new AtomicReference<>(null);
+        }
         loadMap();
         super.open();
     }
 
     public void close() {
         super.close();
+        cancelProbes();
+        publishRuntimeFilter(null);
         child2.close();
         child1.close();
         this.t1=null;
         this.t2=null;
-        this.listIt=null;
-        this.map.clear();
+        this.matchTable=null;
+        this.probeBatch=null;
+        this.partitions.clear();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
+        cancelProbes();
         child1.rewind();
         child2.rewind();
+        matchTable = null;
+        probeBatch = null;
+        loadMap();
     }
 
-    transient Iterator<Tuple> listIt = null;
+    /**
+     * Stop outstanding probe batches and throw away anything they produced,
+     * taking results until every batch has queued its end marker. Workers
+     * stop joining once they see the cancelled flag.
+     */
+    private void cancelProbes() {
+        if (results == null)
+            return;
+        cancelled = true;
+        try {
+            while (inFlight > 0) {
+                if (results.take() == end)
+                    inFlight--;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        results.clear();
+        failure.set(null);
+        cancelled = false;
+    }
+
+    /** Build table holding the rest of t2's matches, and the next of them */
+    transient private JoinHashTable matchTable = null;
+    transient private int matchRow = -1;
+
+    /** Probe batch being joined by fetchNextBatch, and its next row */
+    transient private TupleBatch probeBatch = null;
+    transient private int probeRow = 0;
+
+    /** @return the next probe tuple, from the current probe batch first */
+    private Tuple nextProbeTuple() throws DbException, TransactionAbortedException {
+        if (probeBatch != null && probeRow < probeBatch.size())
+            return probeBatch.getTuple(probeRow++);
+        probeBatch = null;
+        return child2.hasNext() ? child2.next() : null;
+    }
 
     /**
      * Returns the next tuple generated by the join, or null if there are no
@@ -111,41 +391,38 @@ public class HashEquiJoin extends Operator {
      * <p>
      * For example, if one tuple is {1,2,3} and the other tuple is {1,5,6},
      * joined on equality of the first column, then this returns {1,2,3,1,5,6}.
-     * 
+     *
      * @return The next matching tuple.
      * @see JoinPredicate#filter
      */
     private Tuple processList() {
-        t1 = listIt.next();
-
-        int td1n = t1.getTupleDesc().numFields();
-        int td2n = t2.getTupleDesc().numFields();
-
-        // set fields in combined tuple
-        Tuple t = new Tuple(comboTD);
-        for (int i = 0; i < td1n; i++)
-            t.setField(i, t1.getField(i));
-        for (int i = 0; i < td2n; i++)
-            t.setField(td1n + i, t2.getField(i));
-        return t;
+        t1 = matchTable.row(matchRow);
+        matchRow = matchTable.next(matchRow);
+        return merge(t1, t2);
+    }
 
+    private Tuple merge(Tuple left, Tuple right) {
+        return Tuple.concat(left, right, comboTD);
     }
 
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
-        if (listIt != null && listIt.hasNext()) {
+        if (parallelBlock)
+            return fetchNextParallel();
+
+        if (matchTable != null && matchRow != -1) {
             return processList();
         }
 
         // loop around child2
-        while (child2.hasNext()) {
-            t2 = child2.next();
+        while ((t2 = nextProbeTuple()) != null) {
 
             // if match, create a combined tuple and fill it with the values
             // from both tuples
-            List<Tuple> l = map.get(t2.getField(pred.getField2()));
-            if (l == null)
+            Field key = t2.getField(pred.getField2());
+            matchTable = tableOf(key);
+            matchRow = matchTable.first(key);
+            if (matchRow == -1)
                 continue;
-            listIt = l.iterator();
 
             return processList();
 
@@ -160,6 +437,141 @@ public class HashEquiJoin extends Operator {
         return null;
     }
 
+    protected TupleBatch fetchNextBatch() throws TransactionAbortedException, DbException {
+        if (parallelBlock)
+            return super.fetchNextBatch();
+
+        TupleBatch out = new TupleBatch(comboTD);
+        int leftFields = child1.getTupleDesc().numFields();
+        int rightFields = child2.getTupleDesc().numFields();
+        int keyField = pred.getField2();
+        while (!out.isFull()) {
+            // matches left over from a probe tuple that did not fit last time
+            if (matchTable != null && matchRow != -1) {
+                out.add(processList());
+                continue;
+            }
+            if (probeBatch == null || probeRow == probeBatch.size()) {
+                probeBatch = child2.nextBatch();
+                probeRow = 0;
+                if (probeBatch == null) {
+                    // child2 is done: advance child1
+                    child2.rewind();
+                    if (!loadMap())
+                        break;
+                    if (parallelBlock)
+                        return out.size() > 0 ? out : super.fetchNextBatch();
+                    continue;
+                }
+            }
+
+            // serial blocks have a single partition
+            JoinHashTable table = partitions.get(0);
+            int[] intKeys = table instanceof JoinHashTable.IntKeyed
+                    && probeBatch.getTupleDesc().getFieldType(keyField) == Type.INT_TYPE
+                    ? probeBatch.intColumn(keyField) : null;
+            for (; probeRow < probeBatch.size() && !out.isFull(); probeRow++) {
+                int row = probeRow;
+                int r = intKeys != null ? ((JoinHashTable.IntKeyed) table).first(intKeys[row])
+                        : table.first(probeBatch.getField(keyField, row));
+                for (; r != -1; r = table.next(r)) {
+                    if (out.isFull()) {
+                        // finish this probe tuple's matches on the next call
+                        t2 = probeBatch.getTuple(row);
+                        matchTable = table;
+                        matchRow = r;
+                        break;
+                    }
+                    Tuple left = table.row(r);
+                    int o = out.addRow();
+                    for (int i = 0; i < leftFields; i++)
+                        out.setField(i, o, left.getField(i));
+                    for (int i = 0; i < rightFields; i++)
+                        out.copyField(leftFields + i, o, probeBatch, i, row);
+                }
+            }
+        }
+        return out.size() == 0 ? null : out;
+    }
+
+    /**
+     * Keeps up to two probe batches per partition in flight and returns
+     * whatever joined tuple the workers produce first.
+     */
+    private Tuple fetchNextParallel() throws TransactionAbortedException, DbException {
+        while (true) {
+            Tuple t = results.poll();
+            if (t == null) {
+                if (inFlight < parallelism * 2 && child2.hasNext()) {
+                    submitProbeBatch();
+                    continue;
+                }
+                if (inFlight == 0) {
+                    // every batch has queued its end marker behind its tuples,
+                    // so all of them have been returned
+                    child2.rewind();
+                    if (!loadMap())
+                        return null;
+                    if (!parallelBlock)
+                        return fetchNext();
+                    continue;
+                }
+                try {
+                    t = results.take();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new DbException("interrupted while waiting for join results");
+                }
+            }
+            if (t != end)
+                return t;
+            inFlight--;
+            Throwable e = failure.get();
+            if (e != null)
+                throw new DbException("parallel hash join probe failed: " + e.getMessage());
+        }
+    }
+
+    private void submitProbeBatch() throws DbException, TransactionAbortedException {
+        List<Tuple> batch = new ArrayList<>(PROBE_BATCH_SIZE);
+        while (batch.size() < PROBE_BATCH_SIZE && child2.hasNext())
+            batch.add(child2.next());
+
+        inFlight++;
+        Workers.pool.execute(() -> {
+            try {
+                for (Tuple right : batch) {
+                    Field key = right.getField(pred.getField2());
+                    JoinHashTable table = tableOf(key);
+                    for (int r = table.first(key); r != -1; r = table.next(r)) {
+                        if (cancelled)
+                            return;
+                        results.put(merge(table.row(r), right));
+                    }
+                }
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+            } finally {
+                putEnd();
+            }
+        });
+    }
+
+    /** Queue the end marker of a probe batch; the calling thread always takes it */
+    private void putEnd() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                results.put(end);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
     @Override
     public OpIterator[] getChildren() {
         return new OpIterator[]{this.child1, this.child2};
@@ -170,5 +582,5 @@ public class HashEquiJoin extends Operator {
         this.child1 = children[0];
         this.child2 = children[1];
     }
-    
+
 }
@@ -0,0 +1,223 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.SpillFile;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.function.Supplier;
+
+/**
+ * Hash aggregation within a memory budget. Groups are aggregated in memory
+ * until as many as fit in the budget have been seen. From then on, tuples of
+ * those groups are still merged in memory, and tuples of any other group are
+ * written, unaggregated, to one of several partition files chosen by a hash
+ * of the group values. Once the groups in memory have been returned, each
+ * partition is aggregated the same way with a different hash, so a partition
+ * that still holds too many groups is split again.
+ * <p>
+ * Every group is merged entirely in memory at exactly one level, so the
+ * aggregators need no way to combine partial states.
+ */
+class HybridHashAggregation {
+
+    /** Rough heap cost of a group besides its key: hash entry and accumulator */
+    private static final int GROUP_OVERHEAD = 128;
+
+    private final TupleDesc inputDesc;
+    private final int[] groupFields;
+    private final Supplier<Aggregator> newAggregator;
+    private final int maxGroups;
+    private final int fanOut;
+
+    /** Partitions still to be aggregated, with the level they were written at */
+    private final Deque<SpillFile> pending = new ArrayDeque<>();
+    private final Deque<Integer> pendingLevels = new ArrayDeque<>();
+    private int partitionsWritten = 0;
+
+    private Level current;
+    private OpIterator output;
+
+    /** The aggregation of one level's input: groups in memory, the rest partitioned */
+    private class Level {
+        final int level;
+        final Aggregator aggregator = newAggregator.get();
+        SpillFile[] partitions;
+
+        Level(int level) {
+            this.level = level;
+        }
+
+        void add(Tuple t) throws DbException {
+            if (groupFields.length == 0
+                    || aggregator.numGroups() < maxGroups || aggregator.hasGroupOf(t)) {
+                aggregator.mergeTupleIntoGroup(t);
+                return;
+            }
+            if (partitions == null)
+                partitions = new SpillFile[fanOut];
+            int p = partitionOf(t, level);
+            if (partitions[p] == null)
+                partitions[p] = new SpillFile(inputDesc);
+            partitions[p].append(t);
+        }
+
+        void add(TupleBatch batch) throws DbException {
+            // the whole batch fits among the groups in memory, however many it adds
+            if (partitions == null
+                    && (groupFields.length == 0 || aggregator.numGroups() + batch.size() <= maxGroups)) {
+                aggregator.mergeBatchIntoGroups(batch);
+                return;
+            }
+            for (int i = 0; i < batch.size(); i++)
+                add(batch.getTuple(i));
+        }
+
+        /** Queue this level's partitions and return its groups in memory */
+        OpIterator finish() throws DbException, TransactionAbortedException {
+            if (partitions != null) {
+                for (SpillFile f : partitions) {
+                    if (f == null)
+                        continue;
+                    f.finish();
+                    pending.push(f);
+                    pendingLevels.push(level + 1);
+                    partitionsWritten++;
+                }
+                partitions = null;
+            }
+            OpIterator it = aggregator.iterator();
+            it.open();
+            return it;
+        }
+
+        void discard() {
+            if (partitions != null) {
+                for (SpillFile f : partitions)
+                    if (f != null)
+                        f.delete();
+                partitions = null;
+            }
+        }
+    }
+
+    /**
+     * @param inputDesc
+     *            the schema of the tuples to aggregate
+     * @param groupFields
+     *            the fields to group on, or an empty array if there is no
+     *            grouping
+     * @param newAggregator
+     *            makes an empty aggregator for one level
+     * @param memoryBudget
+     *            the number of bytes the groups in memory may take up
+     */
+    HybridHashAggregation(TupleDesc inputDesc, int[] groupFields, Supplier<Aggregator> newAggregator,
+            long memoryBudget) {
+        this.inputDesc = inputDesc;
+        this.groupFields = groupFields.clone();
+        this.newAggregator = newAggregator;
+        this.maxGroups = maxGroups(inputDesc, groupFields, memoryBudget);
+        // each partition being written buffers about a page
+        this.fanOut = (int) Math.max(2, Math.min(64, memoryBudget / (2L * BufferPool.getPageSize())));
+        this.current = new Level(0);
+    }
+
+    /**
+     * @return the number of groups of tuples of inputDesc, grouped on
+     *         groupFields, that fit in memoryBudget bytes
+     */
+    static int maxGroups(TupleDesc inputDesc, int[] groupFields, long memoryBudget) {
+        long groupSize = GROUP_OVERHEAD;
+        for (int f : groupFields)
+            groupSize += inputDesc.getFieldType(f).getLen();
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryBudget / groupSize));
+    }
+
+    private int partitionOf(Tuple t, int level) {
+        // murmur3 finalizer over the hash, reseeded per level so that a
+        // partition's groups spread out again when it is split
+        int h = 1;
+        for (int f : groupFields)
+            h = 31 * h + t.getField(f).hashCode();
+        h ^= level * 0x9E3779B9;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return (h & Integer.MAX_VALUE) % fanOut;
+    }
+
+    /** Add a tuple of the input. */
+    void add(Tuple t) throws DbException {
+        current.add(t);
+    }
+
+    /** Add a batch of tuples of the input. */
+    void add(TupleBatch batch) throws DbException {
+        current.add(batch);
+    }
+
+    /** Signal the end of the input; the results may now be read with next(). */
+    void finish() throws DbException, TransactionAbortedException {
+        output = current.finish();
+        current = null;
+    }
+
+    /**
+     * @return the next aggregate result, or null if there are no more
+     */
+    Tuple next() throws DbException, TransactionAbortedException {
+        while (true) {
+            if (output == null)
+                return null;
+            if (output.hasNext())
+                return output.next();
+            output.close();
+            output = null;
+            if (pending.isEmpty())
+                return null;
+            SpillFile partition = pending.pop();
+            Level level = new Level(pendingLevels.pop());
+            DbFileIterator it = partition.iterator();
+            try {
+                it.open();
+                while (it.hasNext())
+                    level.add(it.next());
+            } catch (DbException | RuntimeException e) {
+                level.discard();
+                throw e;
+            } finally {
+                it.close();
+                partition.delete();
+            }
+            output = level.finish();
+        }
+    }
+
+    /** @return the number of partition files written so far */
+    int numPartitionsWritten() {
+        return partitionsWritten;
+    }
+
+    /** Drop any remaining results and remove the partition files. */
+    void close() {
+        if (current != null)
+            current.discard();
+        current = null;
+        if (output != null)
+            output.close();
+        output = null;
+        while (!pending.isEmpty()) {
+            pending.pop().delete();
+            pendingLevels.pop();
+        }
+    }
+}
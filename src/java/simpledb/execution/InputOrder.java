@@ -0,0 +1,61 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.storage.DbFile;
+
+import java.util.Arrays;
+
+/**
+ * Works out what order a plan returns its tuples in, where that follows
+ * from the plan itself: sorts, B+ tree scans (and sequential scans of a B+
+ * tree file, which walk its leaves in key order), and Filters and Limits
+ * above them.
+ */
+final class InputOrder {
+
+    private InputOrder() {
+    }
+
+    /**
+     * @return the fields plan's tuples are sorted on, most significant
+     *         first, or an empty array if the order is not known
+     */
+    static int[] sortFieldsOf(OpIterator plan) {
+        while (plan instanceof Filter || plan instanceof Limit)
+            plan = ((Operator) plan).getChildren()[0];
+        if (plan instanceof OrderBy)
+            return ((OrderBy) plan).getOrderByFields();
+        if (plan instanceof TopN)
+            return ((TopN) plan).getOrderByFields();
+        if (plan instanceof BTreeScan) {
+            int key = ((BTreeScan) plan).getKeyField();
+            return key < 0 ? new int[0] : new int[] { key };
+        }
+        if (plan instanceof SeqScan) {
+            DbFile f = Database.getCatalog().getDatabaseFile(((SeqScan) plan).getTableId());
+            if (f instanceof BTreeFile)
+                return new int[] { ((BTreeFile) f).keyField() };
+        }
+        return new int[0];
+    }
+
+    /**
+     * @return true if tuples of plan that agree on all of fields are known
+     *         to arrive next to each other, that is, plan is sorted on
+     *         fields in some order before any other field
+     */
+    static boolean isGroupedOn(OpIterator plan, int[] fields) {
+        if (fields.length == 0)
+            return false;
+        int[] sorted = sortFieldsOf(plan);
+        if (sorted.length < fields.length)
+            return false;
+        int[] prefix = Arrays.copyOf(sorted, fields.length);
+        int[] wanted = fields.clone();
+        Arrays.sort(prefix);
+        Arrays.sort(wanted);
+        return Arrays.equals(prefix, wanted);
+    }
+}
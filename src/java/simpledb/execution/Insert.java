@@ -66,14 +66,18 @@ public class Insert extends Operator {
         // some code goes here
         int insertNum = 0;
         child.open();
-        while (child.hasNext()) {
-            Tuple tuple = child.next();
+        List<Tuple> tuples = new ArrayList<>(TupleBatch.DEFAULT_CAPACITY);
+        TupleBatch batch;
+        while ((batch = child.nextBatch()) != null) {
+            tuples.clear();
+            for (int i = 0; i < batch.size(); i++)
+                tuples.add(batch.getTuple(i));
             try {
-                Database.getBufferPool().insertTuple(tid, tableId, tuple);
+                Database.getBufferPool().insertTuples(tid, tableId, tuples);
             } catch (IOException e) {
-                e.printStackTrace();
+                throw new DbException("could not insert into table " + tableId + ": " + e.getMessage());
             }
-            insertNum++;
+            insertNum += tuples.size();
         }
         affected.get(0).setField(0, new IntField(insertNum));
         it = affected.iterator();
@@ -94,7 +98,8 @@ public class Insert extends Operator {
     /**
      * Inserts tuples read from child into the tableId specified by the
      * constructor. It returns a one field tuple containing the number of
-     * inserted records. Inserts should be passed through BufferPool. An
+     * inserted records. Inserts should be passed through BufferPool; the
+     * child's tuples are inserted a batch at a time. An
      * instances of BufferPool is available via Database.getBufferPool(). Note
      * that insert DOES NOT need check to see if a particular tuple is a
      * duplicate before inserting it.
@@ -102,7 +107,7 @@ public class Insert extends Operator {
      * @return A 1-field tuple containing the number of inserted records, or
      *         null if called more than once.
      * @see Database#getBufferPool
-     * @see BufferPool#insertTuple
+     * @see BufferPool#insertTuples
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
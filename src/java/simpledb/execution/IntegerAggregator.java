@@ -4,27 +4,79 @@ import simpledb.common.Type;
 import simpledb.storage.*;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Map;
 
 /**
  * Knows how to compute some aggregate over a set of IntFields.
+ * <p>
+ * Each group keeps a running accumulator rather than the values merged into
+ * it, so memory grows with the number of groups, not the number of tuples.
+ * <p>
+ * SUM_COUNT outputs a partial sum and a partial count per group, in that
+ * order, after the group value. SC_AVG reads such partials, with the sum in
+ * the aggregate field and the count in the field after it, and outputs the
+ * average of all of them.
  */
 public class IntegerAggregator implements Aggregator {
 
     private static final long serialVersionUID = 1L;
-    private HashMap<Field, ArrayList<Integer>> aggList;
+    private HashMap<Field, Accumulator> groups;
     private int gbField;
     private Type gbFieldType;
     private int aField;
     private Op op;
-    private LinkedList<Integer> noGroupList;
+    private Accumulator noGroup;
     private TupleDesc tupleDesc;
 
+    /**
+     * Running state of one group: enough to produce any of the aggregates
+     * without keeping the values themselves.
+     */
+    static class Accumulator {
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        long sum = 0;
+        long count = 0;
+
+        void add(int v) {
+            if (v < min)
+                min = v;
+            if (v > max)
+                max = v;
+            sum += v;
+            count++;
+        }
+
+        /** Fold in a partial sum and count, as produced by SUM_COUNT */
+        void addPartial(long partialSum, long partialCount) {
+            sum += partialSum;
+            count += partialCount;
+        }
+
+        int result(Op op) {
+            switch (op) {
+                case MIN:
+                    return min;
+                case MAX:
+                    return max;
+                case SUM:
+                    return (int) sum;
+                case COUNT:
+                    return (int) count;
+                case AVG:
+                case SC_AVG:
+                    return count == 0 ? 0 : (int) (sum / count);
+                default:
+                    throw new UnsupportedOperationException("no single result for " + op);
+            }
+        }
+    }
+
     /**
      * Aggregate constructor
-     * 
+     *
      * @param gbfield
      *            the 0-based index of the group-by field in the tuple, or
      *            NO_GROUPING if there is no grouping
@@ -43,44 +95,98 @@ public class IntegerAggregator implements Aggregator {
         gbFieldType = gbfieldtype;
         aField = afield;
         op = what;
-        aggList = new HashMap<>();
+        groups = new HashMap<>();
         Type[] types;
         String[] strings;
         if (gbfield == NO_GROUPING) {
-            noGroupList = new LinkedList<>();
+            noGroup = new Accumulator();
             types = new Type[]{Type.INT_TYPE};
             strings = new String[]{"aggregateValue"};
         } else {
             types = new Type[]{gbfieldtype, Type.INT_TYPE};
             strings = new String[]{"groupValue", "aggregateValue"};
         }
+        if (what == Op.SUM_COUNT) {
+            // partial sums are followed by their counts
+            types = Arrays.copyOf(types, types.length + 1);
+            strings = Arrays.copyOf(strings, strings.length + 1);
+            types[types.length - 1] = Type.INT_TYPE;
+            strings[strings.length - 1] = "countValue";
+        }
         tupleDesc = new TupleDesc(types, strings);
     }
 
     /**
      * Merge a new tuple into the aggregate, grouping as indicated in the
      * constructor
-     * 
+     *
      * @param tup
      *            the Tuple containing an aggregate field and a group-by field
      */
     public void mergeTupleIntoGroup(Tuple tup) {
         // some code goes here
-        Field field = (gbField != NO_GROUPING) ? tup.getField(gbField) : null;
-        IntField intField = op != Op.COUNT ? (IntField) tup.getField(aField) : new IntField(0);
+        Accumulator acc;
         if (gbField == NO_GROUPING) {
-            noGroupList.add(intField.getValue());
+            acc = noGroup;
         } else {
-            if (!aggList.containsKey(field)) {
-                aggList.put(field, new ArrayList<>());
+            acc = groups.computeIfAbsent(tup.getField(gbField), k -> new Accumulator());
+        }
+        if (op == Op.COUNT) {
+            acc.count++;
+        } else if (op == Op.SC_AVG) {
+            acc.addPartial(((IntField) tup.getField(aField)).getValue(),
+                    ((IntField) tup.getField(aField + 1)).getValue());
+        } else {
+            acc.add(((IntField) tup.getField(aField)).getValue());
+        }
+    }
+
+    /**
+     * Merge a batch, reading the aggregate values straight from its int
+     * columns.
+     */
+    public void mergeBatchIntoGroups(TupleBatch batch) {
+        int n = batch.size();
+        int[] values = op == Op.COUNT ? null : batch.intColumn(aField);
+        int[] counts = op == Op.SC_AVG ? batch.intColumn(aField + 1) : null;
+        for (int i = 0; i < n; i++) {
+            Accumulator acc = gbField == NO_GROUPING ? noGroup
+                    : groups.computeIfAbsent(batch.getField(gbField, i), k -> new Accumulator());
+            if (op == Op.COUNT) {
+                acc.count++;
+            } else if (op == Op.SC_AVG) {
+                acc.addPartial(values[i], counts[i]);
+            } else {
+                acc.add(values[i]);
             }
-            aggList.get(field).add(intField.getValue());
         }
     }
 
+    public int numGroups() {
+        return gbField == NO_GROUPING ? 1 : groups.size();
+    }
+
+    public boolean hasGroupOf(Tuple tup) {
+        return gbField == NO_GROUPING || groups.containsKey(tup.getField(gbField));
+    }
+
+    private Tuple toTuple(Field group, Accumulator acc) {
+        Tuple t = new Tuple(tupleDesc);
+        int i = 0;
+        if (group != null)
+            t.setField(i++, group);
+        if (op == Op.SUM_COUNT) {
+            t.setField(i++, new IntField((int) acc.sum));
+            t.setField(i, new IntField((int) acc.count));
+        } else {
+            t.setField(i, new IntField(acc.result(op)));
+        }
+        return t;
+    }
+
     /**
      * Create a OpIterator over group aggregate results.
-     * 
+     *
      * @return a OpIterator whose tuples are the pair (groupVal, aggregateVal)
      *         if using group, or a single (aggregateVal) if no grouping. The
      *         aggregateVal is determined by the type of aggregate specified in
@@ -90,81 +196,10 @@ public class IntegerAggregator implements Aggregator {
         // some code goes here
         ArrayList<Tuple> tuples = new ArrayList<>();
         if (gbField == NO_GROUPING) {
-            Tuple noTuple = new Tuple(tupleDesc);
-            int noResult = 0;
-            int size = noGroupList.size();
-            switch (op) {
-                case MAX:
-                    noResult = Integer.MIN_VALUE;
-                    for (int i = 0; i < size; i++) {
-                        noResult = Math.max(noResult, noGroupList.get(i));
-                    }
-                    break;
-                case MIN:
-                    noResult = Integer.MAX_VALUE;
-                    for (int i = 0; i < size; i++) {
-                        noResult = Math.min(noResult, noGroupList.get(i));
-                    }
-                    break;
-                case COUNT:
-                    noResult = size;
-                    break;
-                case SUM:
-                    for (int i = 0; i < size; i++) {
-                        noResult += noGroupList.get(i);
-                    }
-                    break;
-                case AVG:
-                    for (int i = 0; i < size; i++) {
-                        noResult += noGroupList.get(i);
-                    };
-                    noResult = noResult / size;
-                    break;
-                default:
-                    break;
-            }
-            noTuple.setField(0, new IntField(noResult));
-            tuples.add(noTuple);
+            tuples.add(toTuple(null, noGroup));
         } else {
-            for (Field field : aggList.keySet()) {
-                ArrayList<Integer> perList = aggList.get(field);
-                Tuple perAggTuple = new Tuple(tupleDesc);
-                perAggTuple.setField(0, field);
-                int aggResult = 0;
-                int listSize = perList.size();
-                switch (op) {
-                    case MAX:
-                        aggResult = Integer.MIN_VALUE;
-                        for (int i = 0; i < listSize; i++) {
-                            aggResult = Math.max(aggResult, perList.get(i));
-                        }
-                        break;
-                    case MIN:
-                        aggResult = Integer.MAX_VALUE;
-                        for (int i = 0; i < listSize; i++) {
-                            aggResult = Math.min(aggResult, perList.get(i));
-                        }
-                        break;
-                    case COUNT:
-                        aggResult = listSize;
-                        break;
-                    case SUM:
-                        for (int i = 0; i < listSize; i++) {
-                            aggResult += perList.get(i);
-                        }
-                        break;
-                    case AVG:
-                        for (int i = 0; i < listSize; i++) {
-                            aggResult += perList.get(i);
-                        };
-                        aggResult = aggResult / listSize;
-                        break;
-                    default:
-                        break;
-                }
-                perAggTuple.setField(1, new IntField(aggResult));
-                tuples.add(perAggTuple);
-            }
+            for (Map.Entry<Field, Accumulator> group : groups.entrySet())
+                tuples.add(toTuple(group.getKey(), group.getValue()));
         }
         return new TupleIterator(tupleDesc, tuples);
     }
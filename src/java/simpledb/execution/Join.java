@@ -18,8 +18,9 @@ public class Join extends Operator {
     private JoinPredicate joinPredicate;
     private OpIterator child1;
     private OpIterator child2;
-    private final List<Tuple> childTups = new ArrayList<>();
-    private Iterator<Tuple> it;
+    private transient CompiledPredicate.Pair pair;
+    private transient TupleDesc td;
+    private transient Tuple outer;
 
     /**
      * Constructor. Accepts two children to join and the predicate to join them
@@ -78,42 +79,28 @@ public class Join extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         // some code goes here
-        TupleDesc td = getTupleDesc();
-        int num1 = child1.getTupleDesc().numFields();
-        int num2 = child2.getTupleDesc().numFields();
+        td = getTupleDesc();
+        pair = CompiledPredicate.compile(joinPredicate,
+                child1.getTupleDesc(), child2.getTupleDesc());
+        outer = null;
         child1.open();
         child2.open();
-        while (child1.hasNext()) {
-            Tuple tuple1 = child1.next();
-            while (child2.hasNext()) {
-                Tuple tuple2 = child2.next();
-                if (!joinPredicate.filter(tuple1, tuple2)) {
-                    continue;
-                }
-                Tuple newTuple = new Tuple(td);
-                for (int i = 0; i < num1; i++) {
-                    newTuple.setField(i, tuple1.getField(i));
-                }
-                for (int i = 0; i < num2; i++) {
-                    newTuple.setField(i + num1, tuple2.getField(i));
-                }
-                childTups.add(newTuple);
-            }
-            child2.rewind();
-        }
-        it = childTups.iterator();
         super.open();
     }
 
     public void close() {
         // some code goes here
         super.close();
-        it = null;
+        outer = null;
+        child1.close();
+        child2.close();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
         // some code goes here
-        it = childTups.iterator();
+        outer = null;
+        child1.rewind();
+        child2.rewind();
     }
 
     /**
@@ -136,10 +123,26 @@ public class Join extends Operator {
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
         // some code goes here
-        if (it != null && it.hasNext()) {
-            return it.next();
-        } else
-            return null;
+        // pipelined, so that a consumer that stops early (see Limit) does not
+        // pay for the whole join
+        while (true) {
+            if (outer == null) {
+                if (!child1.hasNext())
+                    return null;
+                outer = child1.next();
+            }
+            while (child2.hasNext()) {
+                Tuple inner = child2.next();
+                if (pair.test(outer, inner))
+                    return merge(outer, inner);
+            }
+            child2.rewind();
+            outer = null;
+        }
+    }
+
+    private Tuple merge(Tuple tuple1, Tuple tuple2) {
+        return Tuple.concat(tuple1, tuple2, td);
     }
 
     @Override
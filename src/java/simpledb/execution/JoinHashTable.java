@@ -0,0 +1,196 @@
+package simpledb.execution;
+
+import simpledb.common.Type;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Build side of a hash join. Rows are kept in a flat array, and the rows that
+ * share a key are chained through a parallel array of row indices, so a key
+ * costs one table entry no matter how many rows carry it. A chain lists its
+ * rows in the order they were added, so a probe tuple meets its matches in
+ * build order. Probing walks the chain by index and never allocates:
+ *
+ * <pre>
+ * for (int r = table.first(key); r != -1; r = table.next(r))
+ *     use(table.row(r));
+ * </pre>
+ */
+abstract class JoinHashTable {
+
+    private Tuple[] rows;
+    private int[] next;
+    private int size = 0;
+
+    JoinHashTable(int expectedRows) {
+        int capacity = Math.max(16, expectedRows);
+        rows = new Tuple[capacity];
+        next = new int[capacity];
+    }
+
+    /**
+     * Create an empty table for join keys of the given type; INT_TYPE keys
+     * get a primitive open-addressing table.
+     */
+    static JoinHashTable create(Type keyType, int expectedRows) {
+        if (keyType == Type.INT_TYPE)
+            return new IntKeyed(expectedRows);
+        return new FieldKeyed(expectedRows);
+    }
+
+    /** Add a build row under the given key. */
+    void add(Tuple t, Field key) {
+        if (size == rows.length) {
+            rows = Arrays.copyOf(rows, size * 2);
+            next = Arrays.copyOf(next, size * 2);
+        }
+        rows[size] = t;
+        next[size] = -1;
+        int tail = link(key, size);
+        if (tail != -1)
+            next[tail] = size;
+        size++;
+    }
+
+    /** @return the number of rows in this table */
+    int size() {
+        return size;
+    }
+
+    /** @return the build row at the given index */
+    Tuple row(int r) {
+        return rows[r];
+    }
+
+    /** @return the next row with the same key as row r, or -1 */
+    int next(int r) {
+        return next[r];
+    }
+
+    /** @return the first row added with this key, or -1 if there is none */
+    abstract int first(Field key);
+
+    /**
+     * Make row the tail of key's chain.
+     * @return the previous tail of the chain, or -1 if key is new
+     */
+    abstract int link(Field key, int row);
+
+    /**
+     * Open-addressing table over primitive int keys with linear probing.
+     * Each slot holds a key and the head and tail rows of its chain.
+     */
+    static class IntKeyed extends JoinHashTable {
+        private static final int EMPTY = -1;
+
+        private int[] keys;
+        private int[] heads;
+        private int[] tails;
+        private int mask;
+        private int used = 0;
+
+        IntKeyed(int expectedRows) {
+            super(expectedRows);
+            allocate(Integer.highestOneBit(Math.max(16, expectedRows)) * 2);
+        }
+
+        private void allocate(int slots) {
+            keys = new int[slots];
+            heads = new int[slots];
+            tails = new int[slots];
+            Arrays.fill(heads, EMPTY);
+            mask = slots - 1;
+        }
+
+        /** murmur3 finalizer, so keys that share low bits still spread */
+        private static int mix(int h) {
+            h ^= h >>> 16;
+            h *= 0x85ebca6b;
+            h ^= h >>> 13;
+            h *= 0xc2b2ae35;
+            h ^= h >>> 16;
+            return h;
+        }
+
+        private int slotOf(int key) {
+            int slot = mix(key) & mask;
+            while (heads[slot] != EMPTY && keys[slot] != key)
+                slot = (slot + 1) & mask;
+            return slot;
+        }
+
+        /** @return the first row added with this key, or -1 if there is none */
+        int first(int key) {
+            return heads[slotOf(key)];
+        }
+
+        @Override
+        int first(Field key) {
+            return first(((IntField) key).getValue());
+        }
+
+        @Override
+        int link(Field key, int row) {
+            int k = ((IntField) key).getValue();
+            int slot = slotOf(k);
+            if (heads[slot] != EMPTY) {
+                int prev = tails[slot];
+                tails[slot] = row;
+                return prev;
+            }
+            keys[slot] = k;
+            heads[slot] = row;
+            tails[slot] = row;
+            if (++used * 2 > keys.length)
+                rehash();
+            return -1;
+        }
+
+        private void rehash() {
+            int[] oldKeys = keys;
+            int[] oldHeads = heads;
+            int[] oldTails = tails;
+            allocate(oldKeys.length * 2);
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldHeads[i] != EMPTY) {
+                    int slot = slotOf(oldKeys[i]);
+                    keys[slot] = oldKeys[i];
+                    heads[slot] = oldHeads[i];
+                    tails[slot] = oldTails[i];
+                }
+            }
+        }
+    }
+
+    /** Table over arbitrary fields, mapping each key to the head and tail of its chain. */
+    static class FieldKeyed extends JoinHashTable {
+        private final Map<Field, int[]> chains = new HashMap<>();
+
+        FieldKeyed(int expectedRows) {
+            super(expectedRows);
+        }
+
+        @Override
+        int first(Field key) {
+            int[] chain = chains.get(key);
+            return chain == null ? -1 : chain[0];
+        }
+
+        @Override
+        int link(Field key, int row) {
+            int[] chain = chains.get(key);
+            if (chain == null) {
+                chains.put(key, new int[] { row, row });
+                return -1;
+            }
+            int prev = chain[1];
+            chain[1] = row;
+            return prev;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Limit returns the first N tuples of its child, in the child's order. It
+ * only pulls as many tuples from the child as it returns, so over a
+ * pipelined plan (scans, Filters, nested loops and the probe side of hash
+ * joins) a small limit reads a small part of the input.
+ * <p>
+ * Once the N-th tuple has been returned, the child is closed at once rather
+ * than when the query ends: scans stop reading pages, and producers under an
+ * exchange are stopped instead of filling their queues. Page locks already
+ * taken are kept until the transaction completes, as for any other read.
+ */
+public class Limit extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private OpIterator child;
+    private final int limit;
+    private transient int returned;
+    private transient boolean childOpen;
+
+    /**
+     * @param limit
+     *            the number of tuples to return at most
+     * @param child
+     *            the tuples to return the first of
+     */
+    public Limit(int limit, OpIterator child) {
+        if (limit < 0)
+            throw new IllegalArgumentException("limit must not be negative");
+        this.limit = limit;
+        this.child = child;
+    }
+
+    /** @return the number of tuples this operator returns at most */
+    public int getLimit() {
+        return limit;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        returned = 0;
+        if (limit > 0) {
+            child.open();
+            childOpen = true;
+        }
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        closeChild();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        returned = 0;
+        if (childOpen) {
+            child.rewind();
+        } else if (limit > 0) {
+            child.open();
+            childOpen = true;
+        }
+    }
+
+    private void closeChild() {
+        if (childOpen) {
+            childOpen = false;
+            child.close();
+        }
+    }
+
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        if (returned == limit || !childOpen || !child.hasNext()) {
+            closeChild();
+            return null;
+        }
+        Tuple t = child.next();
+        if (++returned == limit)
+            closeChild();
+        return t;
+    }
+
+    protected TupleBatch fetchNextBatch() throws DbException, TransactionAbortedException {
+        if (returned == limit || !childOpen) {
+            closeChild();
+            return null;
+        }
+        TupleBatch batch = child.nextBatch();
+        if (batch == null) {
+            closeChild();
+            return null;
+        }
+        if (batch.size() >= limit - returned) {
+            int n = limit - returned;
+            int[] rows = new int[n];
+            for (int i = 0; i < n; i++)
+                rows[i] = i;
+            batch.retain(rows, n);
+            closeChild();
+        }
+        returned += batch.size();
+        return batch;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+}
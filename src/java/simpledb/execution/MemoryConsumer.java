@@ -0,0 +1,23 @@
+package simpledb.execution;
+
+/**
+ * An operator that holds a number of its input tuples in memory, and that
+ * spills or otherwise falls back to a slower strategy once they would take
+ * up more than its memory budget. The budget is read when the operator is
+ * opened, so that {@link MemoryManager#distribute} can hand out a query's
+ * grant between the operators of its plan before the plan runs.
+ */
+public interface MemoryConsumer {
+
+    /** @return the number of bytes of tuples this operator may hold in memory */
+    long getMemoryBudget();
+
+    /**
+     * Set the number of bytes of tuples this operator may hold in memory the
+     * next time it is opened.
+     *
+     * @throws IllegalArgumentException
+     *             if bytes is not positive
+     */
+    void setMemoryBudget(long bytes);
+}
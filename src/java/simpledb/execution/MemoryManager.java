@@ -0,0 +1,227 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * MemoryManager hands out the memory that queries may hold tuples in.
+ * <p>
+ * Each query is granted a fixed number of bytes from a shared pool when it
+ * starts, and gives them back when it is closed (see {@link Query}) or its
+ * transaction completes, whichever comes first. A query
+ * that starts while the pool cannot cover its grant waits for other queries
+ * to finish, so that concurrent heavy queries take turns rather than
+ * exhausting the heap together. A query whose transaction already holds
+ * page locks does not wait, since the queries it would wait for may be
+ * waiting for its locks; it is granted what is left of the pool instead, and
+ * no less than {@link #MIN_GRANT_FRACTION} of a full grant. The grant is shared out between the
+ * operators of the query's plan that hold tuples in memory (see
+ * {@link MemoryConsumer}), each of which spills to disk or works in blocks
+ * once its share is used up. A query whose plan has no such operator, such
+ * as one answered from the result cache, is not granted anything.
+ */
+public class MemoryManager {
+
+    /** Default number of bytes granted to each query */
+    public static final long DEFAULT_QUERY_GRANT = 64L << 20;
+
+    /** The smallest part of a full grant a query that cannot wait is given */
+    public static final int MIN_GRANT_FRACTION = 16;
+
+    /** Default number of milliseconds a query waits for its grant */
+    public static final long DEFAULT_ADMISSION_TIMEOUT = 60_000;
+
+    /** Default number of bytes granted to all running queries together */
+    public static final long DEFAULT_CAPACITY = Math.max(DEFAULT_QUERY_GRANT,
+            Runtime.getRuntime().maxMemory() / 2);
+
+    /**
+     * Bytes granted to a running query; {@link #release} gives them back to
+     * the pool.
+     */
+    public final class Grant {
+        private final TransactionId tid;
+        private final long bytes;
+        private boolean released;
+
+        private Grant(TransactionId tid, long bytes) {
+            this.tid = tid;
+            this.bytes = bytes;
+        }
+
+        /** @return the number of bytes granted */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /** Give the bytes back to the pool; does nothing if already released */
+        public void release() {
+            synchronized (MemoryManager.this) {
+                if (released)
+                    return;
+                released = true;
+                granted -= bytes;
+                running--;
+                List<Grant> held = byTransaction.get(tid);
+                if (held != null) {
+                    held.remove(this);
+                    if (held.isEmpty())
+                        byTransaction.remove(tid);
+                }
+                MemoryManager.this.notifyAll();
+            }
+        }
+    }
+
+    private long capacity;
+    private long queryGrant = DEFAULT_QUERY_GRANT;
+    private long admissionTimeout = DEFAULT_ADMISSION_TIMEOUT;
+    private long granted;
+    private int running;
+    private final Map<TransactionId, List<Grant>> byTransaction = new HashMap<>();
+
+    /**
+     * @param capacity
+     *            the number of bytes all running queries together may hold
+     */
+    public MemoryManager(long capacity) {
+        setCapacity(capacity);
+    }
+
+    public synchronized long getCapacity() {
+        return capacity;
+    }
+
+    /** Set the number of bytes all running queries together may hold */
+    public synchronized void setCapacity(long bytes) {
+        if (bytes <= 0)
+            throw new IllegalArgumentException("capacity must be positive");
+        capacity = bytes;
+        notifyAll();
+    }
+
+    public synchronized long getQueryGrant() {
+        return queryGrant;
+    }
+
+    /**
+     * Set the number of bytes granted to each query that starts from now on;
+     * a grant is never more than the capacity.
+     */
+    public synchronized void setQueryGrant(long bytes) {
+        if (bytes <= 0)
+            throw new IllegalArgumentException("query grant must be positive");
+        queryGrant = bytes;
+        notifyAll();
+    }
+
+    public synchronized long getAdmissionTimeout() {
+        return admissionTimeout;
+    }
+
+    /** Set the number of milliseconds a query waits for its grant before failing */
+    public synchronized void setAdmissionTimeout(long millis) {
+        if (millis < 0)
+            throw new IllegalArgumentException("admission timeout must not be negative");
+        admissionTimeout = millis;
+    }
+
+    /** @return the number of bytes not granted to any running query */
+    public synchronized long getAvailable() {
+        return Math.max(0, capacity - granted);
+    }
+
+    /** @return the number of queries holding a grant */
+    public synchronized int getRunning() {
+        return running;
+    }
+
+    /**
+     * Grant a query its memory, waiting until the pool can cover it unless
+     * the query's transaction holds page locks.
+     *
+     * @param tid
+     *            the transaction the query runs in; its grants are released
+     *            when it completes, if the query was not closed before
+     * @return the grant, to be released when the query is closed
+     * @throws DbException
+     *             if the pool cannot cover the grant within the admission
+     *             timeout, or the thread is interrupted while waiting
+     */
+    public Grant admit(TransactionId tid) throws DbException {
+        boolean mayWait = tid == null || !Database.getBufferPool().holdsLocks(tid);
+        synchronized (this) {
+            long bytes = Math.min(queryGrant, capacity);
+            if (mayWait) {
+                long deadline = System.currentTimeMillis() + admissionTimeout;
+                while (granted + bytes > capacity) {
+                    long wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0)
+                        throw new DbException("timed out waiting for " + bytes + " bytes of query memory");
+                    try {
+                        wait(wait);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new DbException("interrupted waiting for query memory");
+                    }
+                    bytes = Math.min(queryGrant, capacity);
+                }
+            } else {
+                bytes = Math.max(bytes / MIN_GRANT_FRACTION, Math.min(bytes, getAvailable()));
+            }
+            granted += bytes;
+            running++;
+            Grant grant = new Grant(tid, bytes);
+            byTransaction.computeIfAbsent(tid, t -> new ArrayList<>()).add(grant);
+            return grant;
+        }
+    }
+
+    /**
+     * Release the grants of the queries of a transaction that is complete;
+     * called by {@link simpledb.storage.BufferPool#transactionComplete}.
+     */
+    public synchronized void releaseAll(TransactionId tid) {
+        List<Grant> held = byTransaction.get(tid);
+        if (held == null)
+            return;
+        for (Grant grant : new ArrayList<>(held))
+            grant.release();
+    }
+
+    /**
+     * Share bytes equally between the operators of plan that hold tuples in
+     * memory, replacing the budgets they were built with, so a large grant
+     * raises them as well as a small one lowers them.
+     *
+     * @return the operators the bytes were shared between
+     */
+    public static List<MemoryConsumer> distribute(OpIterator plan, long bytes) {
+        List<MemoryConsumer> consumers = consumersOf(plan);
+        if (consumers.isEmpty())
+            return consumers;
+        long share = Math.max(1, bytes / consumers.size());
+        for (MemoryConsumer c : consumers)
+            c.setMemoryBudget(share);
+        return consumers;
+    }
+
+    /**
+     * @return the operators of plan that hold tuples in memory, including
+     *         those in every sub-plan run below an exchange
+     */
+    static List<MemoryConsumer> consumersOf(OpIterator plan) {
+        List<MemoryConsumer> consumers = new ArrayList<>();
+        for (OpIterator op : Operator.operatorsOf(plan)) {
+            if (op instanceof MemoryConsumer)
+                consumers.add((MemoryConsumer) op);
+        }
+        return consumers;
+    }
+}
@@ -0,0 +1,162 @@
+package simpledb.execution;
+
+import simpledb.common.Type;
+import simpledb.storage.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Knows how to compute several aggregates at once, grouped by any number of
+ * fields. Each group is keyed by the list of its group-by values and keeps
+ * one running accumulator per aggregate, so a single pass over the input
+ * computes every aggregate of the query.
+ * <p>
+ * Output tuples hold the group-by values, in the order the fields were
+ * given, followed by one value per aggregate (two for SUM_COUNT, the sum and
+ * then the count). As in {@link IntegerAggregator}, SC_AVG reads a sum from
+ * its aggregate field and a count from the field after it. Aggregates over
+ * string fields support only COUNT.
+ */
+public class MultiAggregator implements Aggregator {
+
+    private static final long serialVersionUID = 1L;
+    private final int[] gbFields;
+    private final int[] aFields;
+    private final Op[] ops;
+    private final HashMap<List<Field>, IntegerAggregator.Accumulator[]> groups;
+    private final TupleDesc tupleDesc;
+
+    /**
+     * Aggregate constructor
+     *
+     * @param inputDesc
+     *            the schema of the tuples to aggregate
+     * @param gbfields
+     *            the 0-based indexes of the group-by fields, or an empty
+     *            array if there is no grouping
+     * @param afields
+     *            the 0-based indexes of the aggregated fields
+     * @param ops
+     *            the aggregation operator for each aggregated field
+     * @throws IllegalArgumentException
+     *             if there is not one operator per aggregated field, or an
+     *             operator other than COUNT is applied to a string field
+     */
+    public MultiAggregator(TupleDesc inputDesc, int[] gbfields, int[] afields, Op[] ops)
+            throws IllegalArgumentException {
+        if (afields.length == 0 || afields.length != ops.length)
+            throw new IllegalArgumentException("need one operator per aggregate field");
+        for (int i = 0; i < afields.length; i++) {
+            if (inputDesc.getFieldType(afields[i]) != Type.INT_TYPE && ops[i] != Op.COUNT)
+                throw new IllegalArgumentException(ops[i] + " is not supported over string fields");
+        }
+        this.gbFields = gbfields.clone();
+        this.aFields = afields.clone();
+        this.ops = ops.clone();
+        this.tupleDesc = outputDesc(inputDesc, gbfields, ops);
+        // insertion order keeps the output in the order groups first appeared
+        this.groups = new LinkedHashMap<>();
+        if (gbfields.length == 0)
+            groups.put(new ArrayList<>(), newAccumulators());
+    }
+
+    /**
+     * @return the schema of the results of aggregating tuples of inputDesc:
+     *         the group-by fields, then one INT field per aggregate (two for
+     *         SUM_COUNT). A single group-by or aggregate field is named as by
+     *         IntegerAggregator; several are numbered.
+     */
+    static TupleDesc outputDesc(TupleDesc inputDesc, int[] gbfields, Op[] ops) {
+        List<Type> types = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < gbfields.length; i++) {
+            types.add(inputDesc.getFieldType(gbfields[i]));
+            names.add(gbfields.length == 1 ? "groupValue" : "groupValue" + i);
+        }
+        for (int i = 0; i < ops.length; i++) {
+            String suffix = ops.length == 1 ? "" : String.valueOf(i);
+            types.add(Type.INT_TYPE);
+            names.add("aggregateValue" + suffix);
+            if (ops[i] == Op.SUM_COUNT) {
+                types.add(Type.INT_TYPE);
+                names.add("countValue" + suffix);
+            }
+        }
+        return new TupleDesc(types.toArray(new Type[0]), names.toArray(new String[0]));
+    }
+
+    private IntegerAggregator.Accumulator[] newAccumulators() {
+        IntegerAggregator.Accumulator[] accs = new IntegerAggregator.Accumulator[ops.length];
+        for (int i = 0; i < accs.length; i++)
+            accs[i] = new IntegerAggregator.Accumulator();
+        return accs;
+    }
+
+    private List<Field> keyOf(Tuple tup) {
+        Field[] key = new Field[gbFields.length];
+        for (int i = 0; i < key.length; i++)
+            key[i] = tup.getField(gbFields[i]);
+        return Arrays.asList(key);
+    }
+
+    /**
+     * Merge a new tuple into every aggregate of its group
+     *
+     * @param tup
+     *            the Tuple containing the aggregate and group-by fields
+     */
+    public void mergeTupleIntoGroup(Tuple tup) {
+        IntegerAggregator.Accumulator[] accs = groups.computeIfAbsent(keyOf(tup), k -> newAccumulators());
+        for (int i = 0; i < accs.length; i++) {
+            if (ops[i] == Op.COUNT) {
+                accs[i].count++;
+            } else if (ops[i] == Op.SC_AVG) {
+                accs[i].addPartial(((IntField) tup.getField(aFields[i])).getValue(),
+                        ((IntField) tup.getField(aFields[i] + 1)).getValue());
+            } else {
+                accs[i].add(((IntField) tup.getField(aFields[i])).getValue());
+            }
+        }
+    }
+
+    public int numGroups() {
+        return groups.size();
+    }
+
+    public boolean hasGroupOf(Tuple tup) {
+        return gbFields.length == 0 || groups.containsKey(keyOf(tup));
+    }
+
+    /**
+     * Create a OpIterator over group aggregate results.
+     *
+     * @return a OpIterator with one tuple per group, holding the group-by
+     *         values followed by the aggregate values
+     */
+    public OpIterator iterator() {
+        ArrayList<Tuple> tuples = new ArrayList<>();
+        for (Map.Entry<List<Field>, IntegerAggregator.Accumulator[]> group : groups.entrySet()) {
+            Tuple t = new Tuple(tupleDesc);
+            int i = 0;
+            for (Field f : group.getKey())
+                t.setField(i++, f);
+            IntegerAggregator.Accumulator[] accs = group.getValue();
+            for (int j = 0; j < accs.length; j++) {
+                if (ops[j] == Op.SUM_COUNT) {
+                    t.setField(i++, new IntField((int) accs[j].sum));
+                    t.setField(i++, new IntField((int) accs[j].count));
+                } else {
+                    t.setField(i++, new IntField(accs[j].result(ops[j])));
+                }
+            }
+            tuples.add(t);
+        }
+        return new TupleIterator(tupleDesc, tuples);
+    }
+
+}
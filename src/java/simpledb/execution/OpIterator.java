@@ -2,6 +2,7 @@ package simpledb.execution;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleDesc;
 
 import java.io.Serializable;
@@ -39,6 +40,30 @@ public interface OpIterator extends Serializable{
    */
   Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException;
 
+  /**
+   * Returns the next tuples from the operator as a batch, column by column.
+   * Operators that can work on whole batches override this; the default
+   * collects up to {@link TupleBatch#DEFAULT_CAPACITY} tuples from
+   * {@link #next()}.
+   * <p>
+   * A pass over the iterator should read either batches or single tuples.
+   * Calling hasNext() between batches is allowed, but may make the next batch
+   * hold only the tuple hasNext() looked ahead at.
+   *
+   * @return a batch of at least one tuple, or null if there are no more
+   *         tuples. The caller owns the batch.
+   * @throws IllegalStateException If the iterator has not been opened
+   */
+  default TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+    TupleBatch batch = null;
+    while ((batch == null || !batch.isFull()) && hasNext()) {
+      if (batch == null)
+        batch = new TupleBatch(getTupleDesc());
+      batch.add(next());
+    }
+    return batch;
+  }
+
   /**
    * Resets the iterator to the start.
    * @throws DbException when rewind is unsupported.
@@ -3,14 +3,29 @@ package simpledb.execution;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleDesc;
-
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Set;
 
 /**
  * Abstract class for implementing operators. It handles <code>close</code>,
  * <code>next</code> and <code>hasNext</code>. Subclasses only need to implement
- * <code>open</code> and <code>readNext</code>.
+ * <code>open</code> and <code>readNext</code>. <code>nextBatch</code> is
+ * built on <code>fetchNext</code> unless a subclass overrides
+ * <code>fetchNextBatch</code>.
+ * <p>
+ * An operator given a transaction with {@link #setCancellation} stops with
+ * a {@link simpledb.transaction.QueryCancelledException} before reading the
+ * next tuple or batch once the transaction's statement has been cancelled.
  */
 public abstract class Operator implements OpIterator {
 
@@ -20,14 +35,17 @@ public abstract class Operator implements OpIterator {
         if (!this.open)
             throw new IllegalStateException("Operator not yet open");
         
-        if (next == null)
+        if (next == null) {
+            checkCancelled();
             next = fetchNext();
+        }
         return next != null;
     }
 
     public Tuple next() throws DbException, TransactionAbortedException,
             NoSuchElementException {
         if (next == null) {
+            checkCancelled();
             next = fetchNext();
             if (next == null)
                 throw new NoSuchElementException();
@@ -38,6 +56,82 @@ public abstract class Operator implements OpIterator {
         return result;
     }
 
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (!this.open)
+            throw new IllegalStateException("Operator not yet open");
+        if (next != null) {
+            // hasNext() already took this tuple from fetchNext
+            TupleBatch batch = new TupleBatch(getTupleDesc(), 1);
+            batch.add(next);
+            next = null;
+            return batch;
+        }
+        checkCancelled();
+        return fetchNextBatch();
+    }
+
+    private void checkCancelled() throws TransactionAbortedException {
+        if (cancellation != null)
+            cancellation.checkCancelled();
+    }
+
+    /**
+     * Stop with a QueryCancelledException once the statement tid is running
+     * is cancelled; null to never stop.
+     */
+    public void setCancellation(TransactionId tid) {
+        cancellation = tid;
+    }
+
+    /**
+     * @return the operators of plan, including plan itself and those in every
+     *         sub-plan run below an exchange, each once
+     */
+    static List<OpIterator> operatorsOf(OpIterator plan) {
+        List<OpIterator> ops = new ArrayList<>();
+        Set<OpIterator> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<OpIterator> pending = new ArrayDeque<>();
+        pending.push(plan);
+        while (!pending.isEmpty()) {
+            OpIterator op = pending.pop();
+            if (!seen.add(op))
+                continue;
+            ops.add(op);
+            OpIterator[] children = new OpIterator[0];
+            if (op instanceof Consumer)
+                children = ((Consumer) op).getSources().toArray(children);
+            else if (op instanceof Operator)
+                children = ((Operator) op).getChildren();
+            for (OpIterator child : children) {
+                if (child != null)
+                    pending.push(child);
+            }
+        }
+        return ops;
+    }
+
+    /**
+     * Returns the next batch of tuples, or null if the iteration is finished.
+     * Operator uses this method to implement <code>nextBatch</code>. The
+     * default collects tuples from fetchNext; operators that can work on
+     * their child's batches directly override it.
+     *
+     * @return a batch of at least one tuple, or null if the iteration is
+     *         finished.
+     */
+    protected TupleBatch fetchNextBatch() throws DbException, TransactionAbortedException {
+        TupleBatch batch = null;
+        while (batch == null || !batch.isFull()) {
+            Tuple t = fetchNext();
+            if (t == null)
+                break;
+            if (batch == null)
+                batch = new TupleBatch(getTupleDesc());
+            batch.add(t);
+        }
+        return batch;
+    }
+
     /**
      * Returns the next Tuple in the iterator, or null if the iteration is
      * finished. Operator uses this method to implement both <code>next</code>
@@ -61,6 +155,7 @@ public abstract class Operator implements OpIterator {
 
     private Tuple next = null;
     private boolean open = false;
+    private transient TransactionId cancellation;
     private int estimatedCardinality = 0;
 
     public void open() throws DbException, TransactionAbortedException {
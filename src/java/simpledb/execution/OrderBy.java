@@ -2,25 +2,45 @@ package simpledb.execution;
 
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.DbException;
-import simpledb.storage.Field;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
 import java.util.*;
 
 /**
- * OrderBy is an operator that implements a relational ORDER BY.
+ * OrderBy is an operator that implements a relational ORDER BY on one or more
+ * fields, each sorted ascending or descending. The child's
+ * tuples are sorted by an ExternalSort, which keeps at most the memory budget
+ * worth of tuples in memory and spills sorted runs to disk beyond that; the
+ * output is streamed from the merge of those runs.
  */
-public class OrderBy extends Operator {
+public class OrderBy extends Operator implements MemoryConsumer {
 
     private static final long serialVersionUID = 1L;
     private OpIterator child;
     private final TupleDesc td;
-    private final List<Tuple> childTups = new ArrayList<>();
-    private final int orderByField;
-    private final String orderByFieldName;
-    private Iterator<Tuple> it;
-    private final boolean asc;
+    private final int[] orderByFields;
+    private final boolean[] asc;
+    private long memoryBudget;
+    private transient ExternalSort sorter;
+
+    /** Default number of bytes of tuples an OrderBy may hold in memory */
+    private static long defaultMemoryBudget = 16L << 20;
+
+    /** @return the memory budget given to OrderBy operators that do not set their own */
+    public static long getDefaultMemoryBudget() {
+        return defaultMemoryBudget;
+    }
+
+    /**
+     * Set the memory budget, in bytes, given to OrderBy operators that do not
+     * set their own.
+     */
+    public static void setDefaultMemoryBudget(long bytes) {
+        if (bytes <= 0)
+            throw new IllegalArgumentException("memory budget must be positive");
+        defaultMemoryBudget = bytes;
+    }
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
@@ -33,28 +53,105 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, OpIterator child) {
+        this(orderbyField, asc, child, defaultMemoryBudget);
+    }
+
+    /**
+     * Creates a new OrderBy node that sorts on several fields.
+     * 
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant
+     *            first.
+     * @param asc
+     *            for each field, true if it sorts ascending.
+     * @param child
+     *            the tuples to sort.
+     */
+    public OrderBy(int[] orderbyFields, boolean[] asc, OpIterator child) {
+        this(orderbyFields, asc, child, defaultMemoryBudget);
+    }
+
+    /**
+     * Creates a new OrderBy node that sorts within the given memory budget.
+     * 
+     * @param orderbyField
+     *            the field to which the sort is applied.
+     * @param asc
+     *            true if the sort order is ascending.
+     * @param child
+     *            the tuples to sort.
+     * @param memoryBudget
+     *            the number of bytes of tuples to hold in memory; sorted runs
+     *            beyond that are spilled to disk.
+     */
+    public OrderBy(int orderbyField, boolean asc, OpIterator child, long memoryBudget) {
+        this(new int[] { orderbyField }, new boolean[] { asc }, child, memoryBudget);
+    }
+
+    /**
+     * Creates a new OrderBy node that sorts on several fields within the
+     * given memory budget.
+     * 
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant
+     *            first.
+     * @param asc
+     *            for each field, true if it sorts ascending.
+     * @param child
+     *            the tuples to sort.
+     * @param memoryBudget
+     *            the number of bytes of tuples to hold in memory; sorted runs
+     *            beyond that are spilled to disk.
+     */
+    public OrderBy(int[] orderbyFields, boolean[] asc, OpIterator child, long memoryBudget) {
+        if (memoryBudget <= 0)
+            throw new IllegalArgumentException("memory budget must be positive");
+        if (orderbyFields.length == 0 || orderbyFields.length != asc.length)
+            throw new IllegalArgumentException("need one sort direction per sort field");
         this.child = child;
         td = child.getTupleDesc();
-        this.orderByField = orderbyField;
-        this.orderByFieldName = td.getFieldName(orderbyField);
-        this.asc = asc;
+        this.orderByFields = orderbyFields.clone();
+        this.asc = asc.clone();
+        this.memoryBudget = memoryBudget;
     }
     
     public boolean isASC()
     {
-	return this.asc;
+	return this.asc[0];
     }
     
     public int getOrderByField()
     {
-        return this.orderByField;
+        return this.orderByFields[0];
     }
     
     public String getOrderFieldName()
     {
-	return this.orderByFieldName;
+	return td.getFieldName(this.orderByFields[0]);
+    }
+
+    /** @return the sort fields, most significant first */
+    public int[] getOrderByFields()
+    {
+        return this.orderByFields.clone();
+    }
+
+    /** @return for each sort field, true if it sorts ascending */
+    public boolean[] getAscending()
+    {
+        return this.asc.clone();
     }
     
+    public long getMemoryBudget() {
+        return this.memoryBudget;
+    }
+
+    public void setMemoryBudget(long bytes) {
+        if (bytes <= 0)
+            throw new IllegalArgumentException("memory budget must be positive");
+        this.memoryBudget = bytes;
+    }
+
     public TupleDesc getTupleDesc() {
         return td;
     }
@@ -62,21 +159,30 @@ public class OrderBy extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
-        // load all the tuples in a collection, and sort it
-        while (child.hasNext())
-            childTups.add(child.next());
-        childTups.sort(new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+        // feed all the tuples to the sort, which spills what does not fit
+        sorter = new ExternalSort(td, new TupleComparator(td, orderByFields, asc), memoryBudget);
+        try {
+            while (child.hasNext())
+                sorter.add(child.next());
+            sorter.finish();
+        } catch (DbException | TransactionAbortedException | RuntimeException e) {
+            sorter.close();
+            sorter = null;
+            throw e;
+        }
         super.open();
     }
 
     public void close() {
         super.close();
-        it = null;
+        if (sorter != null)
+            sorter.close();
+        sorter = null;
+        child.close();
     }
 
-    public void rewind() {
-        it = childTups.iterator();
+    public void rewind() throws DbException, TransactionAbortedException {
+        sorter.rewind();
     }
 
     /**
@@ -86,11 +192,11 @@ public class OrderBy extends Operator {
      * @return The next tuple in the ordering, or null if there are no more
      *         tuples
      */
-    protected Tuple fetchNext() throws NoSuchElementException {
-        if (it != null && it.hasNext()) {
-            return it.next();
-        } else
+    protected Tuple fetchNext() throws NoSuchElementException,
+            DbException, TransactionAbortedException {
+        if (sorter == null)
             return null;
+        return sorter.next();
     }
 
     @Override
@@ -104,25 +210,3 @@ public class OrderBy extends Operator {
     }
 
 }
-
-class TupleComparator implements Comparator<Tuple> {
-    final int field;
-    final boolean asc;
-
-    public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
-    }
-
-    public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
-    }
-    
-}
@@ -2,6 +2,7 @@ package simpledb.execution;
 
 import simpledb.storage.Field;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 
 import java.io.Serializable;
 
@@ -110,6 +111,18 @@ public class Predicate implements Serializable {
         return t.getField(field).compare(op, operand);
     }
 
+    /**
+     * Removes from batch the rows this predicate is false for. Callers that
+     * filter many batches should compile the predicate once instead; see
+     * Filter.
+     *
+     * @param batch
+     *            the rows to filter, in place
+     */
+    public void filter(TupleBatch batch) {
+        CompiledPredicate.compile(this, batch.getTupleDesc()).filter(batch);
+    }
+
     /**
      * Returns something useful, like "f = field_id op = op_string operand =
      * operand_string"
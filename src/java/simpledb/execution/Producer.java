@@ -0,0 +1,270 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The producing side of an exchange: runs each of a list of sources on an
+ * exchange thread, and routes the batches they return to one or more bounded
+ * output queues, each read by one {@link Consumer}.
+ * <p>
+ * Producers start when the first of their consumers opens, and are stopped
+ * once every consumer has closed. A consumer that closes early stops
+ * receiving batches, so the others are not held up by its full queue.
+ */
+final class Producer {
+
+    /** How long a blocked producer waits before checking whether to give up */
+    private static final long POLL_MILLIS = 10;
+
+    private final List<OpIterator> sources;
+    private final TupleDesc td;
+    private final int hashField;
+    private final boolean broadcast;
+    private final List<BlockingQueue<TupleBatch>> queues;
+    /** Marks the end of a queue's stream; compared by identity */
+    private final TupleBatch end;
+
+    /** Per output, 1 once its consumer has closed and wants no more batches */
+    private final AtomicIntegerArray released;
+    private final boolean[] opened;
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private volatile boolean stopped;
+    private List<Future<?>> running;
+    private AtomicInteger remaining;
+    private int open;
+
+    /**
+     * @param sources
+     *            the sub-plans to run, one thread each; all have the same
+     *            schema
+     * @param outputs
+     *            the number of output queues
+     * @param hashField
+     *            the field whose hash picks the output for each tuple, or -1
+     *            if there is one output or the input is broadcast
+     * @param broadcast
+     *            true to send every tuple to every output
+     */
+    Producer(List<OpIterator> sources, int outputs, int hashField, boolean broadcast) {
+        if (sources.isEmpty())
+            throw new IllegalArgumentException("an exchange needs at least one source");
+        this.sources = sources;
+        this.td = sources.get(0).getTupleDesc();
+        this.hashField = hashField;
+        this.broadcast = broadcast;
+        this.queues = new ArrayList<>(outputs);
+        for (int i = 0; i < outputs; i++)
+            queues.add(new ArrayBlockingQueue<>(Exchange.getQueueCapacity()));
+        this.end = new TupleBatch(td, 1);
+        this.released = new AtomicIntegerArray(outputs);
+        this.opened = new boolean[outputs];
+    }
+
+    /** @return the number of sources run concurrently */
+    int numSources() {
+        return sources.size();
+    }
+
+    /** @return the sub-plans the producers run */
+    List<OpIterator> getSources() {
+        return sources;
+    }
+
+    /**
+     * Called when the consumer of the given output opens; the first one
+     * starts the producers.
+     */
+    synchronized void open(int output) {
+        if (opened[output])
+            return;
+        opened[output] = true;
+        released.set(output, 0);
+        if (open++ == 0)
+            start();
+    }
+
+    /**
+     * Called when the consumer of the given output closes; once all have,
+     * the producers are stopped and waited for.
+     */
+    synchronized void close(int output) {
+        if (!opened[output])
+            return;
+        opened[output] = false;
+        released.set(output, 1);
+        if (--open == 0)
+            stop();
+    }
+
+    /**
+     * Stop the producers and run the sources again from the start. Only
+     * used by exchanges with a single consumer.
+     */
+    synchronized void restart() {
+        stop();
+        start();
+    }
+
+    /**
+     * @return the next batch for the given output, or null at the end of its
+     *         stream
+     * @throws DbException
+     *             if a source failed
+     * @throws TransactionAbortedException
+     *             if a source was aborted
+     */
+    TupleBatch take(int output) throws DbException, TransactionAbortedException {
+        TupleBatch batch;
+        try {
+            batch = queues.get(output).take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DbException("interrupted waiting for an exchange");
+        }
+        if (batch != end)
+            return batch;
+        // keep the end marker, so that reading past the end is harmless
+        queues.get(output).offer(end);
+        Throwable e = failure.get();
+        if (e instanceof TransactionAbortedException)
+            throw (TransactionAbortedException) e;
+        if (e instanceof DbException)
+            throw (DbException) e;
+        if (e != null)
+            throw new DbException("exchange producer failed: " + e);
+        return null;
+    }
+
+    private void start() {
+        // scans split by ScanPartitioner read from a shared cursor, which
+        // only goes back to the first page when told to
+        ScanPartitioner.restart(sources);
+        stopped = false;
+        failure.set(null);
+        for (BlockingQueue<TupleBatch> q : queues)
+            q.clear();
+        remaining = new AtomicInteger(sources.size());
+        running = new ArrayList<>(sources.size());
+        for (OpIterator source : sources)
+            running.add(Exchange.threads.submit(() -> produce(source)));
+    }
+
+    private void stop() {
+        stopped = true;
+        for (Future<?> f : running) {
+            try {
+                f.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException ignored) {
+                // produce() records its own failures
+            }
+        }
+        for (BlockingQueue<TupleBatch> q : queues)
+            q.clear();
+    }
+
+    private void produce(OpIterator source) {
+        TupleBatch[] pending = new TupleBatch[queues.size()];
+        try {
+            source.open();
+            TupleBatch batch;
+            while (!stopped && failure.get() == null && (batch = source.nextBatch()) != null)
+                route(batch, pending);
+            for (int i = 0; i < pending.length; i++) {
+                if (pending[i] != null && pending[i].size() > 0)
+                    put(i, pending[i]);
+            }
+        } catch (Throwable e) {
+            failure.compareAndSet(null, e);
+        } finally {
+            // also after a failed open, which may have opened part of the source
+            try {
+                source.close();
+            } catch (RuntimeException e) {
+                failure.compareAndSet(null, e);
+            }
+            if (remaining.decrementAndGet() == 0) {
+                for (int i = 0; i < queues.size(); i++)
+                    put(i, end);
+            }
+        }
+    }
+
+    private void route(TupleBatch batch, TupleBatch[] pending) {
+        int outputs = queues.size();
+        if (broadcast) {
+            for (int i = 1; i < outputs; i++) {
+                TupleBatch copy = new TupleBatch(td, Math.max(1, batch.size()));
+                for (int r = 0; r < batch.size(); r++)
+                    appendRow(copy, batch, r);
+                put(i, copy);
+            }
+            put(0, batch);
+            return;
+        }
+        if (hashField < 0 || outputs == 1) {
+            put(0, batch);
+            return;
+        }
+        int[] ints = td.getFieldType(hashField) == Type.INT_TYPE ? batch.intColumn(hashField) : null;
+        for (int r = 0; r < batch.size(); r++) {
+            int h = ints != null ? ints[r] : batch.getField(hashField, r).hashCode();
+            int out = partitionOf(h, outputs);
+            if (pending[out] == null)
+                pending[out] = new TupleBatch(td);
+            appendRow(pending[out], batch, r);
+            if (pending[out].isFull()) {
+                put(out, pending[out]);
+                pending[out] = null;
+            }
+        }
+    }
+
+    /**
+     * @return the output a tuple whose hashed field has the given hash code
+     *         goes to; the same for every Producer, so that two inputs
+     *         repartitioned on fields of the same type line up
+     */
+    static int partitionOf(int hash, int outputs) {
+        return Math.floorMod(hash * 0x9E3779B9 ^ hash >>> 16, outputs);
+    }
+
+    private static void appendRow(TupleBatch dst, TupleBatch src, int row) {
+        int o = dst.addRow();
+        for (int i = 0; i < src.getTupleDesc().numFields(); i++)
+            dst.copyField(i, o, src, i, row);
+        dst.setRecordId(o, src.getRecordId(row));
+    }
+
+    /**
+     * Wait for room in the given output's queue, giving up if the producers
+     * are stopped or its consumer has closed.
+     */
+    private void put(int output, TupleBatch batch) {
+        BlockingQueue<TupleBatch> q = queues.get(output);
+        try {
+            while (!stopped && released.get(output) == 0) {
+                if (q.offer(batch, POLL_MILLIS, TimeUnit.MILLISECONDS))
+                    return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
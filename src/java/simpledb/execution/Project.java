@@ -4,6 +4,7 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.common.Type;
 import simpledb.common.DbException;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleDesc;
 
 import java.util.*;
@@ -17,6 +18,7 @@ public class Project extends Operator {
     private OpIterator child;
     private final TupleDesc td;
     private final List<Integer> outFieldIds;
+    private final int[] fieldMap;
 
     /**
      * Constructor accepts a child operator to read tuples to apply projection
@@ -42,6 +44,9 @@ public class Project extends Operator {
             fieldAr[i] = childtd.getFieldName(fieldList.get(i));
         }
         td = new TupleDesc(types, fieldAr);
+        fieldMap = new int[fieldAr.length];
+        for (int i = 0; i < fieldMap.length; i++)
+            fieldMap[i] = fieldList.get(i);
     }
 
     public TupleDesc getTupleDesc() {
@@ -65,20 +70,24 @@ public class Project extends Operator {
 
     /**
      * Operator.fetchNext implementation. Iterates over tuples from the child
-     * operator, projecting out the fields from the tuple
+     * operator, projecting out the fields from the tuple. The fields are not
+     * copied: each result is a view of the child's tuple.
      *
      * @return The next tuple, or null if there are no more tuples
      */
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
         if (!child.hasNext()) return null;
-        Tuple t = child.next();
-        Tuple newTuple = new Tuple(td);
-        newTuple.setRecordId(t.getRecordId());
-        for (int i = 0; i < td.numFields(); i++) {
-            newTuple.setField(i, t.getField(outFieldIds.get(i)));
-        }
-        return newTuple;
+        return Tuple.project(child.next(), td, fieldMap);
+    }
+
+    /**
+     * Projects a batch of the child's tuples by picking out its columns,
+     * without copying any values.
+     */
+    protected TupleBatch fetchNextBatch() throws TransactionAbortedException, DbException {
+        TupleBatch batch = child.nextBatch();
+        return batch == null ? null : batch.project(td, outFieldIds);
     }
 
     @Override
@@ -1,5 +1,6 @@
 package simpledb.execution;
 
+import simpledb.common.Database;
 import simpledb.optimizer.LogicalPlan;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
@@ -15,6 +16,11 @@ import java.util.*;
  * plan in the form of a high level OpIterator (built by initiating the
  * constructors of query plans) and runs it as a part of a specified
  * transaction.
+ * <p>
+ * A started query holds a grant from the {@link MemoryManager}, shared out
+ * between the operators of its plan, until it is closed or its transaction
+ * completes. Every operator of the plan stops once the statement its
+ * transaction is running is cancelled (see {@link TransactionId#cancel}).
  * 
  * @author Sam Madden
  */
@@ -27,6 +33,7 @@ public class Query implements Serializable {
     transient private LogicalPlan logicalPlan;
     final TransactionId tid;
     transient private boolean started = false;
+    transient private MemoryManager.Grant grant;
 
     public TransactionId getTransactionId() {
         return this.tid;
@@ -59,17 +66,39 @@ public class Query implements Serializable {
 
     public void start() throws DbException,
             TransactionAbortedException {
-        op.open();
+        // a plan that holds no tuples in memory, such as a cached result,
+        // neither needs a grant nor waits for one
+        if (!MemoryManager.consumersOf(op).isEmpty()) {
+            grant = Database.getMemoryManager().admit(tid);
+            MemoryManager.distribute(op, grant.getBytes());
+        }
+        for (OpIterator o : Operator.operatorsOf(op)) {
+            if (o instanceof Operator)
+                ((Operator) o).setCancellation(tid);
+        }
+        try {
+            op.open();
+        } catch (DbException | TransactionAbortedException | RuntimeException e) {
+            releaseGrant();
+            throw e;
+        }
 
         started = true;
     }
 
+    private void releaseGrant() {
+        if (grant != null)
+            grant.release();
+        grant = null;
+    }
+
     public TupleDesc getOutputTupleDesc() {
         return this.op.getTupleDesc();
     }
 
     /** @return true if there are more tuples remaining. */
     public boolean hasNext() throws DbException, TransactionAbortedException {
+        tid.checkCancelled();
         return op.hasNext();
     }
 
@@ -95,31 +124,43 @@ public class Query implements Serializable {
 
     /** Close the iterator */
     public void close() {
-        op.close();
+        try {
+            op.close();
+        } finally {
+            releaseGrant();
+        }
         started = false;
     }
 
     public void execute() throws DbException, TransactionAbortedException {
+        execute(System.out);
+    }
+
+    /** Run the query, printing its tuples to out */
+    public void execute(PrintStream out) throws DbException, TransactionAbortedException {
         TupleDesc td = this.getOutputTupleDesc();
 
         StringBuilder names = new StringBuilder();
         for (int i = 0; i < td.numFields(); i++) {
             names.append(td.getFieldName(i)).append("\t");
         }
-        System.out.println(names);
+        out.println(names);
         for (int i = 0; i < names.length() + td.numFields() * 4; i++) {
-            System.out.print("-");
+            out.print("-");
         }
-        System.out.println();
+        out.println();
 
         this.start();
         int cnt = 0;
-        while (this.hasNext()) {
-            Tuple tup = this.next();
-            System.out.println(tup);
-            cnt++;
+        try {
+            while (this.hasNext()) {
+                Tuple tup = this.next();
+                out.println(tup);
+                cnt++;
+            }
+        } finally {
+            this.close();
         }
-        System.out.println("\n " + cnt + " rows.");
-        this.close();
+        out.println("\n " + cnt + " rows.");
     }
 }
@@ -0,0 +1,59 @@
+package simpledb.execution;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Repartition splits its input into several streams by the hash of one
+ * field, so that tuples that agree on that field end up in the same stream.
+ * Two inputs repartitioned into the same number of streams on fields of the
+ * same type can then be joined stream by stream, each pair on its own
+ * thread under a {@link Gather}.
+ */
+public class Repartition extends Consumer {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int field;
+    private final int stream;
+    private final int numStreams;
+
+    private Repartition(OpIterator plan, Producer producer, int field, int stream, int numStreams) {
+        super(plan, producer, stream, true);
+        this.field = field;
+        this.stream = stream;
+        this.numStreams = numStreams;
+    }
+
+    /**
+     * @param plan
+     *            the input to repartition
+     * @param field
+     *            the field to hash
+     * @param numStreams
+     *            the number of streams to split the input into
+     * @param parallelism
+     *            the most threads to read the input with; more than one
+     *            only helps if plan is a heap file scan pipeline
+     * @return the streams, which must be read concurrently
+     */
+    public static List<Repartition> streams(OpIterator plan, int field, int numStreams, int parallelism) {
+        if (numStreams < 1)
+            throw new IllegalArgumentException("numStreams must be positive");
+        Producer producer = new Producer(sourcesOf(plan, parallelism), numStreams, field, false);
+        List<Repartition> streams = new ArrayList<>(numStreams);
+        for (int i = 0; i < numStreams; i++)
+            streams.add(new Repartition(plan, producer, field, i, numStreams));
+        return streams;
+    }
+
+    /** @return the field tuples are partitioned on */
+    public int getField() {
+        return field;
+    }
+
+    @Override
+    public String getName() {
+        return "repartition(" + getTupleDesc().getFieldName(field) + "," + stream + "/" + numStreams + ")";
+    }
+}
@@ -0,0 +1,255 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.storage.BufferPool;
+import simpledb.storage.Field;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.storage.TupleIterator;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * ResultCache keeps the results of recent read-only queries, keyed by their
+ * normalized logical plan (see {@link LogicalPlan#normalizedKey}), so that a
+ * query sent again is answered without being run.
+ * <p>
+ * Each result is kept with the version of every table the query reads, as
+ * it was before the query started (see {@link BufferPool#getTableVersion}).
+ * A commit that wrote to one of the tables moves its version on, and the
+ * result is dropped the next time it is looked up. Results are held within
+ * a memory budget, the least recently used being evicted first; results
+ * bigger than a quarter of the budget are not kept at all.
+ */
+public class ResultCache {
+
+    /** Default number of bytes the cached results may take up */
+    public static final long DEFAULT_CAPACITY = 16L << 20;
+
+    private static final class Entry {
+        final TupleDesc td;
+        final List<Tuple> rows;
+        final Map<Integer, Long> versions;
+        final long bytes;
+
+        Entry(TupleDesc td, List<Tuple> rows, Map<Integer, Long> versions, long bytes) {
+            this.td = td;
+            this.rows = rows;
+            this.versions = versions;
+            this.bytes = bytes;
+        }
+    }
+
+    /** Entries in access order, least recently used first */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long capacity;
+    private long used;
+    private long hits;
+    private long misses;
+
+    /**
+     * @param capacity
+     *            the number of bytes the cached results may take up
+     */
+    public ResultCache(long capacity) {
+        setCapacity(capacity);
+    }
+
+    public synchronized long getCapacity() {
+        return capacity;
+    }
+
+    /** Set the number of bytes the cached results may take up, evicting results to fit */
+    public synchronized void setCapacity(long bytes) {
+        if (bytes < 0)
+            throw new IllegalArgumentException("capacity must not be negative");
+        capacity = bytes;
+        evict();
+    }
+
+    /** Drop every cached result */
+    public synchronized void clear() {
+        entries.clear();
+        used = 0;
+    }
+
+    /** @return the number of cached results */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return true if a result is cached under key, which {@link #lookup}
+     *         may still find out of date
+     */
+    public synchronized boolean contains(String key) {
+        return entries.containsKey(key);
+    }
+
+    /** @return the number of lookups that found a current result */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /** @return the number of lookups that found no result or an out of date one */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return the current version of each of the given tables, to pass to
+     *         {@link #record} before the query runs
+     */
+    public static Map<Integer, Long> versionsOf(Collection<Integer> tableIds) {
+        Map<Integer, Long> versions = new HashMap<>();
+        for (int tableId : tableIds)
+            versions.put(tableId, Database.getBufferPool().getTableVersion(tableId));
+        return versions;
+    }
+
+    /**
+     * @param key
+     *            the normalized plan of the query
+     * @return an iterator over the cached result of the query, or null if
+     *         there is none or it was read from tables that have changed
+     */
+    public synchronized OpIterator lookup(String key) {
+        Entry e = entries.get(key);
+        if (e != null && !e.versions.equals(versionsOf(e.versions.keySet()))) {
+            remove(key);
+            e = null;
+        }
+        if (e == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return new TupleIterator(e.td, e.rows);
+    }
+
+    /**
+     * Wrap a plan so that its result is cached under key once it has been
+     * read to the end.
+     *
+     * @param key
+     *            the normalized plan of the query
+     * @param versions
+     *            the versions of the tables the query reads, taken from
+     *            {@link #versionsOf} before the plan was opened
+     * @param plan
+     *            the plan of the query
+     * @return an iterator returning the tuples of plan
+     */
+    public OpIterator record(String key, Map<Integer, Long> versions, OpIterator plan) {
+        return new Recorder(key, versions, plan);
+    }
+
+    private synchronized void put(String key, Entry e) {
+        remove(key);
+        if (e.bytes > capacity / 4)
+            return;
+        entries.put(key, e);
+        used += e.bytes;
+        evict();
+    }
+
+    private void remove(String key) {
+        Entry old = entries.remove(key);
+        if (old != null)
+            used -= old.bytes;
+    }
+
+    private void evict() {
+        Iterator<Entry> it = entries.values().iterator();
+        while (used > capacity && it.hasNext()) {
+            used -= it.next().bytes;
+            it.remove();
+        }
+    }
+
+    /** Passes the tuples of a plan through, keeping copies of them until the plan ends */
+    private final class Recorder extends Operator {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String key;
+        private final Map<Integer, Long> versions;
+        private OpIterator child;
+        private transient List<Tuple> rows;
+        private transient long bytes;
+        private transient long rowBytes;
+
+        Recorder(String key, Map<Integer, Long> versions, OpIterator child) {
+            this.key = key;
+            this.versions = versions;
+            this.child = child;
+        }
+
+        public TupleDesc getTupleDesc() {
+            return child.getTupleDesc();
+        }
+
+        public void open() throws DbException, NoSuchElementException,
+                TransactionAbortedException {
+            rowBytes = ExternalSort.estimateTupleSize(getTupleDesc());
+            rows = new ArrayList<>();
+            bytes = 0;
+            child.open();
+            super.open();
+        }
+
+        public void close() {
+            super.close();
+            child.close();
+            rows = null;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            // the tuples would be recorded twice
+            rows = null;
+            child.rewind();
+        }
+
+        protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+            if (!child.hasNext()) {
+                if (rows != null)
+                    put(key, new Entry(getTupleDesc(), rows, versions, bytes));
+                rows = null;
+                return null;
+            }
+            Tuple t = child.next();
+            if (rows != null) {
+                bytes += rowBytes;
+                if (bytes > getCapacity() / 4) {
+                    rows = null;
+                } else {
+                    Field[] fields = new Field[getTupleDesc().numFields()];
+                    for (int i = 0; i < fields.length; i++)
+                        fields[i] = t.getField(i);
+                    rows.add(new Tuple(getTupleDesc(), fields));
+                }
+            }
+            return t;
+        }
+
+        @Override
+        public OpIterator[] getChildren() {
+            return new OpIterator[] { child };
+        }
+
+        @Override
+        public void setChildren(OpIterator[] children) {
+            child = children[0];
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package simpledb.execution;
+
+import simpledb.common.Database;
+import simpledb.storage.DbFile;
+import simpledb.storage.HeapFile;
+import simpledb.storage.MorselCursor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits a scan pipeline, a SeqScan over a heap file under any number of
+ * Filters, into copies that share a {@link MorselCursor} over the table's
+ * pages. Each copy claims morsels as it goes, so the copies together return
+ * the same tuples as the original pipeline, and one that runs slow does not
+ * leave the others idle at the end of the scan.
+ */
+final class ScanPartitioner {
+
+    /** Morsels the pages are cut into per copy, so that copies can even out */
+    private static final int MORSELS_PER_COPY = 8;
+
+    /** The most pages in a morsel, however large the table */
+    private static final int MAX_MORSEL_PAGES = 64;
+
+    private ScanPartitioner() {
+    }
+
+    /**
+     * @return the heap file at the bottom of plan, or null if plan is not a
+     *         pipeline that can be split
+     */
+    static HeapFile heapFileOf(OpIterator plan) {
+        while (plan instanceof Filter)
+            plan = ((Filter) plan).getChildren()[0];
+        if (!(plan instanceof SeqScan))
+            return null;
+        DbFile f = Database.getCatalog().getDatabaseFile(((SeqScan) plan).getTableId());
+        return f instanceof HeapFile ? (HeapFile) f : null;
+    }
+
+    /**
+     * Split plan into at most n copies that claim morsels of pages from one
+     * shared cursor. The copies also see pages appended after the split.
+     * Before the copies are opened again, the cursor has to be reset with
+     * {@link #restart}.
+     *
+     * @throws IllegalArgumentException
+     *             if plan cannot be split; see {@link #heapFileOf}
+     */
+    static List<OpIterator> split(OpIterator plan, int n) {
+        HeapFile f = heapFileOf(plan);
+        if (f == null)
+            throw new IllegalArgumentException("plan is not a heap file scan pipeline");
+        int pages = f.numPages();
+        n = Math.max(1, Math.min(n, pages));
+        int morselPages = Math.max(1, Math.min(MAX_MORSEL_PAGES, pages / (n * MORSELS_PER_COPY)));
+        MorselCursor morsels = new MorselCursor(f, morselPages);
+        List<OpIterator> parts = new ArrayList<>(n);
+        for (int i = 0; i < n; i++)
+            parts.add(copy(plan, morsels));
+        return parts;
+    }
+
+    /**
+     * Reset the cursors the given copies claim pages from, so that opening
+     * them reads the table from the start again. Must not be called while
+     * any of them is open; copies not made by split are left alone.
+     */
+    static void restart(List<OpIterator> parts) {
+        for (OpIterator plan : parts) {
+            while (plan instanceof Filter)
+                plan = ((Filter) plan).getChildren()[0];
+            if (plan instanceof SeqScan && ((SeqScan) plan).getMorselCursor() != null)
+                ((SeqScan) plan).getMorselCursor().reset();
+        }
+    }
+
+    private static OpIterator copy(OpIterator plan, MorselCursor morsels) {
+        if (plan instanceof Filter) {
+            Filter f = (Filter) plan;
+            return new Filter(f.getPredicate(), copy(f.getChildren()[0], morsels));
+        }
+        SeqScan scan = (SeqScan) plan;
+        SeqScan part = new SeqScan(scan.getTransactionId(), scan.getTableId(), scan.getAlias());
+        part.setMorselCursor(morsels);
+        part.setOutputFields(scan.getOutputFields());
+        return part;
+    }
+}
@@ -7,7 +7,12 @@ import simpledb.transaction.TransactionId;
 import simpledb.common.Type;
 import simpledb.common.DbException;
 import simpledb.storage.DbFileIterator;
+import simpledb.storage.Field;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.MorselCursor;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleDesc;
 
 import java.util.*;
@@ -21,10 +26,23 @@ public class SeqScan implements OpIterator {
 
     private static final long serialVersionUID = 1L;
 
+    /** The name, after the alias, of the row id field of a narrowed scan */
+    public static final String ROW_ID = "#rowid";
+
     private TransactionId transactionId;
     private int tableId;
     private String alias;
     private DbFileIterator dbFileIterator;
+    private int startPage = 0;
+    private int endPage = -1;
+    private int[] outputFields;
+    private transient MorselCursor morsels;
+    private transient BloomFilter runtimeFilter;
+    private transient int runtimeFilterField;
+    private transient Tuple lookahead;
+    private transient TupleDesc batchDesc;
+    private transient TupleDesc narrowDesc;
+    private transient HeapFile narrowFile;
 
     /**
      * Creates a sequential scan over the specified table as a part of the
@@ -56,7 +74,7 @@ public class SeqScan implements OpIterator {
      *       be the actual name of the table in the catalog of the database
      * */
     public String getTableName() {
-        return null;
+        return Database.getCatalog().getTableName(tableId);
     }
 
     /**
@@ -84,16 +102,114 @@ public class SeqScan implements OpIterator {
         // some code goes here
         tableId = tableid;
         alias = tableAlias;
+        narrowDesc = null;
     }
 
     public SeqScan(TransactionId tid, int tableId) {
         this(tid, tableId, Database.getCatalog().getTableName(tableId));
     }
 
+    /** @return the id of the table this operator scans */
+    public int getTableId() {
+        return tableId;
+    }
+
+    /** @return the transaction this scan runs as a part of */
+    public TransactionId getTransactionId() {
+        return transactionId;
+    }
+
+    /**
+     * Restrict this scan to pages [startPage, endPage) of its table, so that
+     * several scans can split a table between them. Only heap files can be
+     * scanned by page range.
+     *
+     * @param startPage
+     *            the first page to read
+     * @param endPage
+     *            one past the last page to read, or -1 to read to the end
+     */
+    public void setPageRange(int startPage, int endPage) {
+        if (startPage < 0 || (endPage >= 0 && endPage < startPage))
+            throw new IllegalArgumentException("invalid page range " + startPage + " to " + endPage);
+        this.startPage = startPage;
+        this.endPage = endPage;
+    }
+
+    /**
+     * Have this scan read the morsels it claims from a cursor shared with
+     * other scans of the same table, instead of a fixed page range, so that
+     * scans on several threads split the table between them as they go.
+     * Such a scan cannot be rewound on its own; see
+     * {@link HeapFile#iterator(TransactionId, MorselCursor)}.
+     *
+     * @param morsels
+     *            the cursor to claim pages from, or null to read the page
+     *            range again
+     */
+    public void setMorselCursor(MorselCursor morsels) {
+        this.morsels = morsels;
+    }
+
+    /** @return the cursor this scan claims pages from, or null */
+    public MorselCursor getMorselCursor() {
+        return morsels;
+    }
+
+    /**
+     * Drop tuples whose value in the given field is not in filter before
+     * they are returned. Used by a hash join to push its build side keys
+     * down to the scan feeding its probe side.
+     *
+     * @param field
+     *            the field of the scanned tuples to test
+     * @param filter
+     *            the filter to apply, or null to stop filtering
+     */
+    public void setRuntimeFilter(int field, BloomFilter filter) {
+        runtimeFilterField = field;
+        runtimeFilter = filter;
+    }
+
+    /**
+     * Narrow this scan to return, for each tuple, its row id within the heap
+     * file (see {@link HeapFile#rowId}) in a field named alias.{@value #ROW_ID},
+     * followed by the given fields only. The planner narrows the scans under
+     * joins to the fields the filters and joins use, and a {@link Fetch}
+     * above the joins reads the other fields of the rows that come through.
+     *
+     * @param fields
+     *            the indexes of the table fields to return, or null to return
+     *            every field and no row id
+     */
+    public void setOutputFields(int[] fields) {
+        outputFields = fields;
+        narrowDesc = null;
+    }
+
+    /** @return the table fields a narrowed scan returns, or null */
+    public int[] getOutputFields() {
+        return outputFields;
+    }
+
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
         DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
-        dbFileIterator = dbFile.iterator(transactionId);
+        if (morsels != null && dbFile == morsels.getFile())
+            dbFileIterator = morsels.getFile().iterator(transactionId, morsels);
+        else if (morsels != null)
+            throw new DbException("the morsel cursor is not over the scanned table");
+        else if (startPage == 0 && endPage < 0)
+            dbFileIterator = dbFile.iterator(transactionId);
+        else if (dbFile instanceof HeapFile)
+            dbFileIterator = ((HeapFile) dbFile).iterator(transactionId, startPage, endPage);
+        else
+            throw new DbException("only heap files can be scanned by page range");
+        if (outputFields != null) {
+            if (!(dbFile instanceof HeapFile))
+                throw new DbException("only heap file scans can be narrowed");
+            narrowFile = (HeapFile) dbFile;
+        }
         dbFileIterator.open();
     }
 
@@ -104,11 +220,18 @@ public class SeqScan implements OpIterator {
      * name.  The alias and name should be separated with a "." character
      * (e.g., "alias.fieldName").
      *
+     * A narrowed scan returns the row id and its output fields instead.
+     *
      * @return the TupleDesc with field names from the underlying HeapFile,
      *         prefixed with the tableAlias string from the constructor.
      */
     public TupleDesc getTupleDesc() {
         // some code goes here
+        if (outputFields != null) {
+            if (narrowDesc == null)
+                narrowDesc = narrowTupleDesc();
+            return narrowDesc;
+        }
         TupleDesc originDesc = Database.getCatalog().getTupleDesc(tableId);
         int numDesc = originDesc.numFields();
         Type[] typeAr = new Type[numDesc];
@@ -120,26 +243,114 @@ public class SeqScan implements OpIterator {
         return new TupleDesc(typeAr, fieldAr);
     }
 
+    private TupleDesc narrowTupleDesc() {
+        TupleDesc originDesc = Database.getCatalog().getTupleDesc(tableId);
+        Type[] typeAr = new Type[outputFields.length + 1];
+        String[] fieldAr = new String[typeAr.length];
+        typeAr[0] = Type.INT_TYPE;
+        fieldAr[0] = alias + "." + ROW_ID;
+        for (int i = 0; i < outputFields.length; i++) {
+            typeAr[i + 1] = originDesc.getFieldType(outputFields[i]);
+            fieldAr[i + 1] = alias + "." + originDesc.getFieldName(outputFields[i]);
+        }
+        return new TupleDesc(typeAr, fieldAr);
+    }
+
+    /** @return the next tuple of the file, narrowed if this scan is */
+    private Tuple readNext() throws TransactionAbortedException, DbException {
+        return narrow(dbFileIterator.next());
+    }
+
+    /** @return t, a tuple of the file, narrowed if this scan is */
+    private Tuple narrow(Tuple t) {
+        if (outputFields == null)
+            return t;
+        Field[] fields = new Field[outputFields.length + 1];
+        fields[0] = new IntField(narrowFile.rowId(t.getRecordId()));
+        for (int i = 0; i < outputFields.length; i++)
+            fields[i + 1] = t.getField(outputFields[i]);
+        Tuple narrow = new Tuple(getTupleDesc(), fields);
+        narrow.setRecordId(t.getRecordId());
+        return narrow;
+    }
+
+    /**
+     * Tests the key field of t, a tuple of the file, against the runtime
+     * filter, so that a narrowed scan builds no tuple for the rows the filter
+     * rules out.
+     */
+    private boolean mightMatch(Tuple t) {
+        if (runtimeFilter == null)
+            return true;
+        Field key;
+        if (outputFields == null)
+            key = t.getField(runtimeFilterField);
+        else if (runtimeFilterField == 0)
+            key = new IntField(narrowFile.rowId(t.getRecordId()));
+        else
+            key = t.getField(outputFields[runtimeFilterField - 1]);
+        return runtimeFilter.mightContain(key);
+    }
+
     public boolean hasNext() throws TransactionAbortedException, DbException {
         // some code goes here
-        return dbFileIterator.hasNext();
+        if (runtimeFilter == null && lookahead == null)
+            return dbFileIterator.hasNext();
+        while (lookahead == null && dbFileIterator.hasNext()) {
+            Tuple t = dbFileIterator.next();
+            if (mightMatch(t))
+                lookahead = narrow(t);
+        }
+        return lookahead != null;
     }
 
     public Tuple next() throws NoSuchElementException,
             TransactionAbortedException, DbException {
         // some code goes here
-        return dbFileIterator.next();
+        if (runtimeFilter == null && lookahead == null)
+            return readNext();
+        if (!hasNext())
+            throw new NoSuchElementException();
+        Tuple t = lookahead;
+        lookahead = null;
+        return t;
+    }
+
+    /**
+     * Reads up to a batch of tuples straight from the file iterator, dropping
+     * those the runtime filter rules out.
+     */
+    public TupleBatch nextBatch() throws TransactionAbortedException, DbException {
+        if (dbFileIterator == null)
+            throw new IllegalStateException("scan is not open");
+        if (batchDesc == null)
+            batchDesc = getTupleDesc();
+        TupleBatch batch = new TupleBatch(batchDesc);
+        if (lookahead != null) {
+            batch.add(lookahead);
+            lookahead = null;
+        }
+        while (!batch.isFull() && dbFileIterator.hasNext()) {
+            Tuple t = dbFileIterator.next();
+            if (mightMatch(t))
+                batch.add(narrow(t));
+        }
+        return batch.size() == 0 ? null : batch;
     }
 
     public void close() {
         // some code goes here
-        dbFileIterator.close();
+        if (dbFileIterator != null)
+            dbFileIterator.close();
         dbFileIterator = null;
+        lookahead = null;
+        batchDesc = null;
     }
 
     public void rewind() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         // some code goes here
         dbFileIterator.rewind();
+        lookahead = null;
     }
 }
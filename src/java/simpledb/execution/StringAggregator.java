@@ -72,6 +72,14 @@ public class StringAggregator implements Aggregator {
         }
     }
 
+    public int numGroups() {
+        return gbField == NO_GROUPING ? 1 : aggResult.size();
+    }
+
+    public boolean hasGroupOf(Tuple tup) {
+        return gbField == NO_GROUPING || aggResult.containsKey(tup.getField(gbField));
+    }
+
     /**
      * Create a OpIterator over group aggregate results.
      *
@@ -0,0 +1,254 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.*;
+
+/**
+ * TopN returns the first N tuples of its child in sort order, as OrderBy
+ * followed by a LIMIT of N would, but never holds more than N tuples. The
+ * child is read once through a bounded heap whose root is the worst tuple
+ * kept so far; a new tuple replaces the root only if it sorts before it.
+ * <p>
+ * The heap is kept within a memory budget. If N tuples would not fit in it,
+ * TopN sorts its child with an {@link ExternalSort} within the budget, as
+ * OrderBy does, and returns the first N tuples of the sort instead.
+ * <p>
+ * Like OrderBy, tuples that compare equal are returned in input order.
+ */
+public class TopN extends Operator implements MemoryConsumer {
+
+    private static final long serialVersionUID = 1L;
+    private OpIterator child;
+    private final TupleDesc td;
+    private final int[] orderByFields;
+    private final boolean[] asc;
+    private final int limit;
+    private long memoryBudget;
+    private transient List<Tuple> top;
+    private transient Iterator<Tuple> it;
+    private transient ExternalSort sorter;
+    private transient int returned;
+
+    /**
+     * Creates a new TopN node over the tuples from the iterator.
+     *
+     * @param orderbyField
+     *            the field to which the sort is applied.
+     * @param asc
+     *            true if the sort order is ascending.
+     * @param limit
+     *            the number of tuples to return.
+     * @param child
+     *            the tuples to sort.
+     */
+    public TopN(int orderbyField, boolean asc, int limit, OpIterator child) {
+        this(new int[] { orderbyField }, new boolean[] { asc }, limit, child);
+    }
+
+    /**
+     * Creates a new TopN node that sorts on several fields.
+     *
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant
+     *            first.
+     * @param asc
+     *            for each field, true if it sorts ascending.
+     * @param limit
+     *            the number of tuples to return.
+     * @param child
+     *            the tuples to sort.
+     */
+    public TopN(int[] orderbyFields, boolean[] asc, int limit, OpIterator child) {
+        this(orderbyFields, asc, limit, child, OrderBy.getDefaultMemoryBudget());
+    }
+
+    /**
+     * Creates a new TopN node that sorts on several fields within a memory
+     * budget.
+     *
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant
+     *            first.
+     * @param asc
+     *            for each field, true if it sorts ascending.
+     * @param limit
+     *            the number of tuples to return.
+     * @param child
+     *            the tuples to sort.
+     * @param memoryBudget
+     *            the number of bytes of tuples to hold in memory at most
+     */
+    public TopN(int[] orderbyFields, boolean[] asc, int limit, OpIterator child,
+            long memoryBudget) {
+        if (memoryBudget <= 0)
+            throw new IllegalArgumentException("memory budget must be positive");
+        if (limit < 0)
+            throw new IllegalArgumentException("limit must not be negative");
+        if (orderbyFields.length == 0 || orderbyFields.length != asc.length)
+            throw new IllegalArgumentException("need one sort direction per sort field");
+        this.child = child;
+        this.td = child.getTupleDesc();
+        this.orderByFields = orderbyFields.clone();
+        this.asc = asc.clone();
+        this.limit = limit;
+        this.memoryBudget = memoryBudget;
+    }
+
+    public boolean isASC() {
+        return this.asc[0];
+    }
+
+    public int getOrderByField() {
+        return this.orderByFields[0];
+    }
+
+    public String getOrderFieldName() {
+        return td.getFieldName(this.orderByFields[0]);
+    }
+
+    /** @return the sort fields, most significant first */
+    public int[] getOrderByFields() {
+        return this.orderByFields.clone();
+    }
+
+    /** @return for each sort field, true if it sorts ascending */
+    public boolean[] getAscending() {
+        return this.asc.clone();
+    }
+
+    /** @return the number of tuples this operator returns at most */
+    public int getLimit() {
+        return this.limit;
+    }
+
+    public long getMemoryBudget() {
+        return this.memoryBudget;
+    }
+
+    public void setMemoryBudget(long bytes) {
+        if (bytes <= 0)
+            throw new IllegalArgumentException("memory budget must be positive");
+        this.memoryBudget = bytes;
+    }
+
+    /** @return true if the last open sorted the whole input because the
+        limit's tuples did not fit in the memory budget */
+    public boolean sorted() {
+        return sorter != null;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** A kept tuple and its position in the input, used to break ties */
+    private static class Entry {
+        final Tuple t;
+        final long seq;
+
+        Entry(Tuple t, long seq) {
+            this.t = t;
+            this.seq = seq;
+        }
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        Comparator<Tuple> byField = new TupleComparator(td, orderByFields, asc);
+        if (limit > memoryBudget / ExternalSort.estimateTupleSize(td)) {
+            // the heap would not fit; sort everything and stop after limit
+            sorter = new ExternalSort(td, byField, memoryBudget);
+            try {
+                while (child.hasNext())
+                    sorter.add(child.next());
+                sorter.finish();
+            } catch (DbException | TransactionAbortedException | RuntimeException e) {
+                sorter.close();
+                sorter = null;
+                throw e;
+            }
+            returned = 0;
+            super.open();
+            return;
+        }
+        Comparator<Entry> order = (a, b) -> {
+            int c = byField.compare(a.t, b.t);
+            return c != 0 ? c : Long.compare(a.seq, b.seq);
+        };
+        // the root of the heap is the entry that sorts last
+        PriorityQueue<Entry> heap = new PriorityQueue<>(Math.max(1, Math.min(limit, 1 << 16)),
+                order.reversed());
+        long seq = 0;
+        while (limit > 0 && child.hasNext()) {
+            Entry e = new Entry(child.next(), seq++);
+            if (heap.size() < limit) {
+                heap.add(e);
+            } else if (order.compare(e, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(e);
+            }
+        }
+        List<Entry> sorted = new ArrayList<>(heap);
+        sorted.sort(order);
+        top = new ArrayList<>(sorted.size());
+        for (Entry e : sorted)
+            top.add(e.t);
+        it = top.iterator();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        top = null;
+        it = null;
+        if (sorter != null)
+            sorter.close();
+        sorter = null;
+        child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (sorter != null) {
+            sorter.rewind();
+            returned = 0;
+        } else {
+            it = top.iterator();
+        }
+    }
+
+    /**
+     * Operator.fetchNext implementation. Returns the kept tuples in order
+     *
+     * @return The next tuple in the ordering, or null if there are no more
+     *         tuples
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            DbException, TransactionAbortedException {
+        if (sorter != null) {
+            if (returned == limit)
+                return null;
+            Tuple t = sorter.next();
+            if (t != null)
+                returned++;
+            return t;
+        }
+        if (it != null && it.hasNext())
+            return it.next();
+        return null;
+    }
+
+    @Override
+    public OpIterator[] getChildren() {
+        return new OpIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(OpIterator[] children) {
+        this.child = children[0];
+    }
+}
@@ -0,0 +1,91 @@
+package simpledb.execution;
+
+import simpledb.common.Type;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+
+import java.util.Comparator;
+
+/**
+ * Orders tuples on one or more fields, each ascending or descending. The
+ * comparison for each key is chosen once from the field's type when the
+ * comparator is built, so comparing two tuples unwraps the fields directly
+ * (int keys as primitive ints) instead of going through Field.compare.
+ */
+class TupleComparator implements Comparator<Tuple> {
+
+    private final Key[] keys;
+    private final Key first;
+
+    /**
+     * @param td
+     *            the schema of the tuples being compared
+     * @param fields
+     *            the sort keys, most significant first
+     * @param asc
+     *            for each key, true if it sorts ascending
+     */
+    TupleComparator(TupleDesc td, int[] fields, boolean[] asc) {
+        if (fields.length == 0 || fields.length != asc.length)
+            throw new IllegalArgumentException("need one sort direction per sort field");
+        keys = new Key[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            Type type = td.getFieldType(fields[i]);
+            if (type == Type.INT_TYPE)
+                keys[i] = new IntKey(fields[i], asc[i]);
+            else
+                keys[i] = new StringKey(fields[i], asc[i]);
+        }
+        first = keys[0];
+    }
+
+    /** Comparator on a single field */
+    TupleComparator(TupleDesc td, int field, boolean asc) {
+        this(td, new int[] { field }, new boolean[] { asc });
+    }
+
+    public int compare(Tuple t1, Tuple t2) {
+        int c = first.compare(t1, t2);
+        for (int i = 1; c == 0 && i < keys.length; i++)
+            c = keys[i].compare(t1, t2);
+        return c;
+    }
+
+    private static abstract class Key {
+        final int field;
+        final boolean asc;
+
+        Key(int field, boolean asc) {
+            this.field = field;
+            this.asc = asc;
+        }
+
+        abstract int compare(Tuple t1, Tuple t2);
+    }
+
+    private static final class IntKey extends Key {
+        IntKey(int field, boolean asc) {
+            super(field, asc);
+        }
+
+        int compare(Tuple t1, Tuple t2) {
+            int v1 = ((IntField) t1.getField(field)).getValue();
+            int v2 = ((IntField) t2.getField(field)).getValue();
+            return asc ? Integer.compare(v1, v2) : Integer.compare(v2, v1);
+        }
+    }
+
+    private static final class StringKey extends Key {
+        StringKey(int field, boolean asc) {
+            super(field, asc);
+        }
+
+        int compare(Tuple t1, Tuple t2) {
+            String v1 = ((StringField) t1.getField(field)).getValue();
+            String v2 = ((StringField) t2.getField(field)).getValue();
+            return asc ? v1.compareTo(v2) : v2.compareTo(v1);
+        }
+    }
+}
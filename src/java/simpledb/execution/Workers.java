@@ -0,0 +1,55 @@
+package simpledb.execution;
+
+import simpledb.common.DbException;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * The thread pool shared by operators that spread their work over several
+ * threads, and the bookkeeping for waiting on that work.
+ */
+final class Workers {
+
+    static final ForkJoinPool pool =
+            new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    private Workers() {
+    }
+
+    /**
+     * Wait for every task to finish, even if some fail, so that no worker is
+     * left running once this returns.
+     *
+     * @param what
+     *            what the tasks were doing, for the error message
+     * @throws TransactionAbortedException
+     *             if a task was aborted
+     * @throws DbException
+     *             if a task failed in any other way
+     */
+    static void joinAll(List<? extends ForkJoinTask<?>> tasks, String what)
+            throws DbException, TransactionAbortedException {
+        Throwable failure = null;
+        for (ForkJoinTask<?> task : tasks) {
+            try {
+                task.join();
+            } catch (RuntimeException e) {
+                if (failure == null)
+                    failure = e;
+            }
+        }
+        if (failure == null)
+            return;
+        // checked exceptions thrown by a task come back wrapped, possibly twice
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof TransactionAbortedException)
+                throw (TransactionAbortedException) cause;
+            if (cause instanceof DbException)
+                throw (DbException) cause;
+        }
+        throw new DbException(what + " failed: " + failure.getMessage());
+    }
+}
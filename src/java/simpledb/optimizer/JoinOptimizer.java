@@ -20,6 +20,23 @@ public class JoinOptimizer {
     final LogicalPlan p;
     final List<LogicalJoinNode> joins;
 
+    /**
+     * Number of threads equi-joins chosen by the optimizer build and probe on.
+     * 1, the default, keeps joins on the calling thread and their output in
+     * probe order. Used only by plans without exchanges: when
+     * {@link LogicalPlan#getExchangeParallelism} is above 1, that decides how
+     * many threads a join runs on (see {@link #instantiateParallelJoin}).
+     */
+    private static int joinParallelism = 1;
+
+    public static int getJoinParallelism() {
+        return joinParallelism;
+    }
+
+    public static void setJoinParallelism(int parallelism) {
+        JoinOptimizer.joinParallelism = parallelism;
+    }
+
     /**
      * Constructor
      * 
@@ -51,8 +68,74 @@ public class JoinOptimizer {
     public static OpIterator instantiateJoin(LogicalJoinNode lj,
                                              OpIterator plan1, OpIterator plan2) throws ParsingException {
 
-        int t1id = 0, t2id = 0;
         OpIterator j;
+        JoinPredicate p = joinPredicate(lj, plan1, plan2);
+
+        if (lj.p == Predicate.Op.EQUALS) {
+
+            try {
+                // dynamically load HashEquiJoin -- if it doesn't exist, just
+                // fall back on regular join
+                Class<?> c = Class.forName("simpledb.execution.HashEquiJoin");
+                java.lang.reflect.Constructor<?> ct = c.getConstructor(
+                        JoinPredicate.class, OpIterator.class, OpIterator.class, int.class);
+                j = (OpIterator) ct
+                        .newInstance(new Object[] { p, plan1, plan2, joinParallelism });
+            } catch (Exception e) {
+                j = new Join(p, plan1, plan2);
+            }
+        } else {
+            j = new Join(p, plan1, plan2);
+        }
+
+        return j;
+
+    }
+
+    /**
+     * Return an iterator that computes a given logical join on parallelism
+     * threads, with exchanges between the threads and the subplans. An
+     * equi-join repartitions both subplans on the join fields and hash joins
+     * each pair of partitions; any other join splits the left subplan by hash
+     * and joins each part against all of the right subplan, which is
+     * broadcast. The joined tuples are gathered in no particular order.
+     * <p>
+     * Each pipeline joins serially, since the pipelines already run on their
+     * own threads; the join parallelism set here is not used.
+     *
+     * @param lj
+     *            The join being considered
+     * @param plan1
+     *            The left join node's child
+     * @param plan2
+     *            The right join node's child
+     * @param parallelism
+     *            the number of threads to join on
+     */
+    public static OpIterator instantiateParallelJoin(LogicalJoinNode lj,
+            OpIterator plan1, OpIterator plan2, int parallelism) throws ParsingException {
+        JoinPredicate p = joinPredicate(lj, plan1, plan2);
+        List<OpIterator> pipelines = new ArrayList<>(parallelism);
+        if (lj.p == Predicate.Op.EQUALS) {
+            List<Repartition> left = Repartition.streams(plan1, p.getField1(), parallelism, parallelism);
+            List<Repartition> right = Repartition.streams(plan2, p.getField2(), parallelism, parallelism);
+            for (int i = 0; i < parallelism; i++)
+                pipelines.add(new HashEquiJoin(p, left.get(i), right.get(i), 1));
+        } else {
+            List<Repartition> left = Repartition.streams(plan1, p.getField1(), parallelism, parallelism);
+            List<Broadcast> right = Broadcast.streams(plan2, parallelism, parallelism);
+            for (int i = 0; i < parallelism; i++)
+                pipelines.add(new Join(p, left.get(i), right.get(i)));
+        }
+        return new Gather(pipelines);
+    }
+
+    /**
+     * @return the JoinPredicate of lj over the fields of plan1 and plan2
+     */
+    private static JoinPredicate joinPredicate(LogicalJoinNode lj,
+            OpIterator plan1, OpIterator plan2) throws ParsingException {
+        int t1id = 0, t2id = 0;
 
         try {
             t1id = plan1.getTupleDesc().fieldNameToIndex(lj.f1QuantifiedName);
@@ -72,26 +155,7 @@ public class JoinOptimizer {
             }
         }
 
-        JoinPredicate p = new JoinPredicate(t1id, lj.p, t2id);
-
-        if (lj.p == Predicate.Op.EQUALS) {
-
-            try {
-                // dynamically load HashEquiJoin -- if it doesn't exist, just
-                // fall back on regular join
-                Class<?> c = Class.forName("simpledb.execution.HashEquiJoin");
-                java.lang.reflect.Constructor<?> ct = c.getConstructors()[0];
-                j = (OpIterator) ct
-                        .newInstance(new Object[] { p, plan1, plan2 });
-            } catch (Exception e) {
-                j = new Join(p, plan1, plan2);
-            }
-        } else {
-            j = new Join(p, plan1, plan2);
-        }
-
-        return j;
-
+        return new JoinPredicate(t1id, lj.p, t2id);
     }
 
     /**
@@ -254,6 +318,10 @@ public class JoinOptimizer {
         // some code goes here
         //Replace the following
 
+        // a single table query has nothing to order
+        if (joins.isEmpty())
+            return joins;
+
         PlanCache optJoin = new PlanCache();
         int jSize = joins.size();
         for (int i = 1; i <= jSize; i++) {
@@ -15,9 +15,9 @@ import java.io.File;
  * the parser and is ready to be processed by the optimizer.
  * <p>
  * A LogicalPlan consits of a collection of table scan nodes, join
- * nodes, filter nodes, a select list, and a group by field.
- * LogicalPlans can only represent queries with one aggregation field
- * and one group by field.
+ * nodes, filter nodes, a select list, group by fields and aggregates.
+ * All aggregates of a query are computed by one Aggregate node, in one
+ * pass over its input.
  * <p>
  * LogicalPlans can be converted to physical (optimized) plans using
  * the {@link #physicalPlan} method, which uses the
@@ -32,15 +32,68 @@ public class LogicalPlan {
     private final Map<String,Integer> tableMap;
 
     private final List<LogicalSelectListNode> selectList;
-    private String groupByField = null;
+    private final List<String> groupByFields;
     private boolean hasAgg = false;
-    private String aggOp;
-    private String aggField;
-    private boolean oByAsc, hasOrderBy = false;
-    private String oByField;
+    private final List<String> aggOps;
+    private final List<String> aggFields;
+    private boolean hasOrderBy = false;
+    private final List<String> oByFields;
+    private final List<Boolean> oByAsc;
+    private int limit;
+    private boolean hasLimit = false;
+    private boolean distinct = false;
     private String query;
 //    private Query owner;
 
+    /** Whether scans under joins return only the fields filters and joins use */
+    private static boolean lateMaterialization = true;
+
+    public static boolean getLateMaterialization() {
+        return lateMaterialization;
+    }
+
+    /** Set whether new plans narrow the scans under their joins and fetch
+        the other fields of the joined rows afterwards; see {@link Fetch} */
+    public static void setLateMaterialization(boolean enabled) {
+        lateMaterialization = enabled;
+    }
+
+    /** Number of threads aggregates split a base table scan over; 1, the
+        default, aggregates on the calling thread */
+    private static int aggregateParallelism = 1;
+
+    public static int getAggregateParallelism() {
+        return aggregateParallelism;
+    }
+
+    /** Set the number of threads aggregates in new plans split a base table scan over */
+    public static void setAggregateParallelism(int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        aggregateParallelism = parallelism;
+    }
+
+    /** Number of threads joins and base table scans run on, with exchanges
+        between them; 1, the default, plans no exchanges, so results come back
+        in scan order and no exchange threads are started */
+    private static int exchangeParallelism = 1;
+
+    public static int getExchangeParallelism() {
+        return exchangeParallelism;
+    }
+
+    /**
+     * Set the number of threads joins and base table scans in new plans run
+     * on; 1 plans no exchanges. Above 1 this decides how joins run: each
+     * pair of partitions is joined serially by its own pipeline, and
+     * {@link JoinOptimizer#setJoinParallelism} is not used.
+     */
+    public static void setExchangeParallelism(int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        exchangeParallelism = parallelism;
+    }
+
     /** Constructor -- generate an empty logical plan */
     public LogicalPlan() {
         joins = new ArrayList<>();
@@ -50,6 +103,11 @@ public class LogicalPlan {
         tableMap = new HashMap<>();
 
         selectList = new ArrayList<>();
+        groupByFields = new ArrayList<>();
+        aggOps = new ArrayList<>();
+        aggFields = new ArrayList<>();
+        oByFields = new ArrayList<>();
+        oByAsc = new ArrayList<>();
         this.query = "";
     }
 
@@ -189,36 +247,119 @@ public class LogicalPlan {
     }
     
     /** Add an aggregate over the field with the specified grouping to
-        the query.  SimpleDb only supports a single aggregate
-        expression and GROUP BY field.
+        the query.  A query may have several aggregates, which are all
+        computed together; adding the same aggregate twice has no effect.
         @param op the aggregation operator
         @param afield the field to aggregate over
-        @param gfield the field to group by
+        @param gfield a field to group by, or null to leave the GROUP BY
+            list as it is
      * @throws ParsingException 
     */
     public void addAggregate(String op, String afield, String gfield) throws ParsingException {
         afield=disambiguateName(afield);
         if (gfield!=null)
-            gfield=disambiguateName(gfield);
-        aggOp = op;
-        aggField = afield;
-        groupByField = gfield;
+            addGroupByField(gfield);
+        if (aggregateIndex(op, afield) < 0) {
+            aggOps.add(op);
+            aggFields.add(afield);
+        }
         hasAgg = true;
     }
 
-    /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
-        a single ORDER BY field.
+    /** Add a field to the GROUP BY list of the query.  Output groups are
+        keyed on all of the fields added, in the order they were added.
+        @param field the field to group by
+     * @throws ParsingException 
+    */
+    public void addGroupByField(String field) throws ParsingException {
+        field=disambiguateName(field);
+        if (!groupByFields.contains(field))
+            groupByFields.add(field);
+    }
+
+    /** @return the position of the aggregate among those added, or -1 */
+    private int aggregateIndex(String op, String afield) {
+        for (int i = 0; i < aggOps.size(); i++) {
+            if (aggOps.get(i).equalsIgnoreCase(op) && aggFields.get(i).equals(afield))
+                return i;
+        }
+        return -1;
+    }
+
+    /** Add an ORDER BY expression in the specified order on the specified field.  When called
+        several times, the output is ordered on the fields in the order they were added, each
+        one breaking the ties of the ones before it.
         @param field the field to order by
         @param asc true if should be ordered in ascending order, false for descending order
      * @throws ParsingException 
     */
     public void addOrderBy(String field, boolean asc) throws ParsingException {
         field=disambiguateName(field);
-        oByField = field;
-        oByAsc = asc;
+        oByFields.add(field);
+        oByAsc.add(asc);
         hasOrderBy = true;
     }
 
+    /** Limit the query to its first n result rows.  Together with ORDER BY
+        this is planned as a {@link TopN} if n rows fit in the memory a sort
+        may use, and otherwise as a {@link Limit} over an {@link OrderBy},
+        which spills; without ORDER BY it is planned as a {@link Limit}.
+        @param n the number of rows to return
+     * @throws ParsingException if n is negative
+    */
+    public void addLimit(int n) throws ParsingException {
+        if (n < 0)
+            throw new ParsingException("LIMIT must not be negative");
+        limit = n;
+        hasLimit = true;
+    }
+
+    /** Remove duplicate rows from the result of the query, as SELECT
+        DISTINCT does.  The {@link Distinct} is placed below the projection
+        when the projection keeps every field, and above it otherwise.
+        @param distinct true to remove duplicate rows
+    */
+    public void setDistinct(boolean distinct) {
+        this.distinct = distinct;
+    }
+
+    /** Return a description of the query this plan answers that is the
+        same for queries that differ only in layout or in the order of
+        their FROM tables and WHERE conditions.  It names tables by id, so
+        that the same text over a different table gives another key.
+        Must be called before {@link #physicalPlan}, which reorders the joins.
+        @return the description, or null if the query has a subquery, whose
+        plan cannot be described
+    */
+    public String normalizedKey() {
+        List<String> from = new ArrayList<>();
+        for (LogicalScanNode table : tables)
+            from.add(table.t + " " + table.alias);
+        List<String> where = new ArrayList<>();
+        for (LogicalFilterNode lf : filters)
+            where.add(lf.fieldQuantifiedName + " " + lf.p + " '" + lf.c + "'");
+        for (LogicalJoinNode lj : joins) {
+            if (lj instanceof LogicalSubplanJoinNode)
+                return null;
+            where.add(lj.f1QuantifiedName + " " + lj.p + " " + lj.f2QuantifiedName);
+        }
+        Collections.sort(from);
+        Collections.sort(where);
+        StringBuilder key = new StringBuilder("SELECT ");
+        if (distinct)
+            key.append("DISTINCT ");
+        for (LogicalSelectListNode si : selectList)
+            key.append(si.aggOp == null ? si.fname : si.aggOp + "(" + si.fname + ")").append(", ");
+        key.append("FROM ").append(from).append(" WHERE ").append(where);
+        key.append(" GROUP BY ").append(groupByFields);
+        key.append(" ORDER BY ");
+        for (int i = 0; i < oByFields.size(); i++)
+            key.append(oByFields.get(i)).append(oByAsc.get(i) ? " ASC, " : " DESC, ");
+        if (hasLimit)
+            key.append("LIMIT ").append(limit);
+        return key.toString();
+    }
+
     /** Given a name of a field, try to figure out what table it belongs to by looking
      *   through all of the tables added via {@link #addScan}. 
      *  @return A fully qualified name of the form tableAlias.name.  If the name parameter is already qualified
@@ -309,6 +450,14 @@ public class LogicalPlan {
 
         }
 
+        // scans under joins return only the fields filters and joins use,
+        // and a Fetch above the joins reads the rest of the rows they keep
+        Map<String,Integer> narrowed = new LinkedHashMap<>();
+        if (lateMaterialization && !joins.isEmpty()) {
+            for (LogicalScanNode table : tables)
+                narrowScan(table, narrowed);
+        }
+
         for (LogicalFilterNode lf : filters) {
             OpIterator subplan = subplanMap.get(lf.tableAlias);
             if (subplan == null) {
@@ -381,7 +530,10 @@ public class LogicalPlan {
                 throw new ParsingException("Unknown table in WHERE clause " + lj.t2Alias);
 
             OpIterator j;
-            j = JoinOptimizer.instantiateJoin(lj, plan1, plan2);
+            if (exchangeParallelism > 1)
+                j = JoinOptimizer.instantiateParallelJoin(lj, plan1, plan2, exchangeParallelism);
+            else
+                j = JoinOptimizer.instantiateJoin(lj, plan1, plan2);
             subplanMap.put(t1name, j);
 
             if (!isSubqueryJoin) {
@@ -407,13 +559,25 @@ public class LogicalPlan {
         
         OpIterator node = subplanMap.entrySet().iterator().next().getValue();
 
+        if (!narrowed.isEmpty())
+            node = fetch(t, node, narrowed);
+
+        // a scan of a single table; an aggregate splits the scan itself
+        if (exchangeParallelism > 1 && !hasAgg && Gather.canSplit(node))
+            node = new Gather(node, exchangeParallelism);
+
         //walk the select list, to determine order in which to project output fields
         List<Integer> outFields = new ArrayList<>();
         List<Type> outTypes = new ArrayList<>();
         for (int i = 0; i < selectList.size(); i++) {
             LogicalSelectListNode si = selectList.get(i);
             if (si.aggOp != null) {
-                outFields.add(groupByField!=null?1:0);
+                int agg = aggregateIndex(si.aggOp, si.fname);
+                if (agg < 0) {
+                    throw new ParsingException("Aggregate " + si.aggOp + "(" + si.fname + ") was not added to the plan");
+                }
+                //aggregates follow the group by fields in the output of the Aggregate node
+                outFields.add(groupByFields.size() + agg);
                 TupleDesc td = node.getTupleDesc();
 //                int  id;
                 try {
@@ -425,16 +589,17 @@ public class LogicalPlan {
                 outTypes.add(Type.INT_TYPE);  //the type of all aggregate functions is INT
 
             } else if (hasAgg) {
-                    if (groupByField == null) {
+                    int group = groupByFields.indexOf(si.fname);
+                    if (group < 0) {
                         throw new ParsingException("Field " + si.fname + " does not appear in GROUP BY list");
                     }
-                    outFields.add(0);
+                    outFields.add(group);
                     TupleDesc td = node.getTupleDesc();
                     int  id;
                     try {
-                        id = td.fieldNameToIndex(groupByField);
+                        id = td.fieldNameToIndex(si.fname);
                     } catch (NoSuchElementException e) {
-                        throw new ParsingException("Unknown field " +  groupByField + " in GROUP BY statement");
+                        throw new ParsingException("Unknown field " +  si.fname + " in GROUP BY statement");
                     }
                     outTypes.add(td.getFieldType(id));
             } else if (si.fname.equals("null.*")) {
@@ -457,25 +622,228 @@ public class LogicalPlan {
                 }
         }
 
+        // set if the aggregate's groups come out in ORDER BY order
+        boolean groupsOrdered = false;
         if (hasAgg) {
             TupleDesc td = node.getTupleDesc();
             Aggregate aggNode;
             try {
-                aggNode = new Aggregate(node,
-                                        td.fieldNameToIndex(aggField),
-                                        groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField),
-                                getAggOp(aggOp));
+                int[] gFields = new int[groupByFields.size()];
+                for (int i = 0; i < gFields.length; i++)
+                    gFields[i] = td.fieldNameToIndex(groupByFields.get(i));
+                int[] aFields = new int[aggFields.size()];
+                Aggregator.Op[] ops = new Aggregator.Op[aggOps.size()];
+                for (int i = 0; i < aFields.length; i++) {
+                    aFields[i] = td.fieldNameToIndex(aggFields.get(i));
+                    ops[i] = getAggOp(aggOps.get(i));
+                }
+                aggNode = new Aggregate(node, aFields, gFields, ops,
+                                aggregateParallelism, Aggregate.getDefaultMemoryBudget());
+                // when the groups are not expected to fit in memory, sorting
+                // the input on them is cheaper than hashing them, since the
+                // aggregate then streams one group at a time instead of
+                // partitioning groups to disk and reading them back
+                if (!aggNode.isStreaming() && groupsOverflow(aggNode, statsMap)) {
+                    groupsOrdered = ordersByGroups() && (!distinct || alreadyDistinct(outFields));
+                    int[] sortFields = gFields;
+                    boolean[] asc = new boolean[gFields.length];
+                    Arrays.fill(asc, true);
+                    if (groupsOrdered) {
+                        // sort on the ORDER BY instead, so it is not needed above
+                        sortFields = new int[oByFields.size()];
+                        for (int i = 0; i < sortFields.length; i++) {
+                            sortFields[i] = td.fieldNameToIndex(oByFields.get(i));
+                            asc[i] = oByAsc.get(i);
+                        }
+                    }
+                    aggNode = new Aggregate(new OrderBy(sortFields, asc, node), aFields, gFields, ops,
+                            aggregateParallelism, Aggregate.getDefaultMemoryBudget());
+                }
             } catch (NoSuchElementException | IllegalArgumentException e) {
                 throw new simpledb.ParsingException(e);
             }
             node = aggNode;
         }
 
-        if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+        if (!distinct || alreadyDistinct(outFields)) {
+            node = orderAndLimit(node, groupsOrdered);
+            return new Project(outFields, outTypes, node);
+        }
+        if (keepsAllFields(outFields, node.getTupleDesc().numFields())) {
+            // the projection only reorders fields, so duplicates can be
+            // dropped below it, before ORDER BY and LIMIT see the rows
+            node = orderAndLimit(new Distinct(node), false);
+            return new Project(outFields, outTypes, node);
+        }
+        // the projection drops fields and may create duplicates, so they
+        // are removed after it; ORDER BY must then name projected fields
+        node = new Distinct(new Project(outFields, outTypes, node));
+        return orderAndLimit(node, false);
+    }
+
+    /** Narrow the scan of table to the fields its filters and joins use, if
+        those and the row id are at most half of the fields of a heap file,
+        and note it in narrowed */
+    private void narrowScan(LogicalScanNode table, Map<String,Integer> narrowed) {
+        DbFile f = Database.getCatalog().getDatabaseFile(table.t);
+        if (!(f instanceof HeapFile))
+            return;
+        Set<String> used = new HashSet<>();
+        for (LogicalFilterNode lf : filters) {
+            if (lf.tableAlias.equals(table.alias))
+                used.add(lf.fieldPureName);
+        }
+        for (LogicalJoinNode lj : joins) {
+            if (table.alias.equals(lj.t1Alias))
+                used.add(lj.f1PureName);
+            if (!(lj instanceof LogicalSubplanJoinNode) && table.alias.equals(lj.t2Alias))
+                used.add(lj.f2PureName);
+        }
+        TupleDesc td = f.getTupleDesc();
+        List<Integer> fields = new ArrayList<>();
+        for (int i = 0; i < td.numFields(); i++) {
+            if (used.contains(td.getFieldName(i)))
+                fields.add(i);
+        }
+        if (2 * (fields.size() + 1) > td.numFields())
+            return;
+        int[] out = new int[fields.size()];
+        for (int i = 0; i < out.length; i++)
+            out[i] = fields.get(i);
+        ((SeqScan) subplanMap.get(table.alias)).setOutputFields(out);
+        narrowed.put(table.alias, f.getId());
+    }
+
+    /** Put a Fetch over node that reads again just the fields of narrowed
+        tables which the select list, aggregates, GROUP BY and ORDER BY use
+        and their scans did not return; no Fetch if there are none */
+    private OpIterator fetch(TransactionId t, OpIterator node, Map<String,Integer> narrowed) {
+        List<String> used = new ArrayList<>();
+        for (LogicalSelectListNode si : selectList) {
+            if (si.fname.equals("null.*"))
+                return new Fetch(t, node, narrowed);
+            used.add(si.fname);
+        }
+        used.addAll(aggFields);
+        used.addAll(groupByFields);
+        used.addAll(oByFields);
+
+        Map<String,Set<String>> fields = new HashMap<>();
+        for (String alias : narrowed.keySet())
+            fields.put(alias, new HashSet<>());
+        for (String name : used) {
+            String[] parts = name.split("[.]");
+            if (parts.length == 2 && fields.containsKey(parts[0]))
+                fields.get(parts[0]).add(parts[1]);
+        }
+        TupleDesc in = node.getTupleDesc();
+        Map<String,Integer> fetched = new LinkedHashMap<>();
+        for (Map.Entry<String,Integer> table : narrowed.entrySet()) {
+            for (String f : fields.get(table.getKey())) {
+                if (!hasField(in, table.getKey() + "." + f)) {
+                    fetched.put(table.getKey(), table.getValue());
+                    break;
+                }
+            }
+        }
+        return fetched.isEmpty() ? node : new Fetch(t, node, fetched, fields);
+    }
+
+    private static boolean hasField(TupleDesc td, String name) {
+        for (int i = 0; i < td.numFields(); i++) {
+            if (name.equals(td.getFieldName(i)))
+                return true;
+        }
+        return false;
+    }
+
+    /** @return true if the grouped rows of an aggregate are already distinct
+        because every group by field is projected */
+    private boolean alreadyDistinct(List<Integer> outFields) {
+        if (!hasAgg)
+            return false;
+        for (int i = 0; i < groupByFields.size(); i++) {
+            if (!outFields.contains(i))
+                return false;
+        }
+        return true;
+    }
+
+    /** @return true if a TopN holding limit tuples of td stays within the
+        memory an OrderBy in its place would be given; a TopN given a
+        smaller share of its query's grant sorts its input instead */
+    private boolean topNFits(TupleDesc td) {
+        long budget = Math.min(OrderBy.getDefaultMemoryBudget(),
+                Database.getMemoryManager().getQueryGrant());
+        return limit <= budget / ExternalSort.estimateTupleSize(td);
+    }
+
+    /** @return true if the estimated number of groups of agg is more than it
+        can hold in memory; false if the tables have no statistics */
+    private boolean groupsOverflow(Aggregate agg, Map<String,TableStats> statsMap) {
+        if (groupByFields.isEmpty() || statsMap.containsValue(null))
+            return false;
+        OperatorCardinality.updateOperatorCardinality(agg, tableMap, statsMap);
+        return agg.getEstimatedCardinality() > agg.getMaxGroupsInMemory();
+    }
+
+    /** @return true if the ORDER BY names each group by field exactly once,
+        and nothing else */
+    private boolean ordersByGroups() {
+        return hasOrderBy && oByFields.size() == groupByFields.size()
+                && new HashSet<>(oByFields).equals(new HashSet<>(groupByFields));
+    }
+
+    /** @return true if outFields lists each of the first n fields exactly once */
+    private static boolean keepsAllFields(List<Integer> outFields, int n) {
+        return n > 0 && outFields.size() == n && new HashSet<>(outFields).size() == n
+                && Collections.max(outFields) == n - 1;
+    }
+
+    /** @return the index of an ORDER BY field in td; over an aggregate, which
+        names its group values groupValue or groupValueN, a group by field
+        is found by its place among them */
+    private int orderByIndex(TupleDesc td, String field) {
+        try {
+            return td.fieldNameToIndex(field);
+        } catch (NoSuchElementException e) {
+            int group = hasAgg ? groupByFields.indexOf(field) : -1;
+            String name = groupByFields.size() == 1 ? "groupValue" : "groupValue" + group;
+            if (group < 0 || group >= td.numFields() || !name.equals(td.getFieldName(group)))
+                throw e;
+            return group;
+        }
+    }
+
+    /** Put the ORDER BY and LIMIT of the query over node; only the LIMIT if
+        node already returns its rows in ORDER BY order */
+    private OpIterator orderAndLimit(OpIterator node, boolean ordered) throws ParsingException {
+        if (hasLimit && (!hasOrderBy || ordered)) {
+            // stops pulling from the plan below once it has enough rows
+            node = new Limit(limit, node);
         }
 
-        return new Project(outFields, outTypes, node);
+        if (hasOrderBy && !ordered) {
+            int[] oByIndexes = new int[oByFields.size()];
+            boolean[] asc = new boolean[oByFields.size()];
+            for (int i = 0; i < oByIndexes.length; i++) {
+                try {
+                    oByIndexes[i] = orderByIndex(node.getTupleDesc(), oByFields.get(i));
+                } catch (NoSuchElementException e) {
+                    throw new ParsingException("Unknown field " + oByFields.get(i) + " in ORDER BY");
+                }
+                asc[i] = oByAsc.get(i);
+            }
+            // only the first rows are wanted, so keep a bounded heap instead
+            // of sorting everything, unless the heap would not fit in memory
+            if (hasLimit && topNFits(node.getTupleDesc()))
+                node = new TopN(oByIndexes, asc, limit, node);
+            else if (hasLimit)
+                node = new Limit(limit, new OrderBy(oByIndexes, asc, node));
+            else
+                node = new OrderBy(oByIndexes, asc, node);
+        }
+        return node;
     }
 
     public static void main(String[] argv) {
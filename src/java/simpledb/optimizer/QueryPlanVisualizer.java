@@ -17,9 +17,53 @@ public class QueryPlanVisualizer {
     static final String RENAME = "ρ";
     static final String SCAN = "scan";
     static final String ORDERBY = "o";
+    static final String TOPN = "top";
+    static final String LIMIT = "limit";
+    static final String DISTINCT = "distinct";
+    static final String FETCH = "fetch";
     static final String GROUPBY = "g";
+    static final String STREAMING = "sorted";
     static final String SPACE = "  ";
 
+    /** Names of the sort fields, with descending ones marked */
+    private static String sortKeys(TupleDesc td, int[] fields, boolean[] asc) {
+        StringBuilder keys = new StringBuilder();
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0)
+                keys.append(",");
+            keys.append(td.getFieldName(fields[i]));
+            if (!asc[i])
+                keys.append(" desc");
+        }
+        return keys.toString();
+    }
+
+    /** The aggregates of an Aggregate node, as op(field) */
+    private static String aggregates(Aggregate a) {
+        TupleDesc td = a.getChildren()[0].getTupleDesc();
+        int[] fields = a.aggregateFields();
+        Aggregator.Op[] ops = a.aggregateOps();
+        StringBuilder aggs = new StringBuilder();
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0)
+                aggs.append(", ");
+            aggs.append(ops[i]).append("(").append(td.getFieldName(fields[i])).append(")");
+        }
+        return aggs.toString();
+    }
+
+    /** Names of the group fields of an Aggregate node */
+    private static String groupKeys(Aggregate a) {
+        TupleDesc td = a.getChildren()[0].getTupleDesc();
+        StringBuilder keys = new StringBuilder();
+        for (int gfield : a.groupFields()) {
+            if (keys.length() > 0)
+                keys.append(",");
+            keys.append(td.getFieldName(gfield));
+        }
+        return keys.toString();
+    }
+
     private int calculateQueryPlanTreeDepth(OpIterator root) {
         if (root == null)
             return 0;
@@ -175,13 +219,14 @@ public class QueryPlanVisualizer {
                 int gfield = a.groupField();
 
                 if (gfield == Aggregator.NO_GROUPING) {
-                    thisNode.text = String.format("%1$s(%2$s),card:%3$d",
-                            a.aggregateOp(), a.aggregateFieldName(),a.getEstimatedCardinality());
+                    thisNode.text = String.format("%1$s,card:%2$d",
+                            aggregates(a), a.getEstimatedCardinality());
                     alignTxt = td.getFieldName(0);
                 } else {
-                    thisNode.text = String.format("%1$s(%2$s), %3$s(%4$s),card:%5$d",
-                            GROUPBY, a.groupFieldName(), a.aggregateOp(),
-                            a.aggregateFieldName(),a.getEstimatedCardinality());
+                    // groups read one at a time from ordered input
+                    String groupBy = a.isStreaming() ? GROUPBY + " " + STREAMING : GROUPBY;
+                    thisNode.text = String.format("%1$s(%2$s), %3$s,card:%4$d",
+                            groupBy, groupKeys(a), aggregates(a), a.getEstimatedCardinality());
                     alignTxt = GROUPBY;
                 }
                 if (alignTxt.length() / 2 > parentUpperBarStartShift)
@@ -224,8 +269,8 @@ public class QueryPlanVisualizer {
                 thisNode.text = String.format(
                         "%1$s(%2$s),card:%3$d",
                         ORDERBY,
-                        children[0].getTupleDesc().getFieldName(
-                                o.getOrderByField()),o.getEstimatedCardinality());
+                        sortKeys(children[0].getTupleDesc(),
+                                o.getOrderByFields(), o.getAscending()),o.getEstimatedCardinality());
                 int upBarShift = parentUpperBarStartShift;
                 if (ORDERBY.length() / 2 > parentUpperBarStartShift)
                     upBarShift = ORDERBY.length() / 2;
@@ -240,6 +285,81 @@ public class QueryPlanVisualizer {
                                 - currentStartPosition);
                 thisNode.leftChild = child;
                 thisNode.height = currentDepth;
+            } else if (plan instanceof TopN) {
+                TopN o = (TopN) plan;
+                thisNode.text = String.format(
+                        "%1$s(%2$s,%3$d),card:%4$d",
+                        TOPN,
+                        sortKeys(children[0].getTupleDesc(),
+                                o.getOrderByFields(), o.getAscending()),o.getLimit(),o.getEstimatedCardinality());
+                int upBarShift = parentUpperBarStartShift;
+                if (TOPN.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = TOPN.length() / 2;
+                SubTreeDescriptor child = this.buildTree(queryPlanDepth,
+                        currentDepth + 2 + adjustDepth, children[0],
+                        currentStartPosition, upBarShift);
+                thisNode.upBarPosition = child.upBarPosition;
+                thisNode.textStartPosition = thisNode.upBarPosition
+                        - TOPN.length() / 2;
+                thisNode.width = Math.max(child.width,
+                        thisNode.textStartPosition + thisNode.text.length()
+                                - currentStartPosition);
+                thisNode.leftChild = child;
+                thisNode.height = currentDepth;
+            } else if (plan instanceof Limit) {
+                Limit o = (Limit) plan;
+                thisNode.text = String.format("%1$s(%2$d),card:%3$d", LIMIT,
+                        o.getLimit(), o.getEstimatedCardinality());
+                int upBarShift = parentUpperBarStartShift;
+                if (LIMIT.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = LIMIT.length() / 2;
+                SubTreeDescriptor child = this.buildTree(queryPlanDepth,
+                        currentDepth + 2 + adjustDepth, children[0],
+                        currentStartPosition, upBarShift);
+                thisNode.upBarPosition = child.upBarPosition;
+                thisNode.textStartPosition = thisNode.upBarPosition
+                        - LIMIT.length() / 2;
+                thisNode.width = Math.max(child.width,
+                        thisNode.textStartPosition + thisNode.text.length()
+                                - currentStartPosition);
+                thisNode.leftChild = child;
+                thisNode.height = currentDepth;
+            } else if (plan instanceof Distinct) {
+                Distinct o = (Distinct) plan;
+                thisNode.text = String.format("%1$s,card:%2$d", DISTINCT,
+                        o.getEstimatedCardinality());
+                int upBarShift = parentUpperBarStartShift;
+                if (DISTINCT.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = DISTINCT.length() / 2;
+                SubTreeDescriptor child = this.buildTree(queryPlanDepth,
+                        currentDepth + 2 + adjustDepth, children[0],
+                        currentStartPosition, upBarShift);
+                thisNode.upBarPosition = child.upBarPosition;
+                thisNode.textStartPosition = thisNode.upBarPosition
+                        - DISTINCT.length() / 2;
+                thisNode.width = Math.max(child.width,
+                        thisNode.textStartPosition + thisNode.text.length()
+                                - currentStartPosition);
+                thisNode.leftChild = child;
+                thisNode.height = currentDepth;
+            } else if (plan instanceof Fetch) {
+                Fetch o = (Fetch) plan;
+                thisNode.text = String.format("%1$s,card:%2$d", FETCH,
+                        o.getEstimatedCardinality());
+                int upBarShift = parentUpperBarStartShift;
+                if (FETCH.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = FETCH.length() / 2;
+                SubTreeDescriptor child = this.buildTree(queryPlanDepth,
+                        currentDepth + 2 + adjustDepth, children[0],
+                        currentStartPosition, upBarShift);
+                thisNode.upBarPosition = child.upBarPosition;
+                thisNode.textStartPosition = thisNode.upBarPosition
+                        - FETCH.length() / 2;
+                thisNode.width = Math.max(child.width,
+                        thisNode.textStartPosition + thisNode.text.length()
+                                - currentStartPosition);
+                thisNode.leftChild = child;
+                thisNode.height = currentDepth;
             } else if (plan instanceof Project) {
                 Project p = (Project) plan;
                 StringBuilder fields = new StringBuilder();
@@ -38,6 +38,8 @@ public class BufferPool {
     private int pageNum = DEFAULT_PAGES;
     private static LinkedList<Page> pages;
     private LockManager manager;
+    /** The version of each table, moved on by each commit that wrote to it */
+    private final ConcurrentHashMap<Integer, Long> tableVersions = new ConcurrentHashMap<>();
     /**
      * Creates a BufferPool that caches up to numPages pages.
      *
@@ -78,9 +80,13 @@ public class BufferPool {
      * @param tid the ID of the transaction requesting the page
      * @param pid the ID of the requested page
      * @param perm the requested permissions on the page
+     * @throws simpledb.transaction.QueryCancelledException if the statement
+     *         tid is running has been cancelled
      */
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
         throws TransactionAbortedException, DbException {
+        if (tid != null)
+            tid.checkCancelled();
         manager.acquireLock(tid, pid, perm);
         synchronized (this) {
             int len = pages.size();
@@ -104,6 +110,50 @@ public class BufferPool {
         return manager;
     }
 
+    /**
+     * @return a number that changes whenever a transaction that wrote to the
+     *         given table commits, so that results read from the table can
+     *         be recognized as out of date
+     */
+    public long getTableVersion(int tableId) {
+        return tableVersions.getOrDefault(tableId, 0L);
+    }
+
+    /** @return true if tid holds a lock on any page */
+    public boolean holdsLocks(TransactionId tid) {
+        return !manager.getTransLocks(tid).isEmpty();
+    }
+
+    /**
+     * Lock every page a scan of a table would read, without reading the
+     * pages, for a query that is answered without scanning the table.
+     *
+     * @return false, taking no locks, if the table is not a heap file, whose
+     *         pages can not be listed without reading them
+     */
+    public boolean lockTable(TransactionId tid, int tableId, Permissions perm)
+            throws TransactionAbortedException {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        if (!(file instanceof HeapFile))
+            return false;
+        int pages = ((HeapFile) file).numPages();
+        for (int i = 0; i < pages; i++) {
+            if (tid != null)
+                tid.checkCancelled();
+            manager.acquireLock(tid, new HeapPageId(tableId, i), perm);
+        }
+        return true;
+    }
+
+    /** @return true if tid holds a write lock on any page */
+    public boolean holdsWriteLock(TransactionId tid) {
+        for (LockManager.PageLock lock : manager.getTransLocks(tid)) {
+            if (lock.perm == Permissions.READ_WRITE)
+                return true;
+        }
+        return false;
+    }
+
     /**
      * Releases the lock on a page.
      * Calling this is very risky, and may result in wrong behavior. Think hard
@@ -166,14 +216,28 @@ public class BufferPool {
             } catch (IOException e) {
                 e.printStackTrace();
             }
+            // before the locks go, so that nobody reads the new contents
+            // under the old version
+            for (LockManager.PageLock lock : locks) {
+                if (lock.perm == Permissions.READ_WRITE)
+                    tableVersions.merge(lock.pid.getTableId(), 1L, Long::sum);
+            }
         } else {
             for (LockManager.PageLock lock : locks) {
                 discardPage(lock.pid);
+                if (lock.perm == Permissions.READ_WRITE && lock.pid instanceof HeapPageId) {
+                    // slots the transaction filled are empty again
+                    DbFile dbFile = Database.getCatalog().getDatabaseFile(lock.pid.getTableId());
+                    if (dbFile instanceof HeapFile)
+                        ((HeapFile) dbFile).noteFreeSpace(lock.pid.getPageNumber());
+                }
             }
         }
         for (LockManager.PageLock lock : locks) {
             unsafeReleasePage(tid, lock.pid);
         }
+        // queries the transaction did not close give their memory back
+        Database.getMemoryManager().releaseAll(tid);
     }
 
     /**
@@ -208,6 +272,32 @@ public class BufferPool {
         }
     }
 
+    /**
+     * Add a batch of tuples to the specified table on behalf of transaction
+     * tid, as {@link #insertTuple} does for one. Files that support it
+     * (see {@link DbFile#insertTuples}) fill each page with as many of the
+     * tuples as fit, so locks are acquired and dirty pages registered once
+     * per page rather than once per tuple.
+     *
+     * @param tid the transaction adding the tuples
+     * @param tableId the table to add the tuples to
+     * @param ts the tuples to add
+     */
+    public void insertTuples(TransactionId tid, int tableId, List<Tuple> ts)
+        throws DbException, IOException, TransactionAbortedException {
+        DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
+        List<Page> dirtyPages = dbFile.insertTuples(tid, ts);
+        for (Page page : dirtyPages)
+            page.markDirty(true, tid);
+        synchronized (this) {
+            for (Page page : dirtyPages) {
+                if (!pages.contains(page)) {
+                    pages.add(page);
+                }
+            }
+        }
+    }
+
     /**
      * Remove the specified tuple from the buffer pool.
      * Will acquire a write lock on the page the tuple is removed from and any
@@ -239,6 +329,40 @@ public class BufferPool {
         }
     }
 
+    /**
+     * Remove a batch of tuples from the buffer pool, as {@link #deleteTuple}
+     * does for one. The tuples are grouped by table, and files that support
+     * it (see {@link DbFile#deleteTuples}) group them by page, so each page
+     * is locked and registered as dirty once rather than once per tuple.
+     *
+     * @param tid the transaction deleting the tuples.
+     * @param ts the tuples to delete
+     */
+    public void deleteTuples(TransactionId tid, List<Tuple> ts)
+        throws DbException, IOException, TransactionAbortedException {
+        Map<Integer, List<Tuple>> byTable = new LinkedHashMap<>();
+        for (Tuple t : ts) {
+            if (t.getRecordId() == null)
+                throw new DbException("the tuple is not stored in a table.");
+            byTable.computeIfAbsent(t.getRecordId().getPageId().getTableId(),
+                    id -> new ArrayList<>()).add(t);
+        }
+        List<Page> dirtyPages = new ArrayList<>();
+        for (Map.Entry<Integer, List<Tuple>> e : byTable.entrySet()) {
+            DbFile dbFile = Database.getCatalog().getDatabaseFile(e.getKey());
+            dirtyPages.addAll(dbFile.deleteTuples(tid, e.getValue()));
+        }
+        for (Page page : dirtyPages)
+            page.markDirty(true, tid);
+        synchronized (this) {
+            for (Page page : dirtyPages) {
+                if (!pages.contains(page)) {
+                    pages.add(page);
+                }
+            }
+        }
+    }
+
     /**
      * Flush all dirty pages to disk.
      * NB: Be careful using this routine -- it writes dirty data to disk so will
@@ -48,6 +48,27 @@ public interface DbFile {
     List<Page> insertTuple(TransactionId tid, Tuple t)
         throws DbException, IOException, TransactionAbortedException;
 
+    /**
+     * Inserts each of the specified tuples to the file on behalf of
+     * transaction, as {@link #insertTuple} does. Files that can place many
+     * tuples on a page at once override this; by default the tuples are
+     * inserted one at a time.
+     *
+     * @param tid The transaction performing the update
+     * @param ts The tuples to add. Each is updated to reflect that it is
+     *           now stored in this file.
+     * @return A List of the pages that were modified, each once
+     * @throws DbException if a tuple cannot be added
+     * @throws IOException if the needed file can't be read/written
+     */
+    default List<Page> insertTuples(TransactionId tid, List<Tuple> ts)
+        throws DbException, IOException, TransactionAbortedException {
+        Set<Page> dirtyPages = new LinkedHashSet<>();
+        for (Tuple t : ts)
+            dirtyPages.addAll(insertTuple(tid, t));
+        return new ArrayList<>(dirtyPages);
+    }
+
     /**
      * Removes the specified tuple from the file on behalf of the specified
      * transaction.
@@ -64,6 +85,26 @@ public interface DbFile {
     List<Page> deleteTuple(TransactionId tid, Tuple t)
         throws DbException, IOException, TransactionAbortedException;
 
+    /**
+     * Removes each of the specified tuples from the file on behalf of the
+     * specified transaction, as {@link #deleteTuple} does. Files that can
+     * clear many slots of a page at once override this; by default the
+     * tuples are deleted one at a time.
+     *
+     * @param tid The transaction performing the update
+     * @param ts The tuples to delete
+     * @return A List of the pages that were modified, each once
+     * @throws DbException if a tuple cannot be deleted or is not a member
+     *   of the file
+     */
+    default List<Page> deleteTuples(TransactionId tid, List<Tuple> ts)
+        throws DbException, IOException, TransactionAbortedException {
+        Set<Page> dirtyPages = new LinkedHashSet<>();
+        for (Tuple t : ts)
+            dirtyPages.addAll(deleteTuple(tid, t));
+        return new ArrayList<>(dirtyPages);
+    }
+
     /**
      * Returns an iterator over all the tuples stored in this DbFile. The
      * iterator must use {@link BufferPool#getPage}, rather than
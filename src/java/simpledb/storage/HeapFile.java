@@ -10,6 +10,7 @@ import simpledb.transaction.TransactionId;
 import javax.xml.crypto.Data;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * HeapFile is an implementation of a DbFile that stores a collection of tuples
@@ -23,8 +24,17 @@ import java.util.*;
  */
 public class HeapFile implements DbFile {
 
+    /** The most empty pages a bulk insert appends to the file at a time */
+    private static final int APPEND_PAGES = 16;
+
     private File file;
     private TupleDesc tupleDesc;
+    /**
+     * No page before this one has an empty slot, as far as bulk inserts
+     * know; lowered when tuples are deleted or a transaction that inserted
+     * is rolled back
+     */
+    private final AtomicInteger insertHint = new AtomicInteger();
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -155,18 +165,92 @@ public class HeapFile implements DbFile {
             }
             Database.getBufferPool().unsafeReleasePage(tid, pageId);
         }
-        byte[] data = HeapPage.createEmptyPageData();
-        BufferedOutputStream bw = new BufferedOutputStream(new FileOutputStream(file, true));
-        bw.write(data);
-        bw.close();
         HeapPage newPage = (HeapPage) Database.getBufferPool().getPage
-                (tid, new HeapPageId(tableId, pageNum), Permissions.READ_WRITE);
+                (tid, new HeapPageId(tableId, appendEmptyPages(1)), Permissions.READ_WRITE);
         newPage.insertTuple(t);
         dirtyPages.add(newPage);
         return dirtyPages;
         // not necessary for lab1
     }
 
+    /**
+     * Inserts the tuples of ts in order, filling one page before moving on
+     * to the next. Each page is fetched, and so locked, once however many of
+     * the tuples go on it, pages known to be full are skipped, and new pages
+     * are appended to the file several at a time.
+     *
+     * @param tid The transaction performing the update
+     * @param ts The tuples to add; each is updated to reflect where it is
+     *           stored
+     * @return the pages that were modified, each once
+     * @throws DbException if a tuple cannot be added
+     * @throws IOException if new pages cannot be appended to the file
+     */
+    public List<Page> insertTuples(TransactionId tid, List<Tuple> ts)
+            throws DbException, IOException, TransactionAbortedException {
+        int tableId = getId();
+        List<Page> dirtyPages = new ArrayList<>();
+        int next = 0;
+        int start = insertHint.get();
+        int hint = start;
+        int pageNum = numPages();
+        for (int i = hint; i < pageNum && next < ts.size(); i++) {
+            PageId pageId = new HeapPageId(tableId, i);
+            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_WRITE);
+            int added = page.insertTuples(ts, next);
+            if (added > 0) {
+                dirtyPages.add(page);
+                next += added;
+            } else if (page.isDirty() == null) {
+                Database.getBufferPool().unsafeReleasePage(tid, pageId);
+            }
+            if (i == hint && page.getNumEmptySlots() == 0)
+                hint++;
+        }
+        // only move the hint on from where this insert found it: if a delete
+        // or an abort has lowered it since, that page has room again
+        if (hint > start)
+            insertHint.compareAndSet(start, hint);
+        int slots = BufferPool.getPageSize() * 8 / (tupleDesc.getSize() * 8 + 1);
+        while (next < ts.size()) {
+            int count = Math.min(APPEND_PAGES, (ts.size() - next + slots - 1) / slots);
+            int first = appendEmptyPages(count);
+            for (int i = first; i < first + count && next < ts.size(); i++) {
+                HeapPage page = (HeapPage) Database.getBufferPool().getPage(
+                        tid, new HeapPageId(tableId, i), Permissions.READ_WRITE);
+                int added = page.insertTuples(ts, next);
+                if (added > 0) {
+                    dirtyPages.add(page);
+                    next += added;
+                }
+            }
+        }
+        return dirtyPages;
+    }
+
+    /**
+     * Append count empty pages to the end of the file in one write.
+     *
+     * @return the number of the first page appended
+     */
+    private synchronized int appendEmptyPages(int count) throws IOException {
+        int first = numPages();
+        try (BufferedOutputStream bw = new BufferedOutputStream(new FileOutputStream(file, true))) {
+            byte[] data = HeapPage.createEmptyPageData();
+            for (int i = 0; i < count; i++)
+                bw.write(data);
+        }
+        return first;
+    }
+
+    /**
+     * Note that page pageNo may have empty slots again, so that bulk inserts
+     * look at it.
+     */
+    void noteFreeSpace(int pageNo) {
+        insertHint.accumulateAndGet(pageNo, Math::min);
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
@@ -179,22 +263,108 @@ public class HeapFile implements DbFile {
         }
         HeapPage heapPage = (HeapPage) page;
         heapPage.deleteTuple(t);
+        noteFreeSpace(pageId.getPageNumber());
         ArrayList<Page> pages = new ArrayList<>();
         pages.add(page);
         return pages;
         // not necessary for lab1
     }
 
+    /**
+     * Deletes the tuples of ts, grouped by the page they are on, so that each
+     * page is fetched, and so locked, once however many of the tuples are on
+     * it.
+     *
+     * @param tid The transaction performing the update
+     * @param ts The tuples to delete
+     * @return the pages that were modified, each once
+     * @throws DbException if a tuple is not a member of the file
+     */
+    public List<Page> deleteTuples(TransactionId tid, List<Tuple> ts) throws DbException,
+            TransactionAbortedException {
+        Map<PageId, List<Tuple>> byPage = new LinkedHashMap<>();
+        for (Tuple t : ts) {
+            RecordId recordId = t.getRecordId();
+            if (recordId == null || recordId.getPageId().getTableId() != getId())
+                throw new DbException("the tuple is not a member of the file.");
+            byPage.computeIfAbsent(recordId.getPageId(), pid -> new ArrayList<>()).add(t);
+        }
+        List<Page> dirtyPages = new ArrayList<>(byPage.size());
+        for (Map.Entry<PageId, List<Tuple>> e : byPage.entrySet()) {
+            HeapPage heapPage = (HeapPage) Database.getBufferPool().getPage(
+                    tid, e.getKey(), Permissions.READ_WRITE);
+            for (Tuple t : e.getValue())
+                heapPage.deleteTuple(t);
+            noteFreeSpace(e.getKey().getPageNumber());
+            dirtyPages.add(heapPage);
+        }
+        return dirtyPages;
+    }
+
+    /** @return the number of tuple slots on each page of this file */
+    public int slotsPerPage() {
+        return (BufferPool.getPageSize() * 8) / (tupleDesc.getSize() * 8 + 1);
+    }
+
+    /**
+     * @return a number for the tuple at rid that is unique within this file,
+     *         its page number times the slots on a page plus its slot
+     */
+    public int rowId(RecordId rid) {
+        return rid.getPageId().getPageNumber() * slotsPerPage() + rid.getTupleNumber();
+    }
+
+    /** @return the location of the tuple with the given row id */
+    public RecordId recordId(int rowId) {
+        int slots = slotsPerPage();
+        return new RecordId(new HeapPageId(getId(), rowId / slots), rowId % slots);
+    }
+
+    /**
+     * Reads a single tuple through the buffer pool, locking its page for
+     * reading.
+     *
+     * @param tid the transaction reading the tuple
+     * @param rid the location of the tuple
+     * @return the tuple at rid
+     * @throws DbException if there is no tuple at rid
+     */
+    public Tuple fetchTuple(TransactionId tid, RecordId rid) throws DbException,
+            TransactionAbortedException {
+        if (rid.getPageId().getTableId() != getId())
+            throw new DbException("the record is not a member of the file.");
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(
+                tid, rid.getPageId(), Permissions.READ_ONLY);
+        Tuple t = page.getTuple(rid.getTupleNumber());
+        if (t == null)
+            throw new DbException("no tuple at " + rid);
+        return t;
+    }
+
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
         // some code goes here
+        return iterator(tid, 0, -1);
+    }
+
+    /**
+     * Returns an iterator over the tuples on pages [startPage, endPage) of
+     * this file. Iterators over disjoint page ranges may be used from
+     * different threads at the same time.
+     *
+     * @param tid the transaction reading the pages
+     * @param startPage the first page to read
+     * @param endPage one past the last page to read, or -1 to read to the end
+     *                of the file as it is when the iterator gets there
+     */
+    public DbFileIterator iterator(TransactionId tid, int startPage, int endPage) {
         return new DbFileIterator() {
             private int pageCursor = -1;
             private Iterator<Tuple> it;
 
             @Override
             public void open() throws DbException, TransactionAbortedException {
-                pageCursor = 0;
+                pageCursor = startPage;
                 it = null;
             }
 
@@ -202,7 +372,7 @@ public class HeapFile implements DbFile {
             public boolean hasNext() throws DbException, TransactionAbortedException {
                 if (it != null && it.hasNext()) {
                     return true;
-                } else if (pageCursor < 0 || pageCursor >= numPages()) {
+                } else if (pageCursor < 0 || pageCursor >= (endPage < 0 ? numPages() : endPage)) {
                     return false;
                 } else {
                     HeapPage heapPage = (HeapPage) Database.getBufferPool().getPage(
@@ -223,9 +393,81 @@ public class HeapFile implements DbFile {
 
             @Override
             public void rewind() throws DbException, TransactionAbortedException {
-                pageCursor = 0;
+                pageCursor = startPage;
+                it = null;
+            }
+
+            @Override
+            public void close() {
+                pageCursor = -1;
                 it = null;
             }
+        };
+    }
+
+    /**
+     * Returns an iterator over the tuples on the pages this iterator claims
+     * from morsels, a morsel at a time, until morsels runs out. Iterators
+     * sharing one MorselCursor may be used from different threads at the
+     * same time, and together return every tuple of the file once.
+     * <p>
+     * The iterator cannot be rewound on its own, since the pages it read
+     * have been claimed from the others; reset the cursor once all of them
+     * are closed and open them again instead.
+     *
+     * @param tid the transaction reading the pages
+     * @param morsels the cursor to claim morsels of this file's pages from
+     */
+    public DbFileIterator iterator(TransactionId tid, MorselCursor morsels) {
+        if (morsels.getFile() != this)
+            throw new IllegalArgumentException("the morsel cursor is over another file");
+        return new DbFileIterator() {
+            private int pageCursor = -1;
+            private int morselEnd = -1;
+            private Iterator<Tuple> it;
+
+            @Override
+            public void open() throws DbException, TransactionAbortedException {
+                pageCursor = morselEnd = 0;
+                it = null;
+            }
+
+            @Override
+            public boolean hasNext() throws DbException, TransactionAbortedException {
+                while (it == null || !it.hasNext()) {
+                    if (pageCursor < 0)
+                        return false;
+                    if (pageCursor >= Math.min(morselEnd, numPages())) {
+                        int start = morsels.claim();
+                        if (start < 0) {
+                            pageCursor = -1;
+                            it = null;
+                            return false;
+                        }
+                        pageCursor = start;
+                        morselEnd = start + morsels.getMorselPages();
+                        continue;
+                    }
+                    HeapPage heapPage = (HeapPage) Database.getBufferPool().getPage(
+                            tid, new HeapPageId(getId(), pageCursor++), Permissions.READ_ONLY);
+                    it = heapPage.iterator();
+                }
+                return true;
+            }
+
+            @Override
+            public Tuple next() throws DbException, TransactionAbortedException, NoSuchElementException {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                } else {
+                    return it.next();
+                }
+            }
+
+            @Override
+            public void rewind() throws DbException {
+                throw new DbException("a scan sharing a morsel cursor cannot be rewound on its own");
+            }
 
             @Override
             public void close() {
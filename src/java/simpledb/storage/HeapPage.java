@@ -300,6 +300,41 @@ public class HeapPage implements Page {
         }
     }
 
+    /**
+     * Adds tuples ts[from], ts[from + 1], ... to the empty slots of the page,
+     * in one pass over the header, until the page is full or ts runs out.
+     * Each tuple added is updated to reflect that it is now on this page.
+     * @throws DbException if a tupledesc is mismatch; the tuples before it
+     *         are added.
+     * @param ts the tuples to add
+     * @param from the index in ts of the first tuple to add
+     * @return the number of tuples added
+     */
+    public int insertTuples(List<Tuple> ts, int from) throws DbException {
+        int next = from;
+        for (int i = 0; i < numSlots && next < ts.size(); i++) {
+            if (isSlotUsed(i) || tuples[i] != null)
+                continue;
+            Tuple t = ts.get(next);
+            if (!td.equals(t.getTupleDesc()))
+                throw new DbException("tupledesc is mismatch.");
+            t.setRecordId(new RecordId(pid, i));
+            tuples[i] = t;
+            markSlotUsed(i, true);
+            next++;
+        }
+        return next - from;
+    }
+
+    /**
+     * @return the tuple in slot i, or null if the slot is empty or out of range
+     */
+    public Tuple getTuple(int i) {
+        if (i < 0 || i >= numSlots || !isSlotUsed(i))
+            return null;
+        return tuples[i];
+    }
+
     /**
      * Marks this page as dirty/not dirty and record that transaction
      * that did the dirtying
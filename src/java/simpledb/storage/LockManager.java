@@ -106,6 +106,9 @@ public class LockManager {
         }
     }
 
+    /** How often a transaction waiting for a lock checks whether its statement was cancelled */
+    static final long CANCEL_POLL_MILLIS = 100;
+
     public ConcurrentHashMap<PageId, Set<TransactionId>> pageTransIds;
     public ConcurrentHashMap<TransactionId, Set<PageLock>> transLocks;
     public WaitGraph waitGraph;
@@ -138,6 +141,7 @@ public class LockManager {
         }
 
         PageLock lock = findLockForPage(pid);
+        boolean flagReading = false;
         if (perm == Permissions.READ_ONLY) {
             if (locksForTrans != null && locksForTrans.contains(new PageLock(pid, Permissions.READ_ONLY))) {
                 return;
@@ -153,15 +157,18 @@ public class LockManager {
                 }
                 while (lock.holdNum != 0) {
                     try {
-                        this.wait();
+                        this.wait(CANCEL_POLL_MILLIS);
                     } catch (InterruptedException e) {
                         e.printStackTrace();
                     }
+                    if (tid.isCancelled()) {
+                        waitGraph.removeVertex(tid);
+                        tid.checkCancelled();
+                    }
                 }
                 waitGraph.removeVertex(tid);
             }
         } else {
-            boolean flagReading = false;
             if (transOnPage.contains(tid)) {
                 if (transOnPage.size() == 1) {
                     lock.perm = Permissions.READ_WRITE;
@@ -178,17 +185,24 @@ public class LockManager {
             writerWaiting.put(pid, true);
             while (!(lock.holdNum == 0 || (lock.holdNum == 1 && flagReading))) {
                 try {
-                    this.wait();
+                    this.wait(CANCEL_POLL_MILLIS);
                 } catch (InterruptedException e) {
                     e.printStackTrace();
                 }
+                if (tid.isCancelled()) {
+                    writerWaiting.put(pid, false);
+                    waitGraph.removeVertex(tid);
+                    tid.checkCancelled();
+                }
             }
             writerWaiting.put(pid, false);
             waitGraph.removeVertex(tid);
         }
 
         lock.perm = perm;
-        lock.holdNum++;
+        // a reader upgrading its lock is already counted
+        if (!flagReading)
+            lock.holdNum++;
         if (locksForTrans == null || locksForTrans.size() == 0) {
             HashSet<PageLock> lockSet = new HashSet<>();
             lockSet.add(lock);
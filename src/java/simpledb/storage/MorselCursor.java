@@ -0,0 +1,70 @@
+package simpledb.storage;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands out the pages of a heap file in morsels, runs of consecutive pages,
+ * to scans that share the file between threads. Each scan claims a morsel,
+ * reads it, and comes back for the next, so a thread that is slowed down
+ * (by a selective filter, a cold page or a busy core) simply claims fewer
+ * morsels instead of holding up the others the way a fixed split of the
+ * pages would.
+ * <p>
+ * Morsels are claimed against the number of pages the file has at the time,
+ * so scans that are still running also read pages appended to the file.
+ */
+public class MorselCursor {
+
+    private final HeapFile file;
+    private final int morselPages;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * @param file
+     *            the file whose pages are handed out
+     * @param morselPages
+     *            the number of pages in each morsel
+     */
+    public MorselCursor(HeapFile file, int morselPages) {
+        if (morselPages < 1)
+            throw new IllegalArgumentException("a morsel must have at least one page");
+        this.file = file;
+        this.morselPages = morselPages;
+    }
+
+    /** @return the file whose pages are handed out */
+    public HeapFile getFile() {
+        return file;
+    }
+
+    /** @return the number of pages in each morsel */
+    public int getMorselPages() {
+        return morselPages;
+    }
+
+    /**
+     * Claim the next morsel. The morsel runs from the returned page up to
+     * morselPages pages further, or to the end of the file if that comes
+     * first.
+     *
+     * @return the first page of the claimed morsel, or -1 if every page of
+     *         the file has been claimed
+     */
+    public int claim() {
+        while (true) {
+            int start = next.get();
+            if (start >= file.numPages())
+                return -1;
+            if (next.compareAndSet(start, start + morselPages))
+                return start;
+        }
+    }
+
+    /**
+     * Hand out the file from its first page again. Only safe once no scan
+     * is reading from this cursor.
+     */
+    public void reset() {
+        next.set(0);
+    }
+}
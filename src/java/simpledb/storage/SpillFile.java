@@ -0,0 +1,214 @@
+package simpledb.storage;
+
+import simpledb.common.DbException;
+import simpledb.common.Type;
+
+import java.io.*;
+import java.text.ParseException;
+
+/**
+ * A temporary file of tuples that operators write when their input does not
+ * fit in memory. Tuples are appended in the same page layout HeapPage uses (a
+ * slot bitmap followed by fixed size tuple slots), and read back one page at
+ * a time. Spill files bypass the BufferPool: they are private to the operator
+ * that created it, need no locks and are never logged. The operator must
+ * {@link #delete} the file once it is done with it, also when it fails.
+ */
+public class SpillFile {
+
+    private final TupleDesc td;
+    private final File file;
+    private final int pageSize;
+    private final int slotsPerPage;
+    private final int headerSize;
+
+    private DataOutputStream out;
+    private ByteArrayOutputStream pageBody;
+    private DataOutputStream pageOut;
+    private int onPage = 0;
+    private int numPages = 0;
+    private long numTuples = 0;
+
+    /**
+     * Create an empty spill file for tuples of the given schema.
+     *
+     * @throws DbException if the temp file cannot be created
+     */
+    public SpillFile(TupleDesc td) throws DbException {
+        this.td = td;
+        this.pageSize = BufferPool.getPageSize();
+        this.slotsPerPage = (pageSize * 8) / (td.getSize() * 8 + 1);
+        this.headerSize = (slotsPerPage + 7) / 8;
+        if (slotsPerPage == 0)
+            throw new DbException("tuples of " + td.getSize() + " bytes do not fit on a page");
+        // not deleteOnExit: a long running server would keep every path
+        // until exit; the operator that owns the file deletes it instead
+        try {
+            file = File.createTempFile("spill", ".dat");
+        } catch (IOException e) {
+            throw new DbException("could not create spill file: " + e.getMessage());
+        }
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), pageSize));
+        } catch (IOException e) {
+            file.delete();
+            throw new DbException("could not create spill file: " + e.getMessage());
+        }
+        pageBody = new ByteArrayOutputStream(pageSize);
+        pageOut = new DataOutputStream(pageBody);
+    }
+
+    /** @return the schema of the tuples in this file */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the number of tuples appended so far */
+    public long numTuples() {
+        return numTuples;
+    }
+
+    /** @return the number of pages written, counting a partly filled last page */
+    public int numPages() {
+        return numPages + (onPage > 0 ? 1 : 0);
+    }
+
+    /**
+     * Append a tuple to the end of the file.
+     *
+     * @throws IllegalStateException if the file has already been finished
+     */
+    public void append(Tuple t) throws DbException {
+        if (out == null)
+            throw new IllegalStateException("spill file is finished");
+        try {
+            for (int i = 0; i < td.numFields(); i++)
+                t.getField(i).serialize(pageOut);
+            numTuples++;
+            if (++onPage == slotsPerPage)
+                writePage();
+        } catch (IOException e) {
+            throw new DbException("could not write spill file: " + e.getMessage());
+        }
+    }
+
+    private void writePage() throws IOException {
+        byte[] header = new byte[headerSize];
+        for (int i = 0; i < onPage; i++)
+            header[i / 8] |= 1 << (i % 8);
+        out.write(header);
+        pageBody.writeTo(out);
+        for (int i = headerSize + pageBody.size(); i < pageSize; i++)
+            out.write(0);
+        pageBody.reset();
+        onPage = 0;
+        numPages++;
+    }
+
+    /**
+     * Write out the last partial page. No more tuples may be appended, and the
+     * file may now be read.
+     */
+    public void finish() throws DbException {
+        if (out == null)
+            return;
+        try {
+            if (onPage > 0)
+                writePage();
+            out.close();
+        } catch (IOException e) {
+            throw new DbException("could not write spill file: " + e.getMessage());
+        }
+        out = null;
+        pageBody = null;
+        pageOut = null;
+    }
+
+    /** Remove the file from disk. */
+    public void delete() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException ignored) {
+            }
+            out = null;
+        }
+        file.delete();
+    }
+
+    /**
+     * @return an iterator over the tuples of this file in the order they were
+     *         appended. The file must be finished first.
+     */
+    public DbFileIterator iterator() {
+        if (out != null)
+            throw new IllegalStateException("spill file is not finished");
+        return new SpillFileIterator();
+    }
+
+    private class SpillFileIterator extends AbstractDbFileIterator {
+        private DataInputStream in;
+        private final byte[] page = new byte[pageSize];
+        private DataInputStream pageIn;
+        private int slot;
+
+        @Override
+        public void open() throws DbException {
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), pageSize));
+            } catch (IOException e) {
+                throw new DbException("could not open spill file: " + e.getMessage());
+            }
+            pageIn = null;
+        }
+
+        @Override
+        protected Tuple readNext() throws DbException {
+            if (in == null)
+                return null;
+            try {
+                while (true) {
+                    if (pageIn == null || slot == slotsPerPage) {
+                        if (in.read(page, 0, 1) < 0)
+                            return null;
+                        in.readFully(page, 1, pageSize - 1);
+                        pageIn = new DataInputStream(new ByteArrayInputStream(page));
+                        pageIn.skipBytes(headerSize);
+                        slot = 0;
+                    }
+                    int s = slot++;
+                    if ((page[s / 8] >> (s % 8) & 1) == 0) {
+                        pageIn.skipBytes(td.getSize());
+                        continue;
+                    }
+                    Tuple t = new Tuple(td);
+                    for (int i = 0; i < td.numFields(); i++) {
+                        Type type = td.getFieldType(i);
+                        t.setField(i, type.parse(pageIn));
+                    }
+                    return t;
+                }
+            } catch (IOException | ParseException e) {
+                throw new DbException("could not read spill file: " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void rewind() throws DbException {
+            close();
+            open();
+        }
+
+        @Override
+        public void close() {
+            super.close();
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+                in = null;
+            }
+        }
+    }
+}
@@ -3,21 +3,27 @@ package simpledb.storage;
 import simpledb.common.Type;
 
 import java.io.Serializable;
-import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 /**
  * Tuple maintains information about the contents of a tuple. Tuples have a
  * specified schema specified by a TupleDesc object and contain Field objects
  * with the data for each field.
+ * <p>
+ * A tuple can also be a view over other tuples, as returned by
+ * {@link #project} and {@link #concat}: its fields are read from the
+ * underlying tuples, so projections and joins return one small object per
+ * row instead of copying every field reference into a new tuple. A view
+ * copies the fields out of the underlying tuples the first time one of its
+ * fields is set.
  */
 public class Tuple implements Serializable {
 
     private static final long serialVersionUID = 1L;
 
     private TupleDesc tupleDesc;
-    private ArrayList<Field> fields;
+    private Field[] fields;
     private RecordId recordId;
 
     /**
@@ -31,16 +37,80 @@ public class Tuple implements Serializable {
         // some code goes here
         tupleDesc = td;
         int len = td.numFields();
-        fields = new ArrayList<>(len);
+        fields = new Field[len];
         for (int i = 0; i < len; i++) {
             if (td.getFieldType(i) == Type.INT_TYPE) {
-                fields.add(new IntField(0));
+                fields[i] = new IntField(0);
             } else {
-                fields.add(new StringField("", Type.STRING_LEN));
+                fields[i] = new StringField("", Type.STRING_LEN);
             }
         }
     }
 
+    /**
+     * Create a new tuple with the specified schema and fields.
+     *
+     * @param td
+     *            the schema of this tuple
+     * @param fields
+     *            the value of each field; the array becomes part of the
+     *            tuple and is not copied
+     */
+    public Tuple(TupleDesc td, Field[] fields) {
+        if (fields.length != td.numFields())
+            throw new IllegalArgumentException("expected " + td.numFields() + " fields, got " + fields.length);
+        tupleDesc = td;
+        this.fields = fields;
+    }
+
+    /**
+     * Create a tuple with no schema and no fields, for the views returned by
+     * {@link #project} and {@link #concat}. The public constructors allocate
+     * the fields, which a view reads from the underlying tuples instead; the
+     * view sets its schema with {@link #resetTupleDesc}.
+     */
+    private Tuple() {
+    }
+
+    /**
+     * Create a view of some of the fields of a tuple, in a new order. The
+     * view has the RecordId of t.
+     *
+     * @param t
+     *            the tuple to project
+     * @param td
+     *            the schema of the view
+     * @param fieldMap
+     *            the index in t of each field of the view; it is not copied,
+     *            so callers must not change it while views over it are in use
+     */
+    public static Tuple project(Tuple t, TupleDesc td, int[] fieldMap) {
+        Projection view = new Projection(td, t, fieldMap);
+        view.setRecordId(t.getRecordId());
+        return view;
+    }
+
+    /**
+     * Create a view of the fields of t1 followed by the fields of t2, as
+     * returned by joins.
+     *
+     * @param t1
+     *            the tuple whose fields come first
+     * @param t2
+     *            the tuple whose fields come last
+     * @param td
+     *            the schema of the view, the fields of t1 followed by those
+     *            of t2
+     */
+    public static Tuple concat(Tuple t1, Tuple t2, TupleDesc td) {
+        return new Concatenation(td, t1, t2);
+    }
+
+    /** @return the value of the ith field of a view that has not been set */
+    Field viewField(int i) {
+        throw new IllegalStateException("not a view");
+    }
+
     /**
      * @return The TupleDesc representing the schema of this tuple.
      */
@@ -79,7 +149,13 @@ public class Tuple implements Serializable {
      */
     public void setField(int i, Field f) {
         // some code goes here
-        fields.set(i, f);
+        if (fields == null) {
+            Field[] copy = new Field[tupleDesc.numFields()];
+            for (int j = 0; j < copy.length; j++)
+                copy[j] = viewField(j);
+            fields = copy;
+        }
+        fields[i] = f;
     }
 
     /**
@@ -90,7 +166,7 @@ public class Tuple implements Serializable {
      */
     public Field getField(int i) {
         // some code goes here
-        return fields.get(i);
+        return fields != null ? fields[i] : viewField(i);
     }
 
     /**
@@ -103,13 +179,13 @@ public class Tuple implements Serializable {
      */
     public String toString() {
         // some code goes here
-        String str = "";
-        int len = fields.size();
-        str += fields.get(0).toString();
+        StringBuilder str = new StringBuilder();
+        int len = tupleDesc.numFields();
+        str.append(getField(0));
         for (int i = 1; i < len; i++) {
-            str += "\t" + fields.get(i).toString();
+            str.append("\t").append(getField(i));
         }
-        return str;
+        return str.toString();
     }
 
     /**
@@ -119,7 +195,21 @@ public class Tuple implements Serializable {
     public Iterator<Field> fields()
     {
         // some code goes here
-        return fields.iterator();
+        return new Iterator<Field>() {
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < tupleDesc.numFields();
+            }
+
+            @Override
+            public Field next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return getField(next++);
+            }
+        };
     }
 
     /**
@@ -139,18 +229,56 @@ public class Tuple implements Serializable {
         if (o == null) {
             return false;
         }
-        if (this.getClass() != o.getClass()) {
+        if (!(o instanceof Tuple)) {
             return false;
         }
         Tuple t = (Tuple) o;
         if (!this.tupleDesc.equals(t.getTupleDesc())) {
             return false;
         }
-        for (int i = 0; i < fields.size(); i++) {
+        for (int i = 0; i < tupleDesc.numFields(); i++) {
             if (!this.getField(i).equals(t.getField(i))) {
                 return false;
             }
         }
         return true;
     }
+
+    /** A view of some of the fields of a tuple */
+    private static final class Projection extends Tuple {
+        private static final long serialVersionUID = 1L;
+        private final Tuple source;
+        private final int[] fieldMap;
+
+        Projection(TupleDesc td, Tuple source, int[] fieldMap) {
+            resetTupleDesc(td);
+            this.source = source;
+            this.fieldMap = fieldMap;
+        }
+
+        @Override
+        Field viewField(int i) {
+            return source.getField(fieldMap[i]);
+        }
+    }
+
+    /** A view of the fields of two tuples, one after the other */
+    private static final class Concatenation extends Tuple {
+        private static final long serialVersionUID = 1L;
+        private final Tuple first;
+        private final Tuple second;
+        private final int split;
+
+        Concatenation(TupleDesc td, Tuple first, Tuple second) {
+            resetTupleDesc(td);
+            this.first = first;
+            this.second = second;
+            this.split = first.getTupleDesc().numFields();
+        }
+
+        @Override
+        Field viewField(int i) {
+            return i < split ? first.getField(i) : second.getField(i - split);
+        }
+    }
 }
@@ -0,0 +1,239 @@
+package simpledb.storage;
+
+import simpledb.common.Type;
+
+import java.util.List;
+
+/**
+ * TupleBatch holds a run of tuples column by column, so that operators can
+ * work on many tuples per call instead of one. INT fields are stored as
+ * primitive int arrays, which can be read without unwrapping an IntField per
+ * value; other fields are stored as arrays of Field.
+ * <p>
+ * Rows [0, size()) are valid. A batch belongs to whoever received it from
+ * nextBatch, who may filter it in place or pass it on.
+ */
+public class TupleBatch {
+
+    /** Number of rows operators put in a batch unless told otherwise */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final TupleDesc td;
+    /** Per field, an int[] for INT fields or a Field[] otherwise */
+    private final Object[] columns;
+    private final RecordId[] recordIds;
+    private int size;
+
+    /**
+     * Create an empty batch of DEFAULT_CAPACITY rows.
+     *
+     * @param td
+     *            the schema of the batch's tuples
+     */
+    public TupleBatch(TupleDesc td) {
+        this(td, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create an empty batch.
+     *
+     * @param td
+     *            the schema of the batch's tuples
+     * @param capacity
+     *            the number of rows the batch can hold
+     */
+    public TupleBatch(TupleDesc td, int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("capacity must be positive");
+        this.td = td;
+        this.columns = new Object[td.numFields()];
+        for (int i = 0; i < columns.length; i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE)
+                columns[i] = new int[capacity];
+            else
+                columns[i] = new Field[capacity];
+        }
+        this.recordIds = new RecordId[capacity];
+        this.size = 0;
+    }
+
+    /** A batch over existing columns; used to project without copying */
+    private TupleBatch(TupleDesc td, Object[] columns, RecordId[] recordIds, int size) {
+        this.td = td;
+        this.columns = columns;
+        this.recordIds = recordIds;
+        this.size = size;
+    }
+
+    /** @return the schema of the batch's tuples */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** @return the number of rows in the batch */
+    public int size() {
+        return size;
+    }
+
+    /** @return the number of rows the batch can hold */
+    public int capacity() {
+        return recordIds.length;
+    }
+
+    /** @return true if no more rows can be added */
+    public boolean isFull() {
+        return size == recordIds.length;
+    }
+
+    /** Remove all rows. */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Append a row holding the fields of t.
+     *
+     * @throws IllegalStateException
+     *             if the batch is full
+     */
+    public void add(Tuple t) {
+        int row = addRow();
+        for (int i = 0; i < columns.length; i++)
+            setField(i, row, t.getField(i));
+        recordIds[row] = t.getRecordId();
+    }
+
+    /**
+     * Append a row whose fields are all unset, to be filled in with the
+     * setters.
+     *
+     * @return the index of the new row
+     * @throws IllegalStateException
+     *             if the batch is full
+     */
+    public int addRow() {
+        if (isFull())
+            throw new IllegalStateException("batch is full");
+        recordIds[size] = null;
+        return size++;
+    }
+
+    /**
+     * @return the values of INT field i, valid for rows [0, size())
+     * @throws ClassCastException
+     *             if field i is not an INT field
+     */
+    public int[] intColumn(int i) {
+        return (int[]) columns[i];
+    }
+
+    /** @return the value of INT field i in the given row */
+    public int getInt(int i, int row) {
+        return ((int[]) columns[i])[row];
+    }
+
+    /** @return field i of the given row */
+    public Field getField(int i, int row) {
+        Object column = columns[i];
+        if (column instanceof int[])
+            return new IntField(((int[]) column)[row]);
+        return ((Field[]) column)[row];
+    }
+
+    /** Set field i of the given row. */
+    public void setField(int i, int row, Field f) {
+        Object column = columns[i];
+        if (column instanceof int[])
+            ((int[]) column)[row] = ((IntField) f).getValue();
+        else
+            ((Field[]) column)[row] = f;
+    }
+
+    /**
+     * Set field i of the given row to field srcField of row srcRow of src,
+     * which must have the same type.
+     */
+    public void copyField(int i, int row, TupleBatch src, int srcField, int srcRow) {
+        Object column = columns[i];
+        if (column instanceof int[])
+            ((int[]) column)[row] = ((int[]) src.columns[srcField])[srcRow];
+        else
+            ((Field[]) column)[row] = ((Field[]) src.columns[srcField])[srcRow];
+    }
+
+    /** @return the location on disk of the given row, or null if unknown */
+    public RecordId getRecordId(int row) {
+        return recordIds[row];
+    }
+
+    /** Set the location on disk of the given row. */
+    public void setRecordId(int row, RecordId rid) {
+        recordIds[row] = rid;
+    }
+
+    /**
+     * @return the given row as a Tuple
+     */
+    public Tuple getTuple(int row) {
+        Tuple t = new Tuple(td);
+        for (int i = 0; i < columns.length; i++)
+            t.setField(i, getField(i, row));
+        t.setRecordId(recordIds[row]);
+        return t;
+    }
+
+    /**
+     * Keep only the given rows, in the given order, moving them to the front
+     * of the batch.
+     *
+     * @param rows
+     *            indexes of the rows to keep, in increasing order
+     * @param n
+     *            the number of entries of rows to use
+     */
+    public void retain(int[] rows, int n) {
+        if (n == size)
+            return;
+        for (int i = 0; i < columns.length; i++) {
+            Object column = columns[i];
+            if (sharedWithEarlier(i))
+                continue;
+            if (column instanceof int[]) {
+                int[] c = (int[]) column;
+                for (int j = 0; j < n; j++)
+                    c[j] = c[rows[j]];
+            } else {
+                Field[] c = (Field[]) column;
+                for (int j = 0; j < n; j++)
+                    c[j] = c[rows[j]];
+            }
+        }
+        for (int j = 0; j < n; j++)
+            recordIds[j] = recordIds[rows[j]];
+        size = n;
+    }
+
+    /** @return true if field i is stored in the same array as an earlier field */
+    private boolean sharedWithEarlier(int i) {
+        for (int j = 0; j < i; j++) {
+            if (columns[j] == columns[i])
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return a batch of the same rows holding only the given fields, which
+     *         shares this batch's columns rather than copying them
+     * @param projected
+     *            the schema of the result
+     * @param fields
+     *            for each field of the result, the field of this batch it is
+     */
+    public TupleBatch project(TupleDesc projected, List<Integer> fields) {
+        Object[] cols = new Object[fields.size()];
+        for (int i = 0; i < cols.length; i++)
+            cols[i] = columns[fields.get(i)];
+        return new TupleBatch(projected, cols, recordIds, size);
+    }
+}
@@ -0,0 +1,14 @@
+package simpledb.transaction;
+
+/**
+ * Exception that is thrown when the query a transaction is running has been
+ * cancelled or has run past its timeout (see {@link TransactionId#cancel}).
+ * The transaction has to be aborted, which releases its locks.
+ */
+public class QueryCancelledException extends TransactionAbortedException {
+    private static final long serialVersionUID = 1L;
+
+    public QueryCancelledException(String message) {
+        super(message);
+    }
+}
@@ -5,6 +5,11 @@ import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * TransactionId is a class that contains the identifier of a transaction.
+ * <p>
+ * It also carries the cancellation state of the statement the transaction
+ * is running. Operators and the buffer pool call {@link #checkCancelled} as
+ * they go, so that a statement that was cancelled, from another thread or by
+ * running past its deadline, stops at the next tuple or page it reads.
  */
 public class TransactionId implements Serializable {
 
@@ -12,6 +17,9 @@ public class TransactionId implements Serializable {
 
     static final AtomicLong counter = new AtomicLong(0);
     final long myid;
+    private transient volatile boolean cancelled;
+    /** System.nanoTime() after which the statement is cancelled, or 0 */
+    private transient volatile long deadline;
 
     public TransactionId() {
         myid = counter.getAndIncrement();
@@ -21,6 +29,51 @@ public class TransactionId implements Serializable {
         return myid;
     }
 
+    /**
+     * Cancel the statement this transaction is running, and any statement
+     * it runs from now on, until {@link #resetCancellation} is called.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Cancel the statement this transaction is running once it has run for
+     * the given time.
+     *
+     * @param millis
+     *            the time the statement may run for; 0 for no timeout
+     */
+    public void cancelAfter(long millis) {
+        if (millis < 0)
+            throw new IllegalArgumentException("timeout must not be negative");
+        deadline = millis == 0 ? 0 : System.nanoTime() + millis * 1_000_000L;
+    }
+
+    /** Clear a cancellation and timeout, before the transaction runs its next statement */
+    public void resetCancellation() {
+        cancelled = false;
+        deadline = 0;
+    }
+
+    /** @return true if the statement this transaction is running should stop */
+    public boolean isCancelled() {
+        if (cancelled)
+            return true;
+        long d = deadline;
+        return d != 0 && System.nanoTime() - d >= 0;
+    }
+
+    /**
+     * @throws QueryCancelledException
+     *             if the statement this transaction is running should stop
+     */
+    public void checkCancelled() throws QueryCancelledException {
+        if (isCancelled())
+            throw new QueryCancelledException(cancelled ? "query cancelled"
+                    : "query ran past its timeout");
+    }
+
     @Override
 	public boolean equals(Object obj) {
 		if (this == obj)
@@ -1,6 +1,7 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
@@ -8,13 +9,38 @@ import junit.framework.JUnit4TestAdapter;
 import org.junit.Before;
 import org.junit.Test;
 
+import simpledb.common.Database;
 import simpledb.common.Type;
 import simpledb.common.Utility;
 import simpledb.execution.Aggregate;
 import simpledb.execution.Aggregator;
+import simpledb.execution.Filter;
 import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.OrderBy;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeScan;
+import simpledb.index.BTreeUtility;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class AggregateTest extends SimpleDbTestBase {
 
@@ -191,6 +217,256 @@ public class AggregateTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(min, op);
   }
 
+  /**
+   * Unit test for an Aggregate split over several threads by page range,
+   * checked against the same aggregate run serially
+   */
+  @Test public void parallelAggregate() throws Exception {
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 20000, 50, null, null);
+    TransactionId tid = new TransactionId();
+    Aggregator.Op[] ops = { Aggregator.Op.MIN, Aggregator.Op.MAX, Aggregator.Op.SUM,
+        Aggregator.Op.COUNT, Aggregator.Op.AVG };
+    for (Aggregator.Op op : ops) {
+      for (int gfield : new int[] { Aggregator.NO_GROUPING, 0 }) {
+        List<List<Integer>> serial = TestUtil.readAllSorted(new Aggregate(new SeqScan(tid, f.getId(), ""), 1, gfield, op, 1));
+        List<List<Integer>> parallel = TestUtil.readAllSorted(new Aggregate(new SeqScan(tid, f.getId(), ""), 1, gfield, op, 4));
+        assertEquals(serial, parallel);
+      }
+    }
+
+    // filters above the scan are split along with it
+    Predicate p = new Predicate(1, Predicate.Op.LESS_THAN, new IntField(10));
+    assertEquals(TestUtil.readAllSorted(new Aggregate(new Filter(p, new SeqScan(tid, f.getId(), "")), 1, 0, Aggregator.Op.AVG, 1)),
+        TestUtil.readAllSorted(new Aggregate(new Filter(p, new SeqScan(tid, f.getId(), "")), 1, 0, Aggregator.Op.AVG, 3)));
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Unit test for a GROUP BY with more groups than fit in the memory budget,
+   * so groups are partitioned to disk, checked against an in-memory run
+   */
+  @Test public void spilledAggregate() throws Exception {
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 20000, 100000, null, null);
+    TransactionId tid = new TransactionId();
+    for (Aggregator.Op op : new Aggregator.Op[] { Aggregator.Op.COUNT, Aggregator.Op.AVG }) {
+      for (int parallelism : new int[] { 1, 4 }) {
+        List<List<Integer>> inMemory = TestUtil.readAllSorted(new Aggregate(new SeqScan(tid, f.getId(), ""), 1, 0, op,
+            parallelism, Aggregate.getDefaultMemoryBudget()));
+        List<List<Integer>> spilled = TestUtil.readAllSorted(new Aggregate(new SeqScan(tid, f.getId(), ""), 1, 0, op,
+            parallelism, 4096));
+        assertEquals(inMemory, spilled);
+      }
+    }
+
+    // rewinding recomputes the results from the child
+    Aggregate op = new Aggregate(new SeqScan(tid, f.getId(), ""), 1, 0, Aggregator.Op.SUM, 1, 4096);
+    List<List<Integer>> expected = TestUtil.readAllSorted(op);
+    op.open();
+    while (op.hasNext())
+      op.next();
+    op.rewind();
+    List<List<Integer>> rewound = new ArrayList<>();
+    while (op.hasNext())
+      rewound.add(SystemTestUtil.tupleToList(op.next()));
+    op.close();
+    rewound.sort(Comparator.comparing(Object::toString));
+    assertEquals(expected, rewound);
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Unit test for several aggregates over two group columns in one Aggregate,
+   * checked against one single-aggregate Aggregate per metric
+   */
+  @Test public void multipleAggregates() throws Exception {
+    HeapFile f = SystemTestUtil.createRandomHeapFile(3, 5000, 20, null, null);
+    TransactionId tid = new TransactionId();
+    Aggregator.Op[] ops = { Aggregator.Op.MIN, Aggregator.Op.MAX, Aggregator.Op.SUM,
+        Aggregator.Op.COUNT, Aggregator.Op.AVG };
+    int[] afields = { 2, 2, 2, 2, 2 };
+    for (int parallelism : new int[] { 1, 4 }) {
+      // each (c0, c1) group mapped to its metrics, in the order of ops
+      Map<List<Integer>, List<Integer>> expected = new HashMap<>();
+      for (Aggregator.Op op : ops) {
+        for (List<Integer> row : TestUtil.readAllSorted(new Aggregate(new SeqScan(tid, f.getId(), ""),
+            new int[] { 2 }, new int[] { 0, 1 }, new Aggregator.Op[] { op }, parallelism,
+            Aggregate.getDefaultMemoryBudget()))) {
+          expected.computeIfAbsent(row.subList(0, 2), k -> new ArrayList<>()).add(row.get(2));
+        }
+      }
+      Aggregate multi = new Aggregate(new SeqScan(tid, f.getId(), ""), afields, new int[] { 0, 1 }, ops,
+          parallelism, Aggregate.getDefaultMemoryBudget());
+      assertEquals(7, multi.getTupleDesc().numFields());
+      List<List<Integer>> rows = TestUtil.readAllSorted(multi);
+      assertEquals(expected.size(), rows.size());
+      for (List<Integer> row : rows)
+        assertEquals(expected.get(row.subList(0, 2)), row.subList(2, 7));
+    }
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * A query with several aggregates and GROUP BY columns is planned as one
+   * Aggregate whose output columns are projected in SELECT order
+   */
+  @Test public void planMultipleAggregates() throws Exception {
+    List<List<Integer>> rows = new ArrayList<>();
+    HeapFile f = SystemTestUtil.createRandomHeapFile(3, 1000, 5, null, rows, "c");
+    Database.getCatalog().addTable(f, "multiagg");
+
+    Map<List<Integer>, int[]> expected = new HashMap<>();
+    for (List<Integer> row : rows) {
+      int[] acc = expected.computeIfAbsent(Arrays.asList(row.get(1), row.get(0)),
+          k -> new int[] { 0, 0, Integer.MIN_VALUE });
+      acc[0] += row.get(2);
+      acc[1]++;
+      acc[2] = Math.max(acc[2], row.get(2));
+    }
+
+    TransactionId tid = new TransactionId();
+    LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+        "SELECT multiagg.c1, SUM(multiagg.c2), multiagg.c0, COUNT(multiagg.c2), MAX(multiagg.c2) "
+            + "FROM multiagg GROUP BY multiagg.c0, multiagg.c1;");
+    OpIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    assertTrue(((Operator) plan).getChildren()[0] instanceof Aggregate);
+    List<List<Integer>> result = TestUtil.readAllSorted(plan);
+    assertEquals(expected.size(), result.size());
+    for (List<Integer> row : result) {
+      int[] acc = expected.get(Arrays.asList(row.get(0), row.get(2)));
+      assertEquals(Arrays.asList(acc[0], acc[1], acc[2]), Arrays.asList(row.get(1), row.get(3), row.get(4)));
+    }
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Unit test for an Aggregate over input sorted on the group columns, which
+   * returns each group as soon as it has been read
+   */
+  @Test public void streamingAggregate() throws Exception {
+    HeapFile f = SystemTestUtil.createRandomHeapFile(3, 2000, 10, null, null);
+    TransactionId tid = new TransactionId();
+    int[] afields = { 2, 2 };
+    Aggregator.Op[] ops = { Aggregator.Op.SUM, Aggregator.Op.AVG };
+    Aggregate hashed = new Aggregate(new SeqScan(tid, f.getId(), ""), afields, new int[] { 1, 0 }, ops);
+    assertFalse(hashed.isStreaming());
+
+    OrderBy sorted = new OrderBy(new int[] { 0, 1 }, new boolean[] { true, false },
+        new SeqScan(tid, f.getId(), ""));
+    Aggregate streamed = new Aggregate(sorted, afields, new int[] { 1, 0 }, ops);
+    assertTrue(streamed.isStreaming());
+    assertEquals(TestUtil.readAllSorted(hashed), TestUtil.readAllSorted(streamed));
+
+    // groups come out in input order, and rewind replays them
+    streamed.open();
+    Tuple first = streamed.next();
+    assertEquals(0, ((IntField) first.getField(1)).getValue());
+    assertEquals(9, ((IntField) first.getField(0)).getValue());
+    streamed.rewind();
+    assertEquals(first, streamed.next());
+    streamed.close();
+
+    // sorted on only one of the group columns is not enough
+    assertFalse(new Aggregate(new OrderBy(0, true, new SeqScan(tid, f.getId(), "")), afields,
+        new int[] { 0, 1 }, ops).isStreaming());
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * A scan of a B+ tree returns tuples in key order, so grouping on the key
+   * streams, including through a Filter
+   */
+  @Test public void streamingOverBTree() throws Exception {
+    List<List<Integer>> rows = new ArrayList<>();
+    BTreeFile f = BTreeUtility.createRandomBTreeFile(2, 3000, 200, null, rows, 0);
+    Map<Integer, Integer> expected = new HashMap<>();
+    for (List<Integer> row : rows) {
+      if (row.get(1) < 100)
+        expected.merge(row.get(0), 1, Integer::sum);
+    }
+
+    TransactionId tid = new TransactionId();
+    Predicate p = new Predicate(1, Predicate.Op.LESS_THAN, new IntField(100));
+    for (OpIterator scan : new OpIterator[] { new SeqScan(tid, f.getId(), ""),
+        new BTreeScan(tid, f.getId(), "", null) }) {
+      Aggregate op = new Aggregate(new Filter(p, scan), 1, 0, Aggregator.Op.COUNT);
+      assertTrue(op.isStreaming());
+      Map<Integer, Integer> actual = new HashMap<>();
+      int last = Integer.MIN_VALUE;
+      for (List<Integer> row : runInOrder(op)) {
+        assertTrue(row.get(0) > last);
+        last = row.get(0);
+        actual.put(row.get(0), row.get(1));
+      }
+      assertEquals(expected, actual);
+    }
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * When the groups are not expected to fit in the aggregate's memory, the
+   * planner sorts its input so that it streams, on the ORDER BY if that
+   * names just the group columns, which then needs no sort of its own
+   */
+  @Test public void planSortedAggregate() throws Exception {
+    List<List<Integer>> rows = new ArrayList<>();
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 3000, 100000, null, rows, "c");
+    Database.getCatalog().addTable(f, "sortagg");
+    Set<Integer> keys = new HashSet<>();
+    for (List<Integer> row : rows)
+      keys.add(row.get(0));
+    // estimates from a histogram that counts distinct values
+    TableStats.setTableStats("sortagg", new TableStats(f.getId(), 1) {
+      @Override public int estimateTableCardinality(double selectivityFactor) {
+        return (int) (rows.size() * selectivityFactor);
+      }
+
+      @Override public double avgSelectivity(int field, Predicate.Op op) {
+        return 1.0 / keys.size();
+      }
+    });
+    Map<Integer, Integer> expected = new HashMap<>();
+    for (List<Integer> row : rows)
+      expected.merge(row.get(0), 1, Integer::sum);
+
+    String sql = "SELECT sortagg.c0, COUNT(sortagg.c1) FROM sortagg GROUP BY sortagg.c0 ORDER BY sortagg.c0 DESC;";
+    TransactionId tid = new TransactionId();
+    OpIterator plan = new Parser().generateLogicalPlan(tid, sql)
+        .physicalPlan(tid, TableStats.getStatsMap(), false);
+    // the groups fit in the default budget, so they are hashed and sorted after
+    assertTrue(((Operator) plan).getChildren()[0] instanceof OrderBy);
+
+    long budget = Aggregate.getDefaultMemoryBudget();
+    try {
+      Aggregate.setDefaultMemoryBudget(10000);
+      plan = new Parser().generateLogicalPlan(tid, sql)
+          .physicalPlan(tid, TableStats.getStatsMap(), false);
+    } finally {
+      Aggregate.setDefaultMemoryBudget(budget);
+    }
+    Aggregate agg = (Aggregate) ((Operator) plan).getChildren()[0];
+    assertTrue(agg.getChildren()[0] instanceof OrderBy);
+    assertTrue(agg.isStreaming());
+
+    Map<Integer, Integer> actual = new HashMap<>();
+    int last = Integer.MAX_VALUE;
+    for (List<Integer> row : runInOrder(plan)) {
+      assertTrue(row.get(0) < last);
+      last = row.get(0);
+      actual.put(row.get(0), row.get(1));
+    }
+    assertEquals(expected, actual);
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  private static List<List<Integer>> runInOrder(OpIterator op) throws Exception {
+    List<List<Integer>> rows = new ArrayList<>();
+    op.open();
+    while (op.hasNext())
+      rows.add(SystemTestUtil.tupleToList(op.next()));
+    op.close();
+    return rows;
+  }
+
   /**
    * JUnit suite target
    */
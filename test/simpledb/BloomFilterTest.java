@@ -0,0 +1,69 @@
+package simpledb;
+
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Type;
+import simpledb.execution.BloomFilter;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class BloomFilterTest extends SimpleDbTestBase {
+
+  /**
+   * Unit test for BloomFilter.mightContain() on values that were added
+   */
+  @Test public void noFalseNegatives() {
+    BloomFilter f = new BloomFilter(1000);
+    for (int i = 0; i < 1000; i++) {
+      f.add(new IntField(i * 7));
+      f.add(new StringField("s" + i, Type.STRING_LEN));
+    }
+    for (int i = 0; i < 1000; i++) {
+      assertTrue(f.mightContain(new IntField(i * 7)));
+      assertTrue(f.mightContain(new StringField("s" + i, Type.STRING_LEN)));
+    }
+  }
+
+  /**
+   * Unit test for the false positive rate of BloomFilter.mightContain()
+   */
+  @Test public void fewFalsePositives() {
+    BloomFilter f = new BloomFilter(10000);
+    for (int i = 0; i < 10000; i++)
+      f.add(new IntField(i));
+    int positives = 0;
+    for (int i = 10000; i < 110000; i++) {
+      if (f.mightContain(new IntField(i)))
+        positives++;
+    }
+    assertTrue("false positive rate too high: " + positives, positives < 5000);
+  }
+
+  /**
+   * Unit test for BloomFilter.merge()
+   */
+  @Test public void merge() {
+    BloomFilter a = new BloomFilter(100);
+    BloomFilter b = new BloomFilter(100);
+    for (int i = 0; i < 100; i++) {
+      a.add(new IntField(i));
+      b.add(new IntField(-i));
+    }
+    a.merge(b);
+    for (int i = 0; i < 100; i++) {
+      assertTrue(a.mightContain(new IntField(i)));
+      assertTrue(a.mightContain(new IntField(-i)));
+    }
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(BloomFilterTest.class);
+  }
+}
@@ -0,0 +1,122 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.execution.OrderBy;
+import simpledb.execution.Query;
+import simpledb.execution.SeqScan;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.QueryCancelledException;
+import simpledb.transaction.TransactionId;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+public class CancellationTest extends SimpleDbTestBase {
+
+  /**
+   * A query cancelled from another thread stops at its next tuple, and
+   * aborting its transaction lets writers lock the pages it read
+   */
+  @Test public void cancelRunningQuery() throws Exception {
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 2000, null, null);
+    TransactionId tid = new TransactionId();
+    Query q = new Query(new OrderBy(0, true, new SeqScan(tid, f.getId(), "")), tid);
+    q.start();
+    q.next();
+
+    Thread canceller = new Thread(tid::cancel);
+    canceller.start();
+    canceller.join();
+    try {
+      while (q.hasNext())
+        q.next();
+      fail("the query was cancelled");
+    } catch (QueryCancelledException expected) {
+      assertEquals("query cancelled", expected.getMessage());
+    }
+    q.close();
+    Database.getBufferPool().transactionComplete(tid, false);
+
+    TransactionId writer = new TransactionId();
+    Database.getBufferPool().getPage(writer, new HeapPageId(f.getId(), 0), Permissions.READ_WRITE);
+    Database.getBufferPool().transactionComplete(writer);
+  }
+
+  /** A statement that runs past its timeout stops, and the next one runs */
+  @Test public void timeout() throws Exception {
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 2000, null, null);
+    TransactionId tid = new TransactionId();
+    tid.cancelAfter(1);
+    Thread.sleep(10);
+    assertTrue(tid.isCancelled());
+    Query q = new Query(new SeqScan(tid, f.getId(), ""), tid);
+    try {
+      q.start();
+      q.hasNext();
+      fail("the query ran past its timeout");
+    } catch (QueryCancelledException expected) {
+      assertEquals("query ran past its timeout", expected.getMessage());
+    }
+    q.close();
+
+    tid.resetCancellation();
+    tid.cancelAfter(60000);
+    assertFalse(tid.isCancelled());
+    q = new Query(new SeqScan(tid, f.getId(), ""), tid);
+    q.start();
+    int n = 0;
+    while (q.hasNext()) {
+      q.next();
+      n++;
+    }
+    q.close();
+    assertEquals(2000, n);
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /** A transaction waiting for a lock stops waiting when it is cancelled */
+  @Test public void cancelLockWait() throws Exception {
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+    HeapPageId pid = new HeapPageId(f.getId(), 0);
+    TransactionId writer = new TransactionId();
+    Database.getBufferPool().getPage(writer, pid, Permissions.READ_WRITE);
+
+    TransactionId reader = new TransactionId();
+    AtomicReference<Exception> failure = new AtomicReference<>();
+    Thread waiting = new Thread(() -> {
+      try {
+        Database.getBufferPool().getPage(reader, pid, Permissions.READ_ONLY);
+      } catch (Exception e) {
+        failure.set(e);
+      }
+    });
+    waiting.start();
+    Thread.sleep(100);
+    assertTrue(waiting.isAlive());
+    reader.cancel();
+    waiting.join(5000);
+    assertFalse(waiting.isAlive());
+    assertTrue(failure.get() instanceof QueryCancelledException);
+
+    Database.getBufferPool().transactionComplete(reader, false);
+    Database.getBufferPool().transactionComplete(writer);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(CancellationTest.class);
+  }
+}
@@ -0,0 +1,123 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.execution.Distinct;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.Project;
+import simpledb.execution.SeqScan;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class DistinctTest extends SimpleDbTestBase {
+
+  /** @return the distinct rows of a table, in the order they are first seen */
+  private static List<List<Integer>> distinctRows(List<List<Integer>> rows) {
+    List<List<Integer>> out = new ArrayList<>();
+    Set<List<Integer>> seen = new HashSet<>();
+    for (List<Integer> row : rows) {
+      if (seen.add(row))
+        out.add(row);
+    }
+    return out;
+  }
+
+  /**
+   * With room for every distinct tuple, Distinct returns the first copy of
+   * each in input order, also after a rewind
+   */
+  @Test public void inMemory() throws Exception {
+    List<List<Integer>> rows = new ArrayList<>();
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 2000, 10, null, rows);
+    TransactionId tid = new TransactionId();
+    Distinct op = new Distinct(new SeqScan(tid, f.getId(), ""));
+    op.open();
+    List<List<Integer>> expected = distinctRows(rows);
+    assertEquals(expected, TestUtil.remainingRows(op));
+    assertFalse(op.overflowed());
+    op.rewind();
+    assertEquals(expected, TestUtil.remainingRows(op));
+    op.close();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * With a budget too small for the distinct tuples, the ones that do not
+   * fit go through the sort, and each tuple is still returned once
+   */
+  @Test public void spills() throws Exception {
+    List<List<Integer>> rows = new ArrayList<>();
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 5000, 60, null, rows);
+    TransactionId tid = new TransactionId();
+    Distinct op = new Distinct(new SeqScan(tid, f.getId(), ""), 4096);
+    op.open();
+    List<List<Integer>> result = TestUtil.remainingRows(op);
+    assertTrue(op.overflowed());
+    List<List<Integer>> expected = distinctRows(rows);
+    assertEquals(expected.size(), result.size());
+    assertEquals(new HashSet<>(expected), new HashSet<>(result));
+
+    op.rewind();
+    assertEquals(expected.size(), TestUtil.remainingRows(op).size());
+    op.close();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * SELECT DISTINCT puts the Distinct below the projection when it keeps
+   * every field, and above it when it drops some
+   */
+  @Test public void planDistinct() throws Exception {
+    List<List<Integer>> rows = new ArrayList<>();
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 500, 5, null, rows, "c");
+    Database.getCatalog().addTable(f, "dis");
+    TransactionId tid = new TransactionId();
+
+    LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+        "SELECT DISTINCT c1, c0 FROM dis;");
+    OpIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    assertTrue(plan instanceof Project);
+    assertTrue(((Operator) plan).getChildren()[0] instanceof Distinct);
+    plan.open();
+    assertEquals(distinctRows(rows).size(), TestUtil.remainingRows(plan).size());
+    plan.close();
+
+    lp = new Parser().generateLogicalPlan(tid,
+        "SELECT DISTINCT c1 FROM dis ORDER BY c1;");
+    plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    plan.open();
+    List<List<Integer>> values = TestUtil.remainingRows(plan);
+    plan.close();
+    List<List<Integer>> expected = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      List<Integer> row = new ArrayList<>();
+      row.add(i);
+      expected.add(row);
+    }
+    assertEquals(expected, values);
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(DistinctTest.class);
+  }
+}
@@ -0,0 +1,245 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.execution.Broadcast;
+import simpledb.execution.Exchange;
+import simpledb.execution.Filter;
+import simpledb.execution.Gather;
+import simpledb.execution.HashEquiJoin;
+import simpledb.execution.Join;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.Predicate;
+import simpledb.execution.Project;
+import simpledb.execution.Repartition;
+import simpledb.execution.SeqScan;
+import simpledb.optimizer.JoinOptimizer;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ExchangeTest extends SimpleDbTestBase {
+
+  private final long spoolBudget = Exchange.getSpoolMemoryBudget();
+  private final int exchangeParallelism = LogicalPlan.getExchangeParallelism();
+  private final int joinParallelism = JoinOptimizer.getJoinParallelism();
+
+  @After public void restoreSettings() {
+    Exchange.setSpoolMemoryBudget(spoolBudget);
+    LogicalPlan.setExchangeParallelism(exchangeParallelism);
+    JoinOptimizer.setJoinParallelism(joinParallelism);
+  }
+
+  /**
+   * A Gather over a filtered scan returns the same tuples as the scan read
+   * on one thread, and can be rewound
+   */
+  @Test public void gatherScan() throws Exception {
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 5000, 100, null, null);
+    TransactionId tid = new TransactionId();
+    Predicate p = new Predicate(0, Predicate.Op.LESS_THAN, new IntField(60));
+    List<List<Integer>> expected = TestUtil.readAllSorted(new Filter(p, new SeqScan(tid, f.getId(), "")));
+
+    Gather gather = new Gather(new Filter(p, new SeqScan(tid, f.getId(), "")), 4);
+    assertTrue(gather.getParallelism() > 1);
+    assertEquals(expected, TestUtil.readAllSorted(gather));
+
+    gather.open();
+    gather.next();
+    gather.rewind();
+    int n = 0;
+    while (gather.hasNext()) {
+      gather.next();
+      n++;
+    }
+    gather.close();
+    assertEquals(expected.size(), n);
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Closing a Gather before its input is used up stops the producers
+   */
+  @Test public void closeEarly() throws Exception {
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 20000, 100, null, null);
+    TransactionId tid = new TransactionId();
+    Exchange.setQueueCapacity(1);
+    try {
+      Gather gather = new Gather(new SeqScan(tid, f.getId(), ""), 4);
+      gather.open();
+      gather.next();
+      gather.close();
+    } finally {
+      Exchange.setQueueCapacity(8);
+    }
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * An equi-join of two repartitioned inputs, one join per pair of streams,
+   * returns the same tuples as a join on one thread, also when the streams
+   * spill and the joins rewind them
+   */
+  @Test public void repartitionedJoin() throws Exception {
+    HeapFile left = SystemTestUtil.createRandomHeapFile(2, 3000, 200, null, null);
+    HeapFile right = SystemTestUtil.createRandomHeapFile(2, 2000, 200, null, null);
+    TransactionId tid = new TransactionId();
+    JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    List<List<Integer>> expected = TestUtil.readAllSorted(new HashEquiJoin(p,
+        new SeqScan(tid, left.getId(), "l"), new SeqScan(tid, right.getId(), "r")));
+
+    for (long budget : new long[] { spoolBudget, 1024 }) {
+      Exchange.setSpoolMemoryBudget(budget);
+      List<Repartition> l = Repartition.streams(new SeqScan(tid, left.getId(), "l"), 0, 3, 2);
+      List<Repartition> r = Repartition.streams(new SeqScan(tid, right.getId(), "r"), 0, 3, 2);
+      List<OpIterator> joins = new ArrayList<>();
+      for (int i = 0; i < 3; i++)
+        joins.add(new HashEquiJoin(p, l.get(i), r.get(i)));
+      assertEquals(expected, TestUtil.readAllSorted(new Gather(joins)));
+    }
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * A non-equi join of one split input against a broadcast one returns the
+   * same tuples as a join on one thread
+   */
+  @Test public void broadcastJoin() throws Exception {
+    HeapFile left = SystemTestUtil.createRandomHeapFile(2, 300, 50, null, null);
+    HeapFile right = SystemTestUtil.createRandomHeapFile(2, 200, 50, null, null);
+    TransactionId tid = new TransactionId();
+    JoinPredicate p = new JoinPredicate(0, Predicate.Op.LESS_THAN, 1);
+    List<List<Integer>> expected = TestUtil.readAllSorted(new Join(p,
+        new SeqScan(tid, left.getId(), "l"), new SeqScan(tid, right.getId(), "r")));
+
+    List<Repartition> l = Repartition.streams(new SeqScan(tid, left.getId(), "l"), 1, 4, 2);
+    List<Broadcast> r = Broadcast.streams(new SeqScan(tid, right.getId(), "r"), 4, 2);
+    List<OpIterator> joins = new ArrayList<>();
+    for (int i = 0; i < 4; i++)
+      joins.add(new Join(p, l.get(i), r.get(i)));
+    assertEquals(expected, TestUtil.readAllSorted(new Gather(joins)));
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * A failure in a producer reaches the thread reading the exchange
+   */
+  @Test public void producerFailure() throws Exception {
+    OpIterator failing = new Operator() {
+      private static final long serialVersionUID = 1L;
+      private int n;
+
+      protected Tuple fetchNext() throws DbException {
+        if (n++ == 100)
+          throw new DbException("broken input");
+        Tuple t = new Tuple(getTupleDesc());
+        t.setField(0, new IntField(n));
+        return t;
+      }
+
+      public TupleDesc getTupleDesc() {
+        return new TupleDesc(new Type[] { Type.INT_TYPE });
+      }
+
+      public void rewind() {
+        n = 0;
+      }
+
+      public OpIterator[] getChildren() {
+        return new OpIterator[0];
+      }
+
+      public void setChildren(OpIterator[] children) {
+      }
+    };
+    Gather gather = new Gather(failing, 1);
+    gather.open();
+    try {
+      while (gather.hasNext())
+        gather.next();
+      fail("expected the producer's DbException");
+    } catch (DbException e) {
+      assertEquals("broken input", e.getMessage());
+    } finally {
+      gather.close();
+    }
+  }
+
+  /**
+   * physicalPlan puts joins and single table scans under exchanges when
+   * the exchange parallelism is above one, and then ignores the join
+   * parallelism
+   */
+  @Test public void planExchanges() throws Exception {
+    List<List<Integer>> aRows = new ArrayList<>();
+    List<List<Integer>> bRows = new ArrayList<>();
+    HeapFile a = SystemTestUtil.createRandomHeapFile(2, 2000, 100, null, aRows, "c");
+    HeapFile b = SystemTestUtil.createRandomHeapFile(2, 1000, 100, null, bRows, "c");
+    Database.getCatalog().addTable(a, "xa");
+    Database.getCatalog().addTable(b, "xb");
+    TableStats.setTableStats("xa", new TableStats(a.getId(), 1));
+    TableStats.setTableStats("xb", new TableStats(b.getId(), 1));
+    int expectedJoin = 0;
+    for (List<Integer> ra : aRows) {
+      for (List<Integer> rb : bRows) {
+        if (ra.get(0).equals(rb.get(1)))
+          expectedJoin++;
+      }
+    }
+    int expectedScan = 0;
+    for (List<Integer> ra : aRows) {
+      if (ra.get(1) > 50)
+        expectedScan++;
+    }
+
+    assertEquals(1, LogicalPlan.getExchangeParallelism());
+    LogicalPlan.setExchangeParallelism(3);
+    JoinOptimizer.setJoinParallelism(4);
+    TransactionId tid = new TransactionId();
+    OpIterator plan = new Parser().generateLogicalPlan(tid,
+        "SELECT * FROM xa, xb WHERE xa.c0 = xb.c1;").physicalPlan(tid, TableStats.getStatsMap(), false);
+    OpIterator below = ((Project) plan).getChildren()[0];
+    assertTrue(below instanceof Gather);
+    assertEquals(1, ((HashEquiJoin) ((Gather) below).getChildren()[0]).getParallelism());
+    assertEquals(expectedJoin, TestUtil.readAllSorted(plan).size());
+
+    plan = new Parser().generateLogicalPlan(tid,
+        "SELECT xa.c0 FROM xa WHERE xa.c1 > 50;").physicalPlan(tid, TableStats.getStatsMap(), false);
+    assertTrue(((Project) plan).getChildren()[0] instanceof Gather);
+    assertEquals(expectedScan, TestUtil.readAllSorted(plan).size());
+
+    LogicalPlan.setExchangeParallelism(1);
+    plan = new Parser().generateLogicalPlan(tid,
+        "SELECT * FROM xa, xb WHERE xa.c0 = xb.c1;").physicalPlan(tid, TableStats.getStatsMap(), false);
+    assertTrue(((Project) plan).getChildren()[0] instanceof HashEquiJoin);
+    assertEquals(4, ((HashEquiJoin) ((Project) plan).getChildren()[0]).getParallelism());
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ExchangeTest.class);
+  }
+}
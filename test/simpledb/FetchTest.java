@@ -0,0 +1,190 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.execution.BloomFilter;
+import simpledb.execution.Fetch;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.SeqScan;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class FetchTest extends SimpleDbTestBase {
+
+  @After public void tearDown() {
+    LogicalPlan.setLateMaterialization(true);
+  }
+
+  /**
+   * A narrowed scan returns the row id of each tuple followed by the
+   * chosen fields, and the row id leads back to the tuple
+   */
+  @Test public void narrowScan() throws Exception {
+    List<List<Integer>> rows = new ArrayList<>();
+    HeapFile f = SystemTestUtil.createRandomHeapFile(6, 1500, null, rows);
+    TransactionId tid = new TransactionId();
+    SeqScan scan = new SeqScan(tid, f.getId(), "n");
+    scan.setOutputFields(new int[] { 4, 1 });
+    assertEquals(3, scan.getTupleDesc().numFields());
+    assertEquals("n." + SeqScan.ROW_ID, scan.getTupleDesc().getFieldName(0));
+
+    scan.open();
+    int n = 0;
+    while (scan.hasNext()) {
+      Tuple t = scan.next();
+      int rowId = ((IntField) t.getField(0)).getValue();
+      assertEquals(t.getRecordId(), f.recordId(rowId));
+      List<Integer> full = SystemTestUtil.tupleToList(f.fetchTuple(tid, f.recordId(rowId)));
+      assertEquals(rows.get(n), full);
+      assertEquals(full.get(4), SystemTestUtil.tupleToList(t).get(1));
+      assertEquals(full.get(1), SystemTestUtil.tupleToList(t).get(2));
+      n++;
+    }
+    scan.close();
+    assertEquals(rows.size(), n);
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * A narrowed scan tests the runtime filter against the table field behind
+   * the filtered field of its narrowed tuples
+   */
+  @Test public void narrowScanFilter() throws Exception {
+    List<List<Integer>> rows = new ArrayList<>();
+    HeapFile f = SystemTestUtil.createRandomHeapFile(6, 1500, null, rows);
+    BloomFilter keys = new BloomFilter(20);
+    Set<Integer> wanted = new HashSet<>();
+    for (int i = 0; i < 20; i++) {
+      keys.add(new IntField(rows.get(i).get(4)));
+      wanted.add(rows.get(i).get(4));
+    }
+    int expected = 0;
+    for (List<Integer> row : rows) {
+      if (wanted.contains(row.get(4)))
+        expected++;
+    }
+
+    TransactionId tid = new TransactionId();
+    SeqScan scan = new SeqScan(tid, f.getId(), "n");
+    scan.setOutputFields(new int[] { 1, 4 });
+    scan.setRuntimeFilter(2, keys);
+    scan.open();
+    int matched = 0;
+    int n = 0;
+    while (scan.hasNext()) {
+      Tuple t = scan.next();
+      assertTrue(keys.mightContain(t.getField(2)));
+      if (wanted.contains(((IntField) t.getField(2)).getValue()))
+        matched++;
+      n++;
+    }
+    scan.close();
+    assertEquals(expected, matched);
+    assertTrue(n < rows.size());
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Joins of wide tables scan only the join fields and fetch the other
+   * fields afterwards, returning the same rows as a plan that does not
+   */
+  @Test public void planFetch() throws Exception {
+    HeapFile a = SystemTestUtil.createRandomHeapFile(6, 1000, 50, null, null, "c");
+    HeapFile b = SystemTestUtil.createRandomHeapFile(6, 800, 50, null, null, "c");
+    Database.getCatalog().addTable(a, "fa");
+    Database.getCatalog().addTable(b, "fb");
+    TableStats.setTableStats("fa", new TableStats(a.getId(), 1));
+    TableStats.setTableStats("fb", new TableStats(b.getId(), 1));
+    String query = "SELECT * FROM fa, fb WHERE fa.c0 = fb.c2;";
+
+    TransactionId tid = new TransactionId();
+    OpIterator plan = new Parser().generateLogicalPlan(tid, query)
+        .physicalPlan(tid, TableStats.getStatsMap(), false);
+    assertTrue(((Operator) plan).getChildren()[0] instanceof Fetch);
+    assertEquals(12, plan.getTupleDesc().numFields());
+    List<List<Integer>> late = TestUtil.readAllSorted(plan);
+
+    LogicalPlan.setLateMaterialization(false);
+    plan = new Parser().generateLogicalPlan(tid, query)
+        .physicalPlan(tid, TableStats.getStatsMap(), false);
+    assertFalse(((Operator) plan).getChildren()[0] instanceof Fetch);
+    assertEquals(TestUtil.readAllSorted(plan), late);
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /** @return the first Fetch in plan, or null if it has none */
+  private static Fetch findFetch(OpIterator plan) {
+    if (plan instanceof Fetch)
+      return (Fetch) plan;
+    if (plan instanceof Operator) {
+      for (OpIterator child : ((Operator) plan).getChildren()) {
+        Fetch f = findFetch(child);
+        if (f != null)
+          return f;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Only the fields used above the joins are fetched, and tables whose used
+   * fields were all scanned are not read again
+   */
+  @Test public void fetchUsedFields() throws Exception {
+    HeapFile a = SystemTestUtil.createRandomHeapFile(6, 1000, 50, null, null, "c");
+    HeapFile b = SystemTestUtil.createRandomHeapFile(6, 800, 50, null, null, "c");
+    Database.getCatalog().addTable(a, "ua");
+    Database.getCatalog().addTable(b, "ub");
+    TableStats.setTableStats("ua", new TableStats(a.getId(), 1));
+    TableStats.setTableStats("ub", new TableStats(b.getId(), 1));
+    TransactionId tid = new TransactionId();
+
+    String query = "SELECT ua.c0, ub.c5 FROM ua, ub WHERE ua.c0 = ub.c2;";
+    OpIterator plan = new Parser().generateLogicalPlan(tid, query)
+        .physicalPlan(tid, TableStats.getStatsMap(), false);
+    Fetch fetch = findFetch(plan);
+    assertTrue(fetch != null);
+    // ua passes through with its row id and c0; of ub only c5 is fetched
+    assertEquals(3, fetch.getTupleDesc().numFields());
+    List<List<Integer>> late = TestUtil.readAllSorted(plan);
+
+    String[] unfetched = { "SELECT ua.c0 FROM ua, ub WHERE ua.c0 = ub.c2;",
+        "SELECT COUNT(ub.c2) FROM ua, ub WHERE ua.c0 = ub.c2;" };
+    for (String q : unfetched) {
+      assertEquals(null, findFetch(new Parser().generateLogicalPlan(tid, q)
+          .physicalPlan(tid, TableStats.getStatsMap(), false)));
+    }
+
+    LogicalPlan.setLateMaterialization(false);
+    plan = new Parser().generateLogicalPlan(tid, query)
+        .physicalPlan(tid, TableStats.getStatsMap(), false);
+    assertEquals(TestUtil.readAllSorted(plan), late);
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(FetchTest.class);
+  }
+}
@@ -8,13 +8,23 @@ import junit.framework.JUnit4TestAdapter;
 import org.junit.Before;
 import org.junit.Test;
 
+import simpledb.common.Database;
 import simpledb.common.Utility;
 import simpledb.execution.Filter;
 import simpledb.execution.OpIterator;
 import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
 import simpledb.storage.TupleDesc;
 import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.List;
 
 public class FilterTest extends SimpleDbTestBase {
 
@@ -126,6 +136,48 @@ public class FilterTest extends SimpleDbTestBase {
     op.close();
   }
 
+  /**
+   * A stack of Filters over a scan, which the top one evaluates as one
+   * conjunction, passes the same tuples as the predicates applied one by
+   * one, whether read by tuple or by batch. Bounds at the ends of the int
+   * range check the folding of &gt;= and &lt;= into &gt; and &lt;.
+   */
+  @Test public void stackedFilters() throws Exception {
+    List<List<Integer>> tuples = new ArrayList<>();
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 2000, 20, null, tuples);
+    TransactionId tid = new TransactionId();
+    int[] bounds = { Integer.MIN_VALUE, 7, Integer.MAX_VALUE };
+    for (Predicate.Op op : Predicate.Op.values()) {
+      for (int bound : bounds) {
+        Predicate p1 = new Predicate(0, Predicate.Op.NOT_EQUALS, new IntField(3));
+        Predicate p2 = new Predicate(1, op, new IntField(bound));
+        int expected = 0;
+        for (List<Integer> t : tuples) {
+          if (new IntField(t.get(0)).compare(p1.getOp(), p1.getOperand())
+              && new IntField(t.get(1)).compare(op, p2.getOperand()))
+            expected++;
+        }
+
+        OpIterator plan = new Filter(p2, new Filter(p1, new SeqScan(tid, f.getId(), "")));
+        int rows = 0;
+        plan.open();
+        while (plan.hasNext()) {
+          assertNotNull(plan.next());
+          rows++;
+        }
+        plan.rewind();
+        int batched = 0;
+        TupleBatch batch;
+        while ((batch = plan.nextBatch()) != null)
+          batched += batch.size();
+        plan.close();
+        assertEquals(op + " " + bound, expected, rows);
+        assertEquals(op + " " + bound, expected, batched);
+      }
+    }
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
   /**
    * JUnit suite target
    */
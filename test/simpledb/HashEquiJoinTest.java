@@ -0,0 +1,166 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.Filter;
+import simpledb.execution.HashEquiJoin;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class HashEquiJoinTest extends SimpleDbTestBase {
+
+  private static OpIterator createTupleList(int rows, int keyModulus) {
+    int[] data = new int[rows * 2];
+    for (int i = 0; i < rows; i++) {
+      data[2 * i] = i % keyModulus;
+      data[2 * i + 1] = i;
+    }
+    return TestUtil.createTupleList(2, data);
+  }
+
+  /**
+   * Joins two lists on their first column with a nested loop over plain
+   * lists and counts how often each joined row appears.
+   */
+  private static Map<List<Integer>, Integer> expected(OpIterator left, OpIterator right)
+      throws Exception {
+    List<List<Integer>> l = TestUtil.readAll(left);
+    List<List<Integer>> r = TestUtil.readAll(right);
+    Map<List<Integer>, Integer> counts = new HashMap<>();
+    for (List<Integer> a : l) {
+      for (List<Integer> b : r) {
+        if (a.get(0).equals(b.get(0))) {
+          List<Integer> row = new ArrayList<>(a);
+          row.addAll(b);
+          counts.merge(row, 1, Integer::sum);
+        }
+      }
+    }
+    return counts;
+  }
+
+  private static Map<List<Integer>, Integer> count(OpIterator it) throws Exception {
+    Map<List<Integer>, Integer> counts = new HashMap<>();
+    while (it.hasNext()) {
+      Tuple t = it.next();
+      counts.merge(SystemTestUtil.tupleToList(t), 1, Integer::sum);
+    }
+    return counts;
+  }
+
+  private void validate(int leftRows, int rightRows, int parallelism) throws Exception {
+    OpIterator left = createTupleList(leftRows, 997);
+    OpIterator right = createTupleList(rightRows, 1500);
+    Map<List<Integer>, Integer> expected = expected(left, right);
+
+    JoinPredicate pred = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    HashEquiJoin op = new HashEquiJoin(pred, left, right, parallelism);
+    assertEquals(Utility.getTupleDesc(4), op.getTupleDesc());
+    op.open();
+    assertEquals(expected, count(op));
+    op.rewind();
+    assertEquals(expected, count(op));
+    op.close();
+  }
+
+  /**
+   * Unit test for a serial HashEquiJoin
+   */
+  @Test public void serialJoin() throws Exception {
+    validate(3000, 2000, 1);
+  }
+
+  /**
+   * Unit test for a HashEquiJoin whose build side is too small to be split
+   */
+  @Test public void parallelSmallBuild() throws Exception {
+    validate(100, 2000, 4);
+  }
+
+  /**
+   * Unit test for a HashEquiJoin that builds and probes on several threads
+   */
+  @Test public void parallelJoin() throws Exception {
+    validate(HashEquiJoin.PARALLEL_THRESHOLD * 3, 5000, 4);
+  }
+
+  /**
+   * Closing a parallel join part way through must not leave workers behind
+   */
+  @Test public void parallelEarlyClose() throws Exception {
+    OpIterator left = createTupleList(HashEquiJoin.PARALLEL_THRESHOLD * 2, 10);
+    OpIterator right = createTupleList(5000, 10);
+    HashEquiJoin op = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0), left, right, 4);
+    op.open();
+    for (int i = 0; i < 10; i++)
+      op.next();
+    op.close();
+  }
+
+  /**
+   * Unit test for a HashEquiJoin that pushes its build keys into the scan
+   * and filter of its probe side
+   */
+  @Test public void runtimeFilterPushdown() throws Exception {
+    List<List<Integer>> buildRows = new ArrayList<>();
+    List<List<Integer>> probeRows = new ArrayList<>();
+    HeapFile build = SystemTestUtil.createRandomHeapFile(2, 50, 1000, null, buildRows);
+    HeapFile probe = SystemTestUtil.createRandomHeapFile(2, 3000, 1000, null, probeRows);
+
+    Map<List<Integer>, Integer> expected = new HashMap<>();
+    for (List<Integer> a : buildRows) {
+      for (List<Integer> b : probeRows) {
+        if (a.get(0).equals(b.get(0)) && b.get(1) > 100) {
+          List<Integer> row = new ArrayList<>(a);
+          row.addAll(b);
+          expected.merge(row, 1, Integer::sum);
+        }
+      }
+    }
+
+    TransactionId tid = new TransactionId();
+    SeqScan probeScan = new SeqScan(tid, probe.getId(), "");
+    OpIterator probeSide = new Filter(new Predicate(1, Predicate.Op.GREATER_THAN, new IntField(100)), probeScan);
+    HashEquiJoin op = new HashEquiJoin(new JoinPredicate(0, Predicate.Op.EQUALS, 0),
+        new SeqScan(tid, build.getId(), ""), probeSide);
+    op.open();
+    assertEquals(expected, count(op));
+    op.close();
+
+    // once the join is closed the scan returns every tuple again
+    probeScan.open();
+    int scanned = 0;
+    while (probeScan.hasNext()) {
+      probeScan.next();
+      scanned++;
+    }
+    probeScan.close();
+    assertEquals(probeRows.size(), scanned);
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(HashEquiJoinTest.class);
+  }
+}
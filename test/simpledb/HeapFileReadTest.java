@@ -125,6 +125,42 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         it.close();
     }
 
+    /**
+     * Iterators on several threads that share a MorselCursor return every
+     * tuple of the file exactly once between them, and again after a reset
+     */
+    @Test
+    public void testMorselIterators() throws Exception {
+        HeapFile bigFile = SystemTestUtil.createRandomHeapFile(2, 5000, null, null);
+        assertTrue(bigFile.numPages() > 4);
+        MorselCursor morsels = new MorselCursor(bigFile, 2);
+        for (int round = 0; round < 2; round++) {
+            morsels.reset();
+            Set<RecordId> seen = Collections.synchronizedSet(new HashSet<>());
+            List<Thread> threads = new ArrayList<>();
+            List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+            for (int i = 0; i < 4; i++) {
+                DbFileIterator it = bigFile.iterator(tid, morsels);
+                Thread t = new Thread(() -> {
+                    try {
+                        it.open();
+                        while (it.hasNext())
+                            assertTrue(seen.add(it.next().getRecordId()));
+                        it.close();
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    }
+                });
+                threads.add(t);
+                t.start();
+            }
+            for (Thread t : threads)
+                t.join();
+            assertEquals(Collections.emptyList(), failures);
+            assertEquals(5000, seen.size());
+        }
+    }
+
     /**
      * JUnit suite target
      */
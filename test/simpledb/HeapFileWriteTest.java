@@ -7,12 +7,17 @@ import org.junit.Test;
 import static org.junit.Assert.*;
 import junit.framework.JUnit4TestAdapter;
 import simpledb.common.Database;
+import simpledb.common.DbException;
 import simpledb.common.Utility;
 import simpledb.storage.*;
 import simpledb.systemtest.SystemTestUtil;
 import simpledb.transaction.TransactionId;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
     private TransactionId tid;
@@ -50,6 +55,56 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Unit test for HeapFile.insertTuples(): the first page is filled before
+     * new ones are appended, each modified page is returned once, and every
+     * tuple gets its own slot
+     */
+    @Test public void addTuples() throws Exception {
+        empty.insertTuple(tid, Utility.getHeapTuple(0, 2));
+        List<Tuple> ts = new ArrayList<>();
+        for (int i = 0; i < 1200; ++i)
+            ts.add(Utility.getHeapTuple(i, 2));
+        List<Page> dirty = empty.insertTuples(tid, ts);
+
+        // 1 + 1200 tuples at 504 per page
+        assertEquals(3, empty.numPages());
+        assertEquals(3, dirty.size());
+        assertEquals(0, ((HeapPage) dirty.get(0)).getNumEmptySlots());
+        Set<RecordId> rids = new HashSet<>();
+        for (Tuple t : ts)
+            assertTrue(rids.add(t.getRecordId()));
+        assertEquals(0, ts.get(0).getRecordId().getPageId().getPageNumber());
+        assertEquals(2, ts.get(1199).getRecordId().getPageId().getPageNumber());
+    }
+
+    /**
+     * Unit test for HeapFile.deleteTuples(): tuples are cleared page by page,
+     * and each modified page is returned once
+     */
+    @Test public void deleteTuples() throws Exception {
+        List<Tuple> ts = new ArrayList<>();
+        for (int i = 0; i < 1200; ++i)
+            ts.add(Utility.getHeapTuple(i, 2));
+        empty.insertTuples(tid, ts);
+        List<Tuple> half = new ArrayList<>();
+        for (int i = 1199; i >= 0; i -= 2)
+            half.add(ts.get(i));
+        List<Page> dirty = empty.deleteTuples(tid, half);
+
+        assertEquals(3, dirty.size());
+        int emptySlots = 0;
+        for (Page p : dirty)
+            emptySlots += ((HeapPage) p).getNumEmptySlots();
+        // 3 pages of 504 slots held 1200 tuples, 600 of which are left
+        assertEquals(3 * 504 - 600, emptySlots);
+        try {
+            empty.deleteTuples(tid, half.subList(0, 1));
+            fail("expected exception");
+        } catch (DbException ignored) {
+        }
+    }
+
     @Test
     public void testAlternateEmptyAndFullPagesThenIterate() throws Exception {
         // Create HeapFile/Table
@@ -10,9 +10,11 @@ import org.junit.Before;
 import org.junit.Test;
 
 import simpledb.common.Type;
+import simpledb.common.Utility;
 import simpledb.execution.Aggregator;
 import simpledb.execution.IntegerAggregator;
 import simpledb.execution.OpIterator;
+import simpledb.storage.IntField;
 import simpledb.systemtest.SimpleDbTestBase;
 
 public class IntegerAggregatorTest extends SimpleDbTestBase {
@@ -182,6 +184,53 @@ public class IntegerAggregatorTest extends SimpleDbTestBase {
     }
   }
 
+  /**
+   * Test that SUM_COUNT partials fed into SC_AVG give the same result as AVG
+   */
+  @Test public void sumCountThenAverage() throws Exception {
+    scan1.open();
+    IntegerAggregator partial = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SUM_COUNT);
+    while (scan1.hasNext())
+      partial.mergeTupleIntoGroup(scan1.next());
+
+    OpIterator it = partial.iterator();
+    it.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(3,
+        new int[] { 1, 12, 3,
+                    3, 12, 3,
+                    5, 7, 1 }), it);
+
+    // merge the partials twice over, as if two workers had produced them
+    IntegerAggregator avg = new IntegerAggregator(0, Type.INT_TYPE, 1, Aggregator.Op.SC_AVG);
+    for (int i = 0; i < 2; i++) {
+      it.rewind();
+      while (it.hasNext())
+        avg.mergeTupleIntoGroup(it.next());
+    }
+    it = avg.iterator();
+    it.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(width1,
+        new int[] { 1, 4, 3, 4, 5, 7 }), it);
+  }
+
+  /**
+   * Test an ungrouped aggregate over many values
+   */
+  @Test public void noGroupingManyValues() throws Exception {
+    final int n = 200000;
+    Aggregator.Op[] ops = { Aggregator.Op.MIN, Aggregator.Op.MAX, Aggregator.Op.SUM,
+        Aggregator.Op.COUNT, Aggregator.Op.AVG };
+    int[] expected = { 0, n - 1, (int) ((long) n * (n - 1) / 2), n, (n - 1) / 2 };
+    for (int o = 0; o < ops.length; o++) {
+      IntegerAggregator agg = new IntegerAggregator(Aggregator.NO_GROUPING, null, 0, ops[o]);
+      for (int i = 0; i < n; i++)
+        agg.mergeTupleIntoGroup(Utility.getHeapTuple(i));
+      OpIterator it = agg.iterator();
+      it.open();
+      assertEquals(expected[o], ((IntField) it.next().getField(0)).getValue());
+    }
+  }
+
   /**
    * JUnit suite target
    */
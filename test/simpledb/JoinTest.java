@@ -112,6 +112,38 @@ public class JoinTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(eqJoin, op);
   }
 
+  /**
+   * Every comparison operator joins the same pairs as JoinPredicate.filter
+   */
+  @Test public void allOperators() throws Exception {
+    for (Predicate.Op op : Predicate.Op.values()) {
+      JoinPredicate pred = new JoinPredicate(1, op, 0);
+      int expected = 0;
+      scan1.open();
+      while (scan1.hasNext()) {
+        Tuple t1 = scan1.next();
+        scan2.open();
+        while (scan2.hasNext()) {
+          if (pred.filter(t1, scan2.next()))
+            expected++;
+        }
+        scan2.close();
+      }
+      scan1.close();
+
+      Join join = new Join(pred, scan1, scan2);
+      join.open();
+      int actual = 0;
+      while (join.hasNext()) {
+        Tuple t = join.next();
+        assertTrue(t.getField(1).compare(op, t.getField(width1)));
+        actual++;
+      }
+      join.close();
+      assertEquals(op.toString(), expected, actual);
+    }
+  }
+
   /**
    * JUnit suite target
    */
@@ -0,0 +1,162 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.execution.Join;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.Limit;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.Predicate;
+import simpledb.execution.SeqScan;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class LimitTest extends SimpleDbTestBase {
+
+  /** A MockScan that counts the tuples taken from it and notes when it is closed */
+  private static class CountingScan extends TestUtil.MockScan {
+    private static final long serialVersionUID = 1L;
+    int pulled;
+    boolean closed;
+
+    CountingScan(int low, int high) {
+      super(low, high, 2);
+    }
+
+    @Override public void open() {
+      super.open();
+      closed = false;
+    }
+
+    @Override public void close() {
+      closed = true;
+    }
+
+    @Override public Tuple next() {
+      pulled++;
+      return super.next();
+    }
+  }
+
+  private static List<Integer> drain(OpIterator it) throws Exception {
+    List<Integer> values = new ArrayList<>();
+    while (it.hasNext())
+      values.add(SystemTestUtil.tupleToList(it.next()).get(0));
+    return values;
+  }
+
+  private static List<Integer> range(int low, int high) {
+    List<Integer> values = new ArrayList<>();
+    for (int i = low; i < high; i++)
+      values.add(i);
+    return values;
+  }
+
+  /**
+   * Limit returns the first tuples of its child, takes no more than that
+   * from it, and closes it as soon as it has them
+   */
+  @Test public void firstTuples() throws Exception {
+    CountingScan scan = new CountingScan(0, 1000);
+    Limit op = new Limit(50, scan);
+    op.open();
+    assertEquals(range(0, 50), drain(op));
+    assertEquals(50, scan.pulled);
+    assertTrue(scan.closed);
+
+    op.rewind();
+    assertEquals(range(0, 50), drain(op));
+    op.close();
+  }
+
+  /**
+   * Unit test for Limit with a limit of zero or beyond the input size
+   */
+  @Test public void limitBounds() throws Exception {
+    CountingScan scan = new CountingScan(0, 10);
+    Limit op = new Limit(0, scan);
+    op.open();
+    assertEquals(range(0, 0), drain(op));
+    assertEquals(0, scan.pulled);
+    op.close();
+
+    op = new Limit(500, scan);
+    op.open();
+    assertEquals(range(0, 10), drain(op));
+    op.close();
+  }
+
+  /**
+   * The batch path cuts the last batch short and closes the child
+   */
+  @Test public void batches() throws Exception {
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 3000, null, null);
+    TransactionId tid = new TransactionId();
+    Limit op = new Limit(TupleBatch.DEFAULT_CAPACITY + 10,
+        new SeqScan(tid, f.getId(), ""));
+    op.open();
+    int n = 0;
+    TupleBatch batch;
+    while ((batch = op.nextBatch()) != null)
+      n += batch.size();
+    op.close();
+    assertEquals(TupleBatch.DEFAULT_CAPACITY + 10, n);
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * A Limit over a nested loops join reads only as much of the outer input
+   * as it needs for its first tuples
+   */
+  @Test public void overJoin() throws Exception {
+    CountingScan outer = new CountingScan(0, 1000);
+    CountingScan inner = new CountingScan(0, 100);
+    Limit op = new Limit(5, new Join(new JoinPredicate(0, Predicate.Op.EQUALS, 0), outer, inner));
+    op.open();
+    assertEquals(range(0, 5), drain(op));
+    assertEquals(5, outer.pulled);
+    assertTrue(outer.closed);
+    assertTrue(inner.closed);
+    op.close();
+  }
+
+  /**
+   * LIMIT without ORDER BY is planned as a Limit under the projection
+   */
+  @Test public void planLimit() throws Exception {
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 500, 1000, null, null, "c");
+    Database.getCatalog().addTable(f, "lim");
+
+    TransactionId tid = new TransactionId();
+    LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+        "SELECT * FROM lim LIMIT 7;");
+    OpIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    assertTrue(((Operator) plan).getChildren()[0] instanceof Limit);
+    plan.open();
+    assertEquals(7, drain(plan).size());
+    plan.close();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(LimitTest.class);
+  }
+}
@@ -0,0 +1,187 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.execution.Distinct;
+import simpledb.execution.Gather;
+import simpledb.execution.HashEquiJoin;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.MemoryConsumer;
+import simpledb.execution.MemoryManager;
+import simpledb.execution.OpIterator;
+import simpledb.execution.OrderBy;
+import simpledb.execution.Predicate;
+import simpledb.execution.Query;
+import simpledb.execution.SeqScan;
+import simpledb.storage.HeapFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class MemoryManagerTest extends SimpleDbTestBase {
+
+  /**
+   * A query waits while the pool cannot cover its grant, is admitted once
+   * another query or its transaction releases its own, and fails if it
+   * waits too long
+   */
+  @Test public void admission() throws Exception {
+    MemoryManager mm = new MemoryManager(100);
+    mm.setQueryGrant(60);
+    mm.setAdmissionTimeout(50);
+    TransactionId t1 = new TransactionId();
+    TransactionId t2 = new TransactionId();
+    MemoryManager.Grant first = mm.admit(t1);
+    assertEquals(60, first.getBytes());
+    assertEquals(40, mm.getAvailable());
+    try {
+      mm.admit(t2);
+      fail("the pool cannot cover two grants");
+    } catch (DbException expected) {
+    }
+
+    mm.setAdmissionTimeout(10000);
+    AtomicReference<MemoryManager.Grant> second = new AtomicReference<>();
+    Thread waiter = new Thread(() -> {
+      try {
+        second.set(mm.admit(t2));
+      } catch (DbException e) {
+        // second stays null
+      }
+    });
+    waiter.start();
+    Thread.sleep(50);
+    assertEquals(1, mm.getRunning());
+    first.release();
+    first.release();
+    waiter.join(5000);
+    assertEquals(60, second.get().getBytes());
+    assertEquals(1, mm.getRunning());
+    mm.releaseAll(t2);
+    assertEquals(100, mm.getAvailable());
+
+    mm.setQueryGrant(1000);
+    assertEquals(100, mm.admit(t1).getBytes());
+  }
+
+  /**
+   * A query whose plan holds no tuples in memory, such as a cached result,
+   * runs without waiting for a grant while the pool is used up
+   */
+  @Test public void noGrantWithoutConsumers() throws Exception {
+    MemoryManager mm = Database.getMemoryManager();
+    long timeout = mm.getAdmissionTimeout();
+    long queryGrant = mm.getQueryGrant();
+    TransactionId holder = new TransactionId();
+    try {
+      mm.setAdmissionTimeout(50);
+      mm.setQueryGrant(mm.getCapacity());
+      mm.admit(holder);
+
+      Query cached = new Query(TestUtil.createTupleList(1, new int[] { 3, 1, 2 }), new TransactionId());
+      cached.start();
+      assertEquals(3, TestUtil.remainingRows(cached.getPhysicalPlan()).size());
+      cached.close();
+
+      Query sorted = new Query(new OrderBy(0, true, TestUtil.createTupleList(1, new int[] { 3, 1, 2 })),
+          new TransactionId());
+      try {
+        sorted.start();
+        fail("a sort needs a grant, and the pool is used up");
+      } catch (DbException expected) {
+      }
+    } finally {
+      mm.releaseAll(holder);
+      mm.setQueryGrant(queryGrant);
+      mm.setAdmissionTimeout(timeout);
+    }
+  }
+
+  /**
+   * A grant is shared between the operators that hold tuples, including the
+   * copies of a sub-plan run by an exchange, replacing the budgets the
+   * operators were built with
+   */
+  @Test public void distribute() throws Exception {
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 100, null, null);
+    TransactionId tid = new TransactionId();
+    JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    HashEquiJoin j1 = new HashEquiJoin(p, new SeqScan(tid, f.getId(), "a"), new SeqScan(tid, f.getId(), "b"));
+    HashEquiJoin j2 = new HashEquiJoin(p, new SeqScan(tid, f.getId(), "c"), new SeqScan(tid, f.getId(), "d"));
+    Distinct d = new Distinct(new Gather(Arrays.asList(j1, j2)));
+    OrderBy o = new OrderBy(0, true, d, 100);
+
+    List<MemoryConsumer> consumers = MemoryManager.distribute(o, 4000);
+    assertEquals(4, consumers.size());
+    assertEquals(1000, o.getMemoryBudget());
+    assertEquals(1000, d.getMemoryBudget());
+    assertEquals(1000, j1.getMemoryBudget());
+    assertEquals(1000, j2.getMemoryBudget());
+
+    long large = 4 * (OrderBy.getDefaultMemoryBudget() + 1000);
+    MemoryManager.distribute(o, large);
+    assertEquals(large / 4, o.getMemoryBudget());
+    assertEquals(large / 4, j1.getMemoryBudget());
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * A join whose build side does not fit its budget joins it a block at a
+   * time and returns the same rows, and a query gives its grant back when
+   * it is closed
+   */
+  @Test public void joinInBlocks() throws Exception {
+    HeapFile a = SystemTestUtil.createRandomHeapFile(2, 3000, 100, null, null);
+    HeapFile b = SystemTestUtil.createRandomHeapFile(2, 500, 100, null, null);
+    TransactionId tid = new TransactionId();
+    JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 1);
+    List<List<Integer>> expected = TestUtil.readAllSorted(new HashEquiJoin(p,
+        new SeqScan(tid, a.getId(), "a"), new SeqScan(tid, b.getId(), "b")));
+    assertTrue(expected.size() > 0);
+
+    HashEquiJoin small = new HashEquiJoin(p,
+        new SeqScan(tid, a.getId(), "a"), new SeqScan(tid, b.getId(), "b"), 1, 10000);
+    assertEquals(expected, TestUtil.readAllSorted(small));
+
+    MemoryManager mm = Database.getMemoryManager();
+    long grant = mm.getQueryGrant();
+    try {
+      mm.setQueryGrant(20000);
+      HashEquiJoin j = new HashEquiJoin(p,
+          new SeqScan(tid, a.getId(), "a"), new SeqScan(tid, b.getId(), "b"));
+      Query q = new Query(new OrderBy(0, true, j), tid);
+      q.start();
+      assertEquals(1, mm.getRunning());
+      assertEquals(10000, j.getMemoryBudget());
+      int n = 0;
+      while (q.hasNext()) {
+        q.next();
+        n++;
+      }
+      q.close();
+      assertEquals(expected.size(), n);
+      assertEquals(0, mm.getRunning());
+    } finally {
+      mm.setQueryGrant(grant);
+    }
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(MemoryManagerTest.class);
+  }
+}
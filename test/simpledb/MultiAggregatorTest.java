@@ -0,0 +1,123 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Type;
+import simpledb.common.Utility;
+import simpledb.execution.Aggregator;
+import simpledb.execution.MultiAggregator;
+import simpledb.execution.OpIterator;
+import simpledb.storage.TupleDesc;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class MultiAggregatorTest extends SimpleDbTestBase {
+
+  private static List<List<Integer>> results(Aggregator agg) throws Exception {
+    OpIterator it = agg.iterator();
+    List<List<Integer>> rows = new ArrayList<>();
+    it.open();
+    while (it.hasNext())
+      rows.add(SystemTestUtil.tupleToList(it.next()));
+    it.close();
+    return rows;
+  }
+
+  /**
+   * Several aggregates over a key of two fields, computed in one pass
+   */
+  @Test public void compositeKey() throws Exception {
+    OpIterator scan = TestUtil.createTupleList(3,
+        new int[] { 1, 1, 2,
+                    1, 2, 4,
+                    1, 1, 6,
+                    2, 1, 3,
+                    1, 2, 8 });
+    MultiAggregator agg = new MultiAggregator(scan.getTupleDesc(), new int[] { 0, 1 },
+        new int[] { 2, 2, 2, 2 },
+        new Aggregator.Op[] { Aggregator.Op.SUM, Aggregator.Op.MIN, Aggregator.Op.COUNT, Aggregator.Op.AVG });
+    scan.open();
+    while (scan.hasNext())
+      agg.mergeTupleIntoGroup(scan.next());
+    assertEquals(3, agg.numGroups());
+
+    // groups come out in the order they were first seen
+    assertEquals(Arrays.asList(
+        Arrays.asList(1, 1, 8, 2, 2, 4),
+        Arrays.asList(1, 2, 12, 4, 2, 6),
+        Arrays.asList(2, 1, 3, 3, 1, 3)), results(agg));
+  }
+
+  /**
+   * SUM_COUNT partials of several aggregates are merged with SC_AVG and SUM
+   */
+  @Test public void mergePartials() throws Exception {
+    // (group, sum, count, count) as produced by SUM_COUNT and COUNT
+    OpIterator partials = TestUtil.createTupleList(4,
+        new int[] { 1, 10, 4, 4,
+                    2, 5, 1, 1,
+                    1, 2, 2, 2 });
+    MultiAggregator agg = new MultiAggregator(partials.getTupleDesc(), new int[] { 0 },
+        new int[] { 1, 3 }, new Aggregator.Op[] { Aggregator.Op.SC_AVG, Aggregator.Op.SUM });
+    partials.open();
+    while (partials.hasNext())
+      agg.mergeTupleIntoGroup(partials.next());
+    assertEquals(Arrays.asList(Arrays.asList(1, 2, 6), Arrays.asList(2, 5, 1)), results(agg));
+  }
+
+  /**
+   * Without grouping there is exactly one result, even for empty input
+   */
+  @Test public void noGrouping() throws Exception {
+    TupleDesc td = Utility.getTupleDesc(2);
+    MultiAggregator agg = new MultiAggregator(td, new int[0], new int[] { 0, 1 },
+        new Aggregator.Op[] { Aggregator.Op.COUNT, Aggregator.Op.SUM });
+    assertEquals(1, agg.numGroups());
+    assertEquals(Arrays.asList(Arrays.asList(0, 0)), results(agg));
+  }
+
+  /**
+   * Output columns are named as by the single-column aggregators
+   */
+  @Test public void outputNames() {
+    TupleDesc td = Utility.getTupleDesc(3);
+    MultiAggregator one = new MultiAggregator(td, new int[] { 0 }, new int[] { 1 },
+        new Aggregator.Op[] { Aggregator.Op.SUM_COUNT });
+    TupleDesc out = one.iterator().getTupleDesc();
+    assertEquals("groupValue", out.getFieldName(0));
+    assertEquals("aggregateValue", out.getFieldName(1));
+    assertEquals("countValue", out.getFieldName(2));
+
+    MultiAggregator many = new MultiAggregator(td, new int[] { 0, 1 }, new int[] { 2, 2 },
+        new Aggregator.Op[] { Aggregator.Op.MIN, Aggregator.Op.MAX });
+    out = many.iterator().getTupleDesc();
+    assertEquals(4, out.numFields());
+    assertEquals("groupValue1", out.getFieldName(1));
+    assertEquals("aggregateValue0", out.getFieldName(2));
+    assertEquals(Type.INT_TYPE, out.getFieldType(3));
+  }
+
+  /**
+   * Only COUNT is supported over string fields
+   */
+  @Test(expected = IllegalArgumentException.class) public void stringSum() {
+    TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE });
+    new MultiAggregator(td, new int[] { 0 }, new int[] { 1, 0 },
+        new Aggregator.Op[] { Aggregator.Op.SUM, Aggregator.Op.SUM });
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(MultiAggregatorTest.class);
+  }
+}
@@ -0,0 +1,198 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.DbException;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.OrderBy;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionAbortedException;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+public class OrderByTest extends SimpleDbTestBase {
+
+  private static final int ROWS = 1000;
+
+  /** Tuples of two ints from rows, failing once n of them have been returned */
+  private static OpIterator failingAfter(List<List<Integer>> rows, int n) {
+    OpIterator in = TestUtil.createTupleList(2, rows);
+    return new Operator() {
+      private static final long serialVersionUID = 1L;
+      private int returned;
+
+      @Override
+      protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        if (returned++ == n)
+          throw new DbException("input failed");
+        return in.hasNext() ? in.next() : null;
+      }
+
+      @Override
+      public void open() throws DbException, TransactionAbortedException {
+        in.open();
+        super.open();
+      }
+
+      @Override
+      public void close() {
+        super.close();
+        in.close();
+      }
+
+      @Override
+      public void rewind() throws DbException, TransactionAbortedException {
+        returned = 0;
+        in.rewind();
+      }
+
+      @Override
+      public TupleDesc getTupleDesc() {
+        return in.getTupleDesc();
+      }
+
+      @Override
+      public OpIterator[] getChildren() {
+        return new OpIterator[] { in };
+      }
+
+      @Override
+      public void setChildren(OpIterator[] children) {
+      }
+    };
+  }
+
+  private static int spillFiles() {
+    String[] names = new File(System.getProperty("java.io.tmpdir"))
+        .list((dir, name) -> name.startsWith("spill") && name.endsWith(".dat"));
+    return names == null ? 0 : names.length;
+  }
+
+  private void validate(boolean asc, long memoryBudget) throws Exception {
+    List<List<Integer>> rows = TestUtil.keyedRows(ROWS, 50, 42);
+    OrderBy op = new OrderBy(0, asc, TestUtil.createTupleList(2, rows), memoryBudget);
+
+    List<List<Integer>> expected = new ArrayList<>(rows);
+    Comparator<List<Integer>> byKey = Comparator.comparing(row -> row.get(0));
+    expected.sort(asc ? byKey : byKey.reversed());
+
+    op.open();
+    assertEquals(expected, TestUtil.remainingRows(op));
+    assertFalse(op.hasNext());
+    op.rewind();
+    assertEquals(expected, TestUtil.remainingRows(op));
+    op.close();
+  }
+
+  /**
+   * Unit test for an OrderBy whose input fits in memory
+   */
+  @Test public void inMemory() throws Exception {
+    validate(true, OrderBy.getDefaultMemoryBudget());
+    validate(false, OrderBy.getDefaultMemoryBudget());
+  }
+
+  /**
+   * Unit test for an OrderBy that spills sorted runs and merges them
+   */
+  @Test public void spilled() throws Exception {
+    validate(true, 64 * 1024);
+    validate(false, 64 * 1024);
+  }
+
+  /**
+   * Unit test for an OrderBy with too many runs to merge in one pass
+   */
+  @Test public void multiPassMerge() throws Exception {
+    validate(true, 2000);
+    validate(false, 2000);
+  }
+
+  /**
+   * An OrderBy whose input fails after it has spilled runs removes them
+   */
+  @Test public void failedInputRemovesRuns() throws Exception {
+    int before = spillFiles();
+    OrderBy op = new OrderBy(0, true, failingAfter(TestUtil.keyedRows(ROWS, 50, 42), ROWS - 1), 2000);
+    try {
+      op.open();
+      fail("expected the input to fail");
+    } catch (DbException expected) {
+    }
+    assertEquals(before, spillFiles());
+  }
+
+  /**
+   * Unit test for an OrderBy on two fields in opposite directions
+   */
+  @Test public void multipleFields() throws Exception {
+    Random r = new Random(3);
+    List<List<Integer>> rows = new ArrayList<>();
+    int[] data = new int[ROWS * 3];
+    for (int i = 0; i < ROWS; i++) {
+      List<Integer> row = new ArrayList<>();
+      row.add(r.nextInt(10));
+      row.add(r.nextInt(10));
+      row.add(i);
+      rows.add(row);
+      for (int j = 0; j < 3; j++)
+        data[3 * i + j] = row.get(j);
+    }
+    List<List<Integer>> expected = new ArrayList<>(rows);
+    expected.sort(Comparator.comparing((List<Integer> row) -> row.get(0))
+        .thenComparing(row -> row.get(1), Comparator.reverseOrder()));
+
+    for (long budget : new long[] { OrderBy.getDefaultMemoryBudget(), 2000 }) {
+      OrderBy op = new OrderBy(new int[] { 0, 1 }, new boolean[] { true, false },
+          TestUtil.createTupleList(3, data), budget);
+      op.open();
+      assertEquals(expected, TestUtil.remainingRows(op));
+      op.close();
+    }
+  }
+
+  /**
+   * Unit test for an OrderBy on a string field and an int field, spilled to disk
+   */
+  @Test public void stringField() throws Exception {
+    Random r = new Random(5);
+    Object[] data = new Object[ROWS * 2];
+    List<String> expected = new ArrayList<>();
+    for (int i = 0; i < ROWS; i++) {
+      data[2 * i] = "name" + r.nextInt(40);
+      data[2 * i + 1] = i;
+      expected.add(data[2 * i] + " " + i);
+    }
+    expected.sort(Comparator.comparing((String row) -> row.split(" ")[0]).reversed());
+
+    OrderBy op = new OrderBy(new int[] { 0 }, new boolean[] { false },
+        TestUtil.createTupleList(2, data), 20000);
+    op.open();
+    List<String> actual = new ArrayList<>();
+    while (op.hasNext()) {
+      Tuple t = op.next();
+      actual.add(t.getField(0) + " " + t.getField(1));
+    }
+    op.close();
+    assertEquals(expected, actual);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(OrderByTest.class);
+  }
+}
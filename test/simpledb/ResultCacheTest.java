@@ -0,0 +1,144 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import Zql.ZQuery;
+import Zql.ZqlParser;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Query;
+import simpledb.execution.ResultCache;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleIterator;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.Transaction;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class ResultCacheTest extends SimpleDbTestBase {
+
+  /** Run a query through the parser as the console does, returning its row count */
+  private static int run(Parser p, String sql) throws Exception {
+    ZQuery q = (ZQuery) new ZqlParser(new ByteArrayInputStream(sql.getBytes())).readStatement();
+    Transaction t = new Transaction();
+    t.start();
+    Query query = p.handleQueryStatement(q, t.getId());
+    query.start();
+    int n = 0;
+    while (query.hasNext()) {
+      query.next();
+      n++;
+    }
+    query.close();
+    t.commit();
+    return n;
+  }
+
+  private static OpIterator rows(int n, int width) {
+    List<Tuple> ts = new ArrayList<>();
+    for (int i = 0; i < n; i++)
+      ts.add(Utility.getHeapTuple(i, width));
+    return new TupleIterator(Utility.getTupleDesc(width), ts);
+  }
+
+  /**
+   * A query sent again is answered from the cache, also when written
+   * differently, until a commit changes one of its tables
+   */
+  @Test public void hitsAndInvalidation() throws Exception {
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 300, 100, null, null, "c");
+    Database.getCatalog().addTable(f, "rc");
+    ResultCache cache = Database.getResultCache();
+    Parser p = new Parser();
+
+    assertEquals(300, run(p, "SELECT * FROM rc;"));
+    assertEquals(0, cache.getHits());
+    assertEquals(300, run(p, "SELECT   *   FROM rc ;"));
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.size());
+
+    p.processNextStatement("INSERT INTO rc VALUES (1, 2);");
+    assertEquals(301, run(p, "SELECT * FROM rc;"));
+    assertEquals(1, cache.getHits());
+    assertEquals(301, run(p, "SELECT * FROM rc;"));
+    assertEquals(2, cache.getHits());
+  }
+
+  /**
+   * A query answered from the cache takes the shared locks a scan of its
+   * tables would, and explains the plan the result was computed with
+   */
+  @Test public void hitsLockAndExplain() throws Exception {
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 3000, 100, null, null, "c");
+    Database.getCatalog().addTable(f, "rl");
+    Parser p = new Parser();
+    assertEquals(3000, run(p, "SELECT * FROM rl;"));
+
+    ByteArrayOutputStream text = new ByteArrayOutputStream();
+    p.setOutput(new PrintStream(text, true));
+    Parser.explain = true;
+    Transaction t = new Transaction();
+    t.start();
+    try {
+      ZQuery q = (ZQuery) new ZqlParser(new ByteArrayInputStream("SELECT * FROM rl;".getBytes())).readStatement();
+      p.handleQueryStatement(q, t.getId());
+      assertEquals(1, Database.getResultCache().getHits());
+      for (int i = 0; i < f.numPages(); i++)
+        assertTrue(Database.getBufferPool().holdsLock(t.getId(), new HeapPageId(f.getId(), i)));
+      assertTrue(text.toString().contains("The query result is cached."));
+      assertTrue(text.toString().contains("The query plan it was computed with is:"));
+    } finally {
+      Parser.explain = false;
+      t.commit();
+    }
+  }
+
+  /**
+   * Results are kept within the capacity, evicting the least recently used,
+   * and results that were not read to the end are not kept
+   */
+  @Test public void evictsLeastRecentlyUsed() throws Exception {
+    // 100 rows of 2 ints are taken to need 8800 bytes
+    ResultCache cache = new ResultCache(40000);
+    TestUtil.readAll(cache.record("a", Collections.emptyMap(), rows(100, 2)));
+    TestUtil.readAll(cache.record("b", Collections.emptyMap(), rows(100, 2)));
+    assertNotNull(cache.lookup("a"));
+    TestUtil.readAll(cache.record("c", Collections.emptyMap(), rows(100, 2)));
+    TestUtil.readAll(cache.record("d", Collections.emptyMap(), rows(100, 2)));
+    TestUtil.readAll(cache.record("e", Collections.emptyMap(), rows(100, 2)));
+    assertNull(cache.lookup("b"));
+    assertNotNull(cache.lookup("a"));
+    assertEquals(4, cache.size());
+
+    TestUtil.readAll(cache.record("big", Collections.emptyMap(), rows(1000, 2)));
+    assertNull(cache.lookup("big"));
+
+    OpIterator part = cache.record("part", Collections.emptyMap(), rows(10, 2));
+    part.open();
+    part.next();
+    part.close();
+    assertNull(cache.lookup("part"));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ResultCacheTest.class);
+  }
+}
@@ -0,0 +1,159 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.storage.HeapFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ServerTest extends SimpleDbTestBase {
+
+  private Server server;
+
+  /** A client reading the output of each statement up to the next prompt */
+  private class Client implements AutoCloseable {
+    final Socket socket;
+    final InputStream in;
+    final OutputStream out;
+
+    Client() throws IOException {
+      socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+      socket.setSoTimeout(30000);
+      in = socket.getInputStream();
+      out = socket.getOutputStream();
+      readPrompt();
+    }
+
+    void send(String sql) throws IOException {
+      out.write(sql.getBytes(StandardCharsets.UTF_8));
+      out.flush();
+    }
+
+    String readPrompt() throws IOException {
+      StringBuilder sb = new StringBuilder();
+      while (!sb.toString().endsWith(Server.PROMPT)) {
+        int c = in.read();
+        if (c < 0)
+          throw new IOException("disconnected after " + sb);
+        sb.append((char) c);
+      }
+      return sb.toString();
+    }
+
+    String run(String sql) throws IOException {
+      send(sql);
+      return readPrompt();
+    }
+
+    @Override
+    public void close() throws IOException {
+      socket.close();
+    }
+  }
+
+  @Before public void startServer() throws Exception {
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 300, 100, null, null, "c");
+    Database.getCatalog().addTable(f, "srv");
+    server = new Server(0, 4);
+    server.start();
+  }
+
+  @After public void stopServer() throws Exception {
+    server.stop();
+  }
+
+  /**
+   * Many clients run statements at once, each in its own session, and the
+   * server counts them
+   */
+  @Test public void concurrentSessions() throws Exception {
+    int clients = 8, statements = 10;
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < clients; i++) {
+      Thread t = new Thread(() -> {
+        try (Client c = new Client()) {
+          // sent together; answered in order
+          StringBuilder batch = new StringBuilder();
+          for (int j = 0; j < statements; j++)
+            batch.append("SELECT * FROM srv;\n");
+          c.send(batch.toString());
+          for (int j = 0; j < statements; j++)
+            assertTrue(c.readPrompt().contains("300 rows."));
+        } catch (Throwable e) {
+          failure.compareAndSet(null, e);
+        }
+      });
+      threads.add(t);
+      t.start();
+    }
+    for (Thread t : threads)
+      t.join();
+    if (failure.get() != null)
+      throw new AssertionError(failure.get());
+
+    assertEquals(clients, server.getSessionsOpened());
+    assertEquals(clients * statements, server.getStatementsRun());
+    try (Client c = new Client()) {
+      assertTrue(c.run("stats;").contains(clients * statements + " statements run"));
+    }
+  }
+
+  /**
+   * Sessions run independent transactions: one waits for the locks of
+   * another until it commits or is cancelled, and the transaction of a
+   * session that disconnects is aborted
+   */
+  @Test public void independentTransactions() throws Exception {
+    try (Client writer = new Client(); Client reader = new Client()) {
+      assertTrue(writer.run("SET TRANSACTION READ WRITE;").contains("Started a new transaction"));
+      writer.run("INSERT INTO srv VALUES (1, 2);");
+      // an open transaction with no statement running has nothing to cancel
+      assertTrue(writer.run("cancel;").contains("No statement is running."));
+
+      reader.send("SELECT * FROM srv;");
+      // the statement may not be running yet when the first cancel arrives
+      String reply = reader.run("cancel;");
+      for (int i = 0; i < 500 && reply.contains("No statement is running."); i++) {
+        Thread.sleep(20);
+        reply = reader.run("cancel;");
+      }
+      assertTrue(reply.contains("Cancelling"));
+      assertTrue(reader.readPrompt().contains("aborted: query cancelled"));
+
+      reader.send("SELECT * FROM srv;");
+      assertTrue(writer.run("COMMIT;").contains("committed."));
+      assertTrue(reader.readPrompt().contains("301 rows."));
+
+      writer.run("SET TRANSACTION READ WRITE;");
+      writer.run("INSERT INTO srv VALUES (3, 4);");
+    }
+    try (Client c = new Client()) {
+      assertTrue(c.run("SELECT * FROM srv;").contains("301 rows."));
+    }
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ServerTest.class);
+  }
+}
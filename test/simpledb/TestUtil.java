@@ -3,6 +3,7 @@ package simpledb;
 import simpledb.common.*;
 import simpledb.execution.OpIterator;
 import simpledb.storage.*;
+import simpledb.systemtest.SystemTestUtil;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
@@ -168,6 +169,69 @@ public class TestUtil {
         }
     }
 
+    /**
+     * @return an open OpIterator over rows of ints, each row a tuple of
+     *   width fields
+     */
+    public static TupleIterator createTupleList(int width, List<List<Integer>> rows) {
+        int[] data = new int[rows.size() * width];
+        for (int i = 0; i < rows.size(); i++) {
+            for (int j = 0; j < width; j++)
+                data[i * width + j] = rows.get(i).get(j);
+        }
+        return createTupleList(width, data);
+    }
+
+    /**
+     * @return rows with a random key below keys in the first field and the
+     *   row's position in the second, so that the stability of a sort on the
+     *   key can be checked
+     */
+    public static List<List<Integer>> keyedRows(int rows, int keys, long seed) {
+        Random r = new Random(seed);
+        List<List<Integer>> result = new ArrayList<>();
+        for (int i = 0; i < rows; i++)
+            result.add(Arrays.asList(r.nextInt(keys), i));
+        return result;
+    }
+
+    /**
+     * @return the tuples an already open OpIterator has left, as lists of
+     *   ints, in the order it returns them
+     */
+    public static List<List<Integer>> remainingRows(OpIterator it)
+            throws DbException, TransactionAbortedException {
+        List<List<Integer>> rows = new ArrayList<>();
+        while (it.hasNext())
+            rows.add(SystemTestUtil.tupleToList(it.next()));
+        return rows;
+    }
+
+    /**
+     * Open an OpIterator, read all of its tuples and close it.
+     * @return the tuples as lists of ints, in the order it returned them
+     */
+    public static List<List<Integer>> readAll(OpIterator it)
+            throws DbException, TransactionAbortedException {
+        it.open();
+        try {
+            return remainingRows(it);
+        } finally {
+            it.close();
+        }
+    }
+
+    /**
+     * @return the tuples of readAll(it), sorted, to compare the results of
+     *   plans that return them in different orders
+     */
+    public static List<List<Integer>> readAllSorted(OpIterator it)
+            throws DbException, TransactionAbortedException {
+        List<List<Integer>> rows = readAll(it);
+        rows.sort(Comparator.comparing(Object::toString));
+        return rows;
+    }
+
     /**
      * @return a byte array containing the contents of the file 'path'
      */
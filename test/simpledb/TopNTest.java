@@ -0,0 +1,145 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.execution.Limit;
+import simpledb.execution.MemoryManager;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Operator;
+import simpledb.execution.OrderBy;
+import simpledb.execution.TopN;
+import simpledb.optimizer.LogicalPlan;
+import simpledb.optimizer.TableStats;
+import simpledb.storage.HeapFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+public class TopNTest extends SimpleDbTestBase {
+
+  private static List<List<Integer>> expected(List<List<Integer>> rows, boolean asc, int limit) {
+    List<List<Integer>> sorted = new ArrayList<>(rows);
+    Comparator<List<Integer>> byKey = Comparator.comparing(row -> row.get(0));
+    sorted.sort(asc ? byKey : byKey.reversed());
+    return sorted.subList(0, Math.min(limit, sorted.size()));
+  }
+
+  private void validate(int rows, boolean asc, int limit) throws Exception {
+    List<List<Integer>> in = TestUtil.keyedRows(rows, 100, 7);
+    validate(new TopN(0, asc, limit, TestUtil.createTupleList(2, in)), in, asc, limit);
+  }
+
+  private void validate(TopN op, List<List<Integer>> in, boolean asc, int limit) throws Exception {
+    op.open();
+    List<List<Integer>> expected = expected(in, asc, limit);
+    assertEquals(expected, TestUtil.remainingRows(op));
+    op.rewind();
+    assertEquals(expected, TestUtil.remainingRows(op));
+    op.close();
+  }
+
+  /**
+   * Unit test for TopN keeping fewer tuples than its input has
+   */
+  @Test public void topN() throws Exception {
+    validate(2000, true, 10);
+    validate(2000, false, 10);
+    validate(2000, true, 150);
+  }
+
+  /**
+   * Unit test for TopN with a limit of zero or beyond the input size
+   */
+  @Test public void limitBounds() throws Exception {
+    validate(100, true, 0);
+    validate(100, false, 100);
+    validate(100, true, 500);
+  }
+
+  /**
+   * A TopN whose limit does not fit in the memory budget it is given sorts
+   * its whole input within the budget and returns the same tuples
+   */
+  @Test public void sortBeyondBudget() throws Exception {
+    int[] fields = { 0 };
+    for (boolean asc : new boolean[] { true, false }) {
+      List<List<Integer>> in = TestUtil.keyedRows(2000, 100, 7);
+      TopN op = new TopN(fields, new boolean[] { asc }, 150, TestUtil.createTupleList(2, in));
+      assertEquals(1, MemoryManager.distribute(op, 1024).size());
+      validate(op, in, asc, 150);
+      op.open();
+      assertTrue(op.sorted());
+      op.close();
+    }
+  }
+
+  /**
+   * ORDER BY ... LIMIT is planned as a TopN under the projection
+   */
+  @Test public void planOrderByLimit() throws Exception {
+    List<List<Integer>> rows = new ArrayList<>();
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 500, 1000, null, rows, "c");
+    Database.getCatalog().addTable(f, "topn");
+
+    TransactionId tid = new TransactionId();
+    LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+        "SELECT * FROM topn ORDER BY topn.c0 DESC LIMIT 7;");
+    OpIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    assertTrue(((Operator) plan).getChildren()[0] instanceof TopN);
+
+    List<List<Integer>> expected = new ArrayList<>(rows);
+    expected.sort(Comparator.comparing((List<Integer> row) -> row.get(0)).reversed());
+    plan.open();
+    List<Integer> keys = new ArrayList<>();
+    for (List<Integer> row : TestUtil.remainingRows(plan))
+      keys.add(row.get(0));
+    plan.close();
+    List<Integer> expectedKeys = new ArrayList<>();
+    for (List<Integer> row : expected.subList(0, 7))
+      expectedKeys.add(row.get(0));
+    assertEquals(expectedKeys, keys);
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * A limit whose rows would not fit in the memory of a sort is planned as
+   * a Limit over an OrderBy, which spills, rather than as a TopN
+   */
+  @Test public void planLargeLimit() throws Exception {
+    List<List<Integer>> rows = new ArrayList<>();
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 500, 1000, null, rows, "c");
+    Database.getCatalog().addTable(f, "topnbig");
+
+    TransactionId tid = new TransactionId();
+    LogicalPlan lp = new Parser().generateLogicalPlan(tid,
+        "SELECT * FROM topnbig ORDER BY topnbig.c0 LIMIT 100000000;");
+    OpIterator plan = lp.physicalPlan(tid, TableStats.getStatsMap(), false);
+    OpIterator limit = ((Operator) plan).getChildren()[0];
+    assertTrue(limit instanceof Limit);
+    assertTrue(((Operator) limit).getChildren()[0] instanceof OrderBy);
+
+    plan.open();
+    List<List<Integer>> result = TestUtil.remainingRows(plan);
+    plan.close();
+    assertEquals(500, result.size());
+    for (int i = 1; i < result.size(); i++)
+      assertTrue(result.get(i - 1).get(0) <= result.get(i).get(0));
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(TopNTest.class);
+  }
+}
@@ -0,0 +1,177 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Type;
+import simpledb.common.Utility;
+import simpledb.execution.Aggregate;
+import simpledb.execution.Aggregator;
+import simpledb.execution.Filter;
+import simpledb.execution.HashEquiJoin;
+import simpledb.execution.JoinPredicate;
+import simpledb.execution.OpIterator;
+import simpledb.execution.Predicate;
+import simpledb.execution.Project;
+import simpledb.execution.SeqScan;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleBatch;
+import simpledb.storage.TupleDesc;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+public class TupleBatchTest extends SimpleDbTestBase {
+
+  private static List<List<Integer>> rows(OpIterator op) throws Exception {
+    List<List<Integer>> rows = new ArrayList<>();
+    op.open();
+    while (op.hasNext())
+      rows.add(SystemTestUtil.tupleToList(op.next()));
+    op.close();
+    return rows;
+  }
+
+  private static List<List<Integer>> batches(OpIterator op) throws Exception {
+    List<List<Integer>> rows = new ArrayList<>();
+    op.open();
+    TupleBatch batch;
+    while ((batch = op.nextBatch()) != null) {
+      assertTrue(batch.size() > 0);
+      assertTrue(batch.size() <= TupleBatch.DEFAULT_CAPACITY);
+      for (int i = 0; i < batch.size(); i++)
+        rows.add(SystemTestUtil.tupleToList(batch.getTuple(i)));
+    }
+    op.close();
+    return rows;
+  }
+
+  /**
+   * Unit test for filling, reading and compacting a batch
+   */
+  @Test public void addAndRetain() {
+    TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE });
+    TupleBatch batch = new TupleBatch(td, 4);
+    for (int i = 0; i < 4; i++) {
+      Tuple t = new Tuple(td);
+      t.setField(0, new IntField(i * 10));
+      t.setField(1, new StringField("s" + i, Type.STRING_LEN));
+      batch.add(t);
+    }
+    assertTrue(batch.isFull());
+    assertEquals(20, batch.getInt(0, 2));
+    assertEquals(new StringField("s3", Type.STRING_LEN), batch.getField(1, 3));
+
+    batch.retain(new int[] { 1, 3 }, 2);
+    assertEquals(2, batch.size());
+    assertEquals(Arrays.asList(10, 30), Arrays.asList(batch.getInt(0, 0), batch.getInt(0, 1)));
+    assertEquals(new StringField("s3", Type.STRING_LEN), batch.getTuple(1).getField(1));
+
+    // a projection that repeats a column shares it, and compacts it only once
+    TupleBatch twice = batch.project(Utility.getTupleDesc(2), Arrays.asList(0, 0));
+    twice.retain(new int[] { 1 }, 1);
+    assertEquals(30, twice.getInt(0, 0));
+    assertEquals(30, twice.getInt(1, 0));
+  }
+
+  /**
+   * A scan, filter and projection read by batches return the same rows as
+   * read one at a time
+   */
+  @Test public void scanFilterProject() throws Exception {
+    HeapFile f = SystemTestUtil.createRandomHeapFile(3, 5000, 100, null, null);
+    TransactionId tid = new TransactionId();
+    for (Predicate.Op op : Predicate.Op.values()) {
+      Predicate p = new Predicate(1, op, new IntField(50));
+      OpIterator plan = new Project(new ArrayList<>(Arrays.asList(2, 0)),
+          new Type[] { Type.INT_TYPE, Type.INT_TYPE },
+          new Filter(p, new SeqScan(tid, f.getId(), "")));
+      assertEquals(rows(plan), batches(plan));
+    }
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * A hash join read by batches returns the same rows as read one at a
+   * time, including keys with more matches than fit in one output batch
+   */
+  @Test public void hashJoin() throws Exception {
+    HeapFile left = SystemTestUtil.createRandomHeapFile(2, 3000, 3, null, null);
+    HeapFile right = SystemTestUtil.createRandomHeapFile(2, 2000, 50, null, null);
+    TransactionId tid = new TransactionId();
+    JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    OpIterator join = new HashEquiJoin(p, new SeqScan(tid, left.getId(), "l"),
+        new SeqScan(tid, right.getId(), "r"));
+    List<List<Integer>> expected = rows(join);
+    List<List<Integer>> actual = batches(join);
+    expected.sort(Comparator.comparing(Object::toString));
+    actual.sort(Comparator.comparing(Object::toString));
+    assertEquals(expected, actual);
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * hasNext() between batches keeps every row exactly once
+   */
+  @Test public void hasNextBetweenBatches() throws Exception {
+    OpIterator scan = TestUtil.createTupleList(1, new int[] { 1, 2, 3, 4, 5 });
+    Filter f = new Filter(new Predicate(0, Predicate.Op.NOT_EQUALS, new IntField(3)), scan);
+    f.open();
+    List<Integer> seen = new ArrayList<>();
+    while (f.hasNext()) {
+      TupleBatch batch = f.nextBatch();
+      for (int i = 0; i < batch.size(); i++)
+        seen.add(batch.getInt(0, i));
+    }
+    assertNull(f.nextBatch());
+    f.close();
+    assertEquals(Arrays.asList(1, 2, 4, 5), seen);
+  }
+
+  /**
+   * An aggregate fed by batches computes the same groups as one fed tuples
+   */
+  @Test public void aggregate() throws Exception {
+    HeapFile f = SystemTestUtil.createRandomHeapFile(2, 5000, 40, null, null);
+    TransactionId tid = new TransactionId();
+    for (Aggregator.Op op : new Aggregator.Op[] { Aggregator.Op.SUM, Aggregator.Op.AVG }) {
+      List<List<Integer>> expected = new ArrayList<>();
+      for (int g = 0; g < 40; g++) {
+        int sum = 0, count = 0;
+        OpIterator scan = new SeqScan(tid, f.getId(), "");
+        for (List<Integer> row : rows(scan)) {
+          if (row.get(0) == g) {
+            sum += row.get(1);
+            count++;
+          }
+        }
+        if (count > 0)
+          expected.add(Arrays.asList(g, op == Aggregator.Op.SUM ? sum : sum / count));
+      }
+      List<List<Integer>> actual = rows(new Aggregate(new SeqScan(tid, f.getId(), ""), 1, 0, op, 1));
+      actual.sort(Comparator.comparing(row -> row.get(0)));
+      assertEquals(expected, actual);
+    }
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(TupleBatchTest.class);
+  }
+}
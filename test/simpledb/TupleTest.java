@@ -59,6 +59,33 @@ public class TupleTest extends SimpleDbTestBase {
 	}
     }
 
+    /**
+     * Unit test for Tuple.project() and Tuple.concat(): views read the fields
+     * of the tuples under them, equal copies of those fields, and take a copy
+     * of their own when a field is set
+     */
+    @Test public void views() {
+        Tuple t1 = Utility.getHeapTuple(new int[] { 1, 2, 3 });
+        Tuple t2 = Utility.getHeapTuple(new int[] { 4, 5 });
+        t1.setRecordId(new RecordId(new HeapPageId(0, 0), 7));
+
+        Tuple p = Tuple.project(t1, Utility.getTupleDesc(2), new int[] { 2, 0 });
+        assertEquals(new IntField(3), p.getField(0));
+        assertEquals(new IntField(1), p.getField(1));
+        assertEquals(t1.getRecordId(), p.getRecordId());
+        assertEquals(Utility.getHeapTuple(new int[] { 3, 1 }), p);
+
+        Tuple c = Tuple.concat(p, t2, Utility.getTupleDesc(4));
+        assertEquals(Utility.getHeapTuple(new int[] { 3, 1, 4, 5 }), c);
+        assertEquals("3\t1\t4\t5", c.toString());
+
+        c.setField(3, new IntField(9));
+        t1.setField(0, new IntField(8));
+        assertEquals(Utility.getHeapTuple(new int[] { 3, 1, 4, 9 }), c);
+        assertEquals(new IntField(8), p.getField(1));
+        assertEquals(new IntField(5), t2.getField(1));
+    }
+
     /**
      * JUnit suite target
      */
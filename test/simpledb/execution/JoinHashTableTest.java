@@ -0,0 +1,132 @@
+package simpledb.execution;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.Type;
+import simpledb.common.Utility;
+import simpledb.storage.Field;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class JoinHashTableTest extends SimpleDbTestBase {
+
+  /** @return the second field of the rows in key's chain, in chain order */
+  private static List<Integer> chain(JoinHashTable table, Field key) {
+    List<Integer> seqs = new ArrayList<>();
+    for (int r = table.first(key); r != -1; r = table.next(r))
+      seqs.add(((IntField) table.row(r).getField(1)).getValue());
+    return seqs;
+  }
+
+  /**
+   * Add {key, seq} rows, seq counting up from 0, and return the seqs added
+   * under each key, in the order they were added
+   */
+  private static Map<Field, List<Integer>> fill(JoinHashTable table, List<Field> keys) {
+    Map<Field, List<Integer>> expected = new LinkedHashMap<>();
+    for (int seq = 0; seq < keys.size(); seq++) {
+      Tuple t = Utility.getHeapTuple(seq, 2);
+      t.setField(1, new IntField(seq));
+      table.add(t, keys.get(seq));
+      expected.computeIfAbsent(keys.get(seq), k -> new ArrayList<>()).add(seq);
+    }
+    return expected;
+  }
+
+  private static List<Field> intKeys(int... keys) {
+    List<Field> fields = new ArrayList<>();
+    for (int k : keys)
+      fields.add(new IntField(k));
+    return fields;
+  }
+
+  /**
+   * An int keyed table keeps every key when it grows well past its
+   * expected size and rehashes several times
+   */
+  @Test public void intKeyedGrowth() {
+    JoinHashTable table = JoinHashTable.create(Type.INT_TYPE, 0);
+    assertTrue(table instanceof JoinHashTable.IntKeyed);
+    int[] keys = new int[5000];
+    for (int i = 0; i < keys.length; i++)
+      keys[i] = i * 31;
+    Map<Field, List<Integer>> expected = fill(table, intKeys(keys));
+    assertEquals(5000, table.size());
+    for (Map.Entry<Field, List<Integer>> e : expected.entrySet())
+      assertEquals(e.getValue(), chain(table, e.getKey()));
+    assertEquals(-1, table.first(new IntField(1)));
+    assertEquals(-1, ((JoinHashTable.IntKeyed) table).first(-31));
+  }
+
+  /**
+   * Negative keys, the extreme ints, and keys that share their low bits
+   * or land in the same slot are kept apart
+   */
+  @Test public void collidingAndNegativeKeys() {
+    List<Field> keys = intKeys(-1, 0, 1, Integer.MIN_VALUE, Integer.MAX_VALUE,
+        Integer.MIN_VALUE + 1, -2, 1 << 20, 2 << 20, 3 << 20, -(1 << 20), Integer.MIN_VALUE, -1);
+    // with a few thousand keys in the table many of them share a slot
+    Random rand = new Random(7);
+    for (int i = 0; i < 4000; i++)
+      keys.add(new IntField(rand.nextInt(2000) - 1000));
+    JoinHashTable table = JoinHashTable.create(Type.INT_TYPE, 16);
+    Map<Field, List<Integer>> expected = fill(table, keys);
+    for (Map.Entry<Field, List<Integer>> e : expected.entrySet())
+      assertEquals(e.getValue(), chain(table, e.getKey()));
+    assertEquals(Arrays.asList(3, 11), chain(table, new IntField(Integer.MIN_VALUE)));
+    assertEquals(-1, table.first(new IntField(Integer.MIN_VALUE + 2)));
+    assertEquals(-1, table.first(new IntField(5 << 20)));
+  }
+
+  /** A key carried by many rows costs one chain holding all of them */
+  @Test public void manyDuplicates() {
+    for (Type type : new Type[] { Type.INT_TYPE, Type.STRING_TYPE }) {
+      JoinHashTable table = JoinHashTable.create(type, 16);
+      List<Field> keys = new ArrayList<>();
+      for (int i = 0; i < 10000; i++)
+        keys.add(i % 1000 == 999 ? key(type, i) : key(type, 42));
+      Map<Field, List<Integer>> expected = fill(table, keys);
+      assertEquals(9990, chain(table, key(type, 42)).size());
+      for (Map.Entry<Field, List<Integer>> e : expected.entrySet())
+        assertEquals(e.getValue(), chain(table, e.getKey()));
+    }
+  }
+
+  /** A key's matches come back in the order its rows were added */
+  @Test public void matchOrder() {
+    for (Type type : new Type[] { Type.INT_TYPE, Type.STRING_TYPE }) {
+      JoinHashTable table = JoinHashTable.create(type, 4);
+      List<Field> keys = new ArrayList<>();
+      for (int i = 0; i < 12; i++)
+        keys.add(key(type, i % 3));
+      fill(table, keys);
+      assertEquals(Arrays.asList(0, 3, 6, 9), chain(table, key(type, 0)));
+      assertEquals(Arrays.asList(1, 4, 7, 10), chain(table, key(type, 1)));
+      assertEquals(Arrays.asList(2, 5, 8, 11), chain(table, key(type, 2)));
+    }
+  }
+
+  private static Field key(Type type, int k) {
+    return type == Type.INT_TYPE ? new IntField(k) : new StringField("k" + k, Type.STRING_LEN);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(JoinHashTableTest.class);
+  }
+}